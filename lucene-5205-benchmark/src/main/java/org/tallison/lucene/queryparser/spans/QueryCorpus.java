@@ -0,0 +1,229 @@
+package org.tallison.lucene.queryparser.spans;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Query strings for the benchmarks and the fuzzer.
+ * <p>
+ * The realistic queries are read from <code>queries.txt</code>; the adversarial
+ * queries are built from {@link Shape}s, each of which can be scaled to any size.
+ */
+public final class QueryCorpus {
+
+  private static final String REALISTIC = "queries.txt";
+
+  /**
+   * Adversarial shapes.  Each one is built with <code>n</code> repetitions of its
+   * unit, so that the cost of parsing it should grow linearly with <code>n</code>.
+   */
+  public enum Shape {
+    /** ((((a)))) */
+    NESTED_OR {
+      @Override
+      public String build(int n) {
+        return repeat("(", n) + "a" + repeat(")", n);
+      }
+    },
+    /** [[[[a b] b] b] b] */
+    NESTED_NEAR {
+      @Override
+      public String build(int n) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(repeat("[", n)).append("a");
+        for (int i = 0; i < n; i++) {
+          sb.append(" b]");
+        }
+        return sb.toString();
+      }
+    },
+    /** [a (a [a b]~2)]~2 */
+    NESTED_MIXED {
+      @Override
+      public String build(int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+          sb.append((i % 2 == 0) ? "[a " : "(a ");
+        }
+        sb.append("b");
+        for (int i = n - 1; i >= 0; i--) {
+          sb.append((i % 2 == 0) ? "]~2" : ")");
+        }
+        return sb.toString();
+      }
+    },
+    /** a\*\*\*\* */
+    LONG_ESCAPES {
+      @Override
+      public String build(int n) {
+        return "a" + repeat("\\*", n);
+      }
+    },
+    /** a\\\\\\\\* */
+    LONG_BACKSLASHES {
+      @Override
+      public String build(int n) {
+        return "a" + repeat("\\\\", n) + "*";
+      }
+    },
+    /** 'aaaa' */
+    LONG_SINGLE_QUOTED {
+      @Override
+      public String build(int n) {
+        return "'" + repeat("a ", n) + "'";
+      }
+    },
+    /** (t0 t1 t2 t3) */
+    LARGE_OR {
+      @Override
+      public String build(int n) {
+        return "(" + terms(n) + ")";
+      }
+    },
+    /** "t0 t1 t2 t3" */
+    LONG_PHRASE {
+      @Override
+      public String build(int n) {
+        return "\"" + terms(n) + "\"";
+      }
+    },
+    /** [(t0 t1) (t2 t3)]~3 */
+    NEAR_OF_ORS {
+      @Override
+      public String build(int n) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < n; i++) {
+          sb.append("(t").append(2 * i).append(" t").append(2 * i + 1).append(") ");
+        }
+        return sb.append("]~3").toString();
+      }
+    },
+    /** +f0:t0 -f1:t1^2 +f2:t2* */
+    MANY_MODIFIERS {
+      @Override
+      public String build(int n) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n; i++) {
+          sb.append((i % 2 == 0) ? "+" : "-").append("f").append(i % 7).append(":t").append(i);
+          sb.append((i % 3 == 0) ? "^2 " : "* ");
+        }
+        return sb.toString();
+      }
+    },
+    /** ((((( never closed */
+    UNBALANCED {
+      @Override
+      public String build(int n) {
+        return repeat("([\"", n) + "a";
+      }
+    },
+    /** "a "a "a "a; quotes that are never closed */
+    UNCLOSED_QUOTES {
+      @Override
+      public String build(int n) {
+        return repeat("\"a ", n);
+      }
+    };
+
+    /**
+     * @param n size
+     * @return query string of size <code>n</code>
+     */
+    public abstract String build(int n);
+  }
+
+  private QueryCorpus() {
+  }
+
+  /**
+   * @return the realistic queries
+   * @throws IOException if the queries couldn't be read
+   */
+  public static List<String> realistic() throws IOException {
+    List<String> queries = new ArrayList<>();
+    try (InputStream is = QueryCorpus.class.getResourceAsStream(REALISTIC)) {
+      if (is == null) {
+        throw new IOException("Couldn't find " + REALISTIC);
+      }
+      BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+      String line = reader.readLine();
+      while (line != null) {
+        line = line.trim();
+        if (line.length() > 0 && ! line.startsWith("#")) {
+          queries.add(line);
+        }
+        line = reader.readLine();
+      }
+    }
+    return Collections.unmodifiableList(queries);
+  }
+
+  /**
+   * @param n size of each shape
+   * @return one query for every {@link Shape}
+   */
+  public static List<String> adversarial(int n) {
+    List<String> queries = new ArrayList<>();
+    for (Shape shape : Shape.values()) {
+      queries.add(shape.build(n));
+    }
+    return Collections.unmodifiableList(queries);
+  }
+
+  /**
+   * @param seed       seed for the generator
+   * @param numQueries number of queries
+   * @return random queries from {@link RandomQueryGenerator}
+   */
+  public static List<String> random(long seed, int numQueries) {
+    RandomQueryGenerator generator = new RandomQueryGenerator(new Random(seed));
+    List<String> queries = new ArrayList<>();
+    for (int i = 0; i < numQueries; i++) {
+      queries.add(generator.next());
+    }
+    return Collections.unmodifiableList(queries);
+  }
+
+  private static String terms(int n) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < n; i++) {
+      if (i > 0) {
+        sb.append(' ');
+      }
+      sb.append('t').append(i);
+    }
+    return sb.toString();
+  }
+
+  private static String repeat(String s, int n) {
+    StringBuilder sb = new StringBuilder(s.length() * n);
+    for (int i = 0; i < n; i++) {
+      sb.append(s);
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,250 @@
+package org.tallison.lucene.queryparser.spans;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Random;
+
+/**
+ * Generates random query strings in the SpanQueryParser syntax.
+ * <p>
+ * Most of what is generated is well formed: terms, multiterms, fields, boolean
+ * operators, or clauses, phrases, nears, not nears, boosts and position ranges,
+ * nested to a bounded depth.  Now and then, a random syntax character is
+ * dropped in, so that the error paths of the lexer and parser are covered too.
+ * <p>
+ * The length of each query is bounded by {@link #getMaxLength()}, so that the cost
+ * of parsing any one query is bounded as long as the parser is linear.
+ */
+public class RandomQueryGenerator {
+
+  public static final int DEFAULT_MAX_DEPTH = 6;
+  public static final int DEFAULT_MAX_LENGTH = 2048;
+
+  private static final String[] WORDS = new String[]{
+      "a", "the", "apache", "lucene", "solr", "jakarta", "span", "query", "parser",
+      "brown", "fox", "dog", "AND", "OR", "NOT", "TO", "\u666E\u6797\u65AF\u987F", "na\u00EFve"
+  };
+  private static final String[] FIELDS = new String[]{"f1", "f2", "title", "*"};
+  private static final char[] SYNTAX = "()[]{}\"'~^@!:*?\\/+-., \t".toCharArray();
+
+  private final Random random;
+  private final int maxDepth;
+  private final int maxLength;
+  //chance of dropping in a random syntax character, out of 100
+  private final int junkPercent;
+
+  public RandomQueryGenerator(Random random) {
+    this(random, DEFAULT_MAX_DEPTH, DEFAULT_MAX_LENGTH, 3);
+  }
+
+  /**
+   * @param random      source of randomness
+   * @param maxDepth    maximum depth of nested clauses
+   * @param maxLength   maximum length of a query, in chars
+   * @param junkPercent chance, out of 100, that a random syntax character is
+   *                    added after each component
+   */
+  public RandomQueryGenerator(Random random, int maxDepth, int maxLength, int junkPercent) {
+    if (maxDepth < 0) {
+      throw new IllegalArgumentException("maxDepth must be >= 0: " + maxDepth);
+    }
+    if (maxLength < 1) {
+      throw new IllegalArgumentException("maxLength must be > 0: " + maxLength);
+    }
+    if (junkPercent < 0 || junkPercent > 100) {
+      throw new IllegalArgumentException("junkPercent must be between 0 and 100: " + junkPercent);
+    }
+    this.random = random;
+    this.maxDepth = maxDepth;
+    this.maxLength = maxLength;
+    this.junkPercent = junkPercent;
+  }
+
+  /**
+   * @return next random query
+   */
+  public String next() {
+    StringBuilder sb = new StringBuilder();
+    booleanClauses(sb, maxDepth);
+    if (sb.length() > maxLength) {
+      sb.setLength(maxLength);
+    }
+    return sb.toString();
+  }
+
+  public int getMaxLength() {
+    return maxLength;
+  }
+
+  private void booleanClauses(StringBuilder sb, int depth) {
+    int numClauses = 1 + random.nextInt(4);
+    for (int i = 0; i < numClauses && sb.length() < maxLength; i++) {
+      if (i > 0) {
+        sb.append(' ');
+        int r = random.nextInt(10);
+        if (r == 0) {
+          sb.append("AND ");
+        } else if (r == 1) {
+          sb.append("OR ");
+        } else if (r == 2) {
+          sb.append("NOT ");
+        }
+      }
+      int r = random.nextInt(10);
+      if (r == 0) {
+        sb.append('+');
+      } else if (r == 1) {
+        sb.append('-');
+      }
+      if (random.nextInt(5) == 0) {
+        sb.append(FIELDS[random.nextInt(FIELDS.length)]).append(':');
+      }
+      booleanClause(sb, depth);
+      junk(sb);
+    }
+  }
+
+  private void booleanClause(StringBuilder sb, int depth) {
+    int r = (depth == 0) ? 0 : random.nextInt(10);
+    if (r < 5) {
+      terminal(sb);
+    } else if (r < 7) {
+      sb.append('(');
+      booleanClauses(sb, depth - 1);
+      sb.append(')');
+      if (random.nextInt(4) == 0) {
+        sb.append('~').append(1 + random.nextInt(3));
+      }
+    } else {
+      near(sb, depth);
+    }
+    suffix(sb);
+  }
+
+  /**
+   * Phrase, near or not near; booleans and fields aren't allowed within these.
+   */
+  private void near(StringBuilder sb, int depth) {
+    boolean quoted = random.nextBoolean();
+    sb.append(quoted ? '"' : '[');
+    int numClauses = 1 + random.nextInt(4);
+    for (int i = 0; i < numClauses && sb.length() < maxLength; i++) {
+      if (i > 0) {
+        sb.append(' ');
+      }
+      int r = (depth == 0) ? 0 : random.nextInt(10);
+      if (r < 6) {
+        terminal(sb);
+      } else if (r < 8) {
+        sb.append('(');
+        spanOrClauses(sb, depth - 1);
+        sb.append(')');
+      } else {
+        near(sb, depth - 1);
+      }
+      junk(sb);
+    }
+    sb.append(quoted ? '"' : ']');
+    int r = random.nextInt(5);
+    if (r == 0) {
+      sb.append('~').append(random.nextInt(5));
+    } else if (r == 1) {
+      sb.append("~>").append(random.nextInt(5));
+    } else if (r == 2) {
+      sb.append("!~").append(random.nextInt(5));
+      if (random.nextBoolean()) {
+        sb.append(',').append(random.nextInt(5));
+      }
+    }
+  }
+
+  private void spanOrClauses(StringBuilder sb, int depth) {
+    int numClauses = 1 + random.nextInt(4);
+    for (int i = 0; i < numClauses && sb.length() < maxLength; i++) {
+      if (i > 0) {
+        sb.append(' ');
+      }
+      if (depth > 0 && random.nextInt(4) == 0) {
+        near(sb, depth - 1);
+      } else {
+        terminal(sb);
+      }
+    }
+  }
+
+  private void terminal(StringBuilder sb) {
+    String word = WORDS[random.nextInt(WORDS.length)];
+    switch (random.nextInt(12)) {
+      case 0:
+        sb.append(word).append('*');
+        break;
+      case 1:
+        sb.append(word.charAt(0)).append('?').append(word.substring(1));
+        break;
+      case 2:
+        sb.append(word).append('~');
+        if (random.nextBoolean()) {
+          sb.append(random.nextBoolean() ? ">" : "").append(1 + random.nextInt(3));
+          if (random.nextBoolean()) {
+            sb.append(',').append(random.nextInt(3));
+          }
+        } else {
+          sb.append("0.").append(random.nextInt(10));
+        }
+        break;
+      case 3:
+        sb.append('/').append(word).append(".{0,2}/");
+        break;
+      case 4:
+        sb.append('\'').append(word).append(' ').append(WORDS[random.nextInt(WORDS.length)]).append('\'');
+        break;
+      case 5:
+        sb.append(random.nextBoolean() ? '[' : '{').append(word).append(" TO ")
+            .append(WORDS[random.nextInt(WORDS.length)]).append(random.nextBoolean() ? ']' : '}');
+        break;
+      case 6:
+        //escape something
+        sb.append(word).append('\\').append(SYNTAX[random.nextInt(SYNTAX.length)]);
+        break;
+      default:
+        sb.append(word);
+    }
+  }
+
+  private void suffix(StringBuilder sb) {
+    int r = random.nextInt(10);
+    if (r == 0) {
+      sb.append('^').append(1 + random.nextInt(5));
+    } else if (r == 1) {
+      sb.append('@');
+      if (random.nextBoolean()) {
+        sb.append(random.nextInt(5));
+      }
+      sb.append("..");
+      if (random.nextBoolean()) {
+        sb.append(5 + random.nextInt(5));
+      }
+    }
+  }
+
+  private void junk(StringBuilder sb) {
+    if (random.nextInt(100) < junkPercent) {
+      sb.append(SYNTAX[random.nextInt(SYNTAX.length)]);
+    }
+  }
+}
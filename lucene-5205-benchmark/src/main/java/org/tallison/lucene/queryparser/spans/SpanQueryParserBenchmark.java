@@ -0,0 +1,164 @@
+package org.tallison.lucene.queryparser.spans;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Time to lex, to parse, and to parse with analysis, per query.
+ * <p>
+ * Each invocation handles the next query from the corpus, round robin, so
+ * the score is the average over the corpus.
+ * <ul>
+ *   <li>lex: {@link SpanQueryLexer#getTokens(String)} only, with the thread's lexer as the parsers use it</li>
+ *   <li>parse: lexing and parsing with a {@link KeywordAnalyzer}; the lexer has
+ *   already split on whitespace, so this is about as little analysis as possible</li>
+ *   <li>parseWithAnalysis: lexing and parsing with a {@link StandardAnalyzer}</li>
+ * </ul>
+ * Queries that don't parse are part of the corpus on purpose; the
+ * {@link ParseException} is consumed like a result.  Queries that make the
+ * parser throw anything else are bugs; they are dropped from the corpus here
+ * and reported by {@link SpanQueryParserFuzzer} instead.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SpanQueryParserBenchmark {
+
+  private static final long RANDOM_SEED = 20190401L;
+  private static final int NUM_RANDOM_QUERIES = 1000;
+
+  /**
+   * realistic: queries.txt;
+   * adversarial_N: every {@link QueryCorpus.Shape} at size N;
+   * random: queries from {@link RandomQueryGenerator} with a fixed seed
+   */
+  @Param({"realistic", "adversarial_10", "adversarial_100", "adversarial_1000", "random"})
+  public String corpus;
+
+  private String[] queries;
+  private int next = 0;
+  private SpanQueryParser keywordParser;
+  private SpanQueryParser analyzingParser;
+  private Analyzer keywordAnalyzer;
+  private Analyzer standardAnalyzer;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    List<String> list;
+    if (corpus.equals("realistic")) {
+      list = QueryCorpus.realistic();
+    } else if (corpus.startsWith("adversarial_")) {
+      list = QueryCorpus.adversarial(Integer.parseInt(corpus.substring("adversarial_".length())));
+    } else if (corpus.equals("random")) {
+      list = QueryCorpus.random(RANDOM_SEED, NUM_RANDOM_QUERIES);
+    } else {
+      throw new IllegalArgumentException("Unknown corpus: " + corpus);
+    }
+    keywordAnalyzer = new KeywordAnalyzer();
+    standardAnalyzer = new StandardAnalyzer();
+    keywordParser = new SpanQueryParser("f1", keywordAnalyzer, keywordAnalyzer);
+    analyzingParser = new SpanQueryParser("f1", standardAnalyzer, standardAnalyzer);
+    List<String> kept = new ArrayList<>();
+    for (String query : list) {
+      if (parsesOrThrowsParseException(keywordParser, query) &&
+          parsesOrThrowsParseException(analyzingParser, query)) {
+        kept.add(query);
+      }
+    }
+    if (kept.isEmpty()) {
+      throw new IllegalStateException("No usable queries in corpus: " + corpus);
+    }
+    queries = kept.toArray(new String[kept.size()]);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    keywordAnalyzer.close();
+    standardAnalyzer.close();
+  }
+
+  @Benchmark
+  public void lex(Blackhole bh) {
+    try {
+      bh.consume(SpanQueryLexer.forThread().getTokens(nextQuery()));
+    } catch (ParseException e) {
+      bh.consume(e);
+    }
+  }
+
+  @Benchmark
+  public void parse(Blackhole bh) {
+    try {
+      bh.consume(keywordParser.parse(nextQuery()));
+    } catch (ParseException e) {
+      bh.consume(e);
+    }
+  }
+
+  @Benchmark
+  public void parseWithAnalysis(Blackhole bh) {
+    try {
+      bh.consume(analyzingParser.parse(nextQuery()));
+    } catch (ParseException e) {
+      bh.consume(e);
+    }
+  }
+
+  private static boolean parsesOrThrowsParseException(SpanQueryParser parser, String query) {
+    try {
+      parser.parse(query);
+    } catch (ParseException e) {
+      //fine
+    } catch (RuntimeException e) {
+      return false;
+    }
+    return true;
+  }
+
+  private String nextQuery() {
+    String query = queries[next];
+    next = (next + 1 == queries.length) ? 0 : next + 1;
+    return query;
+  }
+}
@@ -0,0 +1,399 @@
+package org.tallison.lucene.queryparser.spans;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.queryparser.classic.ParseException;
+
+/**
+ * Looks for inputs that the lexer and parser handle badly.
+ * <p>
+ * {@link #fuzz(Random, int, long)} parses random queries from {@link RandomQueryGenerator}
+ * within a time budget.  A query is reported if parsing it throws anything other
+ * than a {@link ParseException}, or if it takes longer or allocates more than the
+ * per query limits.  A parse can't be interrupted, so the limits are checked after
+ * the parse; the generator's bound on the length of a query is what keeps each parse
+ * short.
+ * <p>
+ * {@link #checkScaling(int, int)} parses each {@link QueryCorpus.Shape} at three sizes,
+ * each <code>factor</code> times the last, and estimates the exponent of the growth
+ * in allocated bytes and in time.  The exponent is the lower of the two steps, so that
+ * noise from the JIT or the garbage collector in one step doesn't count as growth.
+ * A shape whose exponent is above the limit is reported as super-linear; the exponents
+ * are also kept so that they can be tracked from run to run.
+ * <p>
+ * Allocations are only measured on JVMs that support
+ * <code>com.sun.management.ThreadMXBean</code>; elsewhere, only time is checked.
+ */
+public class SpanQueryParserFuzzer {
+
+  public static final long DEFAULT_MAX_NANOS_PER_QUERY = TimeUnit.MILLISECONDS.toNanos(250);
+  public static final long DEFAULT_MAX_BYTES_PER_QUERY = 64L * 1024 * 1024;
+  public static final double DEFAULT_MAX_EXPONENT = 1.5;
+
+  //timings shorter than this are too noisy to estimate an exponent from
+  private static final long MIN_NANOS_FOR_EXPONENT = TimeUnit.MICROSECONDS.toNanos(100);
+  private static final int SCALING_REPS = 10;
+  private static final int MAX_QUERY_LENGTH_IN_REPORT = 200;
+
+  private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+  private static final boolean ALLOCATIONS_SUPPORTED = allocationsSupported();
+
+  /**
+   * A query that the parser handled badly
+   */
+  public static final class Finding {
+    public enum Kind {
+      EXCEPTION,
+      SLOW,
+      ALLOCATION,
+      SUPER_LINEAR
+    }
+
+    private final Kind kind;
+    private final String query;
+    private final String detail;
+    private final Throwable throwable;
+
+    Finding(Kind kind, String query, String detail, Throwable throwable) {
+      this.kind = kind;
+      this.query = query;
+      this.detail = detail;
+      this.throwable = throwable;
+    }
+
+    public Kind getKind() {
+      return kind;
+    }
+
+    public String getQuery() {
+      return query;
+    }
+
+    public String getDetail() {
+      return detail;
+    }
+
+    /**
+     * @return what was thrown for {@link Kind#EXCEPTION}, otherwise <code>null</code>
+     */
+    public Throwable getThrowable() {
+      return throwable;
+    }
+
+    @Override
+    public String toString() {
+      String q = (query.length() > MAX_QUERY_LENGTH_IN_REPORT) ?
+          query.substring(0, MAX_QUERY_LENGTH_IN_REPORT) + "...(" + query.length() + " chars)" : query;
+      return kind + " " + detail + ": " + q;
+    }
+  }
+
+  /**
+   * Growth of the cost of parsing a shape
+   */
+  public static final class Scaling {
+    private final QueryCorpus.Shape shape;
+    private final double bytesExponent;
+    private final double timeExponent;
+
+    Scaling(QueryCorpus.Shape shape, double bytesExponent, double timeExponent) {
+      this.shape = shape;
+      this.bytesExponent = bytesExponent;
+      this.timeExponent = timeExponent;
+    }
+
+    public QueryCorpus.Shape getShape() {
+      return shape;
+    }
+
+    /**
+     * @return estimated exponent of the growth in allocated bytes, or <code>NaN</code>
+     * if allocations can't be measured
+     */
+    public double getBytesExponent() {
+      return bytesExponent;
+    }
+
+    /**
+     * @return estimated exponent of the growth in time, or <code>NaN</code>
+     * if the parses were too quick to measure
+     */
+    public double getTimeExponent() {
+      return timeExponent;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(Locale.ROOT, "%-20s bytes^%.2f time^%.2f", shape, bytesExponent, timeExponent);
+    }
+  }
+
+  private final SpanQueryParser parser;
+  private final long maxNanosPerQuery;
+  private final long maxBytesPerQuery;
+  private final double maxExponent;
+  private final List<Scaling> scalings = new ArrayList<>();
+  private int numParsed = 0;
+
+  /**
+   * Fuzzer with the default limits
+   *
+   * @param parser parser to fuzz
+   */
+  public SpanQueryParserFuzzer(SpanQueryParser parser) {
+    this(parser, DEFAULT_MAX_NANOS_PER_QUERY, DEFAULT_MAX_BYTES_PER_QUERY, DEFAULT_MAX_EXPONENT);
+  }
+
+  /**
+   * @param parser           parser to fuzz
+   * @param maxNanosPerQuery longest that a query may take to parse
+   * @param maxBytesPerQuery most bytes that a query may allocate while it is parsed
+   * @param maxExponent      highest exponent of growth before a shape is reported as super-linear
+   */
+  public SpanQueryParserFuzzer(SpanQueryParser parser, long maxNanosPerQuery, long maxBytesPerQuery,
+                               double maxExponent) {
+    this.parser = parser;
+    this.maxNanosPerQuery = maxNanosPerQuery;
+    this.maxBytesPerQuery = maxBytesPerQuery;
+    this.maxExponent = maxExponent;
+  }
+
+  /**
+   * @param random      source of randomness for the generator
+   * @param maxQueries  maximum number of queries to parse
+   * @param budgetNanos time budget; no new query is started after this
+   * @return findings
+   */
+  public List<Finding> fuzz(Random random, int maxQueries, long budgetNanos) {
+    RandomQueryGenerator generator = new RandomQueryGenerator(random);
+    List<Finding> findings = new ArrayList<>();
+    long start = System.nanoTime();
+    for (int i = 0; i < maxQueries && System.nanoTime() - start < budgetNanos; i++) {
+      Finding finding = check(generator.next());
+      if (finding != null) {
+        findings.add(finding);
+      }
+    }
+    return findings;
+  }
+
+  /**
+   * Parses a single query and checks it against the limits.
+   *
+   * @param query query string
+   * @return a finding or <code>null</code> if the query was parsed within the limits
+   */
+  public Finding check(String query) {
+    long bytes = allocatedBytes();
+    long nanos = System.nanoTime();
+    try {
+      parse(query);
+    } catch (ParseException e) {
+      //fine
+    } catch (Throwable t) {
+      //including StackOverflowError
+      return new Finding(Finding.Kind.EXCEPTION, query, t.getClass().getName() + ": " + t.getMessage(), t);
+    }
+    nanos = System.nanoTime() - nanos;
+    bytes = ALLOCATIONS_SUPPORTED ? allocatedBytes() - bytes : -1;
+    if (nanos > maxNanosPerQuery) {
+      return new Finding(Finding.Kind.SLOW, query,
+          "took " + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms", null);
+    }
+    if (bytes > maxBytesPerQuery) {
+      return new Finding(Finding.Kind.ALLOCATION, query, "allocated " + bytes + " bytes", null);
+    }
+    return null;
+  }
+
+  /**
+   * Parses each shape at <code>size</code>, <code>size*factor</code> and
+   * <code>size*factor*factor</code>.  The exponents are available from
+   * {@link #getScalings()} afterwards.
+   *
+   * @param size   smallest size
+   * @param factor ratio between consecutive sizes; must be &gt; 1
+   * @return findings for shapes that throw or that grow super-linearly
+   */
+  public List<Finding> checkScaling(int size, int factor) {
+    if (factor < 2) {
+      throw new IllegalArgumentException("factor must be > 1: " + factor);
+    }
+    scalings.clear();
+    List<Finding> findings = new ArrayList<>();
+    for (QueryCorpus.Shape shape : QueryCorpus.Shape.values()) {
+      String[] queries = new String[]{
+          shape.build(size), shape.build(size * factor), shape.build(size * factor * factor)};
+      Finding finding = check(queries[2]);
+      if (finding != null && finding.getKind() == Finding.Kind.EXCEPTION) {
+        findings.add(finding);
+        continue;
+      }
+      //warm up
+      for (int i = 0; i < SCALING_REPS; i++) {
+        for (String query : queries) {
+          check(query);
+        }
+      }
+      long[][] costs = new long[queries.length][];
+      for (int i = 0; i < queries.length; i++) {
+        costs[i] = cost(queries[i]);
+      }
+      double bytesExponent = ALLOCATIONS_SUPPORTED ? exponent(costs, 0, factor, 1) : Double.NaN;
+      double timeExponent = exponent(costs, 1, factor, MIN_NANOS_FOR_EXPONENT);
+      Scaling scaling = new Scaling(shape, bytesExponent, timeExponent);
+      scalings.add(scaling);
+      if (bytesExponent > maxExponent || timeExponent > maxExponent) {
+        findings.add(new Finding(Finding.Kind.SUPER_LINEAR, queries[2], scaling.toString(), null));
+      }
+    }
+    return findings;
+  }
+
+  /**
+   * @return exponents from the last call to {@link #checkScaling(int, int)}
+   */
+  public List<Scaling> getScalings() {
+    return new ArrayList<>(scalings);
+  }
+
+  /**
+   * @return whether this JVM lets the fuzzer measure allocations
+   */
+  public static boolean isAllocationMeasured() {
+    return ALLOCATIONS_SUPPORTED;
+  }
+
+  /**
+   * @return number of queries parsed so far, including the warmups
+   */
+  public int getNumParsed() {
+    return numParsed;
+  }
+
+  /**
+   * @return {bytes allocated, nanos}, each the minimum over a few parses
+   */
+  private long[] cost(String query) {
+    long minBytes = Long.MAX_VALUE;
+    long minNanos = Long.MAX_VALUE;
+    for (int i = 0; i < SCALING_REPS; i++) {
+      long bytes = allocatedBytes();
+      long nanos = System.nanoTime();
+      try {
+        parse(query);
+      } catch (ParseException e) {
+        //fine
+      }
+      minNanos = Math.min(minNanos, System.nanoTime() - nanos);
+      minBytes = Math.min(minBytes, allocatedBytes() - bytes);
+    }
+    return new long[]{minBytes, minNanos};
+  }
+
+  private void parse(String query) throws ParseException {
+    numParsed++;
+    parser.parse(query);
+  }
+
+  /**
+   * @param costs  costs at each size
+   * @param which  index of the cost to use
+   * @param factor ratio between consecutive sizes
+   * @param min    smallest cost that is worth estimating from
+   * @return lower of the exponents of the steps, or <code>NaN</code> if the costs are too small
+   */
+  private static double exponent(long[][] costs, int which, int factor, long min) {
+    if (costs[0][which] < min) {
+      return Double.NaN;
+    }
+    double exponent = Double.POSITIVE_INFINITY;
+    for (int i = 1; i < costs.length; i++) {
+      double ratio = (double) costs[i][which] / (double) costs[i - 1][which];
+      exponent = Math.min(exponent, Math.log(ratio) / Math.log(factor));
+    }
+    return exponent;
+  }
+
+  private static boolean allocationsSupported() {
+    try {
+      if (THREAD_MX_BEAN instanceof com.sun.management.ThreadMXBean) {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) THREAD_MX_BEAN;
+        return bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled();
+      }
+    } catch (LinkageError e) {
+      //not a jvm with com.sun.management
+    }
+    return false;
+  }
+
+  private static long allocatedBytes() {
+    if (! ALLOCATIONS_SUPPORTED) {
+      return 0;
+    }
+    return ((com.sun.management.ThreadMXBean) THREAD_MX_BEAN).getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /**
+   * Fuzzes a SpanQueryParser with a StandardAnalyzer and reports what it finds.
+   * <p>
+   * Usage: SpanQueryParserFuzzer [seconds [seed]]
+   *
+   * @param args arguments
+   * @throws Exception on a problem
+   */
+  public static void main(String[] args) throws Exception {
+    long seconds = (args.length > 0) ? Long.parseLong(args[0]) : 60;
+    long seed = (args.length > 1) ? Long.parseLong(args[1]) : System.nanoTime();
+    Analyzer analyzer = new StandardAnalyzer();
+    SpanQueryParser parser = new SpanQueryParser("f1", analyzer, analyzer);
+    SpanQueryParserFuzzer fuzzer = new SpanQueryParserFuzzer(parser);
+
+    List<Finding> findings = new ArrayList<>();
+    for (String query : QueryCorpus.realistic()) {
+      Finding finding = fuzzer.check(query);
+      if (finding != null) {
+        findings.add(finding);
+      }
+    }
+    findings.addAll(fuzzer.checkScaling(125, 4));
+    findings.addAll(fuzzer.fuzz(new Random(seed), Integer.MAX_VALUE, TimeUnit.SECONDS.toNanos(seconds)));
+
+    System.out.println("seed: " + seed);
+    System.out.println("queries parsed: " + fuzzer.getNumParsed());
+    System.out.println("allocations measured: " + isAllocationMeasured());
+    System.out.println("scaling:");
+    for (Scaling scaling : fuzzer.getScalings()) {
+      System.out.println("  " + scaling);
+    }
+    System.out.println("findings: " + findings.size());
+    for (Finding finding : findings) {
+      System.out.println("  " + finding);
+    }
+  }
+}
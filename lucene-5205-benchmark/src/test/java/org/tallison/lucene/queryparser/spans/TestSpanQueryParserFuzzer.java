@@ -0,0 +1,127 @@
+package org.tallison.lucene.queryparser.spans;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.LuceneTestCase;
+import org.junit.Test;
+
+public class TestSpanQueryParserFuzzer extends LuceneTestCase {
+
+  @Test
+  public void testGenerator() throws Exception {
+    long seed = random().nextLong();
+    assertEquals(QueryCorpus.random(seed, 20), QueryCorpus.random(seed, 20));
+
+    RandomQueryGenerator generator = new RandomQueryGenerator(new Random(seed), 10, 50, 10);
+    for (int i = 0; i < 100; i++) {
+      assertTrue(generator.next().length() <= 50);
+    }
+  }
+
+  @Test
+  public void testRealistic() throws Exception {
+    Analyzer analyzer = new MockAnalyzer(random());
+    SpanQueryParser parser = new SpanQueryParser("f1", analyzer, analyzer);
+    //no limits, only exceptions count
+    SpanQueryParserFuzzer fuzzer = new SpanQueryParserFuzzer(parser, Long.MAX_VALUE, Long.MAX_VALUE,
+        Double.POSITIVE_INFINITY);
+    List<String> queries = QueryCorpus.realistic();
+    assertTrue(queries.size() > 10);
+    for (String query : queries) {
+      assertNull(query, fuzzer.check(query));
+      parser.parse(query);
+    }
+  }
+
+  @Test
+  public void testException() throws Exception {
+    Analyzer analyzer = new MockAnalyzer(random());
+    SpanQueryParser parser = new SpanQueryParser("f1", analyzer, analyzer) {
+      @Override
+      public Query parse(String s) throws ParseException {
+        if (s.contains("fox")) {
+          throw new IllegalStateException("fox");
+        }
+        return super.parse(s);
+      }
+    };
+    SpanQueryParserFuzzer fuzzer = new SpanQueryParserFuzzer(parser, Long.MAX_VALUE, Long.MAX_VALUE,
+        Double.POSITIVE_INFINITY);
+    SpanQueryParserFuzzer.Finding finding = fuzzer.check("brown fox");
+    assertEquals(SpanQueryParserFuzzer.Finding.Kind.EXCEPTION, finding.getKind());
+    assertTrue(finding.getThrowable() instanceof IllegalStateException);
+    assertNull(fuzzer.check("brown dog"));
+    //parse exceptions are fine
+    assertNull(fuzzer.check("brown [dog"));
+
+    boolean found = false;
+    for (SpanQueryParserFuzzer.Finding f : fuzzer.fuzz(random(), 500, TimeUnit.SECONDS.toNanos(10))) {
+      found |= f.getQuery().contains("fox") && f.getThrowable() instanceof IllegalStateException;
+    }
+    assertTrue(found);
+    assertTrue(fuzzer.getNumParsed() > 0);
+  }
+
+  @Test
+  public void testSuperLinear() throws Exception {
+    assumeTrue("needs allocation measurements", SpanQueryParserFuzzer.isAllocationMeasured());
+    Analyzer analyzer = new MockAnalyzer(random());
+    //allocates nothing but a quadratic amount of garbage
+    SpanQueryParser quadratic = new SpanQueryParser("f1", analyzer, analyzer) {
+      @Override
+      public Query parse(String s) throws ParseException {
+        byte[] waste = new byte[4 * s.length() * s.length()];
+        waste[waste.length - 1] = 1;
+        return null;
+      }
+    };
+    SpanQueryParserFuzzer fuzzer = new SpanQueryParserFuzzer(quadratic, Long.MAX_VALUE, Long.MAX_VALUE,
+        SpanQueryParserFuzzer.DEFAULT_MAX_EXPONENT);
+    List<SpanQueryParserFuzzer.Finding> findings = fuzzer.checkScaling(16, 4);
+    assertEquals(QueryCorpus.Shape.values().length, fuzzer.getScalings().size());
+    assertEquals(findings.toString(), QueryCorpus.Shape.values().length, findings.size());
+    for (SpanQueryParserFuzzer.Finding finding : findings) {
+      assertEquals(SpanQueryParserFuzzer.Finding.Kind.SUPER_LINEAR, finding.getKind());
+    }
+  }
+
+  @Test
+  public void testRealParserScaling() throws Exception {
+    assumeTrue("needs allocation measurements", SpanQueryParserFuzzer.isAllocationMeasured());
+    Analyzer analyzer = new MockAnalyzer(random());
+    SpanQueryParser parser = new SpanQueryParser("f1", analyzer, analyzer);
+    SpanQueryParserFuzzer fuzzer = new SpanQueryParserFuzzer(parser, Long.MAX_VALUE, Long.MAX_VALUE,
+        SpanQueryParserFuzzer.DEFAULT_MAX_EXPONENT);
+    //small sizes; exceptions are covered by the fuzzing itself
+    fuzzer.checkScaling(25, 4);
+    assertFalse(fuzzer.getScalings().isEmpty());
+    //only allocations: wall-clock times at these sizes are at the mercy of gc and jit,
+    //so the time exponents are left to main() and the jmh benchmark
+    for (SpanQueryParserFuzzer.Scaling scaling : fuzzer.getScalings()) {
+      assertTrue(scaling.toString(), scaling.getBytesExponent() <= SpanQueryParserFuzzer.DEFAULT_MAX_EXPONENT);
+    }
+  }
+}
@@ -31,6 +31,7 @@ import org.apache.lucene.search.spans.SpanTermQuery;
 abstract class AbstractSpanQueryParser extends SpanQueryParserBase {
 
   private String defaultField;
+  private SpanQueryParseCache parseCache = null;
 
   /**
    *
@@ -43,6 +44,19 @@ abstract class AbstractSpanQueryParser extends SpanQueryParserBase {
     this.defaultField = field;
   }
 
+  /**
+   *
+   * @param field default field
+   * @param analyzer full term analyzer
+   * @param multiTermAnalyzer multiterm analyzer
+   * @param config parser options
+   */
+  public AbstractSpanQueryParser(String field, Analyzer analyzer, Analyzer multiTermAnalyzer,
+                                 SpanQueryParserConfig config) {
+    super(analyzer, multiTermAnalyzer, config);
+    this.defaultField = field;
+  }
+
   /**
    *
    * @param s string to parse
@@ -179,5 +193,40 @@ abstract class AbstractSpanQueryParser extends SpanQueryParserBase {
   public String getField() {
     return defaultField;
   }
-}
 
+  /**
+   * Sets a cache of parsed queries.  The cache is thread-safe and can be shared
+   * across parsers; each query is keyed by this parser's class, the query string,
+   * the default field and the parser settings at the time of the parse.
+   * <p>
+   * Subclasses that override {@link #getAnalyzer(String)} or other hooks
+   * in a way that changes the parsed query should override
+   * {@link #addParseSettings(List)} to add whatever the hooks depend on.
+   *
+   * @param parseCache cache or <code>null</code> to stop caching
+   */
+  public void setParseCache(SpanQueryParseCache parseCache) {
+    this.parseCache = parseCache;
+  }
+
+  /**
+   *
+   * @return cache of parsed queries or <code>null</code> if none has been set
+   */
+  public SpanQueryParseCache getParseCache() {
+    return parseCache;
+  }
+
+  /**
+   * @param s query string
+   * @return cache key or <code>null</code> if there is no cache
+   */
+  SpanQueryParseCache.Key getParseCacheKey(String s) {
+    if (parseCache == null || s == null) {
+      return null;
+    }
+    List<Object> settings = new ArrayList<>();
+    addParseSettings(settings);
+    return new SpanQueryParseCache.Key(getClass(), s, getField(), settings);
+  }
+}
@@ -18,6 +18,7 @@ package org.tallison.lucene.queryparser.spans;
  */
 
 import java.io.IOException;
+import java.util.List;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
@@ -100,4 +101,18 @@ public abstract class AnalyzingQueryParserBase extends QueryBuilder {
     return getAnalyzer();
   }
 
+  /**
+   * Adds every setting that affects how a query string is parsed, for
+   * {@link SpanQueryParseCache} keys.  Subclasses that add settings
+   * should override this and call super.
+   *
+   * @param settings list to add to; settings are compared with equals
+   */
+  protected void addParseSettings(List<Object> settings) {
+    settings.add(getAnalyzer());
+    settings.add(multiTermAnalyzer);
+    settings.add(getEnablePositionIncrements());
+    settings.add(getAutoGenerateMultiTermSynonymsPhraseQuery());
+    settings.add(getEnableGraphQueries());
+  }
 }
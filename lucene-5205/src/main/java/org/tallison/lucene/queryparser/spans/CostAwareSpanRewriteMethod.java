@@ -0,0 +1,326 @@
+package org.tallison.lucene.queryparser.spans;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.spans.SpanMultiTermQueryWrapper;
+import org.apache.lucene.search.spans.SpanOrQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.util.AttributeSource;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.PriorityQueue;
+
+/**
+ * Span rewrite that chooses, for each multiterm terminal, how to rewrite it
+ * based on what the terminal expands to in the index.
+ * <p>
+ * The terms that the terminal matches are counted along with the sum of their
+ * document frequencies, which is the number of postings that the spans have to read.
+ * If both are within budget, the terminal becomes a SpanOrQuery of all of its terms.
+ * Otherwise, depending on the {@link OverBudgetAction}, it either becomes a SpanOrQuery
+ * of the <code>topN</code> terms with the highest document frequencies, or a
+ * {@link BudgetExceededException} is thrown as soon as the budget is exceeded.
+ * Once the budget is exceeded, only the <code>topN</code> terms so far are held on to,
+ * so memory is bounded by <code>max(maxTerms, topN)</code> terms however far the
+ * terminal expands.
+ * <p>
+ * Each choice is reported to the {@link Listener}, if there is one.
+ * <p>
+ * Set this on the parser with
+ * {@link SpanQueryParserConfig.Builder#setSpanMultiTermRewriteMethod(SpanMultiTermQueryWrapper.SpanRewriteMethod)}.
+ */
+public class CostAwareSpanRewriteMethod extends SpanMultiTermQueryWrapper.SpanRewriteMethod {
+
+  /**
+   * How a terminal was rewritten
+   */
+  public enum Choice {
+    ALL_TERMS,
+    TOP_TERMS_BY_DOC_FREQ,
+    OVER_BUDGET
+  }
+
+  /**
+   * What to do with a terminal whose expansion exceeds the budget
+   */
+  public enum OverBudgetAction {
+    TOP_TERMS_BY_DOC_FREQ,
+    ERROR
+  }
+
+  /**
+   * Called once for every terminal that is rewritten.  This is called
+   * from the searching thread; implementations must be thread-safe.
+   */
+  public interface Listener {
+    void onRewrite(Report report);
+  }
+
+  /**
+   * Thrown by the rewrite when a terminal exceeds the budget and the
+   * action is {@link OverBudgetAction#ERROR}.
+   */
+  public static class BudgetExceededException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final Report report;
+
+    BudgetExceededException(Report report) {
+      super("Expansion of " + report.getQuery() + " exceeded the budget: " + report);
+      this.report = report;
+    }
+
+    public Report getReport() {
+      return report;
+    }
+  }
+
+  /**
+   * Rewrite that was chosen for a terminal and the costs that it was chosen on.
+   */
+  public static final class Report {
+    private final MultiTermQuery query;
+    private final Choice choice;
+    private final int numTerms;
+    private final long postingsCost;
+    private final int numTermsKept;
+
+    Report(MultiTermQuery query, Choice choice, int numTerms, long postingsCost, int numTermsKept) {
+      this.query = query;
+      this.choice = choice;
+      this.numTerms = numTerms;
+      this.postingsCost = postingsCost;
+      this.numTermsKept = numTermsKept;
+    }
+
+    public MultiTermQuery getQuery() {
+      return query;
+    }
+
+    public Choice getChoice() {
+      return choice;
+    }
+
+    /**
+     * @return number of distinct terms that the terminal expands to; for
+     * {@link Choice#OVER_BUDGET}, only the terms that were seen before giving up
+     */
+    public int getNumTerms() {
+      return numTerms;
+    }
+
+    /**
+     * @return sum of the document frequencies of the terms, over all segments
+     */
+    public long getPostingsCost() {
+      return postingsCost;
+    }
+
+    /**
+     * @return number of terms in the rewritten query
+     */
+    public int getNumTermsKept() {
+      return numTermsKept;
+    }
+
+    @Override
+    public String toString() {
+      return "Report{" +
+          "query=" + query +
+          ", choice=" + choice +
+          ", numTerms=" + numTerms +
+          ", postingsCost=" + postingsCost +
+          ", numTermsKept=" + numTermsKept +
+          '}';
+    }
+  }
+
+  private final int maxTerms;
+  private final long maxPostingsCost;
+  private final int topN;
+  private final OverBudgetAction overBudgetAction;
+  private final Listener listener;
+
+  /**
+   * @param maxTerms         maximum number of terms for a full rewrite
+   * @param maxPostingsCost  maximum sum of document frequencies for a full rewrite
+   * @param topN             number of terms to keep if the budget is exceeded
+   *                         and the action is {@link OverBudgetAction#TOP_TERMS_BY_DOC_FREQ}
+   * @param overBudgetAction what to do if the budget is exceeded
+   * @param listener         listener for the choices or <code>null</code>
+   */
+  public CostAwareSpanRewriteMethod(int maxTerms, long maxPostingsCost, int topN,
+                                    OverBudgetAction overBudgetAction, Listener listener) {
+    if (maxTerms < 0) {
+      throw new IllegalArgumentException("maxTerms must be >= 0: " + maxTerms);
+    }
+    if (maxPostingsCost < 0) {
+      throw new IllegalArgumentException("maxPostingsCost must be >= 0: " + maxPostingsCost);
+    }
+    if (topN < 1) {
+      throw new IllegalArgumentException("topN must be > 0: " + topN);
+    }
+    this.maxTerms = maxTerms;
+    this.maxPostingsCost = maxPostingsCost;
+    this.topN = topN;
+    this.overBudgetAction = Objects.requireNonNull(overBudgetAction);
+    this.listener = listener;
+  }
+
+  @Override
+  public SpanQuery rewrite(IndexReader reader, MultiTermQuery query) throws IOException {
+    //merged over the segments, so that each term comes once with its total docFreq
+    Terms terms = MultiFields.getTerms(reader, query.getField());
+    if (terms == null) {
+      report(new Report(query, Choice.ALL_TERMS, 0, 0, 0));
+      return new SpanOrQuery();
+    }
+    TermsEnum termsEnum = getTermsEnum(query, terms, new AttributeSource());
+    //while within budget, every term is kept; this holds at most maxTerms
+    List<ScoreTerm> withinBudget = new ArrayList<>();
+    //once over budget, only the topN terms are kept
+    TopTermsQueue topTerms = null;
+    ScoreTerm spare = null;
+    int numTerms = 0;
+    long postingsCost = 0;
+    for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+      int docFreq = termsEnum.docFreq();
+      numTerms++;
+      postingsCost += docFreq;
+      if (topTerms == null) {
+        if (numTerms <= maxTerms && postingsCost <= maxPostingsCost) {
+          withinBudget.add(new ScoreTerm(term, docFreq));
+          continue;
+        }
+        if (overBudgetAction == OverBudgetAction.ERROR) {
+          Report report = new Report(query, Choice.OVER_BUDGET, numTerms, postingsCost, 0);
+          report(report);
+          throw new BudgetExceededException(report);
+        }
+        topTerms = new TopTermsQueue(topN);
+        for (ScoreTerm scoreTerm : withinBudget) {
+          topTerms.insertWithOverflow(scoreTerm);
+        }
+        withinBudget = null;
+      }
+      //terms come in order, so a tie with the bottom loses to the earlier term
+      if (topTerms.size() < topN || docFreq > topTerms.top().docFreq) {
+        if (spare == null) {
+          spare = new ScoreTerm(term, docFreq);
+        } else {
+          spare.bytes.copyBytes(term);
+          spare.docFreq = docFreq;
+        }
+        spare = topTerms.insertWithOverflow(spare);
+      }
+    }
+
+    Choice choice = Choice.ALL_TERMS;
+    List<BytesRef> kept = new ArrayList<>();
+    if (topTerms == null) {
+      for (ScoreTerm scoreTerm : withinBudget) {
+        kept.add(scoreTerm.bytes.get());
+      }
+    } else {
+      choice = Choice.TOP_TERMS_BY_DOC_FREQ;
+      for (ScoreTerm scoreTerm : topTerms) {
+        kept.add(scoreTerm.bytes.get());
+      }
+      Collections.sort(kept);
+    }
+    SpanQuery[] clauses = new SpanQuery[kept.size()];
+    for (int i = 0; i < clauses.length; i++) {
+      clauses[i] = new SpanTermQuery(new Term(query.getField(), kept.get(i)));
+    }
+    report(new Report(query, choice, numTerms, postingsCost, clauses.length));
+    return new SpanOrQuery(clauses);
+  }
+
+  private static final class ScoreTerm {
+    private final BytesRefBuilder bytes = new BytesRefBuilder();
+    private int docFreq;
+
+    ScoreTerm(BytesRef term, int docFreq) {
+      this.bytes.copyBytes(term);
+      this.docFreq = docFreq;
+    }
+  }
+
+  /**
+   * Least competitive term on top: lowest docFreq, then the latest term
+   */
+  private static final class TopTermsQueue extends PriorityQueue<ScoreTerm> {
+    TopTermsQueue(int size) {
+      super(size);
+    }
+
+    @Override
+    protected boolean lessThan(ScoreTerm a, ScoreTerm b) {
+      if (a.docFreq != b.docFreq) {
+        return a.docFreq < b.docFreq;
+      }
+      return a.bytes.get().compareTo(b.bytes.get()) > 0;
+    }
+  }
+
+  private void report(Report report) {
+    if (listener != null) {
+      listener.onRewrite(report);
+    }
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    CostAwareSpanRewriteMethod that = (CostAwareSpanRewriteMethod) o;
+    return maxTerms == that.maxTerms &&
+        maxPostingsCost == that.maxPostingsCost &&
+        topN == that.topN &&
+        overBudgetAction == that.overBudgetAction &&
+        Objects.equals(listener, that.listener);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(maxTerms, maxPostingsCost, topN, overBudgetAction, listener);
+  }
+
+  @Override
+  public String toString() {
+    return "CostAwareSpanRewriteMethod{" +
+        "maxTerms=" + maxTerms +
+        ", maxPostingsCost=" + maxPostingsCost +
+        ", topN=" + topN +
+        ", overBudgetAction=" + overBudgetAction +
+        '}';
+  }
+}
@@ -0,0 +1,170 @@
+package org.tallison.lucene.queryparser.spans;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.MultiPhraseQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.spans.SpanBoostQuery;
+import org.apache.lucene.search.spans.SpanNearQuery;
+import org.apache.lucene.search.spans.SpanOrQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+
+/**
+ * Converts the span queries in a boolean query that don't need span semantics
+ * into their non-span equivalents, which match the same documents but can use
+ * impacts and early termination when only the top hits are needed.
+ * <ul>
+ *   <li>A SpanTermQuery becomes a TermQuery.</li>
+ *   <li>A SpanOrQuery whose clauses can all be converted becomes a BooleanQuery
+ *   of SHOULD clauses.</li>
+ *   <li>An in order SpanNearQuery with no slop whose clauses are terms becomes a
+ *   PhraseQuery; if some of the clauses are SpanOrQuerys of terms, it becomes a
+ *   MultiPhraseQuery.</li>
+ *   <li>A SpanBoostQuery of a query that can be converted becomes a BoostQuery.</li>
+ * </ul>
+ * Only the span queries that are reached through BooleanQuery and BoostQuery
+ * are converted; anything within a query that needs spans, e.g. a sloppy
+ * SpanNearQuery, a SpanNotQuery or a SpanPositionRangeQuery, stays as it is.
+ * Empty SpanOrQuerys are left alone, because the parser uses them to
+ * mark empty queries.
+ * <p>
+ * Scores will differ from those of the span queries.
+ */
+public final class SpanFreeQueryConverter {
+
+  private SpanFreeQueryConverter() {
+  }
+
+  /**
+   * @param query query to convert
+   * @return the converted query, or <code>query</code> itself if nothing changed
+   */
+  public static Query convert(Query query) {
+    if (query instanceof SpanQuery) {
+      Query converted = convertSpan((SpanQuery) query);
+      return (converted == null) ? query : converted;
+    } else if (query instanceof BooleanQuery) {
+      BooleanQuery bq = (BooleanQuery) query;
+      BooleanQuery.Builder builder = new BooleanQuery.Builder();
+      builder.setMinimumNumberShouldMatch(bq.getMinimumNumberShouldMatch());
+      boolean changed = false;
+      for (BooleanClause clause : bq) {
+        Query converted = convert(clause.getQuery());
+        changed |= converted != clause.getQuery();
+        builder.add(converted, clause.getOccur());
+      }
+      return changed ? builder.build() : query;
+    } else if (query instanceof BoostQuery) {
+      BoostQuery boostQuery = (BoostQuery) query;
+      Query converted = convert(boostQuery.getQuery());
+      return (converted == boostQuery.getQuery()) ? query : new BoostQuery(converted, boostQuery.getBoost());
+    }
+    return query;
+  }
+
+  /**
+   * @return the non-span equivalent of <code>query</code> or <code>null</code> if it needs spans
+   */
+  private static Query convertSpan(SpanQuery query) {
+    if (query instanceof SpanTermQuery) {
+      return new TermQuery(((SpanTermQuery) query).getTerm());
+    } else if (query instanceof SpanBoostQuery) {
+      SpanBoostQuery boostQuery = (SpanBoostQuery) query;
+      Query converted = convertSpan(boostQuery.getQuery());
+      return (converted == null) ? null : new BoostQuery(converted, boostQuery.getBoost());
+    } else if (query instanceof SpanOrQuery) {
+      return convertOr((SpanOrQuery) query);
+    } else if (query instanceof SpanNearQuery) {
+      return convertNear((SpanNearQuery) query);
+    }
+    return null;
+  }
+
+  private static Query convertOr(SpanOrQuery or) {
+    SpanQuery[] clauses = or.getClauses();
+    if (clauses.length == 0 || clauses.length > BooleanQuery.getMaxClauseCount()) {
+      return null;
+    }
+    BooleanQuery.Builder builder = new BooleanQuery.Builder();
+    for (SpanQuery clause : clauses) {
+      Query converted = convertSpan(clause);
+      if (converted == null) {
+        return null;
+      }
+      builder.add(converted, BooleanClause.Occur.SHOULD);
+    }
+    return builder.build();
+  }
+
+  private static Query convertNear(SpanNearQuery near) {
+    if (! near.isInOrder() || near.getSlop() != 0) {
+      return null;
+    }
+    SpanQuery[] clauses = near.getClauses();
+    List<Term[]> positions = new ArrayList<>();
+    boolean multi = false;
+    for (SpanQuery clause : clauses) {
+      List<Term> terms = new ArrayList<>();
+      if (! collectTerms(clause, terms) || terms.isEmpty()) {
+        return null;
+      }
+      multi |= terms.size() > 1;
+      positions.add(terms.toArray(new Term[terms.size()]));
+    }
+    if (multi) {
+      MultiPhraseQuery.Builder builder = new MultiPhraseQuery.Builder();
+      for (Term[] terms : positions) {
+        builder.add(terms);
+      }
+      return builder.build();
+    }
+    PhraseQuery.Builder builder = new PhraseQuery.Builder();
+    for (Term[] terms : positions) {
+      builder.add(terms[0]);
+    }
+    return builder.build();
+  }
+
+  /**
+   * @return whether <code>query</code> is a term or an or of terms
+   */
+  private static boolean collectTerms(SpanQuery query, List<Term> terms) {
+    if (query instanceof SpanTermQuery) {
+      terms.add(((SpanTermQuery) query).getTerm());
+      return true;
+    } else if (query instanceof SpanOrQuery) {
+      for (SpanQuery clause : ((SpanOrQuery) query).getClauses()) {
+        if (! collectTerms(clause, terms)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+}
@@ -49,15 +49,40 @@ public class SpanOnlyParser extends AbstractSpanQueryParser {
     super(f, a, multitermAnalyzer);
   }
 
+  /**
+   * Initializes SpanOnlyParser with immutable options; a parser that is
+   * not modified afterwards is safe to share across threads.
+   * @param f default field
+   * @param a analyzer to use for full terms
+   * @param multitermAnalyzer analyzer to use for multiterm analysis
+   * @param config parser options
+   */
+  public SpanOnlyParser(String f, Analyzer a, Analyzer multitermAnalyzer, SpanQueryParserConfig config) {
+    super(f, a, multitermAnalyzer, config);
+  }
+
   @Override
   public Query parse(String s) throws ParseException {
+    SpanQueryParseCache.Key key = getParseCacheKey(s);
+    if (key != null) {
+      Query cached = getParseCache().get(key);
+      if (cached != null) {
+        return cached;
+      }
+    }
     Query q = _parsePureSpan(getField(), s);
     assert(q == null || q instanceof SpanQuery);
+    if (q != null && getConfig().getOptimizeSpanQueries()) {
+      q = SpanQueryOptimizer.optimize(q);
+    }
+    if (key != null && q != null) {
+      getParseCache().put(key, q);
+    }
     return q;
   }
 
   protected Query _parsePureSpan(String field, String queryString) throws ParseException {
-    SpanQueryLexer lexer = new SpanQueryLexer();
+    SpanQueryLexer lexer = SpanQueryLexer.forThread();
     List<SQPToken> tokens = lexer.getTokens(queryString);
     SQPClause overallClause = new SQPOrClause(0, tokens.size());
     return _parsePureSpanClause(tokens, field, overallClause);
@@ -16,16 +16,24 @@ package org.tallison.lucene.queryparser.spans;
  * limitations under the License.
  */
 
-import java.io.IOException;
-import java.io.PushbackReader;
-import java.io.Reader;
-import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.EmptyStackException;
 import java.util.List;
 import java.util.Stack;
 import org.apache.lucene.queryparser.classic.ParseException;
-
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * Lexes a query string into {@link SQPToken}s.
+ * <p>
+ * The query is copied into a reusable char[], and the lexer reads it
+ * with an index cursor.  Lookahead is by indexing, and unreading a char
+ * steps the cursor back and writes the char into the buffer, which behaves
+ * exactly as a pushback reader does without its per-char locking.
+ * <p>
+ * The parsers share one lexer per thread through {@link #forThread()}, so
+ * the buffers are allocated once per thread rather than once per parse.
+ */
 class SpanQueryLexer {
 
 
@@ -78,6 +86,24 @@ class SpanQueryLexer {
   private static final int CHAR_R = (int)'R';
   private static final int CHAR_A = (int)'A';
 
+  //don't pin the buffer of an unusually long query to the thread
+  private static final int MAX_RETAINED_CHARS = 16384;
+
+  private static final ThreadLocal<SpanQueryLexer> LEXERS = new ThreadLocal<SpanQueryLexer>() {
+    @Override
+    protected SpanQueryLexer initialValue() {
+      return new SpanQueryLexer();
+    }
+  };
+
+  /**
+   * @return this thread's lexer.  The lexer is not reentrant, but lexing
+   * never calls out of the lexer, so a parse on the thread can always use it.
+   */
+  static SpanQueryLexer forThread() {
+    return LEXERS.get();
+  }
+
 
   boolean inDQuote = false;
   int wildcardChars = 0;
@@ -85,28 +111,41 @@ class SpanQueryLexer {
   TOKEN_TYPE type = TOKEN_TYPE.UNSPECIFIED;
 
   int nearDepth = 0;
-  PushbackReader reader;
+  //the query's chars and the cursor into them
+  char[] buffer = new char[16];
+  int length = 0;
+  int pos = 0;
   StringBuilder tokenBuffer = new StringBuilder();
   List<SQPToken> tokens = new ArrayList<>();
   Stack<SQPOpenClause> stack = new Stack<>();
 
+  /**
+   * @param s query string
+   * @return the tokens, in a new list that the caller owns
+   * @throws ParseException if the query can't be lexed
+   */
   public List<SQPToken> getTokens(String s) throws ParseException {
+    //the caller keeps the list, so it can't be recycled by the next call
+    tokens = new ArrayList<>();
     if (s.trim().length() == 0) {
       return tokens;
     }
-    //TODO: no need to init if initialize lexer w string and change to getTokens()
-    tokens.clear();
     stack.clear();
     resetTokenBuffer();
     nearDepth = 0;
     inDQuote = false;
-    reader = new PushbackReader(new StringReader(s), 11);//need to be able to push back string representation of integer
+    length = s.length();
+    buffer = ArrayUtil.grow(buffer, length);
+    s.getChars(0, length, buffer, 0);
+    pos = 0;
     try {
       while (nextToken()) {
         //do nothing;
       }
-    } catch (IOException e) {
-      throw new ParseException(e.getMessage());
+    } finally {
+      if (buffer.length > MAX_RETAINED_CHARS) {
+        buffer = new char[16];
+      }
     }
     if (! stack.isEmpty()) {
       throw new ParseException("Couldn't find matching end to: "+stack.pop().getType());
@@ -114,11 +153,11 @@ class SpanQueryLexer {
     return tokens;
   }
 
-  boolean nextToken() throws IOException, ParseException {
-    int c = reader.read();
+  boolean nextToken() throws ParseException {
+    int c = read();
     //slurp leading whitespace
     while (Character.isWhitespace(c)) {
-      c = reader.read();
+      c = read();
     }
 
     while (true) {
@@ -144,7 +183,7 @@ class SpanQueryLexer {
         case TILDE :
           if (tokenBuffer.length() > 0) {
             handleFuzzyTerm();
-            c = reader.read();
+            c = read();
             continue;
           }
           break;
@@ -181,7 +220,7 @@ class SpanQueryLexer {
           return readToMatchingEndToken(FORWARD_SLASH);
 
         case BACK_SLASH:
-          int next = reader.read();
+          int next = read();
           if (next == -1) {
             throw new ParseException("Can't end string with \\");
           } else if (next == U) {
@@ -191,7 +230,7 @@ class SpanQueryLexer {
             tokenBuffer.appendCodePoint(BACK_SLASH);
             tokenBuffer.appendCodePoint(next);
           }
-          c = reader.read();
+          c = read();
           continue;
 
         case COLON:
@@ -263,7 +302,7 @@ class SpanQueryLexer {
 
         case AMPERSAND :
           if (tokenBuffer.length() == 0 && nearDepth == 0) {
-            int n = reader.read();
+            int n = read();
             if (n == AMPERSAND && isNextBreak()) {
               flushBuffer();
               SQPBooleanOpToken andToken = new SQPBooleanOpToken(SpanQueryParserBase.CONJ_AND);
@@ -278,7 +317,7 @@ class SpanQueryLexer {
 
         case PIPE :
           if (tokenBuffer.length() == 0) {
-            int n = reader.read();
+            int n = read();
             if (n == PIPE && isNextBreak()) {
               flushBuffer();
               SQPBooleanOpToken orToken = new SQPBooleanOpToken(SpanQueryParserBase.CONJ_OR);
@@ -293,17 +332,17 @@ class SpanQueryLexer {
       }
       tokenBuffer.appendCodePoint(c);
 
-      c = reader.read();
+      c = read();
     }
   }
 
-  private void handleFuzzyTerm() throws ParseException, IOException {
+  private void handleFuzzyTerm() throws ParseException {
     SQPFuzzyTerm term = new SQPFuzzyTerm(stripEscapes(tokenBuffer.toString()));
 
     if (wildcardChars > 0) {
       throw new ParseException("Need to escape wildcards in fuzzy terms.");
     }
-    int c = reader.read();
+    int c = read();
     if (c == GREATER_THAN) {
       term.setTranspositions(false);
     } else {
@@ -318,7 +357,7 @@ class SpanQueryLexer {
       }
       term.setMaxEdits(maxEditsInt);
     }
-    c = reader.read();
+    c = read();
     if (c == COMMA) {
       Integer prefixLen = tryToReadInteger();
       if (prefixLen == null) {
@@ -334,7 +373,7 @@ class SpanQueryLexer {
     resetTokenBuffer();
   }
 
-  private void handleDQuote() throws IOException, ParseException {
+  private void handleDQuote() throws ParseException {
     if (inDQuote) {
       inDQuote = false;
       handleCloseClause(SQPClause.TYPE.QUOTE);
@@ -344,7 +383,7 @@ class SpanQueryLexer {
     }
   }
 
-  private void handleCloseClause(SQPClause.TYPE closeType) throws IOException, ParseException {
+  private void handleCloseClause(SQPClause.TYPE closeType) throws ParseException {
     //flush the token buffer
     flushBuffer();
     SQPOpenClause open = null;
@@ -357,7 +396,7 @@ class SpanQueryLexer {
     SQPClause newClause = null;
 
     if (closeType == SQPClause.TYPE.PAREN) {
-      int next = reader.read();
+      int next = read();
       Integer minMatch = -1;
       if (next == TILDE) {
         if (nearDepth > 0) {
@@ -377,14 +416,14 @@ class SpanQueryLexer {
     } else {  //has to be a span near or span not
       nearDepth--;
       //next0
-      int n0 = reader.read();
+      int n0 = read();
       if (n0 == EXCLAMATION) { //span not
-        int n1 = reader.read();
+        int n1 = read();
         if (n1 == TILDE) {
           Integer notPost = null;
           Integer notPre = tryToReadInteger();
 
-          int n2 = reader.read();
+          int n2 = read();
           if (n2 == COMMA) {
             notPost = tryToReadInteger();
           } else {
@@ -399,7 +438,7 @@ class SpanQueryLexer {
         }
       } else if (n0 == TILDE) { //span with slop
         Boolean inOrder = false;
-        int n1 = reader.read();
+        int n1 = read();
         if (n1 == GREATER_THAN) {
           inOrder = true;
         } else {
@@ -445,20 +484,20 @@ class SpanQueryLexer {
     tokens.set(open.getTokenOffsetStart(), newClause);
   }
 
-  private boolean isNextWhitespaceOrEnd() throws IOException {
-    int n1 = reader.read();
+  private boolean isNextWhitespaceOrEnd() {
+    int n1 = read();
     if (n1 == -1) {
       return true;
     }
-    reader.unread(n1);
+    tryToUnread(n1);
 
     return Character.isWhitespace(n1);
   }
 
-  private boolean isNextBreak() throws IOException {
-    int n1 = reader.read();
+  private boolean isNextBreak() {
+    int n1 = read();
     if (Character.isWhitespace(n1)){
-      reader.unread(n1);
+      tryToUnread(n1);
       return true;
     }
     boolean response = false;
@@ -494,7 +533,7 @@ class SpanQueryLexer {
 
   private SQPBoostableOrPositionRangeToken tryToReadBoostOrPositionRange(
       SQPBoostableOrPositionRangeToken term)
-      throws ParseException, IOException {
+      throws ParseException {
     BoostPositionRange bpr = tryToReadBoostOrPositionRange(true);
     if (bpr == null) {
       return term;
@@ -508,7 +547,7 @@ class SpanQueryLexer {
 
 
   private BoostPositionRange tryToReadBoostOrPositionRange(boolean throwExceptionOnPartialRead)
-      throws ParseException, IOException {
+      throws ParseException {
 
     //^1.2@10..20  or @..10^1.2
     //try to read boost, then position range
@@ -533,14 +572,14 @@ class SpanQueryLexer {
 
   //tries to read a boost if it is there
   //returns null if no parseable boost
-  private Float tryToReadBoost() throws ParseException, IOException {
-    int c = reader.read();
+  private Float tryToReadBoost() throws ParseException {
+    int c = read();
     if (c == CARET) {
       Float boost = tryToReadUnsignedFloat();
       if (boost == null) {
         return boost;
       }
-      int next = reader.read();
+      int next = read();
       if (next == CARET) {
         throw new ParseException("Can't end boost with caret");
       }
@@ -558,14 +597,14 @@ class SpanQueryLexer {
    * returns null if no position range was found
    */
   private BoostPositionRange tryToReadPositionRange(boolean throwExceptionOnPartialRead)
-      throws ParseException, IOException {
-    int chr = reader.read();
+      throws ParseException {
+    int chr = read();
     if (chr != AT) {
       tryToUnread(chr);
       return null;
     }
     //we have @, look for period or integer
-    chr = reader.read();
+    chr = read();
     Integer start = null;
     Integer end = null;
     if (chr != PERIOD) { //maybe it's an integer @20.. ?
@@ -615,13 +654,13 @@ class SpanQueryLexer {
 
   //returns -1 if there wasn't a ".." or if start was null and there was no end
   //returns null if there was a "..\b" with no value
-  private Integer tryToReadEndPositionRange(Integer start) throws IOException, ParseException {
-    int chr = reader.read();
+  private Integer tryToReadEndPositionRange(Integer start) throws ParseException {
+    int chr = read();
     if (chr != PERIOD) {
       tryToUnread(chr);
       return -1;
     }
-    int chr2 = reader.read();
+    int chr2 = read();
     if (chr2 != PERIOD) {
         //@.x -- not a range
       tryToUnread(chr2);
@@ -784,30 +823,30 @@ class SpanQueryLexer {
   //this reads everything to a matching end token, e.g. ' or /.
   //the targChar token is escaped by being doubled.
   //This unescapes the targChar
-  private boolean readToMatchingEndToken(int targChar) throws ParseException, IOException {
-    int c = reader.read();
+  private boolean readToMatchingEndToken(int targChar) throws ParseException {
+    int c = read();
     boolean hitEndOfString = false;
     while (true) {
       if (c == -1) {
         //won't work with bmp targChar!
         throw new ParseException("Didn't find matching: " + (char) targChar);
       } else if (c == targChar) {
-        int next = reader.read();
+        int next = read();
         if (next == -1) {
           hitEndOfString = true;
           break;
         } else if (next == targChar) {
           tokenBuffer.appendCodePoint(targChar);
-          c = reader.read();
+          c = read();
           continue;
         } else {
-          reader.unread(next);
+          tryToUnread(next);
           break;
         }
       }
 
       tokenBuffer.appendCodePoint(c);
-      c = reader.read();
+      c = read();
     }
     if (tokenBuffer.length() == 0) {
       throw new ParseException("must have some content between " + (char) targChar + "s");
@@ -827,11 +866,11 @@ class SpanQueryLexer {
     return !hitEndOfString;
   }
 
-  void flushBuffer() throws ParseException, IOException {
+  void flushBuffer() throws ParseException {
     flushBuffer(null);
   }
 
-  void flushBuffer(BoostPositionRange bpr) throws ParseException, IOException {
+  void flushBuffer(BoostPositionRange bpr) throws ParseException {
 
     if (tokenBuffer.length() == 0) {
       return;
@@ -916,19 +955,22 @@ class SpanQueryLexer {
     resetTokenBuffer();
   }
 
-  private String stripEscapes(String term) throws IOException {
-    Reader r = new StringReader(term);
-    StringBuilder sb = new StringBuilder();
-    int c = r.read();
-    while (c != -1) {
+  private String stripEscapes(String term) {
+    int i = term.indexOf(BACK_SLASH);
+    if (i < 0) {
+      return term;
+    }
+    StringBuilder sb = new StringBuilder(term.length());
+    sb.append(term, 0, i);
+    for (; i < term.length(); i++) {
+      char c = term.charAt(i);
       if (c == BACK_SLASH) {
-        c = r.read();
-        if (c == -1) {
+        if (++i == term.length()) {
           break;
         }
+        c = term.charAt(i);
       }
-      sb.appendCodePoint(c);
-      c = r.read();
+      sb.append(c);
     }
     return sb.toString();
   }
@@ -952,7 +994,7 @@ class SpanQueryLexer {
     type = TOKEN_TYPE.UNSPECIFIED;
   }
 
-  private void tryToAddField(String term) throws ParseException, IOException {
+  private void tryToAddField(String term) throws ParseException {
 
     if (term.length() == 0) {
       throw new ParseException("Field name must have length > 0");
@@ -1002,48 +1044,49 @@ class SpanQueryLexer {
     }
   }
 
-  void tryToUnread(String s) throws IOException {
-    final int length = s.length();
-    List<Integer> ints = new ArrayList<>();
-    for (int offset = 0; offset < length; ) {
-      final int codepoint = s.codePointAt(offset);
-      ints.add(codepoint);
-      offset += Character.charCount(codepoint);
-    }
-    for (int i = ints.size()-1; i > -1; i--) {
-      tryToUnread(ints.get(i));
+  //returns the next char or -1 at the end of the query
+  int read() {
+    return (pos < length) ? buffer[pos++] : -1;
+  }
+
+  void tryToUnread(String s) {
+    for (int i = s.length() - 1; i > -1; i--) {
+      tryToUnread(s.charAt(i));
     }
   }
 
-  void tryToUnread(int c) throws IOException {
+  //pushes back c, which need not be the char that was read
+  void tryToUnread(int c) {
     if (c != -1) {
-      reader.unread(c);
+      buffer[--pos] = (char) c;
     }
   }
 
   //returns null if reading an integer fails
-  Integer tryToReadInteger() throws IOException {
-    StringBuilder sb = new StringBuilder();
-    while (true) {
-      int c = reader.read();
-      int val = c-48;
-      if (val >= 0 && val <= 9) {
-        sb.append(val);
-      } else {
-        tryToUnread(c);
+  Integer tryToReadInteger() {
+    int start = pos;
+    long value = 0;
+    while (pos < length) {
+      int val = buffer[pos] - 48;
+      if (val < 0 || val > 9) {
         break;
       }
+      value = value * 10 + val;
+      if (value > Integer.MAX_VALUE) {
+        //let parseInt throw the usual NumberFormatException
+        return Integer.parseInt(new String(buffer, start, pos + 1 - start));
+      }
+      pos++;
     }
-    if (sb.length() == 0) {
+    if (pos == start) {
       return null;
     }
-    return Integer.parseInt(sb.toString());
+    return (int) value;
   }
 
-  Float tryToReadUnsignedFloat() throws ParseException, IOException {
-    StringBuilder sb = new StringBuilder();
+  Float tryToReadUnsignedFloat() throws ParseException {
     boolean seenDecimalPoint = false;
-    int c = reader.read();
+    int c = read();
     if (c == MINUS) {
       throw new ParseException("Negative values not allowed.");
     } else if (c == PLUS) {
@@ -1051,8 +1094,9 @@ class SpanQueryLexer {
     } else {
       tryToUnread(c);
     }
+    int start = pos;
     while (true) {
-      c = reader.read();
+      c = read();
       int val = c-48;
       if (c == DECIMAL_POINT) {
         if (seenDecimalPoint) {
@@ -1060,41 +1104,39 @@ class SpanQueryLexer {
           break;
         } else {
           seenDecimalPoint = true;
-          sb.appendCodePoint(DECIMAL_POINT);
         }
-      } else if (val >= 0 && val <= 9) {
-        sb.append(val);
-      } else {
+      } else if (val < 0 || val > 9) {
         tryToUnread(c);
         break;
       }
     }
-    String tmpFloatString = sb.toString();
-    if (tmpFloatString.length() == 0) {
+    int floatLength = pos - start;
+    if (floatLength == 0) {
       return null;
-    } else if (tmpFloatString.equals(".")) {
+    } else if (floatLength == 1 && buffer[start] == DECIMAL_POINT) {
       //or do we want to unread and move on?
       //tryToUnread(DECIMAL);
       //return null;
       throw new ParseException("Single \".\" appears where there should be a float!");
     }
-    return Float.parseFloat(tmpFloatString);
+    return Float.parseFloat(new String(buffer, start, floatLength));
   }
 
-  void tryToReadEscapedUnicode() throws ParseException, IOException {
-    StringBuilder sb = new StringBuilder();
+  void tryToReadEscapedUnicode() throws ParseException {
+    int start = pos;
+    int value = 0;
     for (int i = 0; i < 4; i++) {
-      int c = reader.read();
+      int c = read();
       if (c == -1) {
-        throw new ParseException("Invalid escaped unicode character. >"+sb.toString()+"< and the end of the query string");
+        throw new ParseException("Invalid escaped unicode character. >"+new String(buffer, start, i)+"< and the end of the query string");
       }
       if (isHex(c)){
-        sb.appendCodePoint(c);
+        value = (value << 4) + Character.digit(c, 16);
       } else {
-        throw new ParseException("Invalid escaped unicode character. >"+sb.toString()+"< and " +new String(Character.toChars(c)));
+        throw new ParseException("Invalid escaped unicode character. >"+new String(buffer, start, i)+"< and " +new String(Character.toChars(c)));
       }
     }
-    tokenBuffer.appendCodePoint(Integer.parseInt(sb.toString(), 16));
+    tokenBuffer.append((char) value);
   }
 
   boolean isHex(int c) {
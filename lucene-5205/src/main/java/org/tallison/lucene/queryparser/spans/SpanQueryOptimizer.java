@@ -0,0 +1,191 @@
+package org.tallison.lucene.queryparser.spans;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.spans.FieldMaskingSpanQuery;
+import org.apache.lucene.search.spans.SpanBoostQuery;
+import org.apache.lucene.search.spans.SpanFirstQuery;
+import org.apache.lucene.search.spans.SpanNearQuery;
+import org.apache.lucene.search.spans.SpanOrQuery;
+import org.apache.lucene.search.spans.SpanPositionRangeQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+
+/**
+ * Simplifies the span trees that the parsers build, without changing which
+ * documents match or where the spans are.
+ * <ul>
+ *   <li>A SpanOrQuery within a SpanOrQuery is flattened into its parent.</li>
+ *   <li>Duplicate clauses of a SpanOrQuery are removed.  The duplicate spans are
+ *   no longer counted twice, so scores that depend on the span frequency
+ *   can go down.</li>
+ *   <li>A SpanOrQuery or SpanNearQuery with a single clause is replaced by that clause.</li>
+ *   <li>A SpanNearQuery with an empty clause can never match, and is replaced by an
+ *   empty SpanOrQuery; empty clauses of a SpanOrQuery are dropped.</li>
+ *   <li>An in order SpanNearQuery with no slop whose clauses are all terms is
+ *   flattened into a parent in order SpanNearQuery with no slop.</li>
+ * </ul>
+ * SpanNotQuery does not expose its pre and post distances, so its include and
+ * exclude clauses are left as they are.
+ * <p>
+ * Clauses are never reordered by cost: the spans of a SpanNearQuery are
+ * already advanced through a conjunction that leads with the cheapest clause.
+ */
+public final class SpanQueryOptimizer {
+
+  private SpanQueryOptimizer() {
+  }
+
+  /**
+   * @param query query to optimize
+   * @return the optimized query, or <code>query</code> itself if nothing changed
+   */
+  public static Query optimize(Query query) {
+    return visit(query);
+  }
+
+  private static Query visit(Query query) {
+    if (query instanceof SpanQuery) {
+      return visitSpan((SpanQuery) query);
+    } else if (query instanceof BooleanQuery) {
+      BooleanQuery bq = (BooleanQuery) query;
+      BooleanQuery.Builder builder = new BooleanQuery.Builder();
+      builder.setMinimumNumberShouldMatch(bq.getMinimumNumberShouldMatch());
+      boolean changed = false;
+      for (BooleanClause clause : bq) {
+        Query optimized = visit(clause.getQuery());
+        changed |= optimized != clause.getQuery();
+        builder.add(optimized, clause.getOccur());
+      }
+      return changed ? builder.build() : query;
+    } else if (query instanceof BoostQuery) {
+      BoostQuery boostQuery = (BoostQuery) query;
+      Query optimized = visit(boostQuery.getQuery());
+      return (optimized == boostQuery.getQuery()) ? query : new BoostQuery(optimized, boostQuery.getBoost());
+    }
+    return query;
+  }
+
+  private static SpanQuery visitSpan(SpanQuery query) {
+    if (query instanceof SpanOrQuery) {
+      return visitOr((SpanOrQuery) query);
+    } else if (query instanceof SpanNearQuery) {
+      return visitNear((SpanNearQuery) query);
+    } else if (query instanceof SpanBoostQuery) {
+      SpanBoostQuery boostQuery = (SpanBoostQuery) query;
+      SpanQuery optimized = visitSpan(boostQuery.getQuery());
+      return (optimized == boostQuery.getQuery()) ? query : new SpanBoostQuery(optimized, boostQuery.getBoost());
+    } else if (query instanceof FieldMaskingSpanQuery) {
+      FieldMaskingSpanQuery masking = (FieldMaskingSpanQuery) query;
+      SpanQuery optimized = visitSpan(masking.getMaskedQuery());
+      return (optimized == masking.getMaskedQuery()) ? query : new FieldMaskingSpanQuery(optimized, masking.getField());
+    } else if (query.getClass() == SpanFirstQuery.class) {
+      SpanFirstQuery first = (SpanFirstQuery) query;
+      SpanQuery optimized = visitSpan(first.getMatch());
+      return (optimized == first.getMatch()) ? query : new SpanFirstQuery(optimized, first.getEnd());
+    } else if (query.getClass() == SpanPositionRangeQuery.class) {
+      SpanPositionRangeQuery range = (SpanPositionRangeQuery) query;
+      SpanQuery optimized = visitSpan(range.getMatch());
+      return (optimized == range.getMatch()) ? query :
+          new SpanPositionRangeQuery(optimized, range.getStart(), range.getEnd());
+    }
+    return query;
+  }
+
+  private static SpanQuery visitOr(SpanOrQuery or) {
+    SpanQuery[] clauses = or.getClauses();
+    Set<SpanQuery> flattened = new LinkedHashSet<>();
+    boolean changed = false;
+    for (SpanQuery clause : clauses) {
+      SpanQuery optimized = visitSpan(clause);
+      changed |= optimized != clause;
+      if (optimized instanceof SpanOrQuery) {
+        //this includes dropping empty ors
+        changed = true;
+        flattened.addAll(Arrays.asList(((SpanOrQuery) optimized).getClauses()));
+      } else if (! flattened.add(optimized)) {
+        changed = true;
+      }
+    }
+    if (flattened.size() == 1) {
+      return flattened.iterator().next();
+    }
+    if (! changed) {
+      return or;
+    }
+    return new SpanOrQuery(flattened.toArray(new SpanQuery[flattened.size()]));
+  }
+
+  private static SpanQuery visitNear(SpanNearQuery near) {
+    SpanQuery[] clauses = near.getClauses();
+    boolean exactPhrase = near.isInOrder() && near.getSlop() == 0;
+    List<SpanQuery> optimizedClauses = new ArrayList<>();
+    boolean changed = false;
+    for (SpanQuery clause : clauses) {
+      SpanQuery optimized = visitSpan(clause);
+      changed |= optimized != clause;
+      if (isEmpty(optimized)) {
+        return new SpanOrQuery();
+      }
+      if (exactPhrase && isExactTermPhrase(optimized)) {
+        changed = true;
+        optimizedClauses.addAll(Arrays.asList(((SpanNearQuery) optimized).getClauses()));
+      } else {
+        optimizedClauses.add(optimized);
+      }
+    }
+    if (optimizedClauses.size() == 1) {
+      return optimizedClauses.get(0);
+    }
+    if (! changed) {
+      return near;
+    }
+    return new SpanNearQuery(optimizedClauses.toArray(new SpanQuery[optimizedClauses.size()]),
+        near.getSlop(), near.isInOrder());
+  }
+
+  private static boolean isEmpty(SpanQuery query) {
+    return query instanceof SpanOrQuery && ((SpanOrQuery) query).getClauses().length == 0;
+  }
+
+  private static boolean isExactTermPhrase(SpanQuery query) {
+    if (! (query instanceof SpanNearQuery)) {
+      return false;
+    }
+    SpanNearQuery near = (SpanNearQuery) query;
+    if (! near.isInOrder() || near.getSlop() != 0) {
+      return false;
+    }
+    for (SpanQuery clause : near.getClauses()) {
+      if (! (clause instanceof SpanTermQuery)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,221 @@
+package org.tallison.lucene.queryparser.spans;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * Thread-safe, least recently used cache of parsed queries that can be shared
+ * by many {@link SpanQueryParser}s and {@link SpanOnlyParser}s, see
+ * {@link AbstractSpanQueryParser#setParseCache(SpanQueryParseCache)}.
+ * <p>
+ * Entries are keyed by the parser's class, the query string, the default field
+ * and every parser setting that affects parsing, so parsers with different
+ * settings can share a cache.  Queries are immutable, so cached queries
+ * are returned as is.
+ * <p>
+ * The cache is bounded by the number of entries and by an estimate
+ * of the RAM that the entries use.  Queries that don't implement
+ * {@link Accountable} are estimated at {@link #QUERY_DEFAULT_RAM_BYTES_USED}.
+ */
+public class SpanQueryParseCache implements Accountable {
+
+  /**
+   * Estimate of the RAM used by a query that doesn't implement {@link Accountable}
+   */
+  public static final long QUERY_DEFAULT_RAM_BYTES_USED = 1024;
+
+  private static final long ENTRY_RAM_BYTES_USED =
+      //key, the linked map entry and the key's fields
+      3 * RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + 8 * RamUsageEstimator.NUM_BYTES_OBJECT_REF;
+
+  private final int maxSize;
+  private final long maxRamBytes;
+  private final Map<Key, Query> cache = new LinkedHashMap<>(16, 0.75f, true);
+  private long ramBytesUsed = 0;
+  private long hitCount = 0;
+  private long missCount = 0;
+
+  /**
+   * @param maxSize     maximum number of queries to cache
+   * @param maxRamBytes maximum estimated RAM for the cached queries
+   */
+  public SpanQueryParseCache(int maxSize, long maxRamBytes) {
+    if (maxSize < 1) {
+      throw new IllegalArgumentException("maxSize must be > 0: " + maxSize);
+    }
+    if (maxRamBytes < 1) {
+      throw new IllegalArgumentException("maxRamBytes must be > 0: " + maxRamBytes);
+    }
+    this.maxSize = maxSize;
+    this.maxRamBytes = maxRamBytes;
+  }
+
+  /**
+   * @param key key
+   * @return cached query or <code>null</code> if the query has not been cached
+   */
+  synchronized Query get(Key key) {
+    Query q = cache.get(key);
+    if (q == null) {
+      missCount++;
+    } else {
+      hitCount++;
+    }
+    return q;
+  }
+
+  /**
+   * @param key   key
+   * @param query parsed query
+   */
+  synchronized void put(Key key, Query query) {
+    long ram = ramBytesUsed(key, query);
+    if (ram > maxRamBytes) {
+      //would evict everything else
+      return;
+    }
+    Query previous = cache.put(key, query);
+    if (previous != null) {
+      ramBytesUsed -= ramBytesUsed(key, previous);
+    }
+    ramBytesUsed += ram;
+    Iterator<Map.Entry<Key, Query>> it = cache.entrySet().iterator();
+    while (cache.size() > maxSize || ramBytesUsed > maxRamBytes) {
+      Map.Entry<Key, Query> eldest = it.next();
+      ramBytesUsed -= ramBytesUsed(eldest.getKey(), eldest.getValue());
+      it.remove();
+    }
+  }
+
+  private static long ramBytesUsed(Key key, Query query) {
+    long queryRam = (query instanceof Accountable) ?
+        ((Accountable) query).ramBytesUsed() : QUERY_DEFAULT_RAM_BYTES_USED;
+    return ENTRY_RAM_BYTES_USED + key.ramBytesUsed() + queryRam;
+  }
+
+  /**
+   * Removes all entries; the hit and miss counts are kept.
+   */
+  public synchronized void clear() {
+    cache.clear();
+    ramBytesUsed = 0;
+  }
+
+  /**
+   * @return number of cached queries
+   */
+  public synchronized int size() {
+    return cache.size();
+  }
+
+  /**
+   * @return number of lookups that found a cached query
+   */
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  /**
+   * @return number of lookups that did not find a cached query
+   */
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  @Override
+  public synchronized long ramBytesUsed() {
+    return ramBytesUsed;
+  }
+
+  @Override
+  public String toString() {
+    return "SpanQueryParseCache(size=" + size() + ", maxSize=" + maxSize +
+        ", ramBytesUsed=" + ramBytesUsed() + ", maxRamBytes=" + maxRamBytes +
+        ", hits=" + getHitCount() + ", misses=" + getMissCount() + ")";
+  }
+
+  /**
+   * Cache key: the parser's class, query string, default field and parser settings
+   */
+  static final class Key {
+    private static final long STRING_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(String.class);
+
+    private final Class<?> parserClass;
+    private final String queryString;
+    private final String field;
+    private final List<Object> settings;
+    private final int hashCode;
+
+    Key(Class<?> parserClass, String queryString, String field, List<Object> settings) {
+      this.parserClass = parserClass;
+      this.queryString = queryString;
+      this.field = field;
+      this.settings = Collections.unmodifiableList(settings);
+      int h = parserClass.hashCode();
+      h = 31 * h + queryString.hashCode();
+      h = 31 * h + (field == null ? 0 : field.hashCode());
+      h = 31 * h + settings.hashCode();
+      this.hashCode = h;
+    }
+
+    long ramBytesUsed() {
+      //the settings themselves (analyzers, etc.) are shared with the parsers
+      long ram = sizeOf(queryString) + RamUsageEstimator.alignObjectSize(
+          RamUsageEstimator.NUM_BYTES_ARRAY_HEADER +
+          (long) settings.size() * RamUsageEstimator.NUM_BYTES_OBJECT_REF);
+      if (field != null) {
+        ram += sizeOf(field);
+      }
+      return ram;
+    }
+
+    private static long sizeOf(String s) {
+      return STRING_RAM_BYTES_USED + RamUsageEstimator.alignObjectSize(
+          RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + 2L * s.length());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      Key other = (Key) o;
+      return hashCode == other.hashCode &&
+          parserClass == other.parserClass &&
+          queryString.equals(other.queryString) &&
+          (field == null ? other.field == null : field.equals(other.field)) &&
+          settings.equals(other.settings);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+}
@@ -208,18 +208,43 @@ public class SpanQueryParser extends AbstractSpanQueryParser implements QueryPar
    */  
 
 
-  private String topLevelQueryString;
-
-
   public SpanQueryParser(String f, Analyzer a, Analyzer multitermAnalyzer) {
     super(f, a, multitermAnalyzer);
   }
 
+  /**
+   * A parser that is built with a config and is not modified afterwards
+   * is safe to share across threads.
+   *
+   * @param f default field
+   * @param a analyzer to use for full terms
+   * @param multitermAnalyzer analyzer to use for multiterm analysis
+   * @param config parser options
+   */
+  public SpanQueryParser(String f, Analyzer a, Analyzer multitermAnalyzer, SpanQueryParserConfig config) {
+    super(f, a, multitermAnalyzer, config);
+  }
+
   @Override
   public Query parse(String s) throws ParseException {
-    topLevelQueryString = s;
+    SpanQueryParseCache.Key key = getParseCacheKey(s);
+    if (key != null) {
+      Query cached = getParseCache().get(key);
+      if (cached != null) {
+        return cached;
+      }
+    }
     Query q = _parse(s);
     q = rewriteAllNegative(q);
+    if (q != null && getConfig().getOptimizeSpanQueries()) {
+      q = SpanQueryOptimizer.optimize(q);
+    }
+    if (q != null && getConfig().getConvertSpanFreeQueries()) {
+      q = SpanFreeQueryConverter.convert(q);
+    }
+    if (key != null && q != null) {
+      getParseCache().put(key, q);
+    }
     return q;
   }
 
@@ -227,7 +252,7 @@ public class SpanQueryParser extends AbstractSpanQueryParser implements QueryPar
     if (queryString == null || queryString.equals("")) {
       return getEmptySpanQuery();
     }
-    SpanQueryLexer lexer = new SpanQueryLexer();
+    SpanQueryLexer lexer = SpanQueryLexer.forThread();
     List<SQPToken> tokens = lexer.getTokens(queryString);
     SQPClause overallClause = new SQPOrClause(0, tokens.size());
     return parseRecursively(tokens, getField(), overallClause);
@@ -430,7 +455,7 @@ public class SpanQueryParser extends AbstractSpanQueryParser implements QueryPar
         clauses.set(clauses.size()-1, new BooleanClause(c.getQuery(), Occur.MUST));
     }
 
-    if (clauses.size() > 0 && defaultOperator == QueryParser.Operator.AND && conj == CONJ_OR) {
+    if (clauses.size() > 0 && getDefaultOperator() == QueryParser.Operator.AND && conj == CONJ_OR) {
       // If this term is introduced by OR, make the preceding term optional,
       // unless it's prohibited (that means we leave -a OR b but +a OR b-->a OR b)
       // notice if the input is a OR b, first term is parsed as required; without
@@ -445,7 +470,7 @@ public class SpanQueryParser extends AbstractSpanQueryParser implements QueryPar
     if (q == null)
       return;
 
-    if (defaultOperator == QueryParser.Operator.OR) {
+    if (getDefaultOperator() == QueryParser.Operator.OR) {
       // We set REQUIRED if we're introduced by AND or +; PROHIBITED if
       // introduced by NOT or -; make sure not to set both.
       prohibited = (mods == MOD_NOT);
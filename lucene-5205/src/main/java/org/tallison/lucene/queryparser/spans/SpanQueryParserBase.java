@@ -55,23 +55,28 @@ abstract class SpanQueryParserBase extends AnalyzingQueryParserBase {
 
   public static final boolean DEFAULT_IN_ORDER = true;
 
-  boolean allowLeadingWildcard = false;
-  boolean autoGeneratePhraseQueries = false;
-  int defaultPhraseSlop = 0;
-  MultiTermQuery.RewriteMethod multiTermRewriteMethod = MultiTermQuery.CONSTANT_SCORE_REWRITE;
-  BooleanClause.Occur singleTermBooleanOperator = BooleanClause.Occur.SHOULD;
-  protected QueryParser.Operator defaultOperator = QueryParser.Operator.OR;
-  private int spanNearMaxDistance = 100;
-  private int spanNotNearMaxDistance = 50;
-  private int maxExpansions = FuzzyQuery.defaultMaxExpansions;
-  private int fuzzyMaxEdits = FuzzyQuery.defaultMaxEdits;
-  private int fuzzyPrefixLength = FuzzyQuery.defaultPrefixLength;
-  private boolean fuzzyIsTranspositions = FuzzyQuery.defaultTranspositions;
-
-  private boolean analyzeRangeTerms = true;
+  //the setters replace the config rather than modify it
+  private volatile SpanQueryParserConfig config;
 
   public SpanQueryParserBase(Analyzer analyzer, Analyzer multiTermAnalyzer) {
+    this(analyzer, multiTermAnalyzer, SpanQueryParserConfig.DEFAULT);
+  }
+
+  public SpanQueryParserBase(Analyzer analyzer, Analyzer multiTermAnalyzer, SpanQueryParserConfig config) {
     super(analyzer, multiTermAnalyzer);
+    this.config = config;
+  }
+
+  /**
+   *
+   * @return the parser's current options
+   */
+  public SpanQueryParserConfig getConfig() {
+    return config;
+  }
+
+  private SpanQueryParserConfig.Builder configBuilder() {
+    return new SpanQueryParserConfig.Builder(config);
   }
 
   /**
@@ -96,20 +101,20 @@ abstract class SpanQueryParserBase extends AnalyzingQueryParserBase {
    * @return RewriteMethod for a given field
    */
   public RewriteMethod getMultiTermRewriteMethod(String field) {
-    return multiTermRewriteMethod;
+    return config.getMultiTermRewriteMethod();
   }
 
   /**
    *
    * @return default multitermrewritemethod
    */
-  public RewriteMethod getMultiTermRewriteMethod() { return multiTermRewriteMethod;}
+  public RewriteMethod getMultiTermRewriteMethod() { return config.getMultiTermRewriteMethod();}
   /**
    * This currently sets the method for all fields.
    * @param method rewrite method
    */
   public void setMultiTermRewriteMethod(MultiTermQuery.RewriteMethod method) {
-    this.multiTermRewriteMethod = method;
+    config = configBuilder().setMultiTermRewriteMethod(method).build();
   }
 
 
@@ -127,12 +132,12 @@ abstract class SpanQueryParserBase extends AnalyzingQueryParserBase {
     Query ret;
     if (terminal instanceof SQPTerm) {
       ret = newFieldQuery(fieldName, ((SQPTerm) terminal).getString(), ((SQPTerm) terminal).isQuoted()
-          || autoGeneratePhraseQueries, 0);
+          || getAutoGeneratePhraseQueries(), 0);
     } else if (terminal instanceof SQPFuzzyTerm) {
       SQPFuzzyTerm ft = (SQPFuzzyTerm) terminal;
       int tmpPrefixLen = (ft.getPrefixLength() != null) ? ft.getPrefixLength() :
           getFuzzyPrefixLength();
-      int tmpMaxEdits = (ft.getMaxEdits() != null) ? Math.min(fuzzyMaxEdits, ft.getMaxEdits()) : getFuzzyMaxEdits();
+      int tmpMaxEdits = (ft.getMaxEdits() != null) ? Math.min(getFuzzyMaxEdits(), ft.getMaxEdits()) : getFuzzyMaxEdits();
       ret = newFuzzyQuery(fieldName, ft.getString(), tmpMaxEdits, tmpPrefixLen,
           getMaxExpansions(), ft.isTranspositions());
     } else if (terminal instanceof SQPWildcardTerm) {
@@ -174,21 +179,134 @@ abstract class SpanQueryParserBase extends AnalyzingQueryParserBase {
     if (terminal instanceof SQPTerm) {
       spanQuery = newFieldSpanQuery(fieldName, terminal.getString(), ((SQPTerm) terminal).isQuoted());
     } else {
-      Query q = buildTerminal(fieldName, terminal);
-      if (q instanceof MultiTermQuery) {
-        spanQuery = new SpanMultiTermQueryWrapper<>((MultiTermQuery) q);
-      } else if (q instanceof TermQuery) {
-        //this happens when fuzzy query has a fuzzy = 0, and a TermQuery is generated
-        //straight from the analyzed str
-        spanQuery = new SpanTermQuery(((TermQuery) q).getTerm());
-      } else {
-        spanQuery = (SpanQuery)q;
+      if (terminal instanceof SQPWildcardTerm) {
+        spanQuery = newReversedWildcardSpanQuery(fieldName, terminal.getString());
+      }
+      if (spanQuery == null) {
+        Query q = buildTerminal(fieldName, terminal);
+        if (q instanceof MultiTermQuery) {
+          spanQuery = wrapSpanMultiTerm((MultiTermQuery) q);
+        } else if (q instanceof TermQuery) {
+          //this happens when fuzzy query has a fuzzy = 0, and a TermQuery is generated
+          //straight from the analyzed str
+          spanQuery = new SpanTermQuery(((TermQuery) q).getTerm());
+        } else {
+          spanQuery = (SpanQuery)q;
+        }
       }
     }
     spanQuery = addBoostOrPositionRangeIfExists(spanQuery, terminal);
     return spanQuery;
   }
 
+  private SpanQuery wrapSpanMultiTerm(MultiTermQuery mtq) {
+    SpanMultiTermQueryWrapper<MultiTermQuery> wrapper = new SpanMultiTermQueryWrapper<>(mtq);
+    SpanMultiTermQueryWrapper.SpanRewriteMethod spanRewriteMethod = config.getSpanMultiTermRewriteMethod();
+    if (spanRewriteMethod != null) {
+      wrapper.setRewriteMethod(spanRewriteMethod);
+    }
+    return wrapper;
+  }
+
+  /**
+   * If <code>fieldName</code> has a reversed companion field and the wildcard should
+   * be reversed, this builds a wildcard query with the reversed pattern on the
+   * companion field.  Unless the companion is the field itself, the result is
+   * wrapped in a {@link FieldMaskingSpanQuery} so that it can be combined with
+   * the field's other spans; the positions are the same in both fields.
+   * <p>
+   * Leading wildcards are allowed on such a field, whatever
+   * {@link #getAllowLeadingWildcard()} says.
+   *
+   * @param fieldName field
+   * @param termText wildcard pattern
+   * @return span query on the reversed field, or <code>null</code> if the
+   * pattern should be run against <code>fieldName</code> itself
+   * @throws ParseException if encountered during parse
+   */
+  protected SpanQuery newReversedWildcardSpanQuery(String fieldName, String termText) throws ParseException {
+    String reversedField = getReversedWildcardField(fieldName);
+    if (reversedField == null) {
+      return null;
+    }
+    BytesRef analyzed = normalizeMultiTerm(fieldName, termText);
+    String pattern = analyzed.utf8ToString();
+    if (! shouldReverseWildcard(fieldName, pattern)) {
+      return null;
+    }
+    WildcardQuery wildcardQuery = new WildcardQuery(new Term(reversedField,
+        reverseWildcardPattern(fieldName, pattern)));
+    wildcardQuery.setRewriteMethod(getMultiTermRewriteMethod(reversedField));
+    SpanQuery spanQuery = wrapSpanMultiTerm(wildcardQuery);
+    if (reversedField.equals(fieldName)) {
+      return spanQuery;
+    }
+    return new FieldMaskingSpanQuery(spanQuery, fieldName);
+  }
+
+  /**
+   * @param fieldName field
+   * @return field that holds the reversed tokens of <code>fieldName</code> or <code>null</code>.
+   * By default, this is {@link SpanQueryParserConfig#getReversedWildcardField(String)}.
+   */
+  protected String getReversedWildcardField(String fieldName) {
+    return config.getReversedWildcardField(fieldName);
+  }
+
+  /**
+   * By default, a pattern is reversed if it starts with a wildcard and does not end with one.
+   *
+   * @param fieldName field
+   * @param pattern analyzed wildcard pattern
+   * @return whether to run the pattern against the reversed field
+   */
+  protected boolean shouldReverseWildcard(String fieldName, String pattern) {
+    List<String> units = wildcardUnits(pattern);
+    if (units.size() < 2 || ! isWildcard(units.get(0))) {
+      return false;
+    }
+    return ! isWildcard(units.get(units.size() - 1));
+  }
+
+  /**
+   * Reverses the code points of a wildcard pattern; an escaped code point
+   * keeps its escape in front of it.
+   *
+   * @param fieldName field
+   * @param pattern analyzed wildcard pattern
+   * @return pattern to run against the reversed field
+   */
+  protected String reverseWildcardPattern(String fieldName, String pattern) {
+    List<String> units = wildcardUnits(pattern);
+    StringBuilder sb = new StringBuilder(pattern.length());
+    for (int i = units.size() - 1; i >= 0; i--) {
+      sb.append(units.get(i));
+    }
+    return sb.toString();
+  }
+
+  private static boolean isWildcard(String unit) {
+    return unit.length() == 1 &&
+        (unit.charAt(0) == WildcardQuery.WILDCARD_STRING || unit.charAt(0) == WildcardQuery.WILDCARD_CHAR);
+  }
+
+  /**
+   * @return code points of the pattern, with an escaped code point kept with its escape
+   */
+  private static List<String> wildcardUnits(String pattern) {
+    List<String> units = new ArrayList<>();
+    int i = 0;
+    while (i < pattern.length()) {
+      int start = i;
+      if (pattern.charAt(i) == WildcardQuery.WILDCARD_ESCAPE && i + 1 < pattern.length()) {
+        i++;
+      }
+      i += Character.charCount(pattern.codePointAt(i));
+      units.add(pattern.substring(start, i));
+    }
+    return units;
+  }
+
   SpanQuery addBoostOrPositionRangeIfExists(SpanQuery spanQuery, SQPBoostableOrPositionRangeToken token) {
     if (spanQuery == null) {
       return spanQuery;
@@ -307,7 +425,7 @@ abstract class SpanQueryParserBase extends AnalyzingQueryParserBase {
   /**
    * Build what appears to be a simple single term query. If the analyzer breaks
    * it into multiple terms, treat that as a "phrase" or as an "or" depending on
-   * the value of {@link #autoGeneratePhraseQueries}.
+   * the value of {@link #getAutoGeneratePhraseQueries()}.
    *
    * Can return null!
 
@@ -319,9 +437,9 @@ abstract class SpanQueryParserBase extends AnalyzingQueryParserBase {
    */
   protected Query newFieldQuery(String fieldName, String termText, boolean quoted, int phraseSlop) {
     Analyzer analyzer = getAnalyzer(fieldName);
-
-    return createFieldQuery(analyzer, singleTermBooleanOperator, fieldName, termText,
-        (quoted || autoGeneratePhraseQueries), phraseSlop);
+    SpanQueryParserConfig config = this.config;
+    return createFieldQuery(analyzer, config.getSingleTermBooleanOperator(), fieldName, termText,
+        (quoted || config.getAutoGeneratePhraseQueries()), phraseSlop);
   }
 
   /**
@@ -374,8 +492,10 @@ abstract class SpanQueryParserBase extends AnalyzingQueryParserBase {
     }
     MultiTermQuery mtq = null;
     if (maxEdits > LevenshteinAutomata.MAXIMUM_SUPPORTED_DISTANCE) {
-      mtq = new SlowFuzzyQuery(new Term(fieldName, analyzed),
-          maxEdits, prefixLen, maxExpansions);
+      SlowFuzzyQuery slowFuzzyQuery = new SlowFuzzyQuery(new Term(fieldName, analyzed),
+          maxEdits, prefixLen, maxExpansions, transpositions);
+      slowFuzzyQuery.setUseQGramIndex(config.getFuzzyUseQGramIndex());
+      mtq = slowFuzzyQuery;
     } else {
       mtq = new FuzzyQuery(new Term(fieldName, analyzed),
           maxEdits, prefixLen, maxExpansions, transpositions);
@@ -430,7 +550,7 @@ abstract class SpanQueryParserBase extends AnalyzingQueryParserBase {
                                          Boolean inOrder) throws ParseException {
     if (clauses == null || clauses.size() == 0)
       return getEmptySpanQuery();
-    slop = (slop == null) ? defaultPhraseSlop : slop;
+    slop = (slop == null) ? getPhraseSlop() : slop;
     List<SpanQuery> nonEmpties = new LinkedList<>();
     //find first non-null and last non-null entry
     int start = 0;
@@ -481,6 +601,7 @@ abstract class SpanQueryParserBase extends AnalyzingQueryParserBase {
     //were removed
     slop += numIntermedStops;
 
+    int spanNearMaxDistance = getSpanNearMaxDistance();
     if (spanNearMaxDistance > -1 && slop > spanNearMaxDistance) {
       slop = spanNearMaxDistance;
     }
@@ -497,13 +618,13 @@ abstract class SpanQueryParserBase extends AnalyzingQueryParserBase {
   /**
    * This is meant to "fix" two cases that might be surprising to a
    * non-whitespace language speaker. If a user entered, e.g. "\u5927\u5B66"~3,
-   * and {@link #autoGeneratePhraseQueries} is set to true, then the parser
+   * and {@link #getAutoGeneratePhraseQueries()} is set to true, then the parser
    * would treat this recursively and yield [[\u5927\u5B66]]~3 by default. The user
    * probably meant: find those two characters within three words of each other,
    * not find those right next to each other and that hit has to be within three
    * words of nothing.
    * <p>
-   * If a user entered the same thing and {@link #autoGeneratePhraseQueries} is
+   * If a user entered the same thing and {@link #getAutoGeneratePhraseQueries()} is
    * set to false, then the parser would treat this as [(\u5927 \u5B66)]~3: find
    * one character or the other and then that hit has to be within three words
    * of nothing...not the desired outcome
@@ -546,6 +667,7 @@ abstract class SpanQueryParserBase extends AnalyzingQueryParserBase {
     pre = (pre == null) ? 0 : pre;
     post = (post == null) ? pre : post;
 
+    int spanNotNearMaxDistance = getSpanNotNearMaxDistance();
     if (spanNotNearMaxDistance > -1 && pre > spanNotNearMaxDistance) {
       pre = spanNotNearMaxDistance;
     }
@@ -586,7 +708,7 @@ abstract class SpanQueryParserBase extends AnalyzingQueryParserBase {
    * @return maximum distance allowed for a SpanNear query.  Can return negative values.
    */
   public int getSpanNearMaxDistance() {
-    return spanNearMaxDistance;
+    return config.getSpanNearMaxDistance();
   }
 
   /**
@@ -595,7 +717,7 @@ abstract class SpanQueryParserBase extends AnalyzingQueryParserBase {
    * there is no limitation on distances in SpanNear queries.
    */
   public void setSpanNearMaxDistance(int spanNearMaxDistance) {
-    this.spanNearMaxDistance = spanNearMaxDistance;
+    config = configBuilder().setSpanNearMaxDistance(spanNearMaxDistance).build();
   }
 
   /**
@@ -604,7 +726,7 @@ abstract class SpanQueryParserBase extends AnalyzingQueryParserBase {
    * Can return negative values.
    */
   public int getSpanNotNearMaxDistance() {
-    return spanNotNearMaxDistance;
+    return config.getSpanNotNearMaxDistance();
   }
 
   /**
@@ -613,57 +735,66 @@ abstract class SpanQueryParserBase extends AnalyzingQueryParserBase {
    * there is no limitation on distances in SpanNotNear queries.
    */
   public void setSpanNotNearMaxDistance(int spanNotNearMaxDistance) {
-    this.spanNotNearMaxDistance = spanNotNearMaxDistance;
+    config = configBuilder().setSpanNotNearMaxDistance(spanNotNearMaxDistance).build();
   }
 
   public boolean getAllowLeadingWildcard() {
-    return allowLeadingWildcard;
+    return config.getAllowLeadingWildcard();
   }
 
   public int getPhraseSlop() {
-    return defaultPhraseSlop;
+    return config.getPhraseSlop();
   }
 
   public void setPhraseSlop(int slop) {
-    defaultPhraseSlop = slop;
+    config = configBuilder().setPhraseSlop(slop).build();
   }
   public int getMaxExpansions() {
-    return maxExpansions;
+    return config.getMaxExpansions();
   }
   public void setMaxExpansions(int maxExpansions) {
-    this.maxExpansions = maxExpansions;
+    config = configBuilder().setMaxExpansions(maxExpansions).build();
   }
 
   public void setAutoGeneratePhraseQueries(boolean autoGeneratePhraseQueries) {
-    this.autoGeneratePhraseQueries = autoGeneratePhraseQueries;
+    config = configBuilder().setAutoGeneratePhraseQueries(autoGeneratePhraseQueries).build();
   }
 
   public boolean getAutoGeneratePhraseQueries() {
-    return autoGeneratePhraseQueries;
+    return config.getAutoGeneratePhraseQueries();
   }
 
   public void setAllowLeadingWildcard(boolean allowLeadingWildcard) {
-    this.allowLeadingWildcard = allowLeadingWildcard;
+    config = configBuilder().setAllowLeadingWildcard(allowLeadingWildcard).build();
   }
 
-  public int getFuzzyPrefixLength() { return fuzzyPrefixLength; }
-  public void setFuzzyPrefixLength(int fuzzyPrefixLength) { this.fuzzyPrefixLength = fuzzyPrefixLength; }
+  public int getFuzzyPrefixLength() { return config.getFuzzyPrefixLength(); }
+  public void setFuzzyPrefixLength(int fuzzyPrefixLength) {
+    config = configBuilder().setFuzzyPrefixLength(fuzzyPrefixLength).build();
+  }
 
   public boolean getFuzzyIsTranspositions() {
-    return fuzzyIsTranspositions;
+    return config.getFuzzyIsTranspositions();
+  }
+
+  public QueryParser.Operator getDefaultOperator() {
+    return config.getDefaultOperator();
   }
 
   public void setDefaultOperator(QueryParser.Operator defaultOperator) {
-    this.defaultOperator = defaultOperator;
-    this.singleTermBooleanOperator = (defaultOperator == QueryParser.Operator.OR) ?
-        BooleanClause.Occur.SHOULD : BooleanClause.Occur.MUST;
+    config = configBuilder().setDefaultOperator(defaultOperator).build();
   }
 
   public int getFuzzyMaxEdits() {
-    return fuzzyMaxEdits;
+    return config.getFuzzyMaxEdits();
   }
   public void setFuzzyMaxEdits(int fuzzyMaxEdits) {
-    this.fuzzyMaxEdits = fuzzyMaxEdits;
+    config = configBuilder().setFuzzyMaxEdits(fuzzyMaxEdits).build();
   }
-}
 
+  @Override
+  protected void addParseSettings(List<Object> settings) {
+    super.addParseSettings(settings);
+    settings.add(config);
+  }
+}
@@ -0,0 +1,424 @@
+package org.tallison.lucene.queryparser.spans;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.FuzzyQuery;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.spans.SpanMultiTermQueryWrapper;
+
+/**
+ * Immutable options for {@link SpanQueryParser} and {@link SpanOnlyParser}.
+ * <p>
+ * A config is built once with a {@link Builder} and can be shared.  A parser
+ * that is built with a config and is not modified afterwards can be used
+ * by many threads at once; all state for a single parse lives in that parse's
+ * own lexer and token list.
+ */
+public final class SpanQueryParserConfig {
+
+  /**
+   * Config with the default options
+   */
+  public static final SpanQueryParserConfig DEFAULT = new Builder().build();
+
+  private final boolean allowLeadingWildcard;
+  private final boolean autoGeneratePhraseQueries;
+  private final int phraseSlop;
+  private final MultiTermQuery.RewriteMethod multiTermRewriteMethod;
+  private final QueryParser.Operator defaultOperator;
+  private final int spanNearMaxDistance;
+  private final int spanNotNearMaxDistance;
+  private final int maxExpansions;
+  private final int fuzzyMaxEdits;
+  private final int fuzzyPrefixLength;
+  private final boolean fuzzyIsTranspositions;
+  private final boolean fuzzyUseQGramIndex;
+  private final SpanMultiTermQueryWrapper.SpanRewriteMethod spanMultiTermRewriteMethod;
+  private final Map<String, String> reversedWildcardFields;
+  private final boolean optimizeSpanQueries;
+  private final boolean convertSpanFreeQueries;
+  private final boolean analyzeRangeTerms;
+
+  private SpanQueryParserConfig(Builder builder) {
+    this.allowLeadingWildcard = builder.allowLeadingWildcard;
+    this.autoGeneratePhraseQueries = builder.autoGeneratePhraseQueries;
+    this.phraseSlop = builder.phraseSlop;
+    this.multiTermRewriteMethod = builder.multiTermRewriteMethod;
+    this.defaultOperator = builder.defaultOperator;
+    this.spanNearMaxDistance = builder.spanNearMaxDistance;
+    this.spanNotNearMaxDistance = builder.spanNotNearMaxDistance;
+    this.maxExpansions = builder.maxExpansions;
+    this.fuzzyMaxEdits = builder.fuzzyMaxEdits;
+    this.fuzzyPrefixLength = builder.fuzzyPrefixLength;
+    this.fuzzyIsTranspositions = builder.fuzzyIsTranspositions;
+    this.fuzzyUseQGramIndex = builder.fuzzyUseQGramIndex;
+    this.spanMultiTermRewriteMethod = builder.spanMultiTermRewriteMethod;
+    this.reversedWildcardFields = Collections.unmodifiableMap(new HashMap<>(builder.reversedWildcardFields));
+    this.optimizeSpanQueries = builder.optimizeSpanQueries;
+    this.convertSpanFreeQueries = builder.convertSpanFreeQueries;
+    this.analyzeRangeTerms = builder.analyzeRangeTerms;
+  }
+
+  public boolean getAllowLeadingWildcard() {
+    return allowLeadingWildcard;
+  }
+
+  public boolean getAutoGeneratePhraseQueries() {
+    return autoGeneratePhraseQueries;
+  }
+
+  public int getPhraseSlop() {
+    return phraseSlop;
+  }
+
+  public MultiTermQuery.RewriteMethod getMultiTermRewriteMethod() {
+    return multiTermRewriteMethod;
+  }
+
+  public QueryParser.Operator getDefaultOperator() {
+    return defaultOperator;
+  }
+
+  /**
+   *
+   * @return occur for the clauses of a single term that the analyzer
+   * splits into several terms, based on the default operator
+   */
+  public BooleanClause.Occur getSingleTermBooleanOperator() {
+    return (defaultOperator == QueryParser.Operator.OR) ?
+        BooleanClause.Occur.SHOULD : BooleanClause.Occur.MUST;
+  }
+
+  /**
+   *
+   * @return maximum distance allowed for a SpanNear query.  Can return negative values.
+   */
+  public int getSpanNearMaxDistance() {
+    return spanNearMaxDistance;
+  }
+
+  /**
+   *
+   * @return maximum distance allowed for a SpanNotNear query.
+   * Can return negative values.
+   */
+  public int getSpanNotNearMaxDistance() {
+    return spanNotNearMaxDistance;
+  }
+
+  public int getMaxExpansions() {
+    return maxExpansions;
+  }
+
+  public int getFuzzyMaxEdits() {
+    return fuzzyMaxEdits;
+  }
+
+  public int getFuzzyPrefixLength() {
+    return fuzzyPrefixLength;
+  }
+
+  public boolean getFuzzyIsTranspositions() {
+    return fuzzyIsTranspositions;
+  }
+
+  /**
+   * @return whether fuzzy queries that are beyond the automaton's edit distance
+   * get their candidates from a {@link org.tallison.lucene.sandbox.queries.QGramTermIndex}
+   */
+  public boolean getFuzzyUseQGramIndex() {
+    return fuzzyUseQGramIndex;
+  }
+
+  /**
+   * @return rewrite method for multiterm terminals within spans, or <code>null</code>
+   * if {@link SpanMultiTermQueryWrapper} should choose one from {@link #getMultiTermRewriteMethod()}
+   */
+  public SpanMultiTermQueryWrapper.SpanRewriteMethod getSpanMultiTermRewriteMethod() {
+    return spanMultiTermRewriteMethod;
+  }
+
+  /**
+   * @param field field
+   * @return companion field that holds the reversed tokens of <code>field</code>,
+   * or <code>null</code> if there is none
+   */
+  public String getReversedWildcardField(String field) {
+    return reversedWildcardFields.get(field);
+  }
+
+  /**
+   * @return whether parsed queries are simplified with {@link SpanQueryOptimizer#optimize(org.apache.lucene.search.Query)}
+   */
+  public boolean getOptimizeSpanQueries() {
+    return optimizeSpanQueries;
+  }
+
+  /**
+   * @return whether {@link SpanQueryParser} converts the parts of its queries that
+   * don't need spans with {@link SpanFreeQueryConverter#convert(org.apache.lucene.search.Query)};
+   * {@link SpanOnlyParser} always returns spans and ignores this
+   */
+  public boolean getConvertSpanFreeQueries() {
+    return convertSpanFreeQueries;
+  }
+
+  public boolean getAnalyzeRangeTerms() {
+    return analyzeRangeTerms;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    SpanQueryParserConfig other = (SpanQueryParserConfig) o;
+    return allowLeadingWildcard == other.allowLeadingWildcard &&
+        autoGeneratePhraseQueries == other.autoGeneratePhraseQueries &&
+        phraseSlop == other.phraseSlop &&
+        Objects.equals(multiTermRewriteMethod, other.multiTermRewriteMethod) &&
+        defaultOperator == other.defaultOperator &&
+        spanNearMaxDistance == other.spanNearMaxDistance &&
+        spanNotNearMaxDistance == other.spanNotNearMaxDistance &&
+        maxExpansions == other.maxExpansions &&
+        fuzzyMaxEdits == other.fuzzyMaxEdits &&
+        fuzzyPrefixLength == other.fuzzyPrefixLength &&
+        fuzzyIsTranspositions == other.fuzzyIsTranspositions &&
+        fuzzyUseQGramIndex == other.fuzzyUseQGramIndex &&
+        Objects.equals(spanMultiTermRewriteMethod, other.spanMultiTermRewriteMethod) &&
+        reversedWildcardFields.equals(other.reversedWildcardFields) &&
+        optimizeSpanQueries == other.optimizeSpanQueries &&
+        convertSpanFreeQueries == other.convertSpanFreeQueries &&
+        analyzeRangeTerms == other.analyzeRangeTerms;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(allowLeadingWildcard, autoGeneratePhraseQueries, phraseSlop,
+        multiTermRewriteMethod, defaultOperator, spanNearMaxDistance, spanNotNearMaxDistance,
+        maxExpansions, fuzzyMaxEdits, fuzzyPrefixLength, fuzzyIsTranspositions, fuzzyUseQGramIndex,
+        spanMultiTermRewriteMethod, reversedWildcardFields, optimizeSpanQueries, convertSpanFreeQueries,
+        analyzeRangeTerms);
+  }
+
+  @Override
+  public String toString() {
+    return "SpanQueryParserConfig{" +
+        "allowLeadingWildcard=" + allowLeadingWildcard +
+        ", autoGeneratePhraseQueries=" + autoGeneratePhraseQueries +
+        ", phraseSlop=" + phraseSlop +
+        ", multiTermRewriteMethod=" + multiTermRewriteMethod +
+        ", defaultOperator=" + defaultOperator +
+        ", spanNearMaxDistance=" + spanNearMaxDistance +
+        ", spanNotNearMaxDistance=" + spanNotNearMaxDistance +
+        ", maxExpansions=" + maxExpansions +
+        ", fuzzyMaxEdits=" + fuzzyMaxEdits +
+        ", fuzzyPrefixLength=" + fuzzyPrefixLength +
+        ", fuzzyIsTranspositions=" + fuzzyIsTranspositions +
+        ", fuzzyUseQGramIndex=" + fuzzyUseQGramIndex +
+        ", spanMultiTermRewriteMethod=" + spanMultiTermRewriteMethod +
+        ", reversedWildcardFields=" + reversedWildcardFields +
+        ", optimizeSpanQueries=" + optimizeSpanQueries +
+        ", convertSpanFreeQueries=" + convertSpanFreeQueries +
+        ", analyzeRangeTerms=" + analyzeRangeTerms +
+        '}';
+  }
+
+  /**
+   * Builder for {@link SpanQueryParserConfig}
+   */
+  public static class Builder {
+    private boolean allowLeadingWildcard = false;
+    private boolean autoGeneratePhraseQueries = false;
+    private int phraseSlop = 0;
+    private MultiTermQuery.RewriteMethod multiTermRewriteMethod = MultiTermQuery.CONSTANT_SCORE_REWRITE;
+    private QueryParser.Operator defaultOperator = QueryParser.Operator.OR;
+    private int spanNearMaxDistance = 100;
+    private int spanNotNearMaxDistance = 50;
+    private int maxExpansions = FuzzyQuery.defaultMaxExpansions;
+    private int fuzzyMaxEdits = FuzzyQuery.defaultMaxEdits;
+    private int fuzzyPrefixLength = FuzzyQuery.defaultPrefixLength;
+    private boolean fuzzyIsTranspositions = FuzzyQuery.defaultTranspositions;
+    private boolean fuzzyUseQGramIndex = false;
+    private SpanMultiTermQueryWrapper.SpanRewriteMethod spanMultiTermRewriteMethod = null;
+    private final Map<String, String> reversedWildcardFields = new HashMap<>();
+    private boolean optimizeSpanQueries = false;
+    private boolean convertSpanFreeQueries = false;
+    private boolean analyzeRangeTerms = true;
+
+    /**
+     * Starts with the default options
+     */
+    public Builder() {
+    }
+
+    /**
+     * Starts with the options of an existing config
+     *
+     * @param config config to copy
+     */
+    public Builder(SpanQueryParserConfig config) {
+      this.allowLeadingWildcard = config.allowLeadingWildcard;
+      this.autoGeneratePhraseQueries = config.autoGeneratePhraseQueries;
+      this.phraseSlop = config.phraseSlop;
+      this.multiTermRewriteMethod = config.multiTermRewriteMethod;
+      this.defaultOperator = config.defaultOperator;
+      this.spanNearMaxDistance = config.spanNearMaxDistance;
+      this.spanNotNearMaxDistance = config.spanNotNearMaxDistance;
+      this.maxExpansions = config.maxExpansions;
+      this.fuzzyMaxEdits = config.fuzzyMaxEdits;
+      this.fuzzyPrefixLength = config.fuzzyPrefixLength;
+      this.fuzzyIsTranspositions = config.fuzzyIsTranspositions;
+      this.fuzzyUseQGramIndex = config.fuzzyUseQGramIndex;
+      this.spanMultiTermRewriteMethod = config.spanMultiTermRewriteMethod;
+      this.reversedWildcardFields.putAll(config.reversedWildcardFields);
+      this.optimizeSpanQueries = config.optimizeSpanQueries;
+      this.convertSpanFreeQueries = config.convertSpanFreeQueries;
+      this.analyzeRangeTerms = config.analyzeRangeTerms;
+    }
+
+    public Builder setAllowLeadingWildcard(boolean allowLeadingWildcard) {
+      this.allowLeadingWildcard = allowLeadingWildcard;
+      return this;
+    }
+
+    public Builder setAutoGeneratePhraseQueries(boolean autoGeneratePhraseQueries) {
+      this.autoGeneratePhraseQueries = autoGeneratePhraseQueries;
+      return this;
+    }
+
+    public Builder setPhraseSlop(int phraseSlop) {
+      this.phraseSlop = phraseSlop;
+      return this;
+    }
+
+    public Builder setMultiTermRewriteMethod(MultiTermQuery.RewriteMethod multiTermRewriteMethod) {
+      this.multiTermRewriteMethod = multiTermRewriteMethod;
+      return this;
+    }
+
+    public Builder setDefaultOperator(QueryParser.Operator defaultOperator) {
+      this.defaultOperator = defaultOperator;
+      return this;
+    }
+
+    /**
+     *
+     * @param spanNearMaxDistance maximum distance for a SpanNear (phrase) query. If &lt; 0,
+     * there is no limitation on distances in SpanNear queries.
+     * @return this
+     */
+    public Builder setSpanNearMaxDistance(int spanNearMaxDistance) {
+      this.spanNearMaxDistance = spanNearMaxDistance;
+      return this;
+    }
+
+    /**
+     *
+     * @param spanNotNearMaxDistance maximum distance for the previous and post distance for a SpanNotNear query. If &lt; 0,
+     * there is no limitation on distances in SpanNotNear queries.
+     * @return this
+     */
+    public Builder setSpanNotNearMaxDistance(int spanNotNearMaxDistance) {
+      this.spanNotNearMaxDistance = spanNotNearMaxDistance;
+      return this;
+    }
+
+    public Builder setMaxExpansions(int maxExpansions) {
+      this.maxExpansions = maxExpansions;
+      return this;
+    }
+
+    public Builder setFuzzyMaxEdits(int fuzzyMaxEdits) {
+      this.fuzzyMaxEdits = fuzzyMaxEdits;
+      return this;
+    }
+
+    public Builder setFuzzyPrefixLength(int fuzzyPrefixLength) {
+      this.fuzzyPrefixLength = fuzzyPrefixLength;
+      return this;
+    }
+
+    public Builder setFuzzyIsTranspositions(boolean fuzzyIsTranspositions) {
+      this.fuzzyIsTranspositions = fuzzyIsTranspositions;
+      return this;
+    }
+
+    public Builder setFuzzyUseQGramIndex(boolean fuzzyUseQGramIndex) {
+      this.fuzzyUseQGramIndex = fuzzyUseQGramIndex;
+      return this;
+    }
+
+    /**
+     * @param spanMultiTermRewriteMethod rewrite method for multiterm terminals
+     *                                   within spans, e.g. a {@link CostAwareSpanRewriteMethod}
+     * @return this
+     */
+    public Builder setSpanMultiTermRewriteMethod(SpanMultiTermQueryWrapper.SpanRewriteMethod spanMultiTermRewriteMethod) {
+      this.spanMultiTermRewriteMethod = spanMultiTermRewriteMethod;
+      return this;
+    }
+
+    /**
+     * Sets a companion field that holds the same tokens as <code>field</code>, at the same
+     * positions, but with each token reversed (e.g. with a ReverseStringFilter).
+     * Leading wildcards on <code>field</code> within spans are then run as trailing
+     * wildcards on the companion field.
+     *
+     * @param field         field
+     * @param reversedField companion field or <code>null</code> to remove it
+     * @return this
+     */
+    public Builder setReversedWildcardField(String field, String reversedField) {
+      if (reversedField == null) {
+        reversedWildcardFields.remove(field);
+      } else {
+        reversedWildcardFields.put(field, reversedField);
+      }
+      return this;
+    }
+
+    public Builder setOptimizeSpanQueries(boolean optimizeSpanQueries) {
+      this.optimizeSpanQueries = optimizeSpanQueries;
+      return this;
+    }
+
+    public Builder setConvertSpanFreeQueries(boolean convertSpanFreeQueries) {
+      this.convertSpanFreeQueries = convertSpanFreeQueries;
+      return this;
+    }
+
+    public Builder setAnalyzeRangeTerms(boolean analyzeRangeTerms) {
+      this.analyzeRangeTerms = analyzeRangeTerms;
+      return this;
+    }
+
+    public SpanQueryParserConfig build() {
+      return new SpanQueryParserConfig(this);
+    }
+  }
+}
@@ -0,0 +1,227 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tallison.lucene.sandbox.queries;
+
+import java.util.Arrays;
+
+/**
+ * Bit-parallel edit distance between a fixed pattern and many targets, after
+ * Myers (1999) as reformulated by Hyyr&ouml; (2001).  Each column of the
+ * dynamic programming matrix is held as vertical delta bit vectors, so a target
+ * code point costs a handful of word operations per 64 pattern code points
+ * instead of a loop over the pattern.  Patterns longer than 64 code points are
+ * split into 64-bit blocks with the carries propagated between them.
+ * <p>
+ * With transpositions, this computes the optimal string alignment distance
+ * (Levenshtein plus transpositions of adjacent code points) with
+ * Hyyr&ouml;'s (2002) extension.
+ * <p>
+ * Not thread safe: the per-block state is reused across calls.
+ */
+final class BitParallelLevenshtein {
+
+    /**
+     * Returned by {@link #distance(int[], int, int, int)} when the distance
+     * is greater than the maximum distance
+     */
+    static final int TOO_FAR = Integer.MIN_VALUE;
+
+    private final int m;
+    private final int blocks;
+    private final boolean transpositions;
+    //bit of the last pattern code point in the last block
+    private final long topBit;
+
+    //open addressed map of pattern code point -> row in peq; row 0 is all zeros
+    private final int[] keys;
+    private final int[] rows;
+    private final int mask;
+    //match vectors: for each distinct pattern code point, one long per block
+    private final long[] peq;
+
+    //per block state for patterns longer than 64
+    private final long[] vps;
+    private final long[] vns;
+    private final long[] d0s;
+
+    /**
+     * @param pattern        code points
+     * @param offset         offset into pattern
+     * @param length         number of code points in the pattern
+     * @param transpositions whether a transposition of adjacent code points counts as one edit
+     */
+    BitParallelLevenshtein(int[] pattern, int offset, int length, boolean transpositions) {
+        this.m = length;
+        this.blocks = Math.max(1, (length + 63) >>> 6);
+        this.transpositions = transpositions;
+        this.topBit = (length == 0) ? 0 : 1L << ((length - 1) & 63);
+
+        int size = Integer.highestOneBit(Math.max(2, length) * 2 - 1) << 1;
+        this.keys = new int[size];
+        this.rows = new int[size];
+        this.mask = size - 1;
+        Arrays.fill(keys, -1);
+        long[] tmp = new long[(length + 1) * blocks];
+        int numRows = 1;
+        for (int i = 0; i < length; i++) {
+            int cp = pattern[offset + i];
+            int slot = slot(cp);
+            if (keys[slot] == -1) {
+                keys[slot] = cp;
+                rows[slot] = numRows++;
+            }
+            tmp[rows[slot] * blocks + (i >>> 6)] |= 1L << (i & 63);
+        }
+        this.peq = Arrays.copyOf(tmp, numRows * blocks);
+        if (blocks > 1) {
+            vps = new long[blocks];
+            vns = new long[blocks];
+            d0s = new long[blocks];
+        } else {
+            vps = vns = d0s = null;
+        }
+    }
+
+    private int slot(int cp) {
+        int slot = (cp * 0x9E3779B9) & mask;
+        while (keys[slot] != -1 && keys[slot] != cp) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    //offset into peq of the code point's match vectors
+    private int row(int cp) {
+        int slot = (cp * 0x9E3779B9) & mask;
+        while (true) {
+            int key = keys[slot];
+            if (key == cp) {
+                return rows[slot] * blocks;
+            } else if (key == -1) {
+                return 0;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * @param target      code points
+     * @param offset      offset into target
+     * @param n           number of code points in the target
+     * @param maxDistance maximum distance of interest
+     * @return the distance or {@link #TOO_FAR} if it is greater than <code>maxDistance</code>
+     */
+    int distance(int[] target, int offset, int n, int maxDistance) {
+        if (m == 0) {
+            return n <= maxDistance ? n : TOO_FAR;
+        } else if (n == 0) {
+            return m <= maxDistance ? m : TOO_FAR;
+        } else if (Math.abs(m - n) > maxDistance) {
+            //just adding the characters of the longer one is too many edits
+            return TOO_FAR;
+        }
+        return (blocks == 1) ? distanceSingle(target, offset, n, maxDistance)
+            : distanceBlocked(target, offset, n, maxDistance);
+    }
+
+    private int distanceSingle(int[] target, int offset, int n, int maxDistance) {
+        long vp = -1L;
+        long vn = 0L;
+        long d0 = 0L;
+        long pmPrev = 0L;
+        int score = m;
+        for (int j = 0; j < n; j++) {
+            long pm = peq[row(target[offset + j])];
+            long tc = transpositions ? (((~d0) & pm) << 1) & pmPrev : 0L;
+            d0 = (((pm & vp) + vp) ^ vp) | pm | vn | tc;
+            long hp = vn | ~(d0 | vp);
+            long hn = vp & d0;
+            if ((hp & topBit) != 0) {
+                score++;
+            } else if ((hn & topBit) != 0) {
+                score--;
+            }
+            //each remaining target code point can lower the score by at most one
+            if (score - (n - 1 - j) > maxDistance) {
+                return TOO_FAR;
+            }
+            hp = (hp << 1) | 1L;
+            hn = hn << 1;
+            vp = hn | ~(d0 | hp);
+            vn = hp & d0;
+            pmPrev = pm;
+        }
+        return score;
+    }
+
+    private int distanceBlocked(int[] target, int offset, int n, int maxDistance) {
+        Arrays.fill(vps, -1L);
+        Arrays.fill(vns, 0L);
+        Arrays.fill(d0s, 0L);
+        int last = blocks - 1;
+        int prevRow = 0;
+        int score = m;
+        for (int j = 0; j < n; j++) {
+            int row = row(target[offset + j]);
+            long addCarry = 0L;
+            long hpCarry = 1L;
+            long hnCarry = 0L;
+            long tcCarry = 0L;
+            for (int b = 0; b < blocks; b++) {
+                long pm = peq[row + b];
+                long vp = vps[b];
+                long vn = vns[b];
+                long x = pm & vp;
+                long sum = x + vp;
+                long carryOut = (Long.compareUnsigned(sum, x) < 0) ? 1L : 0L;
+                if (addCarry != 0 && ++sum == 0L) {
+                    carryOut = 1L;
+                }
+                addCarry = carryOut;
+                long d0 = (sum ^ vp) | pm | vn;
+                if (transpositions) {
+                    long t = (~d0s[b]) & pm;
+                    d0 |= ((t << 1) | tcCarry) & peq[prevRow + b];
+                    tcCarry = t >>> 63;
+                }
+                long hp = vn | ~(d0 | vp);
+                long hn = vp & d0;
+                if (b == last) {
+                    if ((hp & topBit) != 0) {
+                        score++;
+                    } else if ((hn & topBit) != 0) {
+                        score--;
+                    }
+                }
+                long hpOut = hp >>> 63;
+                long hnOut = hn >>> 63;
+                hp = (hp << 1) | hpCarry;
+                hn = (hn << 1) | hnCarry;
+                hpCarry = hpOut;
+                hnCarry = hnOut;
+                vps[b] = hn | ~(d0 | hp);
+                vns[b] = hp & d0;
+                d0s[b] = d0;
+            }
+            if (score - (n - 1 - j) > maxDistance) {
+                return TOO_FAR;
+            }
+            prevRow = row;
+        }
+        return score;
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tallison.lucene.sandbox.queries;
+
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.CloseableThreadLocal;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Side index over the terms of one field of one segment that maps each
+ * q-gram of code points onto the sorted ordinals of the terms that contain it.
+ * <p>
+ * A term within k edits of a query term of n code points shares at least
+ * <code>(n - q + 1) - k * q</code> of the query's q-grams (counted with
+ * multiplicity), so {@link #candidates(int[], int, int, int, boolean)} only has to
+ * merge the postings of the query's q-grams to find every term that could
+ * match.  A transposition of adjacent code points can destroy <code>q + 1</code>
+ * grams, so the bound is lowered accordingly when transpositions count as a
+ * single edit.  The candidates still have to be verified with the real distance.
+ * <p>
+ * Indices are built lazily by {@link #get(Terms, int)} and cached per
+ * {@link Terms} instance.  A segment reader hands out the same instance for
+ * the life of its core, so the index is shared by every query and every
+ * reopened reader that shares the core, and it is dropped once the core is
+ * closed and collected.  Terms that are wrapped by a
+ * {@link FilterLeafReader.FilterTerms} are usually wrapped anew on every call,
+ * so they are not indexed at all, and neither are {@link MultiTerms}, which
+ * are merged anew on every call.
+ */
+public final class QGramTermIndex implements Accountable {
+
+    public static final int DEFAULT_Q = 2;
+
+    /**
+     * Code points are packed into a long, 21 bits each.
+     */
+    public static final int MAX_Q = 3;
+
+    /**
+     * If more than this fraction of the dictionary survives the count filter,
+     * seeking to each candidate is slower than scanning every term.
+     */
+    private static final int MAX_CANDIDATE_FRACTION_SHIFT = 3;
+
+    private static final Map<Terms, QGramTermIndex[]> CACHE = new WeakHashMap<>();
+
+    private final int q;
+    private final int numTerms;
+    //term bytes, in term order
+    private final byte[] termBytes;
+    private final int[] termStarts;
+    //open addressing from gram to gram id
+    private final long[] gramKeys;
+    private final int[] gramIds;
+    private final int gramMask;
+    //postings of gram id i are postings[postingStarts[i]] .. postings[postingStarts[i+1]-1];
+    //an ordinal is repeated once for each time that the gram occurs in the term
+    private final int[] postingStarts;
+    private final int[] postings;
+    //the index is shared by concurrent queries, so each thread gets its own counts
+    private final CloseableThreadLocal<Accumulator> accumulators = new CloseableThreadLocal<>();
+
+    /**
+     * Returns the cached index for <code>terms</code>, building it if this is the first request.
+     *
+     * @param terms terms of one field of one segment
+     * @param q     length of the grams, from 1 to {@link #MAX_Q}
+     * @return the index, or <code>null</code> if <code>terms</code> cannot be indexed
+     * @throws IOException if encountered while reading the terms
+     */
+    public static QGramTermIndex get(Terms terms, int q) throws IOException {
+        checkQ(q);
+        if (terms instanceof FilterLeafReader.FilterTerms || terms instanceof MultiTerms
+                || terms.size() > Integer.MAX_VALUE) {
+            return null;
+        }
+        QGramTermIndex[] indices;
+        synchronized (CACHE) {
+            indices = CACHE.get(terms);
+            if (indices == null) {
+                indices = new QGramTermIndex[MAX_Q + 1];
+                CACHE.put(terms, indices);
+            }
+        }
+        //build outside of the cache's lock so that other segments are not blocked
+        synchronized (indices) {
+            if (indices[q] == null) {
+                indices[q] = new QGramTermIndex(terms, q);
+            }
+            return indices[q];
+        }
+    }
+
+    /**
+     * Builds an index that is not cached.
+     *
+     * @param terms terms to index
+     * @param q     length of the grams, from 1 to {@link #MAX_Q}
+     * @throws IOException if encountered while reading the terms
+     */
+    public QGramTermIndex(Terms terms, int q) throws IOException {
+        checkQ(q);
+        this.q = q;
+        IntsRefBuilder utf32 = new IntsRefBuilder();
+        GramIdMap gramIdMap = new GramIdMap();
+        int[] gramCounts = new int[16];
+        byte[] bytes = new byte[1024];
+        int[] starts = new int[65];
+        int ord = 0;
+        int bytesUpto = 0;
+
+        //first pass: copy the terms and count each gram's postings
+        TermsEnum termsEnum = terms.iterator();
+        for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+            if (bytesUpto + term.length < 0) {
+                throw new IllegalStateException("terms are too large to index");
+            }
+            bytes = ArrayUtil.grow(bytes, bytesUpto + term.length);
+            System.arraycopy(term.bytes, term.offset, bytes, bytesUpto, term.length);
+            starts = ArrayUtil.grow(starts, ord + 2);
+            starts[ord] = bytesUpto;
+            bytesUpto += term.length;
+            ord++;
+
+            utf32.copyUTF8Bytes(term);
+            int[] cps = utf32.ints();
+            for (int i = 0; i + q <= utf32.length(); i++) {
+                int id = gramIdMap.add(key(cps, i, q));
+                gramCounts = ArrayUtil.grow(gramCounts, id + 1);
+                gramCounts[id]++;
+            }
+        }
+        starts[ord] = bytesUpto;
+        this.numTerms = ord;
+        this.termBytes = ArrayUtil.copyOfSubArray(bytes, 0, bytesUpto);
+        this.termStarts = ArrayUtil.copyOfSubArray(starts, 0, ord + 1);
+
+        int numGrams = gramIdMap.size;
+        this.postingStarts = new int[numGrams + 1];
+        for (int i = 0; i < numGrams; i++) {
+            postingStarts[i + 1] = postingStarts[i] + gramCounts[i];
+        }
+        this.postings = new int[postingStarts[numGrams]];
+
+        //second pass: ordinals are visited in order, so each gram's postings come out sorted
+        int[] upto = ArrayUtil.copyOfSubArray(postingStarts, 0, numGrams);
+        BytesRef term = new BytesRef();
+        for (int i = 0; i < numTerms; i++) {
+            utf32.copyUTF8Bytes(term(i, term));
+            int[] cps = utf32.ints();
+            for (int j = 0; j + q <= utf32.length(); j++) {
+                int id = gramIdMap.get(key(cps, j, q));
+                postings[upto[id]++] = i;
+            }
+        }
+        this.gramKeys = gramIdMap.keys;
+        this.gramIds = gramIdMap.ids;
+        this.gramMask = gramIdMap.mask;
+    }
+
+    /**
+     * Runs the count filter for a query term.
+     *
+     * @param query    code points of the query term
+     * @param offset   offset of the first code point to use
+     * @param length   number of code points to use
+     * @param maxEdits maximum edit distance
+     * @param transpositions whether a transposition counts as a single edit
+     * @return sorted ordinals of the terms that might be within <code>maxEdits</code>
+     * of the query, or <code>null</code> if the filter would not rule out enough terms
+     * to be worth using
+     */
+    public int[] candidates(int[] query, int offset, int length, int maxEdits, boolean transpositions) {
+        final int threshold = (length - q + 1) - maxEdits * (transpositions ? q + 1 : q);
+        if (threshold <= 0 || numTerms == 0) {
+            return null;
+        }
+        final int maxCandidates = numTerms >>> MAX_CANDIDATE_FRACTION_SHIFT;
+
+        long[] queryGrams = new long[length - q + 1];
+        for (int i = 0; i < queryGrams.length; i++) {
+            queryGrams[i] = key(query, offset + i, q);
+        }
+        Arrays.sort(queryGrams);
+
+        Accumulator acc = accumulators.get();
+        if (acc == null) {
+            acc = new Accumulator(numTerms);
+            accumulators.set(acc);
+        }
+        try {
+            return candidates(queryGrams, threshold, maxCandidates, acc);
+        } finally {
+            acc.clear();
+        }
+    }
+
+    private int[] candidates(long[] queryGrams, int threshold, int maxCandidates, Accumulator acc) {
+        final int[] counts = acc.counts;
+        for (int i = 0; i < queryGrams.length; ) {
+            int end = i + 1;
+            while (end < queryGrams.length && queryGrams[end] == queryGrams[i]) {
+                end++;
+            }
+            final int queryCount = end - i;
+            final int id = lookup(queryGrams[i]);
+            i = end;
+            if (id < 0) {
+                continue;
+            }
+            //shared occurrences of a gram are the minimum of the two counts
+            for (int p = postingStarts[id]; p < postingStarts[id + 1]; ) {
+                final int ord = postings[p];
+                int termCount = 0;
+                while (p < postingStarts[id + 1] && postings[p] == ord) {
+                    termCount++;
+                    p++;
+                }
+                if (counts[ord] == 0) {
+                    acc.touch(ord);
+                }
+                counts[ord] += Math.min(queryCount, termCount);
+            }
+        }
+
+        int[] result = new int[16];
+        int numCandidates = 0;
+        for (int i = 0; i < acc.numTouched; i++) {
+            final int ord = acc.touched[i];
+            if (counts[ord] >= threshold) {
+                if (numCandidates == maxCandidates) {
+                    return null;
+                }
+                result = ArrayUtil.grow(result, numCandidates + 1);
+                result[numCandidates++] = ord;
+            }
+        }
+        Arrays.sort(result, 0, numCandidates);
+        return ArrayUtil.copyOfSubArray(result, 0, numCandidates);
+    }
+
+    /**
+     * @param ord  term ordinal
+     * @param term spare to point at the term's bytes
+     * @return <code>term</code>
+     */
+    public BytesRef term(int ord, BytesRef term) {
+        term.bytes = termBytes;
+        term.offset = termStarts[ord];
+        term.length = termStarts[ord + 1] - termStarts[ord];
+        return term;
+    }
+
+    /**
+     * @return number of terms in the index
+     */
+    public int getNumTerms() {
+        return numTerms;
+    }
+
+    /**
+     * @return length of the grams
+     */
+    public int getQ() {
+        return q;
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        return RamUsageEstimator.sizeOf(termBytes) + RamUsageEstimator.sizeOf(termStarts)
+                + RamUsageEstimator.sizeOf(gramKeys) + RamUsageEstimator.sizeOf(gramIds)
+                + RamUsageEstimator.sizeOf(postingStarts) + RamUsageEstimator.sizeOf(postings);
+    }
+
+    private int lookup(long key) {
+        int slot = GramIdMap.hash(key) & gramMask;
+        while (gramIds[slot] != -1) {
+            if (gramKeys[slot] == key) {
+                return gramIds[slot];
+            }
+            slot = (slot + 1) & gramMask;
+        }
+        return -1;
+    }
+
+    private static long key(int[] cps, int offset, int q) {
+        long key = 0;
+        for (int i = 0; i < q; i++) {
+            key = (key << 21) | cps[offset + i];
+        }
+        return key;
+    }
+
+    private static void checkQ(int q) {
+        if (q < 1 || q > MAX_Q) {
+            throw new IllegalArgumentException("q must be between 1 and " + MAX_Q + ": " + q);
+        }
+    }
+
+    /**
+     * Gram counts of one thread's query.  Only the entries of the terms that
+     * were touched are cleared after a query, so a query costs time in the
+     * number of postings that it merges rather than in the number of terms.
+     */
+    private static class Accumulator {
+        final int[] counts;
+        //ordinals of the terms that share at least one gram with the query
+        int[] touched = new int[16];
+        int numTouched;
+
+        Accumulator(int numTerms) {
+            counts = new int[numTerms];
+        }
+
+        void touch(int ord) {
+            touched = ArrayUtil.grow(touched, numTouched + 1);
+            touched[numTouched++] = ord;
+        }
+
+        void clear() {
+            for (int i = 0; i < numTouched; i++) {
+                counts[touched[i]] = 0;
+            }
+            numTouched = 0;
+        }
+    }
+
+    /**
+     * Growable open addressing map from gram to a dense id.
+     */
+    private static class GramIdMap {
+        private long[] keys = new long[16];
+        private int[] ids = newIds(16);
+        private int mask = 15;
+        private int size = 0;
+
+        int add(long key) {
+            int slot = find(key);
+            if (ids[slot] != -1) {
+                return ids[slot];
+            }
+            keys[slot] = key;
+            ids[slot] = size++;
+            if (size * 2 > keys.length) {
+                rehash();
+            }
+            return size - 1;
+        }
+
+        int get(long key) {
+            return ids[find(key)];
+        }
+
+        private int find(long key) {
+            int slot = hash(key) & mask;
+            while (ids[slot] != -1 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void rehash() {
+            long[] oldKeys = keys;
+            int[] oldIds = ids;
+            keys = new long[oldKeys.length * 2];
+            ids = newIds(keys.length);
+            mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldIds[i] != -1) {
+                    int slot = find(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    ids[slot] = oldIds[i];
+                }
+            }
+        }
+
+        private static int[] newIds(int size) {
+            int[] ids = new int[size];
+            Arrays.fill(ids, -1);
+            return ids;
+        }
+
+        static int hash(long key) {
+            key *= 0x9E3779B97F4A7C15L;
+            return (int) (key ^ (key >>> 32));
+        }
+    }
+}
@@ -44,6 +44,8 @@ public class SlowFuzzyQuery extends MultiTermQuery {
 
     private int maxEdits;
     private int prefixLength;
+    private boolean transpositions;
+    private boolean useQGramIndex = false;
 
     protected Term term;
 
@@ -63,6 +65,22 @@ public class SlowFuzzyQuery extends MultiTermQuery {
      */
     public SlowFuzzyQuery(Term term, int maxEdits, int prefixLength,
                           int maxExpansions) {
+        this(term, maxEdits, prefixLength, maxExpansions, false);
+    }
+
+    /**
+     * Create a new SlowFuzzyQuery.
+     *
+     * @param term the term to search for
+     * @param maxEdits allowable edit distance
+     * @param prefixLength length of common (non-fuzzy) prefix
+     * @param maxExpansions the maximum number of terms to match
+     * @param transpositions whether a transposition of adjacent characters counts
+     *  as a single edit (optimal string alignment) rather than two
+     * @throws IllegalArgumentException if prefixLength &lt; 0
+     */
+    public SlowFuzzyQuery(Term term, int maxEdits, int prefixLength,
+                          int maxExpansions, boolean transpositions) {
         super(term.field());
         this.term = term;
 
@@ -78,6 +96,7 @@ public class SlowFuzzyQuery extends MultiTermQuery {
 
         this.maxEdits = maxEdits;
         this.prefixLength = prefixLength;
+        this.transpositions = transpositions;
     }
 
     /**
@@ -98,9 +117,38 @@ public class SlowFuzzyQuery extends MultiTermQuery {
         return prefixLength;
     }
 
+    /**
+     * Returns true if transpositions should be treated as a primitive edit operation.
+     * If this is false, comparisons will implement the classic Levenshtein algorithm.
+     * @return whether transpositions are single edits
+     */
+    public boolean getTranspositions() {
+        return transpositions;
+    }
+
+    /**
+     * If true, candidate terms come from the q-gram count filter of each segment's
+     * {@link QGramTermIndex}, which is built the first time that it is needed.
+     * This only changes how the terms are found, not which terms match.
+     * It is off by default because the index holds a copy of the field's terms.
+     *
+     * @param useQGramIndex whether to use the q-gram index
+     */
+    public void setUseQGramIndex(boolean useQGramIndex) {
+        this.useQGramIndex = useQGramIndex;
+    }
+
+    /**
+     * @return whether the q-gram index is used to find candidate terms
+     */
+    public boolean getUseQGramIndex() {
+        return useQGramIndex;
+    }
+
     @Override
     protected TermsEnum getTermsEnum(Terms terms, AttributeSource atts) throws IOException {
-        return new SlowFuzzyTermsEnum(terms, atts, getTerm(), maxEdits, prefixLength);
+        return new SlowFuzzyTermsEnum(terms, atts, getTerm(), maxEdits, prefixLength, transpositions,
+                useQGramIndex);
     }
 
     /**
@@ -119,13 +167,14 @@ public class SlowFuzzyQuery extends MultiTermQuery {
         SlowFuzzyQuery that = (SlowFuzzyQuery) o;
         return getMaxEdits() == that.getMaxEdits() &&
                 getPrefixLength() == that.getPrefixLength() &&
+                getTranspositions() == that.getTranspositions() &&
                 Objects.equals(getTerm(), that.getTerm());
     }
 
     @Override
     public int hashCode() {
 
-        return Objects.hash(super.hashCode(), getMaxEdits(), getPrefixLength(), getTerm());
+        return Objects.hash(super.hashCode(), getMaxEdits(), getPrefixLength(), getTranspositions(), getTerm());
     }
 
     @Override
@@ -133,6 +182,7 @@ public class SlowFuzzyQuery extends MultiTermQuery {
         return "SlowFuzzyQuery{" +
                 "maxEdits=" + maxEdits +
                 ", prefixLength=" + prefixLength +
+                ", transpositions=" + transpositions +
                 ", term=" + term +
                 ", field='" + field + '\'' +
                 ", rewriteMethod=" + rewriteMethod +
@@ -24,6 +24,7 @@ import org.apache.lucene.index.TermState;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.search.BoostAttribute;
+import org.apache.lucene.search.MaxNonCompetitiveBoostAttribute;
 import org.apache.lucene.search.similarities.Similarity;
 import org.apache.lucene.util.AttributeSource;
 import org.apache.lucene.util.BytesRef;
@@ -43,6 +44,10 @@ import java.io.IOException;
  * allowable range, this backs off to the classic (brute force)
  * fuzzy terms enum method by calling FuzzyTermsEnum's getAutomatonEnum.
  * </p>
+ * <p>When the rewrite only keeps the top terms, the boost of its least
+ * competitive term is read from the {@link MaxNonCompetitiveBoostAttribute},
+ * and the edit distance that is allowed shrinks to what could still beat it.
+ * </p>
  * <p>Term enumerations are always ordered by
  * {@link BytesRef#compareTo}.  Each term in the enumeration is
  * greater than all that precede it.</p>
@@ -59,16 +64,50 @@ public final class SlowFuzzyTermsEnum extends TermsEnum {
     private final int prefixLength;
     private final int realPrefixLength;
     private final boolean transpositions;
+    private final QGramTermIndex qGramIndex;
     private final TermsEnum actualEnum;
 
     public SlowFuzzyTermsEnum(Terms terms, AttributeSource atts, Term term,
                               int maxEdits, int prefixLength) throws IOException {
+        this(terms, atts, term, maxEdits, prefixLength, false);
+    }
+
+    /**
+     * @param terms          terms
+     * @param atts           attributes
+     * @param term           query term
+     * @param maxEdits       maximum edit distance
+     * @param prefixLength   length of the prefix that must match exactly
+     * @param transpositions whether a transposition of adjacent code points
+     *                       counts as a single edit (optimal string alignment)
+     * @throws IOException if encountered by the terms' iterator
+     */
+    public SlowFuzzyTermsEnum(Terms terms, AttributeSource atts, Term term,
+                              int maxEdits, int prefixLength, boolean transpositions) throws IOException {
+        this(terms, atts, term, maxEdits, prefixLength, transpositions, false);
+    }
+
+    /**
+     * @param terms          terms
+     * @param atts           attributes
+     * @param term           query term
+     * @param maxEdits       maximum edit distance
+     * @param prefixLength   length of the prefix that must match exactly
+     * @param transpositions whether a transposition of adjacent code points
+     *                       counts as a single edit (optimal string alignment)
+     * @param useQGramIndex  whether to get candidates from the segment's
+     *                       {@link QGramTermIndex} instead of visiting every term
+     * @throws IOException if encountered by the terms' iterator
+     */
+    public SlowFuzzyTermsEnum(Terms terms, AttributeSource atts, Term term,
+                              int maxEdits, int prefixLength, boolean transpositions,
+                              boolean useQGramIndex) throws IOException {
         this.terms = terms;
         this.atts = atts;
         this.term = term;
         this.maxEdits = maxEdits;
         this.prefixLength = prefixLength;
-        this.transpositions = false;
+        this.transpositions = transpositions;
         final String utf16 = term.text();
         this.termText = new int[utf16.codePointCount(0, utf16.length())];
         for (int cp, i = 0, j = 0; i < utf16.length(); i += Character.charCount(cp))
@@ -77,10 +116,17 @@ public final class SlowFuzzyTermsEnum extends TermsEnum {
         //The prefix could be longer than the word.
         //It's kind of silly though.  It means we must match the entire word.
         this.realPrefixLength = prefixLength > termLength ? termLength : prefixLength;
+        this.qGramIndex = useQGramIndex ? QGramTermIndex.get(terms, QGramTermIndex.DEFAULT_Q) : null;
         this.actualEnum = new LinearFuzzyTermsEnum();
 
     }
 
+    @Override
+    public AttributeSource attributes() {
+        //the boost is set on the actual enum's attributes
+        return actualEnum.attributes();
+    }
+
     @Override
     public int docFreq() throws IOException {
         return actualEnum.docFreq();
@@ -143,20 +189,21 @@ public final class SlowFuzzyTermsEnum extends TermsEnum {
 
 
     /**
-     * Implement fuzzy enumeration with linear brute force.
+     * Implement fuzzy enumeration with linear brute force, or by seeking
+     * to the candidates from the q-gram index if it rules out enough terms.
      */
     private class LinearFuzzyTermsEnum extends FilteredTermsEnum {
-        /* Allows us save time required to create a new array
-         * every time similarity is called.
-         */
-        private int[] d;
-        private int[] p;
-
-        // this is the text, minus the prefix
-        private final int[] text;
+        // distance to the text, minus the prefix
+        private final BitParallelLevenshtein levenshtein;
 
         private final BoostAttribute boostAtt =
                 attributes().addAttribute(BoostAttribute.class);
+        private final MaxNonCompetitiveBoostAttribute maxBoostAtt =
+                atts.addAttribute(MaxNonCompetitiveBoostAttribute.class);
+        // the boost of the least competitive term that the rewrite has kept so far
+        private float bottom = Float.NEGATIVE_INFINITY;
+        // maxEdits, or less once the rewrite has enough closer terms
+        private int competitiveMaxEdits = maxEdits;
 
         /**
          * Constructor for enumeration of all terms from specified <code>reader</code> which share a prefix of
@@ -171,20 +218,41 @@ public final class SlowFuzzyTermsEnum extends TermsEnum {
         public LinearFuzzyTermsEnum() throws IOException {
             super(terms.iterator());
 
-            this.text = new int[termLength - realPrefixLength];
-            System.arraycopy(termText, realPrefixLength, text, 0, text.length);
+            this.levenshtein = new BitParallelLevenshtein(termText, realPrefixLength,
+                termLength - realPrefixLength, transpositions);
             final String prefix = UnicodeUtil.newString(termText, 0, realPrefixLength);
             prefixBytesRef = new BytesRef(prefix);
-            this.d = new int[this.text.length + 1];
-            this.p = new int[this.text.length + 1];
-
-            setInitialSeekTerm(prefixBytesRef);
+            //the count filter works on the whole term: a term within maxEdits
+            //of the query's suffix and sharing its prefix is within maxEdits of the query
+            this.candidates = qGramIndex == null ? null
+                    : qGramIndex.candidates(termText, 0, termLength, maxEdits, transpositions);
+            if (candidates == null) {
+                setInitialSeekTerm(prefixBytesRef);
+            }
         }
 
         private final BytesRef prefixBytesRef;
+        // sorted ordinals in the q-gram index of the terms to verify, or null to visit every term
+        private final int[] candidates;
+        private int candidateUpto = 0;
+        private final BytesRef candidate = new BytesRef();
         // used for unicode conversion from BytesRef byte[] to int[]
         private final IntsRefBuilder utf32 = new IntsRefBuilder();
 
+        @Override
+        protected BytesRef nextSeekTerm(BytesRef currentTerm) throws IOException {
+            if (candidates == null) {
+                return super.nextSeekTerm(currentTerm);
+            }
+            while (candidateUpto < candidates.length) {
+                qGramIndex.term(candidates[candidateUpto++], candidate);
+                if (StringHelper.startsWith(candidate, prefixBytesRef)) {
+                    return candidate;
+                }
+            }
+            return null;
+        }
+
         /**
          * <p>The termCompare method in FuzzyTermEnum uses Levenshtein distance to
          * calculate the distance between the given term and the comparing term.
@@ -200,118 +268,59 @@ public final class SlowFuzzyTermsEnum extends TermsEnum {
          */
         @Override
         protected final AcceptStatus accept(BytesRef term) {
+            if (candidates != null) {
+                //every term that is sought is a candidate
+                return isMatch(term) ? AcceptStatus.YES_AND_SEEK : AcceptStatus.NO_AND_SEEK;
+            }
             if (StringHelper.startsWith(term, prefixBytesRef)) {
-                utf32.copyUTF8Bytes(term);
-                final int distance = calcDistance(utf32.ints(), realPrefixLength, utf32.length() - realPrefixLength);
-
-                //Integer.MIN_VALUE is the sentinel that Levenshtein stopped early
-                if (distance == Integer.MIN_VALUE){
-                    return AcceptStatus.NO;
-                }
-
-                if (distance > maxEdits){
-                    return AcceptStatus.NO;
-                }
-
-                final int codePointCount = UnicodeUtil.codePointCount(term);
-                float similarity = 1.0f - (float) distance / (float) Math.min(codePointCount, termLength);
-                boostAtt.setBoost(similarity);
-                return AcceptStatus.YES;
+                return isMatch(term) ? AcceptStatus.YES : AcceptStatus.NO;
             } else {
                 return AcceptStatus.END;
             }
         }
 
-        /******************************
-         * Compute Levenshtein distance
-         ******************************/
+        private boolean isMatch(BytesRef term) {
+            updateCompetitiveMaxEdits();
+            utf32.copyUTF8Bytes(term);
+            final int distance = levenshtein.distance(utf32.ints(), realPrefixLength,
+                utf32.length() - realPrefixLength, competitiveMaxEdits);
 
-        /**
-         * <p>calcDistance returns the Levenshtein distance between the query term
-         * and the target term.</p>
-         *
-         * <p>Embedded within this algorithm is a fail-fast Levenshtein distance
-         * algorithm.  The fail-fast algorithm differs from the standard Levenshtein
-         * distance algorithm in that it is aborted if it is discovered that the
-         * minimum distance between the words is greater than some threshold.
-
-         * <p>Levenshtein distance (also known as edit distance) is a measure of similarity
-         * between two strings where the distance is measured as the number of character
-         * deletions, insertions or substitutions required to transform one string to
-         * the other string.
-         * @param target the target word or phrase
-         * @param offset the offset at which to start the comparison
-         * @param length the length of what's left of the string to compare
-         * @return the number of edits or Integer.MIN_VALUE if the edit distance is
-         * greater than maxDistance.
-         */
-        private final int calcDistance(final int[] target, int offset, int length) {
-            final int m = length;
-            final int n = text.length;
-            if (n == 0)  {
-                //we don't have anything to compare.  That means if we just add
-                //the letters for m we get the new word
-                return m;
-            }
-            if (m == 0) {
-                return n;
+            //TOO_FAR is the sentinel that Levenshtein stopped early
+            if (distance == BitParallelLevenshtein.TOO_FAR){
+                return false;
             }
 
+            boostAtt.setBoost(similarity(distance, Math.min(utf32.length(), termLength)));
+            return true;
+        }
 
-
-            if (maxEdits < Math.abs(m-n)) {
-                //just adding the characters of m to n or vice-versa results in
-                //too many edits
-                //for example "pre" length is 3 and "prefixes" length is 8.  We can see that
-                //given this optimal circumstance, the edit distance cannot be less than 5.
-                //which is 8-3 or more precisely Math.abs(3-8).
-                //if our maximum edit distance is 4, then we can discard this word
-                //without looking at it.
-                return Integer.MIN_VALUE;
+        /**
+         * Scores must not be negative, and an empty term would divide by zero.
+         */
+        private float similarity(int distance, int minLength) {
+            if (minLength == 0) {
+                return distance == 0 ? 1.0f : 0.0f;
             }
+            return Math.max(0.0f, 1.0f - (float) distance / (float) minLength);
+        }
 
-            // init matrix d
-            for (int i = 0; i <=n; ++i) {
-                p[i] = i;
+        /**
+         * The best boost for a term that is <code>d</code> edits away is
+         * <code>similarity(d, termLength)</code>, for a term at least as long as the query term.
+         * Edits that cannot reach the bottom boost are no longer allowed.
+         * A term that ties the bottom boost is still allowed, because a term
+         * from a later segment can sort before the bottom term.
+         */
+        private void updateCompetitiveMaxEdits() {
+            final float maxNonCompetitiveBoost = maxBoostAtt.getMaxNonCompetitiveBoost();
+            if (maxNonCompetitiveBoost == bottom || termLength == 0) {
+                return;
             }
-
-            // start computing edit distance
-            for (int j = 1; j<=m; ++j) { // iterates through target
-                int bestPossibleEditDistance = m;
-                final int t_j = target[offset+j-1]; // jth character of t
-                d[0] = j;
-
-                for (int i=1; i<=n; ++i) { // iterates through text
-                    // minimum of cell to the left+1, to the top+1, diagonally left and up +(0|1)
-                    if (t_j != text[i-1]) {
-                        d[i] = Math.min(Math.min(d[i-1], p[i]),  p[i-1]) + 1;
-                    } else {
-                        d[i] = Math.min(Math.min(d[i-1]+1, p[i]+1),  p[i-1]);
-                    }
-                    bestPossibleEditDistance = Math.min(bestPossibleEditDistance, d[i]);
-                }
-
-                //After calculating row i, the best possible edit distance
-                //can be found by found by finding the smallest value in a given column.
-                //If the bestPossibleEditDistance is greater than the max distance, abort.
-
-                if (j > maxEdits && bestPossibleEditDistance > maxEdits) {  //equal is okay, but not greater
-                    //the closest the target can be to the text is just too far away.
-                    //this target is leaving the party early.
-                    return Integer.MIN_VALUE;
-                }
-
-                // copy current distance counts to 'previous row' distance counts: swap p and d
-                int _d[] = p;
-                p = d;
-                d = _d;
+            bottom = maxNonCompetitiveBoost;
+            while (competitiveMaxEdits > 0
+                    && similarity(competitiveMaxEdits, termLength) < bottom) {
+                competitiveMaxEdits--;
             }
-
-            // our last action in the above loop was to switch d and p, so p now
-            // actually has the most recent cost counts
-
-            return p[n];
         }
-
     }
 }
@@ -0,0 +1,207 @@
+package org.tallison.lucene.queryparser.spans;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.analysis.MockTokenizer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.RandomIndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.spans.SpanOrQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.TestUtil;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestCostAwareSpanRewriteMethod extends LuceneTestCase {
+
+  private static final String FIELD = "f1";
+
+  private static Analyzer analyzer;
+  private static Directory directory;
+  private static IndexReader reader;
+  private static IndexSearcher searcher;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    analyzer = new MockAnalyzer(random(), MockTokenizer.WHITESPACE, true);
+    directory = newDirectory();
+    RandomIndexWriter writer = new RandomIndexWriter(random(), directory,
+        newIndexWriterConfig(analyzer).setMergePolicy(newLogMergePolicy()));
+    String[] docs = new String[]{
+        "quick fox", "quick foxes", "quick foxes", "quick foxes", "quick foxes",
+        "quick foxes", "quick foxy", "quick foxy", "quick foxy", "quick dog"
+    };
+    for (String s : docs) {
+      Document doc = new Document();
+      doc.add(newField(FIELD, s, TextField.TYPE_STORED));
+      writer.addDocument(doc);
+    }
+    reader = writer.getReader();
+    searcher = newSearcher(reader);
+    writer.close();
+  }
+
+  @AfterClass
+  public static void afterClass() throws Exception {
+    reader.close();
+    directory.close();
+    reader = null;
+    directory = null;
+    searcher = null;
+    analyzer = null;
+  }
+
+  @Test
+  public void testWithinBudget() throws Exception {
+    List<CostAwareSpanRewriteMethod.Report> reports = new CopyOnWriteArrayList<>();
+    Query q = parse("[quick fox*]", new CostAwareSpanRewriteMethod(10, 100, 1,
+        CostAwareSpanRewriteMethod.OverBudgetAction.ERROR, listener(reports)));
+    assertEquals(9, searcher.count(q));
+    assertEquals(1, reports.size());
+    CostAwareSpanRewriteMethod.Report report = reports.get(0);
+    assertEquals(CostAwareSpanRewriteMethod.Choice.ALL_TERMS, report.getChoice());
+    assertEquals(3, report.getNumTerms());
+    assertEquals(9, report.getPostingsCost());
+    assertEquals(3, report.getNumTermsKept());
+  }
+
+  @Test
+  public void testTopTermsByDocFreq() throws Exception {
+    List<CostAwareSpanRewriteMethod.Report> reports = new CopyOnWriteArrayList<>();
+    //too many terms
+    Query q = parse("[quick fox*]", new CostAwareSpanRewriteMethod(2, 100, 2,
+        CostAwareSpanRewriteMethod.OverBudgetAction.TOP_TERMS_BY_DOC_FREQ, listener(reports)));
+    //foxes and foxy, but not fox
+    assertEquals(8, searcher.count(q));
+    assertEquals(CostAwareSpanRewriteMethod.Choice.TOP_TERMS_BY_DOC_FREQ, reports.get(0).getChoice());
+    assertEquals(3, reports.get(0).getNumTerms());
+    assertEquals(2, reports.get(0).getNumTermsKept());
+
+    //too many postings
+    reports.clear();
+    q = parse("[quick fox*]", new CostAwareSpanRewriteMethod(10, 5, 1,
+        CostAwareSpanRewriteMethod.OverBudgetAction.TOP_TERMS_BY_DOC_FREQ, listener(reports)));
+    assertEquals(5, searcher.count(q));
+    assertEquals(CostAwareSpanRewriteMethod.Choice.TOP_TERMS_BY_DOC_FREQ, reports.get(0).getChoice());
+    assertEquals(9, reports.get(0).getPostingsCost());
+  }
+
+  @Test
+  public void testError() throws Exception {
+    List<CostAwareSpanRewriteMethod.Report> reports = new CopyOnWriteArrayList<>();
+    Query q = parse("[quick fox*]", new CostAwareSpanRewriteMethod(1, 100, 1,
+        CostAwareSpanRewriteMethod.OverBudgetAction.ERROR, listener(reports)));
+    try {
+      searcher.count(q);
+      fail("should have thrown a BudgetExceededException");
+    } catch (CostAwareSpanRewriteMethod.BudgetExceededException e) {
+      assertEquals(CostAwareSpanRewriteMethod.Choice.OVER_BUDGET, e.getReport().getChoice());
+    }
+    assertEquals(1, reports.size());
+    assertEquals(CostAwareSpanRewriteMethod.Choice.OVER_BUDGET, reports.get(0).getChoice());
+  }
+
+  @Test
+  public void testTopTermsAcrossSegments() throws Exception {
+    Directory dir = newDirectory();
+    RandomIndexWriter writer = new RandomIndexWriter(random(), dir, newIndexWriterConfig(analyzer));
+    Set<String> words = new TreeSet<>();
+    int numDocs = atLeast(300);
+    for (int i = 0; i < numDocs; i++) {
+      //skewed, so that the docFreqs differ
+      String word = "w" + Integer.toString(random().nextInt(1 + random().nextInt(60)), 36);
+      words.add(word);
+      Document doc = new Document();
+      doc.add(newField(FIELD, word, TextField.TYPE_STORED));
+      writer.addDocument(doc);
+      if (random().nextInt(50) == 0) {
+        writer.commit();
+      }
+    }
+    IndexReader r = writer.getReader();
+    writer.close();
+
+    final Map<String, Integer> docFreqs = new HashMap<>();
+    for (String word : words) {
+      docFreqs.put(word, r.docFreq(new Term(FIELD, word)));
+    }
+    List<String> expected = new ArrayList<>(words);
+    int maxTerms = TestUtil.nextInt(random(), 0, 10);
+    int topN = TestUtil.nextInt(random(), 1, 10);
+    if (expected.size() > maxTerms) {
+      //by descending docFreq, ties to the earlier term
+      Collections.sort(expected, new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+          int c = Integer.compare(docFreqs.get(b), docFreqs.get(a));
+          return (c != 0) ? c : a.compareTo(b);
+        }
+      });
+      expected = new ArrayList<>(expected.subList(0, Math.min(topN, expected.size())));
+      Collections.sort(expected);
+    }
+
+    SpanOrQuery rewritten = (SpanOrQuery) new CostAwareSpanRewriteMethod(maxTerms, Long.MAX_VALUE, topN,
+        CostAwareSpanRewriteMethod.OverBudgetAction.TOP_TERMS_BY_DOC_FREQ, null)
+        .rewrite(r, new PrefixQuery(new Term(FIELD, "w")));
+    List<String> actual = new ArrayList<>();
+    for (SpanQuery clause : rewritten.getClauses()) {
+      actual.add(((SpanTermQuery) clause).getTerm().text());
+    }
+    assertEquals(expected, actual);
+    r.close();
+    dir.close();
+  }
+
+  private static Query parse(String s, CostAwareSpanRewriteMethod rewriteMethod) throws Exception {
+    SpanQueryParserConfig config = new SpanQueryParserConfig.Builder()
+        .setSpanMultiTermRewriteMethod(rewriteMethod)
+        .build();
+    return new SpanOnlyParser(FIELD, analyzer, analyzer, config).parse(s);
+  }
+
+  private static CostAwareSpanRewriteMethod.Listener listener(final List<CostAwareSpanRewriteMethod.Report> reports) {
+    return new CostAwareSpanRewriteMethod.Listener() {
+      @Override
+      public void onRewrite(CostAwareSpanRewriteMethod.Report report) {
+        reports.add(report);
+      }
+    };
+  }
+}
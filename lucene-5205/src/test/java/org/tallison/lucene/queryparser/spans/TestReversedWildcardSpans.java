@@ -0,0 +1,160 @@
+package org.tallison.lucene.queryparser.spans;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.analysis.MockTokenizer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.reverse.ReverseStringFilter;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.RandomIndexWriter;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.spans.FieldMaskingSpanQuery;
+import org.apache.lucene.search.spans.SpanMultiTermQueryWrapper;
+import org.apache.lucene.search.spans.SpanNearQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.LuceneTestCase;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestReversedWildcardSpans extends LuceneTestCase {
+
+  private static final String FIELD = "f1";
+  private static final String REVERSED_FIELD = "f1_rev";
+
+  private static Analyzer analyzer;
+  private static Directory directory;
+  private static IndexReader reader;
+  private static IndexSearcher searcher;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    analyzer = new MockAnalyzer(random(), MockTokenizer.WHITESPACE, true);
+    Analyzer indexAnalyzer = new Analyzer(Analyzer.PER_FIELD_REUSE_STRATEGY) {
+      @Override
+      protected TokenStreamComponents createComponents(String fieldName) {
+        Tokenizer tokenizer = new MockTokenizer(MockTokenizer.WHITESPACE, true);
+        TokenStream stream = tokenizer;
+        if (fieldName.equals(REVERSED_FIELD)) {
+          stream = new ReverseStringFilter(stream);
+        }
+        return new TokenStreamComponents(tokenizer, stream);
+      }
+    };
+    directory = newDirectory();
+    RandomIndexWriter writer = new RandomIndexWriter(random(), directory,
+        newIndexWriterConfig(indexAnalyzer).setMergePolicy(newLogMergePolicy()));
+    String[] docs = new String[]{
+        "walking the dog",
+        "talking to the dog",
+        "the dog was walking",
+        "the king sings",
+        "singing a song",
+        "a cat is napping",
+    };
+    for (String s : docs) {
+      Document doc = new Document();
+      doc.add(newField(FIELD, s, TextField.TYPE_STORED));
+      doc.add(newField(REVERSED_FIELD, s, TextField.TYPE_NOT_STORED));
+      writer.addDocument(doc);
+    }
+    reader = writer.getReader();
+    searcher = newSearcher(reader);
+    writer.close();
+  }
+
+  @AfterClass
+  public static void afterClass() throws Exception {
+    reader.close();
+    directory.close();
+    reader = null;
+    directory = null;
+    searcher = null;
+    analyzer = null;
+  }
+
+  @Test
+  public void testSameHitsAsLeadingWildcard() throws Exception {
+    SpanQueryParserConfig reversedConfig = new SpanQueryParserConfig.Builder()
+        .setReversedWildcardField(FIELD, REVERSED_FIELD)
+        .build();
+    SpanOnlyParser reversed = new SpanOnlyParser(FIELD, analyzer, analyzer, reversedConfig);
+    SpanQueryParserConfig plainConfig = new SpanQueryParserConfig.Builder()
+        .setAllowLeadingWildcard(true)
+        .build();
+    SpanOnlyParser plain = new SpanOnlyParser(FIELD, analyzer, analyzer, plainConfig);
+
+    String[] queries = new String[]{
+        "*ing", "*i?g", "?alking", "[*ing dog]", "[dog *ing]~3", "[the *ing]~2,2", "*ing@1..2"
+    };
+    for (String s : queries) {
+      assertEquals(s, searcher.count(plain.parse(s)), searcher.count(reversed.parse(s)));
+    }
+    assertEquals(3, searcher.count(reversed.parse("[*ing dog]~2")));
+
+    Query q = reversed.parse("[*ing dog]");
+    assertTrue(q instanceof SpanNearQuery);
+    SpanQuery first = ((SpanNearQuery) q).getClauses()[0];
+    assertTrue(first instanceof FieldMaskingSpanQuery);
+    assertEquals(FIELD, first.getField());
+    assertEquals(REVERSED_FIELD, ((FieldMaskingSpanQuery) first).getMaskedQuery().getField());
+  }
+
+  @Test
+  public void testNotReversed() throws Exception {
+    SpanQueryParserConfig config = new SpanQueryParserConfig.Builder()
+        .setReversedWildcardField(FIELD, REVERSED_FIELD)
+        .build();
+    SpanOnlyParser p = new SpanOnlyParser(FIELD, analyzer, analyzer, config);
+    //trailing wildcards and other fields stay on the field itself
+    assertTrue(p.parse("walk*") instanceof SpanMultiTermQueryWrapper);
+    assertTrue(p.parse("wal*ing") instanceof SpanMultiTermQueryWrapper);
+    assertEquals(FIELD, ((SpanQuery) p.parse("walk*")).getField());
+    for (String s : new String[]{"f2:*ing", "*in?"}) {
+      try {
+        p.parse(s);
+        fail("should have thrown a ParseException for a leading wildcard: " + s);
+      } catch (ParseException e) {
+        //expected
+      }
+    }
+  }
+
+  @Test
+  public void testReversePattern() throws Exception {
+    SpanOnlyParser p = new SpanOnlyParser(FIELD, analyzer, analyzer);
+    assertEquals("gni*", p.reverseWildcardPattern(FIELD, "*ing"));
+    //escapes stay in front of what they escape
+    assertEquals("b\\*a*", p.reverseWildcardPattern(FIELD, "*a\\*b"));
+    assertEquals("𐐀a?", p.reverseWildcardPattern(FIELD, "?a𐐀"));
+    assertTrue(p.shouldReverseWildcard(FIELD, "*ing"));
+    assertFalse(p.shouldReverseWildcard(FIELD, "*ing*"));
+    assertFalse(p.shouldReverseWildcard(FIELD, "*"));
+    assertFalse(p.shouldReverseWildcard(FIELD, "ing*"));
+    //an escaped wildcard at the end is not a wildcard
+    assertTrue(p.shouldReverseWildcard(FIELD, "*ing\\*"));
+  }
+}
@@ -0,0 +1,159 @@
+package org.tallison.lucene.queryparser.spans;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.analysis.MockTokenizer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.RandomIndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MultiPhraseQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.spans.SpanNearQuery;
+import org.apache.lucene.search.spans.SpanNotQuery;
+import org.apache.lucene.search.spans.SpanOrQuery;
+import org.apache.lucene.search.spans.SpanPositionRangeQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.TestUtil;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestSpanFreeQueryConverter extends LuceneTestCase {
+
+  private static final String FIELD = "f1";
+  private static final String[] VOCAB = new String[]{"a", "a", "a", "b", "b", "c", "c", "d", "e"};
+
+  private static Analyzer analyzer;
+  private static Directory directory;
+  private static IndexReader reader;
+  private static IndexSearcher searcher;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    analyzer = new MockAnalyzer(random(), MockTokenizer.WHITESPACE, true);
+    directory = newDirectory();
+    RandomIndexWriter writer = new RandomIndexWriter(random(), directory,
+        newIndexWriterConfig(analyzer).setMergePolicy(newLogMergePolicy()));
+    int numDocs = atLeast(100);
+    for (int i = 0; i < numDocs; i++) {
+      StringBuilder sb = new StringBuilder();
+      int length = TestUtil.nextInt(random(), 1, 20);
+      for (int j = 0; j < length; j++) {
+        sb.append(VOCAB[random().nextInt(VOCAB.length)]).append(' ');
+      }
+      Document doc = new Document();
+      doc.add(newField(FIELD, sb.toString(), TextField.TYPE_NOT_STORED));
+      writer.addDocument(doc);
+    }
+    reader = writer.getReader();
+    writer.close();
+    searcher = newSearcher(reader);
+  }
+
+  @AfterClass
+  public static void afterClass() throws Exception {
+    reader.close();
+    directory.close();
+    reader = null;
+    directory = null;
+    searcher = null;
+    analyzer = null;
+  }
+
+  @Test
+  public void testSameHits() throws Exception {
+    SpanQueryParser spans = new SpanQueryParser(FIELD, analyzer, analyzer);
+    SpanQueryParser converting = new SpanQueryParser(FIELD, analyzer, analyzer,
+        new SpanQueryParserConfig.Builder().setConvertSpanFreeQueries(true).build());
+    String[] queries = new String[]{
+        "\"a b\"", "[a b c]", "\"a (b c)\"", "\"a b\"^2 c", "+\"a b\" -\"c d\"", "(\"a b\" \"b a\")~2",
+        "\"(a b) (c d) e\"", "[a b]~2 \"c d\"", "\"a b*\" c", "\"a b\"@1..3 d", "[a b]!~1 \"c d\"",
+        "[\"a b\" c]~3", "a AND (b OR \"c d\")"
+    };
+    for (String s : queries) {
+      Query spanQuery = spans.parse(s);
+      Query converted = converting.parse(s);
+      assertEquals(s, searcher.count(spanQuery), searcher.count(converted));
+    }
+  }
+
+  @Test
+  public void testConversions() throws Exception {
+    SpanQueryParser p = new SpanQueryParser(FIELD, analyzer, analyzer,
+        new SpanQueryParserConfig.Builder().setConvertSpanFreeQueries(true).build());
+
+    assertEquals(new PhraseQuery(FIELD, "a", "b", "c"), p.parse("\"a b c\""));
+    assertEquals(new PhraseQuery(FIELD, "a", "b"), p.parse("[a b]"));
+    assertEquals(new BoostQuery(new PhraseQuery(FIELD, "a", "b"), 2.0f), p.parse("\"a b\"^2"));
+    assertEquals(new MultiPhraseQuery.Builder()
+            .add(new Term(FIELD, "a"))
+            .add(new Term[]{new Term(FIELD, "b"), new Term(FIELD, "c")})
+            .build(),
+        p.parse("\"a (b c)\""));
+
+    BooleanQuery expected = new BooleanQuery.Builder()
+        .add(new TermQuery(new Term(FIELD, "a")), BooleanClause.Occur.MUST)
+        .add(new PhraseQuery(FIELD, "b", "c"), BooleanClause.Occur.MUST_NOT)
+        .build();
+    assertEquals(expected, p.parse("+a -\"b c\""));
+
+    //the parts that need spans stay spans
+    assertTrue(p.parse("[a b]~2") instanceof SpanNearQuery);
+    assertTrue(p.parse("\"a b*\"") instanceof SpanNearQuery);
+    assertTrue(p.parse("[a b]!~1") instanceof SpanNotQuery);
+    assertTrue(p.parse("\"a b\"@1..3") instanceof SpanPositionRangeQuery);
+    Query q = p.parse("[\"a b\" c]~3");
+    assertTrue(q instanceof SpanNearQuery);
+    assertTrue(((SpanNearQuery) q).getClauses()[0] instanceof SpanNearQuery);
+
+    //SpanOnlyParser always returns spans
+    SpanOnlyParser spanOnly = new SpanOnlyParser(FIELD, analyzer, analyzer,
+        new SpanQueryParserConfig.Builder().setConvertSpanFreeQueries(true).build());
+    assertTrue(spanOnly.parse("\"a b\"") instanceof SpanNearQuery);
+  }
+
+  @Test
+  public void testConvert() throws Exception {
+    SpanQuery a = new SpanTermQuery(new Term(FIELD, "a"));
+    SpanQuery b = new SpanTermQuery(new Term(FIELD, "b"));
+    BooleanQuery expected = new BooleanQuery.Builder()
+        .add(new TermQuery(new Term(FIELD, "a")), BooleanClause.Occur.SHOULD)
+        .add(new TermQuery(new Term(FIELD, "b")), BooleanClause.Occur.SHOULD)
+        .build();
+    assertEquals(expected, SpanFreeQueryConverter.convert(new SpanOrQuery(a, b)));
+
+    //empty queries are left for the parser to recognize
+    SpanQuery empty = new SpanOrQuery();
+    assertSame(empty, SpanFreeQueryConverter.convert(empty));
+    SpanQuery unordered = new SpanNearQuery(new SpanQuery[]{a, b}, 0, false);
+    assertSame(unordered, SpanFreeQueryConverter.convert(unordered));
+  }
+}
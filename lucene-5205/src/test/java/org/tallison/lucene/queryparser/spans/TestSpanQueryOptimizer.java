@@ -0,0 +1,204 @@
+package org.tallison.lucene.queryparser.spans;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.analysis.MockTokenizer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.RandomIndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.spans.SpanBoostQuery;
+import org.apache.lucene.search.spans.SpanFirstQuery;
+import org.apache.lucene.search.spans.SpanNearQuery;
+import org.apache.lucene.search.spans.SpanOrQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.search.spans.SpanWeight;
+import org.apache.lucene.search.spans.Spans;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.TestUtil;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class TestSpanQueryOptimizer extends LuceneTestCase {
+
+  private static final String FIELD = "f1";
+  //skewed, so that common and rare terms are mixed in the spans
+  private static final String[] VOCAB = new String[]{"a", "a", "a", "a", "b", "b", "b", "c", "c", "d", "e"};
+
+  private static Directory directory;
+  private static IndexReader reader;
+  private static IndexSearcher searcher;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    directory = newDirectory();
+    RandomIndexWriter writer = new RandomIndexWriter(random(), directory,
+        newIndexWriterConfig(new MockAnalyzer(random(), MockTokenizer.WHITESPACE, true))
+            .setMergePolicy(newLogMergePolicy()));
+    int numDocs = atLeast(100);
+    for (int i = 0; i < numDocs; i++) {
+      StringBuilder sb = new StringBuilder();
+      int length = TestUtil.nextInt(random(), 1, 20);
+      for (int j = 0; j < length; j++) {
+        sb.append(VOCAB[random().nextInt(VOCAB.length)]).append(' ');
+      }
+      Document doc = new Document();
+      doc.add(newField(FIELD, sb.toString(), TextField.TYPE_NOT_STORED));
+      writer.addDocument(doc);
+    }
+    reader = writer.getReader();
+    writer.close();
+    //not newSearcher: the spans are read straight from the SpanWeight
+    searcher = new IndexSearcher(reader);
+    searcher.setQueryCache(null);
+  }
+
+  @AfterClass
+  public static void afterClass() throws Exception {
+    reader.close();
+    directory.close();
+    reader = null;
+    directory = null;
+    searcher = null;
+  }
+
+  @Test
+  public void testRandomEquivalence() throws Exception {
+    int iters = atLeast(300);
+    for (int i = 0; i < iters; i++) {
+      SpanQuery q = randomSpanQuery(TestUtil.nextInt(random(), 1, 4));
+      Query structural = SpanQueryOptimizer.optimize(q);
+      Set<String> expected = spans(q);
+      assertEquals(q + " -> " + structural, expected, spans(structural));
+      //idempotent
+      assertEquals(structural, SpanQueryOptimizer.optimize(structural));
+    }
+  }
+
+  @Test
+  public void testSimplifications() throws Exception {
+    SpanQuery a = term("a");
+    SpanQuery b = term("b");
+    SpanQuery c = term("c");
+    //nested ors, duplicates and single clauses
+    assertEquals(new SpanOrQuery(a, b, c),
+        SpanQueryOptimizer.optimize(new SpanOrQuery(a, new SpanOrQuery(b, a), new SpanOrQuery(c))));
+    assertEquals(a, SpanQueryOptimizer.optimize(new SpanNearQuery(new SpanQuery[]{new SpanOrQuery(a, a)}, 3, false)));
+    //an empty clause can't match
+    assertEquals(new SpanOrQuery(),
+        SpanQueryOptimizer.optimize(new SpanNearQuery(new SpanQuery[]{a, new SpanOrQuery()}, 3, true)));
+    //exact phrases of terms are flattened into exact phrases
+    SpanQuery phrase = new SpanNearQuery(new SpanQuery[]{a, b}, 0, true);
+    assertEquals(new SpanNearQuery(new SpanQuery[]{a, b, c}, 0, true),
+        SpanQueryOptimizer.optimize(new SpanNearQuery(new SpanQuery[]{phrase, c}, 0, true)));
+    //but not into sloppy ones
+    SpanQuery sloppy = new SpanNearQuery(new SpanQuery[]{phrase, c}, 1, true);
+    assertSame(sloppy, SpanQueryOptimizer.optimize(sloppy));
+    //boosts are kept
+    assertEquals(new SpanBoostQuery(a, 2.0f),
+        SpanQueryOptimizer.optimize(new SpanBoostQuery(new SpanOrQuery(a), 2.0f)));
+  }
+
+  @Test
+  public void testNoReordering() throws Exception {
+    //the clauses of an unordered near are left in the parsed order
+    SpanNearQuery unordered = new SpanNearQuery(new SpanQuery[]{term("a"), term("e"), term("b")}, 5, false);
+    assertSame(unordered, SpanQueryOptimizer.optimize(unordered));
+  }
+
+  @Test
+  public void testParserConfig() throws Exception {
+    MockAnalyzer analyzer = new MockAnalyzer(random(), MockTokenizer.WHITESPACE, true);
+    SpanQueryParserConfig config = new SpanQueryParserConfig.Builder()
+        .setOptimizeSpanQueries(true)
+        .build();
+    SpanOnlyParser optimizing = new SpanOnlyParser(FIELD, analyzer, analyzer, config);
+    SpanOnlyParser plain = new SpanOnlyParser(FIELD, analyzer, analyzer);
+
+    String s = "[(a b (a c)) d]~3";
+    Query parsed = plain.parse(s);
+    Query optimized = optimizing.parse(s);
+    assertEquals(new SpanNearQuery(new SpanQuery[]{
+        new SpanOrQuery(term("a"), term("b"), term("c")), term("d")}, 3, false), optimized);
+    assertEquals(spans(parsed), spans(optimized));
+    assertEquals(term("a"), optimizing.parse("(a a)"));
+  }
+
+  private static SpanQuery randomSpanQuery(int depth) {
+    int r = random().nextInt(100);
+    //no empty ors: lucene can't run them, so they're only in testSimplifications
+    if (depth == 0 || r < 25) {
+      return term(VOCAB[random().nextInt(VOCAB.length)]);
+    }
+    SpanQuery[] clauses = new SpanQuery[TestUtil.nextInt(random(), 1, 4)];
+    for (int i = 0; i < clauses.length; i++) {
+      //repeat an earlier clause now and then
+      clauses[i] = (i > 0 && random().nextInt(5) == 0) ? clauses[random().nextInt(i)] :
+          randomSpanQuery(depth - 1);
+    }
+    if (r < 50) {
+      return new SpanOrQuery(clauses);
+    } else if (r < 90 && clauses.length > 1) {
+      //lucene's SpanNearQuery needs at least two clauses to run
+      int slop = random().nextBoolean() ? 0 : random().nextInt(4);
+      return new SpanNearQuery(clauses, slop, random().nextBoolean());
+    } else if (r < 95) {
+      return new SpanFirstQuery(clauses[0], TestUtil.nextInt(random(), 1, 10));
+    }
+    return new SpanBoostQuery(clauses[0], 2.0f);
+  }
+
+  private static SpanTermQuery term(String s) {
+    return new SpanTermQuery(new Term(FIELD, s));
+  }
+
+  /**
+   * @return doc:start:end of every span; a span that is found twice counts once
+   */
+  private static Set<String> spans(Query q) throws IOException {
+    Set<String> spans = new TreeSet<>();
+    SpanWeight weight = (SpanWeight) searcher.createWeight(searcher.rewrite(q), ScoreMode.COMPLETE_NO_SCORES, 1.0f);
+    for (LeafReaderContext context : reader.leaves()) {
+      Spans leafSpans = weight.getSpans(context, SpanWeight.Postings.POSITIONS);
+      if (leafSpans == null) {
+        continue;
+      }
+      while (leafSpans.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+        while (leafSpans.nextStartPosition() != Spans.NO_MORE_POSITIONS) {
+          spans.add((context.docBase + leafSpans.docID()) + ":" + leafSpans.startPosition()
+              + ":" + leafSpans.endPosition());
+        }
+      }
+    }
+    return spans;
+  }
+}
@@ -0,0 +1,113 @@
+package org.tallison.lucene.queryparser.spans;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.analysis.MockTokenizer;
+import org.apache.lucene.queryparser.classic.ParseException;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.LuceneTestCase;
+import org.junit.Test;
+
+public class TestSpanQueryParseCache extends LuceneTestCase {
+
+  private static final String FIELD = "f1";
+
+  @Test
+  public void testHitsAndSettings() throws Exception {
+    Analyzer analyzer = new MockAnalyzer(random(), MockTokenizer.WHITESPACE, true);
+    Analyzer multiTermAnalyzer = new MockAnalyzer(random(), MockTokenizer.KEYWORD, true);
+    SpanQueryParseCache cache = new SpanQueryParseCache(100, 1 << 20);
+    SpanQueryParser p = new SpanQueryParser(FIELD, analyzer, multiTermAnalyzer);
+    p.setParseCache(cache);
+
+    String s = "[quick brown]~3 fox* f2:\"jumped over\"";
+    Query q = p.parse(s);
+    assertEquals(0, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    assertSame(q, p.parse(s));
+    assertEquals(1, cache.getHitCount());
+
+    //a parser with the same settings shares the entry
+    SpanQueryParser p2 = new SpanQueryParser(FIELD, analyzer, multiTermAnalyzer);
+    p2.setParseCache(cache);
+    assertSame(q, p2.parse(s));
+
+    //a setting change is a different entry, and it matches an uncached parse
+    p2.setSpanNearMaxDistance(2);
+    SpanQueryParser uncached = new SpanQueryParser(FIELD, analyzer, multiTermAnalyzer);
+    uncached.setSpanNearMaxDistance(2);
+    Query q2 = p2.parse(s);
+    assertNotSame(q, q2);
+    assertEquals(uncached.parse(s), q2);
+    assertEquals(2, cache.size());
+
+    //so do a different default field and a different parser class
+    SpanQueryParser otherField = new SpanQueryParser("f2", analyzer, multiTermAnalyzer);
+    otherField.setParseCache(cache);
+    otherField.parse(s);
+    SpanOnlyParser spanOnly = new SpanOnlyParser(FIELD, analyzer, multiTermAnalyzer);
+    spanOnly.setParseCache(cache);
+    Query spanOnlyQuery = spanOnly.parse("[quick brown]~3");
+    assertSame(spanOnlyQuery, spanOnly.parse("[quick brown]~3"));
+    assertEquals(4, cache.size());
+
+    //parse exceptions aren't cached
+    try {
+      p.parse("[quick brown");
+      fail("should have thrown a ParseException");
+    } catch (ParseException e) {
+      //expected
+    }
+    assertEquals(4, cache.size());
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.ramBytesUsed());
+  }
+
+  @Test
+  public void testBounds() throws Exception {
+    Analyzer analyzer = new MockAnalyzer(random(), MockTokenizer.WHITESPACE, true);
+    int maxSize = atLeast(5);
+    SpanQueryParseCache cache = new SpanQueryParseCache(maxSize, Long.MAX_VALUE);
+    SpanOnlyParser p = new SpanOnlyParser(FIELD, analyzer, analyzer);
+    p.setParseCache(cache);
+    for (int i = 0; i < 3 * maxSize; i++) {
+      p.parse("term" + i);
+      //keep the first query recently used
+      p.parse("term0");
+      assertTrue(cache.size() <= maxSize);
+    }
+    long hits = cache.getHitCount();
+    p.parse("term0");
+    assertEquals(hits + 1, cache.getHitCount());
+    p.parse("term1");
+    assertEquals(hits + 1, cache.getHitCount());
+
+    //RAM bound
+    cache = new SpanQueryParseCache(1000, 3 * SpanQueryParseCache.QUERY_DEFAULT_RAM_BYTES_USED);
+    p.setParseCache(cache);
+    for (int i = 0; i < 10; i++) {
+      p.parse("term" + i);
+      assertTrue(cache.ramBytesUsed() <= 3 * SpanQueryParseCache.QUERY_DEFAULT_RAM_BYTES_USED);
+    }
+    assertTrue(cache.size() > 0);
+    assertTrue(cache.size() < 3);
+  }
+}
@@ -0,0 +1,116 @@
+package org.tallison.lucene.queryparser.spans;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.analysis.MockTokenizer;
+import org.apache.lucene.queryparser.classic.QueryParser;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.LuceneTestCase;
+import org.junit.Test;
+
+public class TestSpanQueryParserConfig extends LuceneTestCase {
+
+  private static final String FIELD = "f1";
+
+  private static final String[] QUERIES = new String[]{
+      "[quick brown]~3 fox*",
+      "quick AND (brown fox)~2",
+      "\"jumped over\"~50 lazy~1,1",
+      "[dog cat]!~2,3 +f2:bird -mouse",
+      "/d[ou]g/ AND ca?",
+  };
+
+  @Test
+  public void testSettersAndConfig() throws Exception {
+    Analyzer analyzer = new MockAnalyzer(random(), MockTokenizer.WHITESPACE, true);
+    SpanQueryParserConfig config = new SpanQueryParserConfig.Builder()
+        .setDefaultOperator(QueryParser.Operator.AND)
+        .setSpanNearMaxDistance(10)
+        .setSpanNotNearMaxDistance(1)
+        .setFuzzyMaxEdits(1)
+        .setPhraseSlop(2)
+        .build();
+    SpanQueryParser configured = new SpanQueryParser(FIELD, analyzer, analyzer, config);
+
+    SpanQueryParser set = new SpanQueryParser(FIELD, analyzer, analyzer);
+    set.setDefaultOperator(QueryParser.Operator.AND);
+    set.setSpanNearMaxDistance(10);
+    set.setSpanNotNearMaxDistance(1);
+    set.setFuzzyMaxEdits(1);
+    set.setPhraseSlop(2);
+    assertEquals(config, set.getConfig());
+    assertEquals(config.hashCode(), set.getConfig().hashCode());
+    assertNotSame(config, set.getConfig());
+    for (String s : QUERIES) {
+      assertEquals(configured.parse(s), set.parse(s));
+    }
+
+    //setters replace rather than modify a shared config
+    configured.setPhraseSlop(5);
+    assertEquals(2, config.getPhraseSlop());
+    assertEquals(5, configured.getPhraseSlop());
+    assertEquals(SpanQueryParserConfig.DEFAULT, new SpanQueryParser(FIELD, analyzer, analyzer).getConfig());
+  }
+
+  @Test
+  public void testSharedAcrossThreads() throws Exception {
+    Analyzer analyzer = new MockAnalyzer(random(), MockTokenizer.WHITESPACE, true);
+    SpanQueryParserConfig config = new SpanQueryParserConfig.Builder()
+        .setSpanNearMaxDistance(20)
+        .build();
+    final SpanQueryParser shared = new SpanQueryParser(FIELD, analyzer, analyzer, config);
+    final Query[] expected = new Query[QUERIES.length];
+    for (int i = 0; i < QUERIES.length; i++) {
+      expected[i] = new SpanQueryParser(FIELD, analyzer, analyzer, config).parse(QUERIES[i]);
+    }
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    final int iters = atLeast(100);
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final int offset = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+            for (int i = 0; i < iters; i++) {
+              int q = (i + offset) % QUERIES.length;
+              assertEquals(expected[q], shared.parse(QUERIES[q]));
+            }
+          } catch (Throwable e) {
+            failure.compareAndSet(null, e);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (failure.get() != null) {
+      throw new AssertionError(failure.get());
+    }
+  }
+}
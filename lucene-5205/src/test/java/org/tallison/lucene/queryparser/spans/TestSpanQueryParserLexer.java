@@ -97,6 +97,17 @@ public class TestSpanQueryParserLexer extends LuceneTestCase {
     lexer.getTokens(sb.toString());
   }
 
+  public void testReuse() throws Exception {
+    SpanQueryLexer threadLexer = SpanQueryLexer.forThread();
+    assertSame(threadLexer, SpanQueryLexer.forThread());
+    List<SQPToken> first = threadLexer.getTokens("the quick brown");
+    assertEquals(3, first.size());
+    //earlier results are not recycled, and blank queries don't see them
+    assertEquals(0, threadLexer.getTokens("  ").size());
+    assertEquals(2, threadLexer.getTokens("fox jumped").size());
+    assertEquals(3, first.size());
+  }
+
   public void testDoubleVsSingleQuotesAroundSingleTerm() throws Exception {
     //Thanks to Modassar Ather for finding this!
     //if a term is in double-quotes, treat it as a regular single term within a phrase
@@ -1075,6 +1086,15 @@ public class TestSpanQueryParserLexer extends LuceneTestCase {
   }
 
 
+  public void testPushbackOfPartialPositionRange() throws Exception {
+    //a partial position range pushes back the integer that it read,
+    //not the chars that it came from
+    executeSingleTokenTest("foo@0012.x", 0, new SQPTerm("foo@12.x", false));
+    //the lexer's buffer is reused across queries
+    executeSingleTokenTest("bar", 0, new SQPTerm("bar", false));
+    executeSingleTokenTest("foo@0012.x bar", 1, new SQPTerm("bar", false));
+  }
+
   public void testSpanPositionRangeOnTerms() throws Exception {
     SQPTerm expected = new SQPTerm("foo", false);
     expected.setStartPosition(2);
@@ -0,0 +1,114 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tallison.lucene.sandbox.queries;
+
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.TestUtil;
+import org.junit.Test;
+
+public class TestBitParallelLevenshtein extends LuceneTestCase {
+
+    @Test
+    public void testAgainstDynamicProgramming() throws Exception {
+        int iters = atLeast(2000);
+        for (int i = 0; i < iters; i++) {
+            //small alphabets so that there are matches and transpositions
+            int alphabet = TestUtil.nextInt(random(), 1, 6);
+            int maxLength = random().nextInt(10) == 0 ? 200 : 70;
+            int[] pattern = randomCodePoints(alphabet, TestUtil.nextInt(random(), 0, maxLength));
+            int[] target = (random().nextBoolean()) ? mutate(pattern, alphabet) :
+                randomCodePoints(alphabet, TestUtil.nextInt(random(), 0, maxLength));
+            boolean transpositions = random().nextBoolean();
+            int maxDistance = TestUtil.nextInt(random(), 0, 80);
+
+            //pad both so that offsets are exercised
+            int[] paddedPattern = pad(pattern);
+            int[] paddedTarget = pad(target);
+            BitParallelLevenshtein bp = new BitParallelLevenshtein(paddedPattern, 2,
+                pattern.length, transpositions);
+            int expected = dpDistance(pattern, target, transpositions);
+            int actual = bp.distance(paddedTarget, 2, target.length, maxDistance);
+            if (expected <= maxDistance) {
+                assertEquals(expected, actual);
+            } else {
+                assertEquals(BitParallelLevenshtein.TOO_FAR, actual);
+            }
+            //reuse
+            assertEquals(expected, bp.distance(paddedTarget, 2, target.length, Integer.MAX_VALUE));
+        }
+    }
+
+    @Test
+    public void testSupplementaryCodePoints() throws Exception {
+        int[] pattern = new int[]{0x1F600, 'a', 0x10400, 'b'};
+        int[] target = new int[]{'a', 0x1F600, 0x10400, 'b'};
+        assertEquals(1, new BitParallelLevenshtein(pattern, 0, 4, true).distance(target, 0, 4, 3));
+        assertEquals(2, new BitParallelLevenshtein(pattern, 0, 4, false).distance(target, 0, 4, 3));
+    }
+
+    private static int[] randomCodePoints(int alphabet, int length) {
+        int[] cps = new int[length];
+        for (int i = 0; i < length; i++) {
+            cps[i] = 'a' + random().nextInt(alphabet);
+        }
+        return cps;
+    }
+
+    private static int[] mutate(int[] s, int alphabet) {
+        int[] t = s.clone();
+        int edits = random().nextInt(5);
+        for (int e = 0; e < edits && t.length > 1; e++) {
+            int i = random().nextInt(t.length - 1);
+            if (random().nextBoolean()) {
+                int tmp = t[i];
+                t[i] = t[i + 1];
+                t[i + 1] = tmp;
+            } else {
+                t[i] = 'a' + random().nextInt(alphabet);
+            }
+        }
+        return t;
+    }
+
+    private static int[] pad(int[] s) {
+        int[] padded = new int[s.length + 4];
+        padded[0] = padded[1] = 'z';
+        System.arraycopy(s, 0, padded, 2, s.length);
+        padded[s.length + 2] = padded[s.length + 3] = 'y';
+        return padded;
+    }
+
+    private static int dpDistance(int[] a, int[] b, boolean transpositions) {
+        int[][] d = new int[a.length + 1][b.length + 1];
+        for (int i = 0; i <= a.length; i++) {
+            d[i][0] = i;
+        }
+        for (int j = 0; j <= b.length; j++) {
+            d[0][j] = j;
+        }
+        for (int i = 1; i <= a.length; i++) {
+            for (int j = 1; j <= b.length; j++) {
+                int cost = (a[i - 1] == b[j - 1]) ? 0 : 1;
+                d[i][j] = Math.min(Math.min(d[i - 1][j] + 1, d[i][j - 1] + 1), d[i - 1][j - 1] + cost);
+                if (transpositions && i > 1 && j > 1 && a[i - 1] == b[j - 2] && a[i - 2] == b[j - 1]) {
+                    d[i][j] = Math.min(d[i][j], d[i - 2][j - 2] + 1);
+                }
+            }
+        }
+        return d[a.length][b.length];
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tallison.lucene.sandbox.queries;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.analysis.MockTokenizer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.search.BoostAttribute;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.AttributeSource;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.TestUtil;
+import org.junit.Test;
+
+public class TestQGramTermIndex extends LuceneTestCase {
+
+    private static final String FIELD = "f";
+
+    @Test
+    public void testSameTermsAsFullScan() throws Exception {
+        Directory dir = newDirectory();
+        //the asserting codec wraps its terms on every call, and those are not indexed
+        IndexWriter writer = new IndexWriter(dir,
+                new IndexWriterConfig(new MockAnalyzer(random(), MockTokenizer.KEYWORD, false))
+                        .setCodec(TestUtil.getDefaultCodec()));
+        List<String> words = new ArrayList<>();
+        int numDocs = atLeast(500);
+        for (int i = 0; i < numDocs; i++) {
+            //small alphabet so that there are plenty of near matches
+            String word = randomWord(TestUtil.nextInt(random(), 2, 4), TestUtil.nextInt(random(), 0, 14));
+            words.add(word);
+            Document doc = new Document();
+            doc.add(new StringField(FIELD, word, Field.Store.NO));
+            writer.addDocument(doc);
+        }
+        writer.forceMerge(1);
+        writer.close();
+
+        DirectoryReader reader = DirectoryReader.open(dir);
+        LeafReader leaf = getOnlyLeafReader(reader);
+        Terms terms = leaf.terms(FIELD);
+        int q = TestUtil.nextInt(random(), 1, QGramTermIndex.MAX_Q);
+        QGramTermIndex index = QGramTermIndex.get(terms, q);
+        assertSame(index, QGramTermIndex.get(terms, q));
+        assertEquals(terms.size(), index.getNumTerms());
+
+        int iters = atLeast(200);
+        for (int i = 0; i < iters; i++) {
+            String query = random().nextBoolean() ? words.get(random().nextInt(words.size())) :
+                    randomWord(4, TestUtil.nextInt(random(), 0, 16));
+            int maxEdits = TestUtil.nextInt(random(), 0, 5);
+            int prefixLength = TestUtil.nextInt(random(), 0, 3);
+            boolean transpositions = random().nextBoolean();
+            Term term = new Term(FIELD, query);
+
+            List<String> expected = new ArrayList<>();
+            List<Float> expectedBoosts = new ArrayList<>();
+            collect(new SlowFuzzyTermsEnum(terms, new AttributeSource(), term, maxEdits, prefixLength,
+                    transpositions, false), expected, expectedBoosts);
+            List<String> actual = new ArrayList<>();
+            List<Float> actualBoosts = new ArrayList<>();
+            collect(new SlowFuzzyTermsEnum(terms, new AttributeSource(), term, maxEdits, prefixLength,
+                    transpositions, true), actual, actualBoosts);
+            assertEquals(query + " " + maxEdits, expected, actual);
+            assertEquals(expectedBoosts, actualBoosts);
+
+            //every match must survive the count filter of an index with any q
+            int[] cps = query.codePoints().toArray();
+            int[] candidates = index.candidates(cps, 0, cps.length, maxEdits, transpositions);
+            if (candidates != null) {
+                List<String> candidateTerms = new ArrayList<>();
+                BytesRef spare = new BytesRef();
+                for (int ord : candidates) {
+                    candidateTerms.add(index.term(ord, spare).utf8ToString());
+                }
+                assertTrue(candidateTerms.containsAll(expected));
+            }
+        }
+        reader.close();
+        dir.close();
+    }
+
+    @Test
+    public void testCandidates() throws Exception {
+        Directory dir = newDirectory();
+        IndexWriter writer = new IndexWriter(dir,
+                new IndexWriterConfig(new MockAnalyzer(random(), MockTokenizer.KEYWORD, false)));
+        for (String word : new String[]{"abcdefgh", "abcdefgx", "abxxxxgh", "zzzzzzzz", "a"}) {
+            Document doc = new Document();
+            doc.add(new StringField(FIELD, word, Field.Store.NO));
+            writer.addDocument(doc);
+        }
+        //filler that shares no grams, so that the candidates are a small enough fraction
+        for (int i = 0; i < 100; i++) {
+            Document doc = new Document();
+            doc.add(new StringField(FIELD, Integer.toString(i), Field.Store.NO));
+            writer.addDocument(doc);
+        }
+        writer.forceMerge(1);
+        writer.close();
+        DirectoryReader reader = DirectoryReader.open(dir);
+        QGramTermIndex index = new QGramTermIndex(getOnlyLeafReader(reader).terms(FIELD), 2);
+        int[] query = "abcdefgh".codePoints().toArray();
+        //7 bigrams, one edit can destroy two of them
+        assertEquals(2, index.candidates(query, 0, query.length, 1, false).length);
+        //abxxxxgh only shares two bigrams, which is enough for three edits
+        assertEquals(2, index.candidates(query, 0, query.length, 2, false).length);
+        assertEquals(3, index.candidates(query, 0, query.length, 3, false).length);
+        //a transposition can destroy three bigrams
+        assertEquals(2, index.candidates(query, 0, query.length, 1, true).length);
+        assertEquals(3, index.candidates(query, 0, query.length, 2, true).length);
+        //too many edits for the filter to rule anything out
+        assertNull(index.candidates(query, 0, query.length, 4, false));
+        //the counts are reused, so they must not carry over from the earlier queries
+        for (int i = 0; i < 3; i++) {
+            assertEquals(2, index.candidates(query, 0, query.length, 1, false).length);
+        }
+        reader.close();
+        dir.close();
+    }
+
+    private static void collect(SlowFuzzyTermsEnum termsEnum, List<String> terms, List<Float> boosts)
+            throws Exception {
+        BoostAttribute boostAtt = termsEnum.attributes().addAttribute(BoostAttribute.class);
+        for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+            terms.add(term.utf8ToString());
+            boosts.add(boostAtt.getBoost());
+        }
+    }
+
+    private static String randomWord(int alphabet, int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sb.append((char) ('a' + random().nextInt(alphabet)));
+        }
+        return sb.toString();
+    }
+}
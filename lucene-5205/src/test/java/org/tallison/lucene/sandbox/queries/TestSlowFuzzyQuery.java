@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tallison.lucene.sandbox.queries;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.analysis.MockTokenizer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.TestUtil;
+import org.junit.Test;
+
+public class TestSlowFuzzyQuery extends LuceneTestCase {
+
+    private static final String FIELD = "f";
+
+    @Test
+    public void testTopTermsMatchFullScan() throws Exception {
+        Directory dir = newDirectory();
+        IndexWriter writer = new IndexWriter(dir,
+                new IndexWriterConfig(new MockAnalyzer(random(), MockTokenizer.KEYWORD, false)));
+        TreeSet<String> words = new TreeSet<>();
+        int numDocs = atLeast(300);
+        for (int i = 0; i < numDocs; i++) {
+            String word = randomWord(TestUtil.nextInt(random(), 2, 4), TestUtil.nextInt(random(), 0, 10));
+            words.add(word);
+            Document doc = new Document();
+            doc.add(new StringField(FIELD, word, Field.Store.NO));
+            writer.addDocument(doc);
+            //several segments, so that the bottom of the queue carries over between them
+            if (random().nextInt(50) == 0) {
+                writer.commit();
+            }
+        }
+        writer.close();
+        DirectoryReader reader = DirectoryReader.open(dir);
+
+        int iters = atLeast(100);
+        for (int i = 0; i < iters; i++) {
+            String query = randomWord(4, TestUtil.nextInt(random(), 0, 10));
+            int maxEdits = TestUtil.nextInt(random(), 1, 6);
+            int prefixLength = TestUtil.nextInt(random(), 0, 2);
+            int maxExpansions = TestUtil.nextInt(random(), 1, 20);
+            boolean transpositions = random().nextBoolean();
+
+            final Map<String, Float> boosts = new HashMap<>();
+            for (String word : words) {
+                Float boost = boost(query, word, maxEdits, prefixLength, transpositions);
+                if (boost != null) {
+                    boosts.put(word, boost);
+                }
+            }
+            List<String> expected = new ArrayList<>(boosts.keySet());
+            Collections.sort(expected, new Comparator<String>() {
+                @Override
+                public int compare(String a, String b) {
+                    int c = Float.compare(boosts.get(b), boosts.get(a));
+                    return (c != 0) ? c : a.compareTo(b);
+                }
+            });
+            expected = expected.subList(0, Math.min(maxExpansions, expected.size()));
+            Collections.sort(expected);
+
+            SlowFuzzyQuery q = new SlowFuzzyQuery(new Term(FIELD, query), maxEdits, prefixLength,
+                    maxExpansions, transpositions);
+            q.setUseQGramIndex(random().nextBoolean());
+            Map<String, Float> actual = new HashMap<>();
+            for (BooleanClause clause : (BooleanQuery) q.rewrite(reader)) {
+                Query clauseQuery = clause.getQuery();
+                float boost = 1.0f;
+                if (clauseQuery instanceof BoostQuery) {
+                    boost = ((BoostQuery) clauseQuery).getBoost();
+                    clauseQuery = ((BoostQuery) clauseQuery).getQuery();
+                }
+                actual.put(((TermQuery) clauseQuery).getTerm().text(), boost);
+            }
+            List<String> actualTerms = new ArrayList<>(actual.keySet());
+            Collections.sort(actualTerms);
+            assertEquals(query + " " + maxEdits + " " + prefixLength, expected, actualTerms);
+            for (String term : actualTerms) {
+                assertEquals(boosts.get(term), actual.get(term), 0.0f);
+            }
+        }
+        reader.close();
+        dir.close();
+    }
+
+    /**
+     * @return the boost that SlowFuzzyQuery gives <code>word</code>, or null if it does not match
+     */
+    private static Float boost(String query, String word, int maxEdits, int prefixLength,
+                               boolean transpositions) {
+        int realPrefixLength = Math.min(prefixLength, query.length());
+        if (! word.startsWith(query.substring(0, realPrefixLength))) {
+            return null;
+        }
+        int d = distance(query.substring(realPrefixLength), word.substring(realPrefixLength),
+                transpositions);
+        if (d > maxEdits) {
+            return null;
+        }
+        int minLength = Math.min(word.length(), query.length());
+        if (minLength == 0) {
+            return d == 0 ? 1.0f : 0.0f;
+        }
+        return Math.max(0.0f, 1.0f - (float) d / (float) minLength);
+    }
+
+    private static int distance(String a, String b, boolean transpositions) {
+        int[][] d = new int[a.length() + 1][b.length() + 1];
+        for (int i = 0; i <= a.length(); i++) {
+            for (int j = 0; j <= b.length(); j++) {
+                if (i == 0 || j == 0) {
+                    d[i][j] = i + j;
+                    continue;
+                }
+                int cost = (a.charAt(i - 1) == b.charAt(j - 1)) ? 0 : 1;
+                d[i][j] = Math.min(Math.min(d[i - 1][j] + 1, d[i][j - 1] + 1), d[i - 1][j - 1] + cost);
+                if (transpositions && i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2)
+                        && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    d[i][j] = Math.min(d[i][j], d[i - 2][j - 2] + 1);
+                }
+            }
+        }
+        return d[a.length()][b.length()];
+    }
+
+    private static String randomWord(int alphabet, int length) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sb.append((char) ('a' + random().nextInt(alphabet)));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,172 @@
+package org.tallison.lucene.contrast;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.Scorable;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * Counts foreground term document frequencies as documents are collected.
+ * Each collector has its own {@link ForegroundTermCounter}, so the
+ * {@link org.apache.lucene.search.IndexSearcher}'s executor can collect the leaf
+ * slices in parallel, and {@link #reduce(Collection)} merges the counters.
+ * <p>
+ * With a {@link ScoreThresholdCollectorManager.Threshold}, only the top scoring
+ * documents are counted: those above the threshold's score as they are
+ * collected, and those tied at the threshold's score by lowest doc id
+ * (as with {@link org.apache.lucene.search.TopScoreDocCollector}) during the reduce.
+ * A collector sees increasing doc ids, so it keeps only the first
+ * {@link ScoreThresholdCollectorManager.Threshold#numTies} tied documents, and
+ * memory stays bounded even when every hit has the same score.
+ */
+class ForegroundTermCollectorManager
+    implements CollectorManager<ForegroundTermCollectorManager.ForegroundTermCollector, ForegroundTermCounter> {
+
+  private final IndexReader reader;
+  private final String fieldName;
+  private final Analyzer analyzer;
+  private final int maxTokens;
+  private final boolean ignoreCase;
+  private final ScoreThresholdCollectorManager.Threshold threshold;
+
+  /**
+   * @param reader     reader that will be searched
+   * @param fieldName  field
+   * @param analyzer   analyzer, see {@link ForegroundTermCounter}
+   * @param maxTokens  maximum number of tokens to analyze per field value
+   * @param ignoreCase whether to lower case the terms
+   * @param threshold  threshold for the top scoring documents, or <code>null</code>
+   *                   to count every matching document
+   */
+  ForegroundTermCollectorManager(IndexReader reader, String fieldName, Analyzer analyzer, int maxTokens,
+                                 boolean ignoreCase, ScoreThresholdCollectorManager.Threshold threshold) {
+    this.reader = reader;
+    this.fieldName = fieldName;
+    this.analyzer = analyzer;
+    this.maxTokens = maxTokens;
+    this.ignoreCase = ignoreCase;
+    this.threshold = (threshold == null || threshold.all) ? null : threshold;
+  }
+
+  @Override
+  public ForegroundTermCollector newCollector() {
+    return new ForegroundTermCollector(newCounter(), threshold);
+  }
+
+  private ForegroundTermCounter newCounter() {
+    return new ForegroundTermCounter(fieldName, analyzer, maxTokens, ignoreCase);
+  }
+
+  @Override
+  public ForegroundTermCounter reduce(Collection<ForegroundTermCollector> collectors) throws IOException {
+    ForegroundTermCounter merged = newCounter();
+    int[] ties = new int[16];
+    int numTies = 0;
+    for (ForegroundTermCollector collector : collectors) {
+      collector.counter.finish();
+      merged.merge(collector.counter);
+      ties = ArrayUtil.grow(ties, numTies + collector.numTies);
+      System.arraycopy(collector.ties, 0, ties, numTies, collector.numTies);
+      numTies += collector.numTies;
+      if (threshold != null && numTies > threshold.numTies) {
+        //lowest doc ids win ties
+        Arrays.sort(ties, 0, numTies);
+        numTies = threshold.numTies;
+      }
+    }
+    if (threshold != null && numTies > 0) {
+      Arrays.sort(ties, 0, numTies);
+      ForegroundTermCounter tieCounter = newCounter();
+      List<LeafReaderContext> leaves = reader.leaves();
+      LeafReaderContext leaf = null;
+      for (int i = 0; i < numTies; i++) {
+        int doc = ties[i];
+        if (leaf == null || doc >= leaf.docBase + leaf.reader().maxDoc()) {
+          leaf = leaves.get(ReaderUtil.subIndex(doc, leaves));
+          tieCounter.setLeaf(leaf);
+        }
+        tieCounter.count(doc - leaf.docBase);
+      }
+      tieCounter.finish();
+      merged.merge(tieCounter);
+    }
+    return merged;
+  }
+
+  static class ForegroundTermCollector extends SimpleCollector {
+    private final ForegroundTermCounter counter;
+    private final ScoreThresholdCollectorManager.Threshold threshold;
+    private Scorable scorer;
+    private int docBase;
+    //global doc ids of the documents tied at the threshold's score
+    private int[] ties = new int[16];
+    private int numTies = 0;
+
+    ForegroundTermCollector(ForegroundTermCounter counter, ScoreThresholdCollectorManager.Threshold threshold) {
+      this.counter = counter;
+      this.threshold = threshold;
+    }
+
+    @Override
+    protected void doSetNextReader(LeafReaderContext context) throws IOException {
+      counter.setLeaf(context);
+      docBase = context.docBase;
+    }
+
+    @Override
+    public void setScorer(Scorable scorer) {
+      this.scorer = scorer;
+    }
+
+    @Override
+    public void collect(int doc) throws IOException {
+      if (threshold != null) {
+        float score = scorer.score();
+        if (score < threshold.minScore) {
+          return;
+        } else if (score == threshold.minScore) {
+          //a later tie has a higher doc id than the ones kept, so it can't win
+          if (numTies < threshold.numTies) {
+            assert numTies == 0 || ties[numTies - 1] < docBase + doc;
+            ties = ArrayUtil.grow(ties, numTies + 1);
+            ties[numTies++] = docBase + doc;
+          }
+          return;
+        }
+      }
+      counter.count(doc);
+    }
+
+    @Override
+    public ScoreMode scoreMode() {
+      return (threshold == null) ? ScoreMode.COMPLETE_NO_SCORES : ScoreMode.COMPLETE;
+    }
+  }
+}
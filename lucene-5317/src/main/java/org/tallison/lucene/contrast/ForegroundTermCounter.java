@@ -0,0 +1,290 @@
+package org.tallison.lucene.contrast;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.CharacterUtils;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.CharsRefBuilder;
+
+/**
+ * Counts the number of foreground documents that contain each term of a field,
+ * by term bytes in a {@link BytesRefHash}.
+ * <p>
+ * The terms of a document come from, in order of preference:
+ * <ol>
+ *   <li>the field's {@link SortedSetDocValues}; each ordinal of a leaf is resolved
+ *   to bytes once, the first time that it is seen in the leaf</li>
+ *   <li>the field's term vector</li>
+ *   <li>re-analysis of the stored field with the analyzer</li>
+ * </ol>
+ * The source is chosen per leaf from the field's {@link FieldInfo}, so a document
+ * without a value in the field contributes no terms.
+ * Each term is counted at most once per document.  If case is ignored, the
+ * terms from every source are lower cased, so terms that only differ by case
+ * are counted as one.  Documents must be counted leaf by leaf, in increasing
+ * order within a leaf.
+ */
+class ForegroundTermCounter {
+
+  private final String fieldName;
+  private final Analyzer analyzer;
+  private final int maxTokens;
+  private final boolean ignoreCase;
+  private final Set<String> selector;
+
+  private final BytesRefHash terms = new BytesRefHash();
+  private int[] docFreqs = new int[16];
+  //generation of the last document in which each term was seen
+  private int[] lastSeen = new int[16];
+  private int generation = 0;
+  private int numDocs = 0;
+
+  private LeafReader leafReader;
+  private SortedSetDocValues docValues;
+  private FieldInfo fieldInfo;
+  //term ordinal + 1 by ordinal in the current leaf's docValues; 0 if not resolved yet
+  private int[] leafTermOrds = new int[16];
+  private long maxOrd = -1;
+
+  private final BytesRefBuilder spare = new BytesRefBuilder();
+  private final CharsRefBuilder spareChars = new CharsRefBuilder();
+  private char[] lowerCaseBuffer = new char[16];
+
+  /**
+   * @param fieldName  field
+   * @param analyzer   analyzer to re-analyze stored fields; can be null if the field
+   *                   always has doc values or term vectors
+   * @param maxTokens  maximum number of tokens to analyze per field value; if &lt; 0, all tokens
+   * @param ignoreCase whether to lower case the terms
+   */
+  ForegroundTermCounter(String fieldName, Analyzer analyzer, int maxTokens, boolean ignoreCase) {
+    this.fieldName = fieldName;
+    this.analyzer = analyzer;
+    this.maxTokens = maxTokens;
+    this.ignoreCase = ignoreCase;
+    this.selector = Collections.singleton(fieldName);
+  }
+
+  /**
+   * Finishes the previous leaf, if any, and starts the next one
+   *
+   * @param context leaf
+   * @throws IOException if encountered by the reader
+   */
+  void setLeaf(LeafReaderContext context) throws IOException {
+    finish();
+    leafReader = context.reader();
+    docValues = leafReader.getSortedSetDocValues(fieldName);
+    fieldInfo = leafReader.getFieldInfos().fieldInfo(fieldName);
+  }
+
+  /**
+   * @param doc leaf document id
+   * @throws IOException if encountered by the reader
+   */
+  void count(int doc) throws IOException {
+    numDocs++;
+    generation++;
+    if (docValues != null) {
+      if (! docValues.advanceExact(doc)) {
+        return;
+      }
+      for (long ord = docValues.nextOrd(); ord != SortedSetDocValues.NO_MORE_ORDS; ord = docValues.nextOrd()) {
+        if (ord > Integer.MAX_VALUE - 1) {
+          //too many ordinals to map by ordinal
+          add(normalize(docValues.lookupOrd(ord)));
+          continue;
+        }
+        leafTermOrds = ArrayUtil.grow(leafTermOrds, (int) ord + 1);
+        int termOrd = leafTermOrds[(int) ord] - 1;
+        if (termOrd < 0) {
+          termOrd = ord(normalize(docValues.lookupOrd(ord)));
+          leafTermOrds[(int) ord] = termOrd + 1;
+          maxOrd = Math.max(maxOrd, ord);
+        }
+        add(termOrd);
+      }
+      return;
+    }
+    if (fieldInfo == null) {
+      //no document in the leaf has the field
+      return;
+    }
+    if (fieldInfo.hasVectors()) {
+      Terms termVector = leafReader.getTermVector(doc, fieldName);
+      if (termVector != null) {
+        TermsEnum termsEnum = termVector.iterator();
+        BytesRef term;
+        while ((term = termsEnum.next()) != null) {
+          add(normalize(term));
+        }
+      }
+    } else if (analyzer != null) {
+      Document document = leafReader.document(doc, selector);
+      for (IndexableField field : document.getFields(fieldName)) {
+        String s = field.stringValue();
+        //is this possible
+        if (s == null) {
+          continue;
+        }
+        analyze(s);
+      }
+    } else {
+      throw new IllegalArgumentException("The field must have doc values or a term vector" +
+          " or the analyzer must not be null.");
+    }
+  }
+
+  private void analyze(String s) throws IOException {
+    try (TokenStream ts = analyzer.tokenStream(fieldName, s)) {
+      CharTermAttribute cattr = ts.getAttribute(CharTermAttribute.class);
+      ts.reset();
+      int numTokens = 0;
+      while (ts.incrementToken()) {
+        if (maxTokens > -1 && ++numTokens > maxTokens) {
+          break;
+        }
+        char[] chars = ignoreCase ? toLowerCase(cattr.buffer(), cattr.length()) : cattr.buffer();
+        spare.copyChars(chars, 0, cattr.length());
+        add(spare.get());
+      }
+      ts.end();
+    }
+  }
+
+  /**
+   * @param term indexed term
+   * @return the term, lower cased into a spare if case is ignored
+   */
+  private BytesRef normalize(BytesRef term) {
+    if (! ignoreCase) {
+      return term;
+    }
+    spareChars.copyUTF8Bytes(term);
+    spare.copyChars(toLowerCase(spareChars.chars(), spareChars.length()), 0, spareChars.length());
+    return spare.get();
+  }
+
+  private char[] toLowerCase(char[] chars, int length) {
+    lowerCaseBuffer = ArrayUtil.grow(lowerCaseBuffer, length);
+    System.arraycopy(chars, 0, lowerCaseBuffer, 0, length);
+    CharacterUtils.toLowerCase(lowerCaseBuffer, 0, length);
+    return lowerCaseBuffer;
+  }
+
+  private void add(BytesRef term) {
+    add(ord(term));
+  }
+
+  private void add(int ord) {
+    if (lastSeen[ord] != generation) {
+      lastSeen[ord] = generation;
+      docFreqs[ord]++;
+    }
+  }
+
+  private void addCount(BytesRef term, int docFreq) {
+    //ord() can grow docFreqs, so it has to run before the array is read
+    int ord = ord(term);
+    docFreqs[ord] += docFreq;
+  }
+
+  private int ord(BytesRef term) {
+    int ord = terms.add(term);
+    if (ord < 0) {
+      return -ord - 1;
+    }
+    docFreqs = ArrayUtil.grow(docFreqs, ord + 1);
+    lastSeen = ArrayUtil.grow(lastSeen, ord + 1);
+    docFreqs[ord] = 0;
+    lastSeen[ord] = 0;
+    return ord;
+  }
+
+  /**
+   * Forgets the current leaf's doc values ordinals
+   */
+  void finish() {
+    Arrays.fill(leafTermOrds, 0, (int) maxOrd + 1, 0);
+    docValues = null;
+    maxOrd = -1;
+  }
+
+  /**
+   * Adds the counts from another counter; both must be finished.
+   *
+   * @param other counter to merge into this one
+   */
+  void merge(ForegroundTermCounter other) {
+    BytesRef scratch = new BytesRef();
+    for (int ord = 0; ord < other.terms.size(); ord++) {
+      addCount(other.terms.get(ord, scratch), other.docFreqs[ord]);
+    }
+    numDocs += other.numDocs;
+  }
+
+  /**
+   * @return number of documents counted
+   */
+  int getNumDocs() {
+    return numDocs;
+  }
+
+  /**
+   * @return number of distinct terms
+   */
+  int size() {
+    return terms.size();
+  }
+
+  /**
+   * @param ord   term ordinal
+   * @param bytes spare to fill
+   * @return <code>bytes</code> pointing to the term
+   */
+  BytesRef getTerm(int ord, BytesRef bytes) {
+    return terms.get(ord, bytes);
+  }
+
+  /**
+   * @param ord term ordinal
+   * @return number of documents that contain the term
+   */
+  int getDocFreq(int ord) {
+    return docFreqs[ord];
+  }
+}
@@ -2,36 +2,40 @@ package org.tallison.lucene.contrast;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.CharArrayMap;
-import org.apache.lucene.analysis.CharArraySet;
-import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
-import org.apache.lucene.document.Document;
-import org.apache.lucene.index.IndexableField;
-import org.apache.lucene.index.Term;
-import org.apache.lucene.index.Terms;
-import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.search.ScoreDoc;
-import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.Version;
-import org.apache.lucene.util.mutable.MutableValueInt;
 import org.tallison.lucene.corpus.stats.IDFIndexCalc;
-import org.tallison.lucene.corpus.stats.TFIDFPriorityQueue;
+import org.tallison.lucene.corpus.stats.TFIDFOrdPriorityQueue;
 import org.tallison.lucene.corpus.stats.TermIDF;
 
+/**
+ * Finds the terms that are much more common in the documents that match a query
+ * (the foreground) than in the corpus as a whole.  The foreground document frequencies are
+ * counted by term bytes with doc values, term vectors or re-analysis
+ * (see {@link ForegroundTermCounter}), and the corpus document frequencies of
+ * the candidates are looked up in a single batch.
+ * <p>
+ * The foreground terms are counted as the hits are collected, one counter per collector,
+ * so an {@link IndexSearcher} with an executor counts its leaf slices in parallel.
+ * With {@link #ALL_DOCS}, every hit is counted in a single pass without scoring.
+ * Otherwise, a first pass finds the lowest score among the top <code>maxDocs</code>
+ * hits, and the second pass only counts the hits that reach it.
+ */
 public class QueryToCorpusContraster {
 
+  /**
+   * Value for <code>maxDocs</code> to count every document that matches the query
+   * rather than only the top scoring ones
+   */
+  public static final int ALL_DOCS = -1;
+
   private final int maxDocs;
   private final IndexSearcher searcher;
   private final Version version;
@@ -42,135 +46,96 @@ public class QueryToCorpusContraster {
   //if the term doesn't show up in this many docs, ignore!
   private int minTermFreq = 10;
 
+  /**
+   * @param version  version
+   * @param searcher searcher
+   * @param maxDocs  number of top scoring documents to count, or {@link #ALL_DOCS}
+   */
   public QueryToCorpusContraster(Version version, IndexSearcher searcher, int maxDocs) {
+    if (maxDocs < 1 && maxDocs != ALL_DOCS) {
+      throw new IllegalArgumentException("maxDocs must be > 0 or ALL_DOCS: " + maxDocs);
+    }
     this.searcher = searcher;
     this.maxDocs = maxDocs;
     this.version = version;
   }
 
 
+  /**
+   * @param query      foreground query
+   * @param fieldName  field whose terms should be contrasted
+   * @param numResults maximum number of terms to return
+   * @return the terms that best distinguish the foreground from the corpus
+   * @throws IOException if encountered during the search
+   */
   public List<TermIDF> contrast(Query query, String fieldName, int numResults)
       throws IOException {
-    TopScoreDocCollector results = TopScoreDocCollector.create(maxDocs);
-    searcher.search(query, results);
-
-    ScoreDoc[] scoreDocs = results.topDocs().scoreDocs;
-    //if there are fewer documents than minTermFreq
-    //return empty list now
-    if (scoreDocs.length < minTermFreq) {
-      return new ArrayList<TermIDF>();
-    }
-
-    //total hack
-    int initialSize = scoreDocs.length * 100;
-    CharArrayMap<MutableValueInt> map = new CharArrayMap<MutableValueInt>(initialSize, ignoreCase);
-    CharArraySet tmpSet = new CharArraySet(100, ignoreCase);
-    Set<String> selector = new HashSet<String>();
-    selector.add(fieldName);
-
-    for (ScoreDoc scoreDoc : scoreDocs) {
-      //get terms from doc
-      processDoc(scoreDoc.doc, fieldName, selector, tmpSet);
-      //now update global doc freqs
-      Iterator<Object> it = tmpSet.iterator();
-      while (it.hasNext()) {
-        char[] token = (char[]) it.next();
-        MutableValueInt docCount = map.get(token, 0, token.length);
-        if (docCount == null) {
-          docCount = new MutableValueInt();
-          docCount.value = 1;
-        } else {
-          docCount.value++;
-        }
-        map.put(token, docCount);
+    ScoreThresholdCollectorManager.Threshold threshold = null;
+    if (maxDocs != ALL_DOCS) {
+      //first find the score that a document needs to be in the top maxDocs
+      threshold = searcher.search(query, new ScoreThresholdCollectorManager(maxDocs));
+      //if there are fewer documents than minTermFreq
+      //return empty list now
+      if (threshold.all && threshold.numTies < minTermFreq) {
+        return new ArrayList<TermIDF>();
       }
-      tmpSet.clear();
     }
 
-    return getResults(fieldName, map, numResults);
+    //count the foreground terms as the (top) hits are collected
+    ForegroundTermCounter counter = searcher.search(query,
+        new ForegroundTermCollectorManager(searcher.getIndexReader(), fieldName,
+            analyzer, maxTokens, ignoreCase, threshold));
+    if (counter.getNumDocs() < minTermFreq) {
+      return new ArrayList<TermIDF>();
+    }
+    return getResults(fieldName, counter, numResults);
   }
 
 
-  private List<TermIDF> getResults(String fieldName,
-                                   CharArrayMap<MutableValueInt> map, int numResults) {
-    TFIDFPriorityQueue queue = new TFIDFPriorityQueue(numResults);
+  private List<TermIDF> getResults(String fieldName, ForegroundTermCounter counter, int numResults) {
     IDFIndexCalc idfCalc = new IDFIndexCalc(searcher.getIndexReader());
-    int tf = -1;
-    double idf = -1.0;
     int minTf = minTermFreq;
-    String text = null;
-    //make more efficient
-//    Term reusableTerm = new Term(fieldName, "");
-    for (Map.Entry<Object, MutableValueInt> entry : map.entrySet()) {
-
-      tf = entry.getValue().value;
-      if (tf < minTf)
+    int numCandidates = 0;
+    int[] candidates = new int[16];
+    for (int ord = 0; ord < counter.size(); ord++) {
+      if (counter.getDocFreq(ord) < minTf) {
         continue;
-
-      text = new String((char[]) entry.getKey());
-      // calculate idf for potential phrase
-      try {
-        idf = idfCalc.singleTermIDF(new Term(fieldName, text));
-      } catch (IOException e) {
-        throw new RuntimeException("Error trying to calculate IDF: " + e.getMessage());
       }
-      int estimatedDF = (int) Math.max(1, Math.round(idfCalc.unIDF(idf)));
-
-      TermIDF r = new TermIDF(text, estimatedDF, tf, idf);
-
-      queue.insertWithOverflow(r);
+      candidates = ArrayUtil.grow(candidates, numCandidates + 1);
+      candidates[numCandidates++] = ord;
     }
-    List<TermIDF> results = new LinkedList<TermIDF>();
-
-    while (queue.size() > 0) {
-      results.add(0, queue.pop());
+    BytesRef[] terms = new BytesRef[numCandidates];
+    for (int i = 0; i < numCandidates; i++) {
+      terms[i] = counter.getTerm(candidates[i], new BytesRef());
     }
-    return results;
-  }
-
-  private void processDoc(int docid, String fieldName, Set<String> selector,
-                          CharArraySet set) throws IOException {
-    Terms terms = searcher.getIndexReader().getTermVector(docid, fieldName);
-    if (terms != null) {
-      TermsEnum te = terms.iterator();
-      BytesRef bytes = te.next();
-      while (bytes != null) {
-        set.add(bytes);
-      }
-    } else if (analyzer != null) {
-      Document document = searcher.doc(docid, selector);
-      IndexableField[] fields = document.getFields(fieldName);
-      if (fields == null) {
-        return;
-      }
-      for (IndexableField field : fields) {
-        String s = field.stringValue();
-        //is this possible
-        if (s == null) {
-          continue;
-        }
-        processFieldEntry(fieldName, s, set);
-      }
-
-    } else {
-      throw new IllegalArgumentException("The field must have a term vector or the analyzer must" +
-          " not be null.");
+    // look up the dfs for all candidates at once
+    int[] dfs;
+    try {
+      dfs = idfCalc.docFreqs(fieldName, terms);
+    } catch (IOException e) {
+      throw new RuntimeException("Error trying to calculate IDF: " + e.getMessage());
     }
-  }
-
-  private void processFieldEntry(String fieldName, String s, CharArraySet set) throws IOException {
-    TokenStream ts = analyzer.tokenStream(fieldName, s);
-    CharTermAttribute cattr = ts.getAttribute(CharTermAttribute.class);
-    ts.reset();
-    while (ts.incrementToken()) {
-      set.add(cattr.toString());
+    TFIDFOrdPriorityQueue queue = new TFIDFOrdPriorityQueue(numResults, terms);
+    double[] idfs = new double[numCandidates];
+    for (int i = 0; i < numCandidates; i++) {
+      idfs[i] = idfCalc.getIDF(dfs[i]);
+      queue.insertWithOverflow(i, counter.getDocFreq(candidates[i]) * idfs[i]);
+    }
+    //only now build the Strings and TermIDFs for the winners
+    TermIDF[] results = new TermIDF[queue.size()];
+    for (int i = results.length - 1; i >= 0; i--) {
+      int candidate = queue.pop();
+      double idf = idfs[candidate];
+      int estimatedDF = (int) Math.max(1, Math.round(idfCalc.unIDF(idf)));
+      results[i] = new TermIDF(terms[candidate].utf8ToString(), estimatedDF,
+          counter.getDocFreq(candidates[candidate]), idf);
     }
-    ts.end();
-    ts.close();
+    return new ArrayList<>(Arrays.asList(results));
   }
 
   /**
-   * Sets the analyzer to be used if term vectors are not stored.
+   * Sets the analyzer to be used if the field has neither doc values
+   * nor term vectors.
    *
    * @param analyzer  analyzer to be used if term vectors are not stored
    * @param maxTokens maximum number of tokens to analyze. If &lt; 0,
@@ -180,4 +145,12 @@ public class QueryToCorpusContraster {
     this.analyzer = analyzer;
     this.maxTokens = maxTokens;
   }
+
+  /**
+   * @param minTermFreq minimum number of foreground documents that a term must
+   *                    appear in to be returned
+   */
+  public void setMinTermFreq(int minTermFreq) {
+    this.minTermFreq = minTermFreq;
+  }
 }
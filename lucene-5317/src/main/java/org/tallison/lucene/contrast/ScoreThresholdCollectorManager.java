@@ -0,0 +1,163 @@
+package org.tallison.lucene.contrast;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.Collection;
+
+import org.apache.lucene.search.CollectorManager;
+import org.apache.lucene.search.Scorable;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.SimpleCollector;
+
+/**
+ * Finds the lowest score that a document needs to be among the top
+ * <code>maxDocs</code> hits, keeping only a bounded heap of scores per collector
+ * rather than {@link org.apache.lucene.search.ScoreDoc}s.
+ */
+class ScoreThresholdCollectorManager
+    implements CollectorManager<ScoreThresholdCollectorManager.ScoreHeapCollector,
+    ScoreThresholdCollectorManager.Threshold> {
+
+  private final int maxDocs;
+
+  /**
+   * @param maxDocs number of top scoring documents
+   */
+  ScoreThresholdCollectorManager(int maxDocs) {
+    if (maxDocs < 1) {
+      throw new IllegalArgumentException("maxDocs must be > 0: " + maxDocs);
+    }
+    this.maxDocs = maxDocs;
+  }
+
+  @Override
+  public ScoreHeapCollector newCollector() {
+    return new ScoreHeapCollector(maxDocs);
+  }
+
+  @Override
+  public Threshold reduce(Collection<ScoreHeapCollector> collectors) {
+    ScoreHeapCollector merged = new ScoreHeapCollector(maxDocs);
+    for (ScoreHeapCollector collector : collectors) {
+      for (int i = 1; i <= collector.size; i++) {
+        merged.insert(collector.heap[i]);
+      }
+    }
+    if (merged.size < maxDocs) {
+      //every hit is a top hit
+      return new Threshold(Float.NEGATIVE_INFINITY, merged.size, true);
+    }
+    float minScore = merged.heap[1];
+    int numAbove = 0;
+    for (int i = 1; i <= merged.size; i++) {
+      if (merged.heap[i] > minScore) {
+        numAbove++;
+      }
+    }
+    return new Threshold(minScore, maxDocs - numAbove, false);
+  }
+
+  /**
+   * Documents with a score above {@link #minScore} are top hits, and so are
+   * the {@link #numTies} documents with the lowest doc ids among those with
+   * a score equal to <code>minScore</code>.
+   */
+  static class Threshold {
+    final float minScore;
+    final int numTies;
+    //whether all hits are top hits
+    final boolean all;
+
+    Threshold(float minScore, int numTies, boolean all) {
+      this.minScore = minScore;
+      this.numTies = numTies;
+      this.all = all;
+    }
+  }
+
+  /**
+   * Keeps the top scores in a 1-based min-heap
+   */
+  static class ScoreHeapCollector extends SimpleCollector {
+    private final float[] heap;
+    private final int maxSize;
+    private int size = 0;
+    private Scorable scorer;
+
+    ScoreHeapCollector(int maxSize) {
+      this.maxSize = maxSize;
+      this.heap = new float[maxSize + 1];
+    }
+
+    @Override
+    public void setScorer(Scorable scorer) {
+      this.scorer = scorer;
+    }
+
+    @Override
+    public void collect(int doc) throws IOException {
+      insert(scorer.score());
+    }
+
+    void insert(float score) {
+      if (size < maxSize) {
+        heap[++size] = score;
+        upHeap(size);
+      } else if (score > heap[1]) {
+        heap[1] = score;
+        downHeap(1);
+      }
+    }
+
+    private void upHeap(int i) {
+      float score = heap[i];
+      int j = i >>> 1;
+      while (j > 0 && score < heap[j]) {
+        heap[i] = heap[j];
+        i = j;
+        j = j >>> 1;
+      }
+      heap[i] = score;
+    }
+
+    private void downHeap(int i) {
+      float score = heap[i];
+      int j = i << 1;
+      int k = j + 1;
+      if (k <= size && heap[k] < heap[j]) {
+        j = k;
+      }
+      while (j <= size && heap[j] < score) {
+        heap[i] = heap[j];
+        i = j;
+        j = i << 1;
+        k = j + 1;
+        if (k <= size && heap[k] < heap[j]) {
+          j = k;
+        }
+      }
+      heap[i] = score;
+    }
+
+    @Override
+    public ScoreMode scoreMode() {
+      return ScoreMode.COMPLETE;
+    }
+  }
+}
@@ -0,0 +1,303 @@
+package org.tallison.lucene.corpus.stats;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.StringHelper;
+
+/**
+ * Thread-safe cache of document frequencies keyed by field and term bytes.
+ * <p>
+ * {@link #forReader(IndexReader)} returns one cache per reader, so every
+ * {@link IDFIndexCalc} on that reader shares the same lookups; the cache is
+ * dropped when the reader is closed.  Because a reader is a point-in-time view
+ * of the index, cached document frequencies never go stale.
+ * <p>
+ * The entries are stored in primitive arrays with open addressing, and the
+ * terms' bytes in a single byte pool.  The cache is bounded by RAM with two
+ * generations: when an entry would take the current generation over half of
+ * <code>maxRamBytes</code>, it becomes the previous generation and the old previous
+ * generation is discarded.
+ * Entries that are found in the previous generation are copied into the
+ * current one, so frequently used terms survive.
+ */
+public class DocFreqCache implements Accountable {
+
+  public static final long DEFAULT_MAX_RAM_BYTES = 32L * 1024 * 1024;
+
+  private static final Map<IndexReader.CacheKey, DocFreqCache> READER_CACHES = new HashMap<>();
+
+  private final long maxRamBytes;
+  private final Map<String, Integer> fieldOrds = new HashMap<>();
+  private Table current = new Table();
+  private Table previous = null;
+  private long hits = 0;
+  private long misses = 0;
+
+  /**
+   * @param maxRamBytes maximum number of bytes used by the cache, as reported
+   *                    by {@link #ramBytesUsed()}
+   */
+  public DocFreqCache(long maxRamBytes) {
+    if (maxRamBytes < 1024) {
+      throw new IllegalArgumentException("maxRamBytes must be >= 1024: " + maxRamBytes);
+    }
+    this.maxRamBytes = maxRamBytes;
+  }
+
+  /**
+   * @param reader reader
+   * @return the cache that is shared by everything that uses this reader,
+   * with a maximum size of {@link #DEFAULT_MAX_RAM_BYTES}; if the reader
+   * does not have a cache helper, a new cache that is not shared
+   */
+  public static DocFreqCache forReader(IndexReader reader) {
+    IndexReader.CacheHelper cacheHelper = reader.getReaderCacheHelper();
+    if (cacheHelper == null) {
+      return new DocFreqCache(DEFAULT_MAX_RAM_BYTES);
+    }
+    IndexReader.CacheKey key = cacheHelper.getKey();
+    synchronized (READER_CACHES) {
+      DocFreqCache cache = READER_CACHES.get(key);
+      if (cache == null) {
+        cache = new DocFreqCache(DEFAULT_MAX_RAM_BYTES);
+        READER_CACHES.put(key, cache);
+        cacheHelper.addClosedListener(new IndexReader.ClosedListener() {
+          @Override
+          public void onClose(IndexReader.CacheKey closedKey) {
+            synchronized (READER_CACHES) {
+              READER_CACHES.remove(closedKey);
+            }
+          }
+        });
+      }
+      return cache;
+    }
+  }
+
+  /**
+   * @param field field
+   * @param term  term
+   * @return cached document frequency or -1 if it is not cached
+   */
+  public synchronized int get(String field, BytesRef term) {
+    Integer fieldOrd = fieldOrds.get(field);
+    if (fieldOrd == null) {
+      misses++;
+      return -1;
+    }
+    int hash = hash(fieldOrd, term);
+    int df = current.get(fieldOrd, term, hash);
+    if (df < 0 && previous != null) {
+      df = previous.get(fieldOrd, term, hash);
+      if (df > -1) {
+        //promote
+        add(fieldOrd, term, hash, df);
+      }
+    }
+    if (df < 0) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return df;
+  }
+
+  /**
+   * @param field field
+   * @param term  term
+   * @param df    document frequency of the term in the field
+   */
+  public synchronized void put(String field, BytesRef term, int df) {
+    Integer fieldOrd = fieldOrds.get(field);
+    if (fieldOrd == null) {
+      fieldOrd = fieldOrds.size();
+      fieldOrds.put(field, fieldOrd);
+    }
+    add(fieldOrd, term, hash(fieldOrd, term), df);
+  }
+
+  private void add(int fieldOrd, BytesRef term, int hash, int df) {
+    //rotate before the put, so that its growth can't push the current generation over
+    if (current.ramBytesUsedAfterPut(term.length) > maxRamBytes / 2) {
+      Table empty = new Table();
+      if (empty.ramBytesUsedAfterPut(term.length) > maxRamBytes / 2) {
+        //a term this long would not fit even in an empty generation
+        return;
+      }
+      previous = current;
+      current = empty;
+    }
+    current.put(fieldOrd, term, hash, df);
+  }
+
+  private static int hash(int fieldOrd, BytesRef term) {
+    return StringHelper.murmurhash3_x86_32(term.bytes, term.offset, term.length, fieldOrd);
+  }
+
+  /**
+   * @return number of {@link #get(String, BytesRef)} calls that found a document frequency
+   */
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  /**
+   * @return number of {@link #get(String, BytesRef)} calls that did not
+   */
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  /**
+   * @return number of cached entries, counting entries in both generations once each
+   */
+  public synchronized int size() {
+    return current.size + ((previous == null) ? 0 : previous.size);
+  }
+
+  /**
+   * Removes all entries
+   */
+  public synchronized void clear() {
+    current = new Table();
+    previous = null;
+  }
+
+  @Override
+  public synchronized long ramBytesUsed() {
+    return current.ramBytesUsed() + ((previous == null) ? 0 : previous.ramBytesUsed());
+  }
+
+  /**
+   * Open-addressed hash table with linear probing, in parallel arrays
+   */
+  private static class Table {
+    //entry + 1, or 0 if empty
+    private int[] slots = new int[16];
+    private int[] hashes = new int[8];
+    private int[] fieldOrds = new int[8];
+    private int[] offsets = new int[8];
+    private int[] lengths = new int[8];
+    private int[] dfs = new int[8];
+    private byte[] pool = new byte[64];
+    private int poolSize = 0;
+    private int size = 0;
+
+    int get(int fieldOrd, BytesRef term, int hash) {
+      int mask = slots.length - 1;
+      for (int slot = hash & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+        int entry = slots[slot] - 1;
+        if (matches(entry, fieldOrd, term, hash)) {
+          return dfs[entry];
+        }
+      }
+      return -1;
+    }
+
+    void put(int fieldOrd, BytesRef term, int hash, int df) {
+      int mask = slots.length - 1;
+      int slot = hash & mask;
+      for (; slots[slot] != 0; slot = (slot + 1) & mask) {
+        int entry = slots[slot] - 1;
+        if (matches(entry, fieldOrd, term, hash)) {
+          dfs[entry] = df;
+          return;
+        }
+      }
+      int entry = size++;
+      hashes = ArrayUtil.grow(hashes, size);
+      fieldOrds = ArrayUtil.grow(fieldOrds, size);
+      offsets = ArrayUtil.grow(offsets, size);
+      lengths = ArrayUtil.grow(lengths, size);
+      dfs = ArrayUtil.grow(dfs, size);
+      pool = ArrayUtil.grow(pool, poolSize + term.length);
+      System.arraycopy(term.bytes, term.offset, pool, poolSize, term.length);
+      hashes[entry] = hash;
+      fieldOrds[entry] = fieldOrd;
+      offsets[entry] = poolSize;
+      lengths[entry] = term.length;
+      dfs[entry] = df;
+      poolSize += term.length;
+      slots[slot] = entry + 1;
+      //keep the load factor <= 0.5
+      if (size * 2 > slots.length) {
+        rehash();
+      }
+    }
+
+    private boolean matches(int entry, int fieldOrd, BytesRef term, int hash) {
+      if (hashes[entry] != hash || fieldOrds[entry] != fieldOrd || lengths[entry] != term.length) {
+        return false;
+      }
+      int offset = offsets[entry];
+      for (int i = 0; i < term.length; i++) {
+        if (pool[offset + i] != term.bytes[term.offset + i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void rehash() {
+      int[] newSlots = new int[slots.length * 2];
+      int mask = newSlots.length - 1;
+      for (int entry = 0; entry < size; entry++) {
+        int slot = hashes[entry] & mask;
+        while (newSlots[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        newSlots[slot] = entry + 1;
+      }
+      slots = newSlots;
+    }
+
+    long ramBytesUsed() {
+      return RamUsageEstimator.sizeOf(slots) + RamUsageEstimator.sizeOf(hashes)
+          + RamUsageEstimator.sizeOf(fieldOrds) + RamUsageEstimator.sizeOf(offsets)
+          + RamUsageEstimator.sizeOf(lengths) + RamUsageEstimator.sizeOf(dfs)
+          + RamUsageEstimator.sizeOf(pool);
+    }
+
+    /**
+     * @return an upper bound on {@link #ramBytesUsed()} after a new entry with a term
+     * of this length is put, counting the arrays' growth and the rehash
+     */
+    long ramBytesUsedAfterPut(int termLength) {
+      int newSize = size + 1;
+      int numSlots = (newSize * 2 > slots.length) ? slots.length * 2 : slots.length;
+      int entryLength = (newSize > dfs.length) ?
+          ArrayUtil.oversize(newSize, Integer.BYTES) : dfs.length;
+      int poolLength = (poolSize + termLength > pool.length) ?
+          ArrayUtil.oversize(poolSize + termLength, Byte.BYTES) : pool.length;
+      return intArrayBytes(numSlots) + 5 * intArrayBytes(entryLength)
+          + RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + (long) poolLength);
+    }
+
+    private static long intArrayBytes(int length) {
+      return RamUsageEstimator.alignObjectSize(
+          RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + (long) Integer.BYTES * length);
+    }
+  }
+}
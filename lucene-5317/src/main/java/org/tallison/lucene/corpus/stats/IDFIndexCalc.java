@@ -18,20 +18,98 @@ package org.tallison.lucene.corpus.stats;
 
 
 import java.io.IOException;
+import java.util.Arrays;
+
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
 
 /**
  * Lucene-agnostic IDF calculator
+ * <p>
+ * Document frequencies are cached in a {@link DocFreqCache}.  By default,
+ * this is the cache for the reader ({@link DocFreqCache#forReader(IndexReader)}),
+ * so every calculator on the same reader shares the same lookups.
  */
 
 public class IDFIndexCalc extends IDFCalc {
 
+  private static final byte SPACE = (byte) ' ';
+
   private final IndexReader reader;
+  private final DocFreqCache cache;
+  private final TermStatsSnapshot snapshot;
 
   public IDFIndexCalc(IndexReader reader) {
+    this(reader, DocFreqCache.forReader(reader));
+  }
+
+  /**
+   * @param reader reader
+   * @param cache  cache of document frequencies for this reader
+   */
+  public IDFIndexCalc(IndexReader reader, DocFreqCache cache) {
+    this(reader, cache, null);
+  }
+
+  /**
+   * @param reader   reader
+   * @param cache    cache of document frequencies for this reader
+   * @param snapshot snapshot of the reader's commit, see {@link TermStatsSnapshot#load(
+   *                 org.apache.lucene.store.Directory, org.apache.lucene.index.DirectoryReader)};
+   *                 terms in the snapshot are never looked up in the reader. Can be null.
+   */
+  public IDFIndexCalc(IndexReader reader, DocFreqCache cache, TermStatsSnapshot snapshot) {
     super(reader.numDocs());
+    if (snapshot != null && snapshot.getNumDocs() != reader.numDocs()) {
+      throw new IllegalArgumentException("The snapshot has " + snapshot.getNumDocs() +
+          " documents, but the reader has " + reader.numDocs());
+    }
     this.reader = reader;
+    this.cache = cache;
+    this.snapshot = snapshot;
+  }
+
+  /**
+   * @param t term
+   * @return document frequency of the term, from the cache if possible
+   * @throws IOException if encountered by underlying reader
+   */
+  public int docFreq(Term t) throws IOException {
+    int df = snapshotDocFreq(t.field(), t.bytes());
+    if (df > -1) {
+      return df;
+    }
+    df = cache.get(t.field(), t.bytes());
+    if (df < 0) {
+      df = reader.docFreq(t);
+      cache.put(t.field(), t.bytes(), df);
+    }
+    return df;
+  }
+
+  //df from the snapshot, or -1 if the snapshot doesn't know it
+  private int snapshotDocFreq(String field, BytesRef term) throws IOException {
+    if (snapshot == null) {
+      return -1;
+    }
+    int df = snapshot.docFreq(field, term);
+    if (df < 0 && snapshot.isComplete(field)) {
+      return 0;
+    }
+    return df;
+  }
+
+  /**
+   * @return the cache of document frequencies
+   */
+  public DocFreqCache getDocFreqCache() {
+    return cache;
   }
 
 
@@ -42,7 +120,7 @@ public class IDFIndexCalc extends IDFCalc {
    * @throws java.io.IOException if encountered by underlying reader
    */
   public double singleTermIDF(Term t) throws IOException {
-    return getIDF(reader.docFreq(t));
+    return getIDF(docFreq(t));
   }
 
   /**
@@ -67,7 +145,7 @@ public class IDFIndexCalc extends IDFCalc {
     double sum = 0.0;
     for (String termString : s.trim().split(" +")) {
       Term tmp = new Term(t.field(), termString);
-      sum += getIDF(reader.docFreq(tmp));
+      sum += getIDF(docFreq(tmp));
     }
     return sum;
   }
@@ -84,7 +162,7 @@ public class IDFIndexCalc extends IDFCalc {
     double[] stats = new double[]{0.0, Double.MAX_VALUE}; // sum, min df, ...
     for (String termString : s.trim().split(" +")) {
       Term tmp = new Term(t.field(), termString);
-      int df = reader.docFreq(tmp);
+      int df = docFreq(tmp);
       double idf = getIDF(df);
       stats[0] += idf;
 
@@ -97,4 +175,134 @@ public class IDFIndexCalc extends IDFCalc {
   public double[] multiTermStats(String s, String field) throws IOException {
     return multiTermIDF(s, new Term(field, ""));
   }
+
+  /**
+   * Bulk equivalent of {@link #multiTermIDF(String, Term)}.  Every gram
+   * is split on spaces, and the document frequencies of all of the unique
+   * subterms are looked up in one pass over the index
+   * (see {@link #docFreqs(String, BytesRef[])}).
+   *
+   * @param field field
+   * @param grams utf-8 encoded, space-delimited grams
+   * @return for each gram, a double[] of length 2 as in {@link #multiTermIDF(String, Term)}
+   * @throws IOException if encountered by underlying reader
+   */
+  public double[][] multiTermIDFs(String field, BytesRef[] grams) throws IOException {
+    int[] numSubterms = new int[grams.length];
+    BytesRef[] subterms = new BytesRef[grams.length];
+    int total = 0;
+    for (int i = 0; i < grams.length; i++) {
+      BytesRef gram = grams[i];
+      int end = gram.offset + gram.length;
+      int start = gram.offset;
+      for (int j = gram.offset; j <= end; j++) {
+        if (j == end || gram.bytes[j] == SPACE) {
+          if (j > start) {
+            subterms = ArrayUtil.grow(subterms, total + 1);
+            subterms[total++] = new BytesRef(gram.bytes, start, j - start);
+            numSubterms[i]++;
+          }
+          start = j + 1;
+        }
+      }
+      if (numSubterms[i] == 0) {
+        //same as splitting an empty string
+        subterms = ArrayUtil.grow(subterms, total + 1);
+        subterms[total++] = new BytesRef();
+        numSubterms[i]++;
+      }
+    }
+    if (total < subterms.length) {
+      subterms = Arrays.copyOf(subterms, total);
+    }
+    int[] dfs = docFreqs(field, subterms);
+
+    double[][] stats = new double[grams.length][];
+    int subtermIndex = 0;
+    for (int i = 0; i < grams.length; i++) {
+      double[] gramStats = new double[]{0.0, Double.MAX_VALUE};
+      for (int j = 0; j < numSubterms[i]; j++) {
+        int df = dfs[subtermIndex++];
+        gramStats[0] += getIDF(df);
+        if (df < gramStats[1]) {
+          gramStats[1] = df;
+        }
+      }
+      stats[i] = gramStats;
+    }
+    return stats;
+  }
+
+  /**
+   * Looks up the document frequencies for many terms in one field.
+   * <p>
+   * Terms that are in the {@link TermStatsSnapshot}, if there is one, or that
+   * have been seen before are served without touching the index.
+   * The others are deduplicated, sorted in {@link BytesRef} order and
+   * looked up with a single forward pass of ordered seeks over each segment's
+   * {@link TermsEnum}, instead of a fresh seek in every segment for each term
+   * as with {@link IndexReader#docFreq(Term)}.
+   *
+   * @param field field
+   * @param terms terms to look up; these are not modified
+   * @return document frequency for each term, in the order of <code>terms</code>
+   * @throws IOException if encountered by underlying reader
+   */
+  public int[] docFreqs(String field, BytesRef[] terms) throws IOException {
+    int[] dfs = new int[terms.length];
+    BytesRefHash misses = new BytesRefHash();
+    //ord in misses, or -1 if the df was cached
+    int[] missOrds = new int[terms.length];
+    for (int i = 0; i < terms.length; i++) {
+      int df = snapshotDocFreq(field, terms[i]);
+      if (df < 0) {
+        df = cache.get(field, terms[i]);
+      }
+      if (df > -1) {
+        dfs[i] = df;
+        missOrds[i] = -1;
+      } else {
+        int ord = misses.add(terms[i]);
+        missOrds[i] = (ord < 0) ? -ord - 1 : ord;
+      }
+    }
+    if (misses.size() == 0) {
+      return dfs;
+    }
+    int[] missDfs = new int[misses.size()];
+    int[] sorted = misses.sort();
+    BytesRef scratch = new BytesRef();
+    for (LeafReaderContext ctx : reader.leaves()) {
+      Terms leafTerms = ctx.reader().terms(field);
+      if (leafTerms == null) {
+        continue;
+      }
+      TermsEnum termsEnum = leafTerms.iterator();
+      BytesRef current = null;
+      for (int i = 0; i < missDfs.length; i++) {
+        int ord = sorted[i];
+        BytesRef term = misses.get(ord, scratch);
+        //the enum is already past this term, so it isn't in this segment
+        if (current != null && current.compareTo(term) > 0) {
+          continue;
+        }
+        TermsEnum.SeekStatus status = termsEnum.seekCeil(term);
+        if (status == TermsEnum.SeekStatus.END) {
+          break;
+        } else if (status == TermsEnum.SeekStatus.FOUND) {
+          missDfs[ord] += termsEnum.docFreq();
+        }
+        current = termsEnum.term();
+      }
+    }
+    for (int i = 0; i < terms.length; i++) {
+      if (missOrds[i] > -1) {
+        dfs[i] = missDfs[missOrds[i]];
+      }
+    }
+    for (int i = 0; i < missDfs.length; i++) {
+      cache.put(field, misses.get(i, scratch), missDfs[i]);
+    }
+    return dfs;
+  }
 }
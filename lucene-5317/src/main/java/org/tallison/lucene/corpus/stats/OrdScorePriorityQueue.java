@@ -0,0 +1,167 @@
+package org.tallison.lucene.corpus.stats;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+/**
+ * Bounded min-heap of (ordinal, score) pairs stored in parallel primitive
+ * arrays.  Like {@link org.apache.lucene.util.PriorityQueue#insertWithOverflow(Object)},
+ * this keeps the <code>maxSize</code> "greatest" entries; nothing is allocated
+ * per insert.
+ * <p>
+ * Subclasses define the order for ties on score, typically by comparing
+ * the terms that the ordinals refer to.
+ */
+public abstract class OrdScorePriorityQueue {
+
+  private final int maxSize;
+  //1-based heap, like Lucene's PriorityQueue
+  private final int[] ords;
+  private final double[] scores;
+  private int size = 0;
+
+  public OrdScorePriorityQueue(int maxSize) {
+    if (maxSize < 0) {
+      throw new IllegalArgumentException("maxSize must be >= 0: " + maxSize);
+    }
+    this.maxSize = maxSize;
+    ords = new int[maxSize + 1];
+    scores = new double[maxSize + 1];
+  }
+
+  /**
+   * @param ordA ordinal of a
+   * @param ordB ordinal of b
+   * @return whether a is less than b when a and b have the same score
+   */
+  protected abstract boolean tieBreakLessThan(int ordA, int ordB);
+
+  private boolean lessThan(int ordA, double scoreA, int ordB, double scoreB) {
+    if (scoreA < scoreB) {
+      return true;
+    } else if (scoreA == scoreB) {
+      return tieBreakLessThan(ordA, ordB);
+    }
+    return false;
+  }
+
+  /**
+   * Add the ordinal if the queue isn't full or if it is greater
+   * than the least element in the queue.
+   *
+   * @param ord ordinal
+   * @param score score of the ordinal
+   * @return whether or not the ordinal was added
+   */
+  public boolean insertWithOverflow(int ord, double score) {
+    if (size < maxSize) {
+      size++;
+      ords[size] = ord;
+      scores[size] = score;
+      upHeap(size);
+      return true;
+    } else if (size > 0 && lessThan(ords[1], scores[1], ord, score)) {
+      ords[1] = ord;
+      scores[1] = score;
+      downHeap(1);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * @return whether an ordinal with this score could possibly make it into the queue
+   */
+  public boolean isCompetitive(double score) {
+    return size < maxSize || (size > 0 && score >= scores[1]);
+  }
+
+  /**
+   * @return least ordinal in the queue; undefined if the queue is empty
+   */
+  public int topOrd() {
+    return ords[1];
+  }
+
+  /**
+   * @return score of the least ordinal in the queue; undefined if the queue is empty
+   */
+  public double topScore() {
+    return scores[1];
+  }
+
+  /**
+   * Removes the least ordinal.
+   *
+   * @return the least ordinal
+   */
+  public int pop() {
+    if (size == 0) {
+      throw new IllegalStateException("queue is empty");
+    }
+    int result = ords[1];
+    ords[1] = ords[size];
+    scores[1] = scores[size];
+    size--;
+    downHeap(1);
+    return result;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public void clear() {
+    size = 0;
+  }
+
+  private void upHeap(int i) {
+    int ord = ords[i];
+    double score = scores[i];
+    int j = i >>> 1;
+    while (j > 0 && lessThan(ord, score, ords[j], scores[j])) {
+      ords[i] = ords[j];
+      scores[i] = scores[j];
+      i = j;
+      j = j >>> 1;
+    }
+    ords[i] = ord;
+    scores[i] = score;
+  }
+
+  private void downHeap(int i) {
+    int ord = ords[i];
+    double score = scores[i];
+    int j = i << 1;
+    int k = j + 1;
+    if (k <= size && lessThan(ords[k], scores[k], ords[j], scores[j])) {
+      j = k;
+    }
+    while (j <= size && lessThan(ords[j], scores[j], ord, score)) {
+      ords[i] = ords[j];
+      scores[i] = scores[j];
+      i = j;
+      j = i << 1;
+      k = j + 1;
+      if (k <= size && lessThan(ords[k], scores[k], ords[j], scores[j])) {
+        j = k;
+      }
+    }
+    ords[i] = ord;
+    scores[i] = score;
+  }
+}
@@ -0,0 +1,65 @@
+package org.tallison.lucene.corpus.stats;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * {@link OrdScorePriorityQueue} of tfidf scores in the same order as
+ * {@link TFIDFPriorityQueue}: ascending tfidf, then descending term.
+ * <p>
+ * The ordinals index into the array of terms that the queue is built with.
+ * Callers that would rather not build the terms up front can subclass and
+ * override {@link #compareTerms(int, int)} instead.
+ */
+public class TFIDFOrdPriorityQueue extends OrdScorePriorityQueue {
+
+  private final BytesRef[] terms;
+
+  /**
+   * @param maxSize maximum number of ordinals to keep
+   * @param terms   term for each ordinal
+   */
+  public TFIDFOrdPriorityQueue(int maxSize, BytesRef[] terms) {
+    super(maxSize);
+    this.terms = terms;
+  }
+
+  /**
+   * For subclasses that override {@link #compareTerms(int, int)}.
+   *
+   * @param maxSize maximum number of ordinals to keep
+   */
+  protected TFIDFOrdPriorityQueue(int maxSize) {
+    this(maxSize, null);
+  }
+
+  @Override
+  protected final boolean tieBreakLessThan(int ordA, int ordB) {
+    return compareTerms(ordA, ordB) > 0;
+  }
+
+  /**
+   * @param ordA ordinal of a
+   * @param ordB ordinal of b
+   * @return the order of the term of a relative to the term of b
+   */
+  protected int compareTerms(int ordA, int ordB) {
+    return terms[ordA].compareTo(terms[ordB]);
+  }
+}
@@ -22,11 +22,25 @@ public class TermIDF extends TermDFTF {
   private static double NEG_PRECISION_COMPARE = -1.0f*PRECISION_COMPARE;
   private double idf;
   private double tfidf;
+  private final long termFreqError;
 
   public TermIDF(String term, int docFreq, int termFreq, double idf) {
+    this(term, docFreq, termFreq, idf, 0);
+  }
+
+  /**
+   * @param term          term
+   * @param docFreq       document frequency
+   * @param termFreq      term frequency; this may be an overestimate
+   * @param idf           inverse document frequency
+   * @param termFreqError maximum amount by which <code>termFreq</code>
+   *                      may overestimate the true term frequency
+   */
+  public TermIDF(String term, int docFreq, int termFreq, double idf, long termFreqError) {
     super(term, docFreq, termFreq);
     this.idf = idf;
     this.tfidf = termFreq * idf;
+    this.termFreqError = termFreqError;
   }
 
   public double getIDF() {
@@ -37,6 +51,14 @@ public class TermIDF extends TermDFTF {
     return tfidf;
   }
 
+  /**
+   * @return maximum amount by which {@link #getTermFreq()} may overestimate
+   * the true term frequency; 0 if the term frequency is exact
+   */
+  public long getTermFreqError() {
+    return termFreqError;
+  }
+
   /**
    * "natural order" is descending idf
    * then descending doc freq
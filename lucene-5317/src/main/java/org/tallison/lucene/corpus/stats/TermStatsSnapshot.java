@@ -0,0 +1,306 @@
+package org.tallison.lucene.corpus.stats;
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexCommit;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.ChecksumIndexInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.StringHelper;
+import org.apache.lucene.util.fst.Builder;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.PairOutputs;
+import org.apache.lucene.util.fst.PositiveIntOutputs;
+import org.apache.lucene.util.fst.Util;
+
+/**
+ * Snapshot of the term statistics of one commit of an index: for each field,
+ * an {@link FST} that maps each term to its document frequency and total term frequency.
+ * <p>
+ * {@link #write(DirectoryReader, Collection, int, Directory)} writes the snapshot for
+ * the reader's commit, optionally keeping only the terms with a minimum document frequency.
+ * The file name carries the commit generation.  The file carries the generation and
+ * the commit's segments id, and {@link #load(Directory, DirectoryReader)} refuses a
+ * snapshot from another commit, including one from another index whose commit
+ * happens to have the same generation.
+ * Once loaded, lookups never touch the index's terms dictionary; see
+ * {@link IDFIndexCalc#IDFIndexCalc(org.apache.lucene.index.IndexReader, DocFreqCache, TermStatsSnapshot)}.
+ */
+public class TermStatsSnapshot implements Accountable {
+
+  public static final String CODEC_NAME = "TermStatsSnapshot";
+  public static final int VERSION_START = 0;
+  public static final int VERSION_SEGMENTS_ID = 1;
+  public static final int VERSION_CURRENT = VERSION_SEGMENTS_ID;
+  private static final String FILE_PREFIX = "termstats";
+  private static final String FILE_EXTENSION = "fst";
+
+  private static final PairOutputs<Long, Long> OUTPUTS =
+      new PairOutputs<>(PositiveIntOutputs.getSingleton(), PositiveIntOutputs.getSingleton());
+
+  private final long generation;
+  private final int numDocs;
+  private final int minDocFreq;
+  //field -> fst; the fst is null if no terms in the field made the cut
+  private final Map<String, FST<PairOutputs.Pair<Long, Long>>> fsts;
+
+  private TermStatsSnapshot(long generation, int numDocs, int minDocFreq,
+                            Map<String, FST<PairOutputs.Pair<Long, Long>>> fsts) {
+    this.generation = generation;
+    this.numDocs = numDocs;
+    this.minDocFreq = minDocFreq;
+    this.fsts = fsts;
+  }
+
+  /**
+   * @param generation commit generation
+   * @return name of the snapshot file for the commit generation
+   */
+  public static String getFileName(long generation) {
+    return IndexFileNames.fileNameFromGeneration(FILE_PREFIX, FILE_EXTENSION, generation);
+  }
+
+  /**
+   * Writes the snapshot for the reader's commit to <code>dest</code>
+   *
+   * @param reader     reader
+   * @param fields     fields to include
+   * @param minDocFreq minimum document frequency for a term to be included
+   * @param dest       directory to write the snapshot to
+   * @return name of the file that was written
+   * @throws IOException if encountered by underlying reader or writer
+   */
+  public static String write(DirectoryReader reader, Collection<String> fields, int minDocFreq,
+                             Directory dest) throws IOException {
+    IndexCommit commit = reader.getIndexCommit();
+    long generation = commit.getGeneration();
+    byte[] segmentsId = getSegmentsId(commit);
+    String fileName = getFileName(generation);
+    IntsRefBuilder scratchInts = new IntsRefBuilder();
+    try (IndexOutput out = dest.createOutput(fileName, IOContext.DEFAULT)) {
+      CodecUtil.writeHeader(out, CODEC_NAME, VERSION_CURRENT);
+      out.writeLong(generation);
+      out.writeBytes(segmentsId, segmentsId.length);
+      out.writeVInt(reader.numDocs());
+      out.writeVInt(minDocFreq);
+      out.writeVInt(fields.size());
+      for (String field : fields) {
+        out.writeString(field);
+        Builder<PairOutputs.Pair<Long, Long>> builder = new Builder<>(FST.INPUT_TYPE.BYTE1, OUTPUTS);
+        Terms terms = MultiFields.getTerms(reader, field);
+        if (terms != null) {
+          TermsEnum termsEnum = terms.iterator();
+          BytesRef term;
+          while ((term = termsEnum.next()) != null) {
+            int df = termsEnum.docFreq();
+            if (df < minDocFreq) {
+              continue;
+            }
+            //totalTermFreq is -1 if frequencies aren't indexed
+            builder.add(Util.toIntsRef(term, scratchInts),
+                OUTPUTS.newPair((long) df, termsEnum.totalTermFreq() + 1));
+          }
+        }
+        FST<PairOutputs.Pair<Long, Long>> fst = builder.finish();
+        if (fst == null) {
+          out.writeByte((byte) 0);
+        } else {
+          out.writeByte((byte) 1);
+          fst.save(out);
+        }
+      }
+      CodecUtil.writeFooter(out);
+    }
+    return fileName;
+  }
+
+  /**
+   * Loads the snapshot for the reader's commit
+   *
+   * @param dir    directory with the snapshot
+   * @param reader reader on the commit that the snapshot was written for
+   * @return snapshot
+   * @throws IOException if the snapshot can't be read
+   * @throws IllegalArgumentException if the snapshot is for another commit
+   */
+  public static TermStatsSnapshot load(Directory dir, DirectoryReader reader) throws IOException {
+    return load(dir, reader.getIndexCommit());
+  }
+
+  /**
+   * @param dir    directory with the snapshot
+   * @param commit commit that the snapshot was written for
+   * @return snapshot
+   * @throws IOException if the snapshot can't be read
+   * @throws IllegalArgumentException if the snapshot is for another commit
+   */
+  public static TermStatsSnapshot load(Directory dir, IndexCommit commit) throws IOException {
+    long generation = commit.getGeneration();
+    try (ChecksumIndexInput in = dir.openChecksumInput(getFileName(generation), IOContext.READONCE)) {
+      CodecUtil.checkHeader(in, CODEC_NAME, VERSION_SEGMENTS_ID, VERSION_CURRENT);
+      long snapshotGeneration = in.readLong();
+      if (snapshotGeneration != generation) {
+        throw new IllegalArgumentException("Snapshot is for commit generation " + snapshotGeneration +
+            ", not " + generation);
+      }
+      byte[] snapshotSegmentsId = new byte[StringHelper.ID_LENGTH];
+      in.readBytes(snapshotSegmentsId, 0, snapshotSegmentsId.length);
+      byte[] segmentsId = getSegmentsId(commit);
+      if (! Arrays.equals(snapshotSegmentsId, segmentsId)) {
+        throw new IllegalArgumentException("Snapshot is for the commit with segments id " +
+            StringHelper.idToString(snapshotSegmentsId) + ", not " + StringHelper.idToString(segmentsId));
+      }
+      int numDocs = in.readVInt();
+      int minDocFreq = in.readVInt();
+      int numFields = in.readVInt();
+      Map<String, FST<PairOutputs.Pair<Long, Long>>> fsts = new HashMap<>();
+      for (int i = 0; i < numFields; i++) {
+        String field = in.readString();
+        FST<PairOutputs.Pair<Long, Long>> fst = null;
+        if (in.readByte() == 1) {
+          fst = new FST<>(in, OUTPUTS);
+        }
+        fsts.put(field, fst);
+      }
+      CodecUtil.checkFooter(in);
+      return new TermStatsSnapshot(generation, numDocs, minDocFreq, fsts);
+    }
+  }
+
+  /**
+   * The generation alone doesn't identify a commit: an index that is recreated
+   * in the same directory, or another index, can reach the same generation.
+   */
+  private static byte[] getSegmentsId(IndexCommit commit) throws IOException {
+    return SegmentInfos.readCommit(commit.getDirectory(), commit.getSegmentsFileName()).getId();
+  }
+
+  /**
+   * @param field field
+   * @param term  term
+   * @return document frequency or -1 if the term is not in the snapshot
+   * @throws IOException if encountered while reading the fst
+   */
+  public int docFreq(String field, BytesRef term) throws IOException {
+    PairOutputs.Pair<Long, Long> stats = get(field, term);
+    return (stats == null) ? -1 : stats.output1.intValue();
+  }
+
+  /**
+   * @param field field
+   * @param term  term
+   * @return total term frequency or -1 if the term is not in the snapshot
+   * or if the field doesn't index frequencies
+   * @throws IOException if encountered while reading the fst
+   */
+  public long totalTermFreq(String field, BytesRef term) throws IOException {
+    PairOutputs.Pair<Long, Long> stats = get(field, term);
+    return (stats == null) ? -1 : stats.output2 - 1;
+  }
+
+  private PairOutputs.Pair<Long, Long> get(String field, BytesRef term) throws IOException {
+    FST<PairOutputs.Pair<Long, Long>> fst = fsts.get(field);
+    return (fst == null) ? null : Util.get(fst, term);
+  }
+
+  /**
+   * @param field field
+   * @return whether the snapshot includes the field
+   */
+  public boolean hasField(String field) {
+    return fsts.containsKey(field);
+  }
+
+  /**
+   * @param field field
+   * @return whether the snapshot has every term in the field, i.e. whether
+   * a term that is missing from the snapshot has a document frequency of 0
+   */
+  public boolean isComplete(String field) {
+    return minDocFreq <= 1 && hasField(field);
+  }
+
+  public Set<String> getFields() {
+    return Collections.unmodifiableSet(fsts.keySet());
+  }
+
+  public long getGeneration() {
+    return generation;
+  }
+
+  public int getNumDocs() {
+    return numDocs;
+  }
+
+  public int getMinDocFreq() {
+    return minDocFreq;
+  }
+
+  @Override
+  public long ramBytesUsed() {
+    long bytes = 0;
+    for (FST<PairOutputs.Pair<Long, Long>> fst : fsts.values()) {
+      if (fst != null) {
+        bytes += fst.ramBytesUsed();
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Writes a snapshot of the latest commit of an index
+   *
+   * @param args index directory, snapshot directory, minimum document frequency, and one or more fields
+   * @throws IOException if the index can't be read or the snapshot can't be written
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 4) {
+      System.err.println("java " + TermStatsSnapshot.class.getName() +
+          " <indexDir> <snapshotDir> <minDocFreq> <field> [field...]");
+      System.exit(1);
+    }
+    try (Directory indexDir = FSDirectory.open(Paths.get(args[0]));
+         Directory snapshotDir = FSDirectory.open(Paths.get(args[1]));
+         DirectoryReader reader = DirectoryReader.open(indexDir)) {
+      int minDocFreq = Integer.parseInt(args[2]);
+      Collection<String> fields = Arrays.asList(args).subList(3, args.length);
+      String fileName = write(reader, fields, minDocFreq, snapshotDir);
+      System.out.println("Wrote " + fileName);
+    }
+  }
+}
@@ -14,47 +14,80 @@ public class SpansCrawler {
   public static void crawl(SpanQuery query, Query filter, IndexSearcher searcher,
                            DocTokenOffsetsVisitor visitor) throws IOException, TargetTokenNotFoundException {
 
+    SpanWeight w = createSpanWeight(query, searcher);
+    Weight searcherWeight = createFilterWeight(filter, searcher);
+    for (LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
+      boolean cont = crawlLeaf(w, searcherWeight, ctx, visitor);
+      if (!cont) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * @param query    query to rewrite and weight
+   * @param searcher searcher
+   * @return weight to pass to {@link #crawlLeaf(SpanWeight, Weight, LeafReaderContext, DocTokenOffsetsVisitor)}
+   * @throws IOException if there's an underlying IOException with the reader
+   */
+  public static SpanWeight createSpanWeight(SpanQuery query, IndexSearcher searcher) throws IOException {
     query = (SpanQuery) query.rewrite(searcher.getIndexReader());
+    return query.createWeight(searcher, ScoreMode.COMPLETE_NO_SCORES, 1.0f);
+  }
 
-    SpanWeight w = query.createWeight(searcher, ScoreMode.COMPLETE_NO_SCORES, 1.0f);
+  /**
+   * @param filter   filter to rewrite and weight, can be null
+   * @param searcher searcher
+   * @return weight to pass to {@link #crawlLeaf(SpanWeight, Weight, LeafReaderContext, DocTokenOffsetsVisitor)}
+   * or <code>null</code> if <code>filter</code> is null
+   * @throws IOException if there's an underlying IOException with the reader
+   */
+  public static Weight createFilterWeight(Query filter, IndexSearcher searcher) throws IOException {
     if (filter == null) {
-      for (LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
+      return null;
+    }
+    filter = searcher.rewrite(filter);
+    return searcher.createWeight(filter, ScoreMode.COMPLETE_NO_SCORES, 1.0f);
+  }
 
-        Spans spans = w.getSpans(ctx, SpanWeight.Postings.POSITIONS);
-        if (spans == null) {
-          continue;
-        }
-        boolean cont = visitLeafReader(ctx, spans, visitor);
-        if (!cont) {
-          break;
-        }
+  /**
+   * Crawl a single leaf.  This may be called on different leaves from different
+   * threads with the same weights, as long as each thread has its own visitor.
+   *
+   * @param spanWeight   weight from {@link #createSpanWeight(SpanQuery, IndexSearcher)}
+   * @param filterWeight weight from {@link #createFilterWeight(Query, IndexSearcher)}, can be null
+   * @param ctx          leaf to crawl
+   * @param visitor      visitor
+   * @return whether or not to keep crawling
+   * @throws IOException if there's an underlying IOException with the reader
+   * @throws TargetTokenNotFoundException if the visitor can't find the target token
+   */
+  public static boolean crawlLeaf(SpanWeight spanWeight, Weight filterWeight, LeafReaderContext ctx,
+                                  DocTokenOffsetsVisitor visitor) throws IOException, TargetTokenNotFoundException {
+    if (filterWeight == null) {
+      Spans spans = spanWeight.getSpans(ctx, SpanWeight.Postings.POSITIONS);
+      if (spans == null) {
+        return true;
       }
-    } else {
-      filter = searcher.rewrite(filter);
-      Weight searcherWeight = searcher.createWeight(filter, ScoreMode.COMPLETE_NO_SCORES, 1.0f);
-      for (LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
-        Scorer leafReaderContextScorer = searcherWeight.scorer(ctx);
-        if (leafReaderContextScorer == null) {
-          continue;
-        }
-        //Can we tell from the scorer that there were no hits?
-        //in <= 5.x we could stop here if the filter query had no hits.
+      return visitLeafReader(ctx, spans, visitor);
+    }
+    Scorer leafReaderContextScorer = filterWeight.scorer(ctx);
+    if (leafReaderContextScorer == null) {
+      return true;
+    }
+    //Can we tell from the scorer that there were no hits?
+    //in <= 5.x we could stop here if the filter query had no hits.
 
-        Spans spans = w.getSpans(ctx, SpanWeight.Postings.POSITIONS);
-        if (spans == null) {
-          continue;
-        }
-        DocIdSetIterator filterItr = leafReaderContextScorer.iterator();
+    Spans spans = spanWeight.getSpans(ctx, SpanWeight.Postings.POSITIONS);
+    if (spans == null) {
+      return true;
+    }
+    DocIdSetIterator filterItr = leafReaderContextScorer.iterator();
 
-        if (filterItr == null || filterItr.equals(DocIdSetIterator.empty())) {
-          continue;
-        }
-        boolean cont = visitLeafReader(ctx, spans, filterItr, visitor);
-        if (!cont) {
-          break;
-        }
-      }
+    if (filterItr == null || filterItr.equals(DocIdSetIterator.empty())) {
+      return true;
     }
+    return visitLeafReader(ctx, spans, filterItr, visitor);
   }
 
   static boolean visitLeafReader(LeafReaderContext leafCtx,
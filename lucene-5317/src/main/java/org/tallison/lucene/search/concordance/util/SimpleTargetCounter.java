@@ -29,6 +29,7 @@ import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreMode;
 import org.apache.lucene.search.TotalHitCountCollector;
 import org.apache.lucene.search.Weight;
+import org.tallison.lucene.corpus.stats.IDFIndexCalc;
 import org.tallison.lucene.search.concordance.windowvisitor.TargetVisitor;
 
 public class SimpleTargetCounter {
@@ -56,10 +57,12 @@ public class SimpleTargetCounter {
 
     Map<String, Integer> dfs = new HashMap<>();
     Map<String, Integer> tfs = new HashMap<>();
+    //shares the reader's cached document frequencies
+    IDFIndexCalc idfCalc = new IDFIndexCalc(searcher.getIndexReader());
 
     for (Term t : terms) {
       String targ = t.text();
-      int docFreq = searcher.getIndexReader().docFreq(t);
+      int docFreq = idfCalc.docFreq(t);
       if (docFreq == 0) {
         continue;
       }
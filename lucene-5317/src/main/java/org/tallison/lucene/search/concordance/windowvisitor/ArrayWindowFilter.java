@@ -0,0 +1,35 @@
+package org.tallison.lucene.search.concordance.windowvisitor;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Decides which windows are passed on to the visitor, e.g. to drop
+ * near-duplicate windows before they are counted.  See
+ * {@link ConcordanceArrayWindowSearcher#setWindowFilter(ArrayWindowFilter)}.
+ * <p>
+ * A filter is shared by all of the leaves in a parallel search, so
+ * implementations must be thread safe.
+ */
+public interface ArrayWindowFilter {
+
+  /**
+   * @param window window that has just been built
+   * @return whether or not the visitor should visit the window
+   */
+  boolean accept(ConcordanceArrayWindow window);
+}
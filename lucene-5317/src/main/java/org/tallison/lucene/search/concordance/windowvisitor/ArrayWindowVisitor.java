@@ -20,9 +20,18 @@ package org.tallison.lucene.search.concordance.windowvisitor;
 import java.io.IOException;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Interface for visiting a WindowArray
+ * <p>
+ * A visitor is a single-threaded accumulator.  To search in parallel,
+ * {@link ConcordanceArrayWindowSearcher} creates one visitor per leaf with an
+ * {@link ArrayWindowVisitorFactory}, and then combines them with
+ * {@link #merge(ArrayWindowVisitor)} before {@link #getResults()} is called.
+ * The leaves' visitors share a single window counter so that
+ * {@link #getMaxWindows()} is a global budget; implementations should call
+ * {@link #acquireWindow()} before counting a window.
  */
 public abstract class ArrayWindowVisitor<T> {
 
@@ -39,6 +48,8 @@ public abstract class ArrayWindowVisitor<T> {
   private Set<String> docsVisited = new HashSet<String>();
   private boolean hitMax = false;
   private long windowsVisited = 0;
+  //window count shared by visitors in a parallel search; null if not shared
+  private AtomicLong sharedWindowCount = null;
 
   public ArrayWindowVisitor(String fieldName, int tokensBefore, int tokensAfter,
                             boolean includeTarget, boolean analyzeTarget, int maxWindows) {
@@ -61,6 +72,91 @@ public abstract class ArrayWindowVisitor<T> {
   abstract public void visit(String docId, ConcordanceArrayWindow window)
       throws IOException;
 
+  /**
+   * Reserve a window from the budget of {@link #getMaxWindows()}.  If this visitor
+   * shares its window count with other visitors, the window is counted against the
+   * shared budget as soon as it is acquired.
+   * <p>
+   * If this returns false, the budget is exhausted, and {@link #getHitMax()} will
+   * return true.
+   *
+   * @return whether or not the window may be counted
+   */
+  protected boolean acquireWindow() {
+    if (sharedWindowCount == null) {
+      if (windowsVisited >= maxWindows) {
+        hitMax = true;
+        return false;
+      }
+      return true;
+    }
+    while (true) {
+      long current = sharedWindowCount.get();
+      if (current >= maxWindows) {
+        hitMax = true;
+        return false;
+      }
+      if (sharedWindowCount.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * @param sharedWindowCount window count to share with other visitors in a parallel search
+   */
+  void setSharedWindowCount(AtomicLong sharedWindowCount) {
+    this.sharedWindowCount = sharedWindowCount;
+  }
+
+  /**
+   * Called in a parallel search on the visitor of every leaf after the first one,
+   * so that state that has to span the whole search, e.g. the windows that have
+   * already been seen, can be shared with the first leaf's visitor.  This default
+   * shares nothing.
+   *
+   * @param first visitor of the first leaf
+   */
+  void shareSearchState(ArrayWindowVisitor<T> first) {
+  }
+
+  /**
+   * Merge the partial results of another visitor into this one.  The other visitor
+   * must have been built with the same settings and must have visited a disjoint set
+   * of documents, as with the visitors from one
+   * {@link ConcordanceArrayWindowSearcher#search(org.apache.lucene.search.IndexSearcher, String,
+   * org.apache.lucene.search.Query, org.apache.lucene.search.Query, org.apache.lucene.analysis.Analyzer,
+   * ArrayWindowVisitorFactory, org.tallison.lucene.search.concordance.classic.DocIdBuilder,
+   * java.util.concurrent.ExecutorService)}.
+   * <p>
+   * Implementations should call {@link #mergeVisitCounts(ArrayWindowVisitor)}
+   * and then merge their own state.
+   *
+   * @param other visitor to merge into this one
+   */
+  public abstract void merge(ArrayWindowVisitor<T> other);
+
+  /**
+   * Merge the document and window counts and the hitMax flag from the other visitor
+   *
+   * @param other visitor to merge into this one
+   */
+  protected void mergeVisitCounts(ArrayWindowVisitor<T> other) {
+    windowsVisited += other.windowsVisited;
+    docsVisited.addAll(other.docsVisited);
+    hitMax |= other.hitMax;
+  }
+
+  /**
+   * Reset the document and window counts and the hitMax flag, e.g.
+   * before a visitor searches again
+   */
+  protected void resetVisitCounts() {
+    windowsVisited = 0;
+    docsVisited.clear();
+    hitMax = false;
+  }
+
   /**
    * Call this when finished with with a document
    * See also {@link #finishedVisit(String, boolean)}
@@ -18,13 +18,18 @@ package org.tallison.lucene.search.concordance.windowvisitor;
  */
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import org.apache.lucene.util.mutable.MutableValueInt;
 
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.StringHelper;
 import org.apache.lucene.util.mutable.MutableValueInt;
 
 /**
@@ -32,6 +37,15 @@ import org.apache.lucene.util.mutable.MutableValueInt;
  * the target and after a target. It includes information about overall tokens
  * as well.
  * <p>
+ * Tokens are stored int-encoded as in {@link Grammer#visitGrams(int[], int, Grammer.GramVisitor)}:
+ * each distinct token is interned once in a dictionary that lives as long as the window
+ * (one search in {@link ConcordanceArrayWindowSearcher}), and stop words and field separators
+ * are stored as {@link Grammer#STOP} and {@link Grammer#FIELD_SEPARATOR}.
+ * The pre tokens are held in a ring buffer so that {@link #insertPre(String)} is O(1).
+ * Visitors should count on the ordinals from {@link #getPreTokens()}, {@link #getTargetTokens()}
+ * and {@link #getPostTokens()} and decode only what they report; the String lists
+ * from {@link #getRawPreList()} and friends are decoded lazily on request.
+ * <p>
  * Current implementation chooses reuse vs. security...no defensive copying of arrays.
  * <p>
  * See also the classic ConcordanceWindow that records strings for the context before, the
@@ -48,14 +62,48 @@ class ConcordanceArrayWindow {
   private final static char STOP_CHAR = '\u2000';
   private final static char FIELD_SEP_CHAR = '\u2001';
 
+  //fnv-1a 64 offset basis and prime for the first hash,
+  //arbitrary odd constants for the second
+  private final static long FP_SEED_1 = 0xcbf29ce484222325L;
+  private final static long FP_PRIME_1 = 0x100000001b3L;
+  private final static long FP_SEED_2 = 0x9E3779B97F4A7C15L;
+  private final static long FP_PRIME_2 = 0x87c37b91114253d5L;
+  private final static long FP_PRIME_3 = 0x4cf5ad432745937fL;
+
+  //seeds for the two halves of the 64-bit hash of a token's bytes
+  private final static int TOKEN_HASH_SEED_1 = 0x5bd1e995;
+  private final static int TOKEN_HASH_SEED_2 = 0x1b873593;
+
   private final static String STOP_WORD_TO_STRING = "_";
   private final static String FIELD_SEPARATOR_TO_STRING = " | ";
 
   private final int positionIncrementGap;
   private final StringBuilder sb = new StringBuilder();
-  private List<String> pres = new ArrayList<String>();
-  private List<String> targs = new ArrayList<String>();
-  private List<String> posts = new ArrayList<String>();
+
+  //token dictionary; this is not cleared by reset()
+  private final BytesRefHash dictionary = new BytesRefHash();
+  private long[] tokenHashes = new long[16];
+  private final BytesRefBuilder scratch = new BytesRefBuilder();
+  private final BytesRef spare = new BytesRef();
+
+  //ring buffer; length is always a power of 2
+  private int[] pres = new int[16];
+  private int preStart = 0;
+  private int preCount = 0;
+  private int[] preSpare = new int[16];
+  private int[] targs = new int[16];
+  private int targCount = 0;
+  private int[] posts = new int[16];
+  //reusable bit tallies for simHash()
+  private final int[] simHashTallies = new int[64];
+  private int postCount = 0;
+
+  //lazily decoded String views
+  private final List<String> rawPres = new ArrayList<String>();
+  private final List<String> rawTargs = new ArrayList<String>();
+  private final List<String> rawPosts = new ArrayList<String>();
+  private boolean rawListsCurrent = true;
+
   private int preSize = 0;
   private int postSize = 0;
   private Map<String, MutableValueInt> tokens = new HashMap<String, MutableValueInt>();
@@ -201,8 +249,7 @@ class ConcordanceArrayWindow {
    * @param s to insert
    */
   public void insertPre(String s) {
-    s = escape(s);
-    pres.add(0, s);
+    insertPreToken(intern(s));
     preSize++;
   }
 
@@ -210,7 +257,7 @@ class ConcordanceArrayWindow {
    * insert a stop word sentinel into the list of pre terms
    */
   public void insertPreStop() {
-    pres.add(0, STOP_WORD);
+    insertPreToken(Grammer.STOP);
     preSize++;
   }
 
@@ -218,7 +265,7 @@ class ConcordanceArrayWindow {
    * insert a field separator sentinel into the list of pre terms
    */
   public void insertPreFieldSeparator() {
-    pres.add(0, FIELD_SEPARATOR);
+    insertPreToken(Grammer.FIELD_SEPARATOR);
     preSize += positionIncrementGap;
   }
 
@@ -228,8 +275,7 @@ class ConcordanceArrayWindow {
    * @param token to add to list of pres
    */
   public void addPre(String token) {
-    token = escape(token);
-    pres.add(token);
+    addPreToken(intern(token));
     preSize++;
   }
 
@@ -237,7 +283,7 @@ class ConcordanceArrayWindow {
    * add a stop word sentinel to the list of pres
    */
   public void addPreStop() {
-    pres.add(STOP_WORD);
+    addPreToken(Grammer.STOP);
     preSize++;
   }
 
@@ -245,7 +291,7 @@ class ConcordanceArrayWindow {
    * add a field separator sentinel to the list of pres
    */
   public void addPreFieldSeparator() {
-    pres.add(FIELD_SEPARATOR);
+    addPreToken(Grammer.FIELD_SEPARATOR);
     preSize += positionIncrementGap;
   }
 
@@ -255,22 +301,21 @@ class ConcordanceArrayWindow {
    * @param token token to add
    */
   public void addTarget(String token) {
-    token = escape(token);
-    targs.add(token);
+    addTargetToken(intern(token));
   }
 
   /**
    * add a stop word sentinel to the targets list
    */
   public void addTargetStop() {
-    targs.add(STOP_WORD);
+    addTargetToken(Grammer.STOP);
   }
 
   /**
    * add a field separator sentinel to the targets list
    */
   public void addTargetFieldSeparator() {
-    targs.add(FIELD_SEPARATOR);
+    addTargetToken(Grammer.FIELD_SEPARATOR);
   }
 
   /**
@@ -279,8 +324,7 @@ class ConcordanceArrayWindow {
    * @param token token to add
    */
   public void addPost(String token) {
-    token = escape(token);
-    posts.add(token);
+    addPostToken(intern(token));
     postSize++;
   }
 
@@ -288,7 +332,7 @@ class ConcordanceArrayWindow {
    * add a stop word sentinel to the posts list
    */
   public void addPostStop() {
-    posts.add(STOP_WORD);
+    addPostToken(Grammer.STOP);
     postSize++;
   }
 
@@ -297,54 +341,83 @@ class ConcordanceArrayWindow {
    * and increment {@link #postSize} by the positionIncrement
    */
   public void addPostFieldSeparator() {
-    posts.add(FIELD_SEPARATOR);
+    addPostToken(Grammer.FIELD_SEPARATOR);
     postSize += positionIncrementGap;
   }
 
-  /**
-   * @return all tokens and their counts from pres, posts and targets
-   */
-  public Map<String, MutableValueInt> getAllTokens() {
+  //returns the ordinal of the token in the dictionary
+  private int intern(String token) {
+    scratch.copyChars(token == null ? EMPTY_STRING : token);
+    int ord = dictionary.add(scratch.get());
+    if (ord < 0) {
+      return -ord - 1;
+    }
+    tokenHashes = ArrayUtil.grow(tokenHashes, ord + 1);
+    BytesRef bytes = scratch.get();
+    tokenHashes[ord] = ((long) StringHelper.murmurhash3_x86_32(bytes, TOKEN_HASH_SEED_1) << 32)
+        | (StringHelper.murmurhash3_x86_32(bytes, TOKEN_HASH_SEED_2) & 0xFFFFFFFFL);
+    return ord;
+  }
+
+  private void insertPreToken(int token) {
+    ensurePreCapacity();
+    preStart = (preStart - 1) & (pres.length - 1);
+    pres[preStart] = token;
+    preCount++;
+    rawListsCurrent = false;
+  }
+
+  private void addPreToken(int token) {
+    ensurePreCapacity();
+    pres[(preStart + preCount) & (pres.length - 1)] = token;
+    preCount++;
+    rawListsCurrent = false;
+  }
+
+  private void ensurePreCapacity() {
+    if (preCount == pres.length) {
+      int[] grown = new int[pres.length * 2];
+      copyPres(grown);
+      pres = grown;
+      preStart = 0;
+    }
+  }
 
-    for (int i = 0; i < pres.size(); i++) {
-      String s = pres.get(i);
-      if (s.equals(STOP_WORD) || s.equals(FIELD_SEPARATOR)) {
-        continue;
-      }
+  //copies the pres, in order, to the start of dest
+  private void copyPres(int[] dest) {
+    int first = Math.min(preCount, pres.length - preStart);
+    System.arraycopy(pres, preStart, dest, 0, first);
+    System.arraycopy(pres, 0, dest, first, preCount - first);
+  }
 
-      s = unescape(s);
-      MutableValueInt mutInt = tokens.get(s);
-      if (mutInt == null) {
-        mutInt = new MutableValueInt();
-        mutInt.value = 0;
-      }
-      mutInt.value++;
-      tokens.put(s, mutInt);
-    }
+  private void addTargetToken(int token) {
+    targs = ArrayUtil.grow(targs, targCount + 1);
+    targs[targCount++] = token;
+    rawListsCurrent = false;
+  }
 
-    for (int i = 0; i < targs.size(); i++) {
-      String s = targs.get(i);
-      if (s.equals(STOP_WORD) || s.equals(FIELD_SEPARATOR)) {
-        continue;
-      }
-      s = unescape(s);
+  private void addPostToken(int token) {
+    posts = ArrayUtil.grow(posts, postCount + 1);
+    posts[postCount++] = token;
+    rawListsCurrent = false;
+  }
 
-      MutableValueInt mutInt = tokens.get(s);
-      if (mutInt == null) {
-        mutInt = new MutableValueInt();
-        mutInt.value = 0;
-      }
-      mutInt.value++;
-      tokens.put(s, mutInt);
-    }
+  /**
+   * @return all tokens and their counts from pres, posts and targets
+   */
+  public Map<String, MutableValueInt> getAllTokens() {
+    countTokens(getPreTokens(), preCount);
+    countTokens(targs, targCount);
+    countTokens(posts, postCount);
+    return tokens;
+  }
 
-    for (int i = 0; i < posts.size(); i++) {
-      String s = posts.get(i);
-      if (s.equals(STOP_WORD) || s.equals(FIELD_SEPARATOR)) {
+  private void countTokens(int[] section, int length) {
+    for (int i = 0; i < length; i++) {
+      if (section[i] < 0) {
         continue;
       }
-      s = unescape(s);
-
+      String s = getTokenString(section[i]);
       MutableValueInt mutInt = tokens.get(s);
       if (mutInt == null) {
         mutInt = new MutableValueInt();
@@ -353,7 +426,6 @@ class ConcordanceArrayWindow {
       mutInt.value++;
       tokens.put(s, mutInt);
     }
-    return tokens;
   }
 
   /**
@@ -375,67 +447,140 @@ class ConcordanceArrayWindow {
    */
   public Set<String> getTypes() {
     Set<String> set = new HashSet<String>();
+    addTypes(getPreTokens(), preCount, set);
+    addTypes(targs, targCount, set);
+    addTypes(posts, postCount, set);
+    return set;
+  }
 
-    for (int i = 0; i < pres.size(); i++) {
-
-      String s = pres.get(i);
-      if (s.equals(STOP_WORD) || s.equals(FIELD_SEPARATOR)) {
-        continue;
+  private void addTypes(int[] section, int length, Set<String> set) {
+    for (int i = 0; i < length; i++) {
+      if (section[i] > -1) {
+        set.add(getTokenString(section[i]));
       }
-      s = unescape(s);
+    }
+  }
 
-      set.add(s);
+  /**
+   * @return string representation of window
+   */
+  public String toString() {
+    sb.setLength(0);
+    int[] preTokens = getPreTokens();
+    for (int i = 0; i < preCount; i++) {
+      if (i > 0) {
+        sb.append(" ");
+      }
+      sb.append(tokenToString(preTokens[i]));
     }
+    sb.append(">>>").append(target).append("<<<");
 
-    for (int i = 0; i < targs.size(); i++) {
-      String s = targs.get(i);
-      if (s.equals(STOP_WORD) || s.equals(FIELD_SEPARATOR)) {
-        continue;
+    for (int i = 0; i < postCount; i++) {
+      if (i > 0) {
+        sb.append(" ");
       }
-      s = unescape(s);
-      set.add(s);
+      sb.append(tokenToString(posts[i]));
     }
+    return sb.toString();
+  }
 
-    for (int i = 0; i < posts.size(); i++) {
-      String s = posts.get(i);
-      if (s.equals(STOP_WORD) || s.equals(FIELD_SEPARATOR)) {
-        continue;
+  /**
+   * Writes a 128-bit fingerprint of the pre, target and post tokens
+   * into the first 16 bytes of <code>dest</code>.  Two windows with the same
+   * fingerprint are, with overwhelming probability, the same window; unlike
+   * {@link #toString()}, this does not build a String.  The fingerprint
+   * is computed from a hash of each token's bytes, not from its ordinal,
+   * so it can be compared across windows with different dictionaries.
+   *
+   * @param dest array of length &gt;= 16 to receive the fingerprint
+   */
+  public void fingerprint(byte[] dest) {
+    long h1 = FP_SEED_1;
+    long h2 = FP_SEED_2;
+    for (int section = 0; section < 3; section++) {
+      int[] sectionTokens = (section == 0) ? getPreTokens() : (section == 1) ? targs : posts;
+      int length = (section == 0) ? preCount : (section == 1) ? targCount : postCount;
+      for (int i = 0; i < length; i++) {
+        int t = sectionTokens[i];
+        long v = (t < 0) ? t : tokenHashes[t];
+        h1 = (Long.rotateLeft(h1, 27) ^ v) * FP_PRIME_1;
+        h2 = Long.rotateLeft(h2 ^ (v * FP_PRIME_2), 31) * FP_PRIME_3;
       }
-      s = unescape(s);
-      set.add(s);
+      //section boundary
+      h1 = (Long.rotateLeft(h1, 27) ^ (0x10000 + section)) * FP_PRIME_1;
+      h2 = Long.rotateLeft(h2 ^ ((0x10000 + section) * FP_PRIME_2), 31) * FP_PRIME_3;
     }
-    return set;
+    writeLong(fmix64(h1), dest, 0);
+    writeLong(fmix64(h2), dest, 8);
   }
 
   /**
-   * @return string representation of window
+   * 64-bit SimHash (Charikar) of the window.  The features are the tokens
+   * and the pairs of adjacent tokens in each of the pre, target and post sections,
+   * so windows that differ by a token or two have signatures that differ
+   * in only a few bits.  Like {@link #fingerprint(byte[])}, this is computed from
+   * token hashes and can be compared across windows with different dictionaries.
+   *
+   * @return signature of the window
    */
-  public String toString() {
-    sb.setLength(0);
-    for (int i = 0; i < pres.size() - 1; i++) {
-      sb.append(tokenToString(pres.get(i))).append(" ");
+  public long simHash() {
+    Arrays.fill(simHashTallies, 0);
+    for (int section = 0; section < 3; section++) {
+      int[] sectionTokens = (section == 0) ? getPreTokens() : (section == 1) ? targs : posts;
+      int length = (section == 0) ? preCount : (section == 1) ? targCount : postCount;
+      long prev = 0x10000 + section;
+      for (int i = 0; i < length; i++) {
+        int t = sectionTokens[i];
+        long v = (t < 0) ? t : tokenHashes[t];
+        tallySimHashFeature(fmix64(v * FP_PRIME_2 + section));
+        tallySimHashFeature(fmix64((Long.rotateLeft(prev, 27) ^ v) * FP_PRIME_3));
+        prev = v;
+      }
     }
-    if (pres.size() > 0) {
-      sb.append(tokenToString(pres.get(pres.size() - 1)));
+    long signature = 0;
+    for (int bit = 0; bit < 64; bit++) {
+      if (simHashTallies[bit] > 0) {
+        signature |= 1L << bit;
+      }
     }
-    sb.append(">>>").append(target).append("<<<");
+    return signature;
+  }
 
-    for (int i = 0; i < posts.size() - 1; i++) {
-      sb.append(tokenToString(posts.get(i))).append(" ");
+  private void tallySimHashFeature(long featureHash) {
+    for (int bit = 0; bit < 64; bit++) {
+      simHashTallies[bit] += ((featureHash >>> bit) & 1L) == 0 ? -1 : 1;
     }
-    if (posts.size() > 0) {
-      sb.append(tokenToString(posts.get(posts.size() - 1)));
+  }
+
+  //murmur3 finalizer
+  private static long fmix64(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  private static void writeLong(long v, byte[] dest, int offset) {
+    for (int i = 0; i < 8; i++) {
+      dest[offset + i] = (byte) (v >>> (8 * i));
     }
-    return sb.toString();
   }
 
   /**
-   * reset state. clear arrays
+   * reset state. clear arrays.  The token dictionary is not cleared,
+   * so ordinals are stable for the life of this window.
    */
   protected void reset() {
-    pres.clear();
-    targs.clear();
-    posts.clear();
+    preStart = 0;
+    preCount = 0;
+    targCount = 0;
+    postCount = 0;
+    rawPres.clear();
+    rawTargs.clear();
+    rawPosts.clear();
+    rawListsCurrent = true;
     tokens.clear();
     target = EMPTY_STRING;
     sb.setLength(0);
@@ -444,32 +589,162 @@ class ConcordanceArrayWindow {
   }
 
   /**
-   * @return underlying list of terms before the target.  These may include
+   * @return int-encoded tokens before the target, in order; only the first
+   * {@link #getNumPreTokens()} are valid.
+   */
+  protected int[] getPreTokens() {
+    if (preStart != 0) {
+      if (preSpare.length != pres.length) {
+        preSpare = new int[pres.length];
+      }
+      copyPres(preSpare);
+      int[] tmp = pres;
+      pres = preSpare;
+      preSpare = tmp;
+      preStart = 0;
+    }
+    return pres;
+  }
+
+  /**
+   * @return number of tokens (including sentinels) before the target
+   */
+  protected int getNumPreTokens() {
+    return preCount;
+  }
+
+  /**
+   * @return int-encoded tokens in the target; only the first
+   * {@link #getNumTargetTokens()} are valid.
+   */
+  protected int[] getTargetTokens() {
+    return targs;
+  }
+
+  /**
+   * @return number of tokens (including sentinels) in the target
+   */
+  protected int getNumTargetTokens() {
+    return targCount;
+  }
+
+  /**
+   * @return int-encoded tokens after the target; only the first
+   * {@link #getNumPostTokens()} are valid.
+   */
+  protected int[] getPostTokens() {
+    return posts;
+  }
+
+  /**
+   * @return number of tokens (including sentinels) after the target
+   */
+  protected int getNumPostTokens() {
+    return postCount;
+  }
+
+  /**
+   * @return number of ordinals in the token dictionary; every
+   * ordinal in this window is less than this
+   */
+  protected int getNumTokenOrdinals() {
+    return dictionary.size();
+  }
+
+  /**
+   * @param ord   token ordinal (must not be a sentinel)
+   * @param bytes spare BytesRef to fill
+   * @return <code>bytes</code> pointing to the UTF-8 bytes of the token
+   */
+  protected BytesRef getTokenBytes(int ord, BytesRef bytes) {
+    return dictionary.get(ord, bytes);
+  }
+
+  /**
+   * @param ord token ordinal (must not be a sentinel)
+   * @return the token
+   */
+  protected String getTokenString(int ord) {
+    return dictionary.get(ord, spare).utf8ToString();
+  }
+
+  /**
+   * Convert an int-encoded token to string
+   * @param token token to convert
+   * @return string
+   */
+  protected String tokenToString(int token) {
+    if (token == Grammer.STOP) {
+      return STOP_WORD_TO_STRING;
+    } else if (token == Grammer.FIELD_SEPARATOR) {
+      return FIELD_SEPARATOR_TO_STRING;
+    }
+    return getTokenString(token);
+  }
+
+  //decodes the token into the escaped form used by the raw lists
+  private String toRaw(int token) {
+    if (token == Grammer.STOP) {
+      return STOP_WORD;
+    } else if (token == Grammer.FIELD_SEPARATOR) {
+      return FIELD_SEPARATOR;
+    }
+    return escape(getTokenString(token));
+  }
+
+  private void decodeRawLists() {
+    if (rawListsCurrent) {
+      return;
+    }
+    rawPres.clear();
+    rawTargs.clear();
+    rawPosts.clear();
+    int[] preTokens = getPreTokens();
+    for (int i = 0; i < preCount; i++) {
+      rawPres.add(toRaw(preTokens[i]));
+    }
+    for (int i = 0; i < targCount; i++) {
+      rawTargs.add(toRaw(targs[i]));
+    }
+    for (int i = 0; i < postCount; i++) {
+      rawPosts.add(toRaw(posts[i]));
+    }
+    rawListsCurrent = true;
+  }
+
+  /**
+   * @return list of terms before the target.  These may include
    * the raw markers for stop words and/or field separators.
    * Make sure to handle/unescape appropriately!
+   * The list is decoded from the int-encoded tokens; prefer {@link #getPreTokens()}.
    */
   protected List<String> getRawPreList() {
-    return pres;
+    decodeRawLists();
+    return rawPres;
   }
 
   /**
-   * @return underlying list of terms in the target.  These may include
+   * @return list of terms in the target.  These may include
    * the raw markers for stop words and/or field separators.
    * Make sure to handle/unescape appropriately!
+   * The list is decoded from the int-encoded tokens; prefer {@link #getTargetTokens()}.
    */
 
   protected List<String> getRawTargList() {
-    return targs;
+    decodeRawLists();
+    return rawTargs;
   }
 
   /**
-   * @return underlying list of terms after the target.  These may include
+   * @return list of terms after the target.  These may include
    * the raw markers for stop words and/or field separators.
    * Make sure to handle/unescape appropriately!
+   * The list is decoded from the int-encoded tokens; prefer {@link #getPostTokens()}.
    */
 
   protected List<String> getRawPostList() {
-    return posts;
+    decodeRawLists();
+    return rawPosts;
   }
 
   /**
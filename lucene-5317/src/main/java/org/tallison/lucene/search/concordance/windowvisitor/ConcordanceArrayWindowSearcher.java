@@ -18,16 +18,24 @@ package org.tallison.lucene.search.concordance.windowvisitor;
  */
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.index.LeafReaderContext;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Weight;
 import org.tallison.lucene.search.concordance.charoffsets.DocTokenOffsets;
 import org.tallison.lucene.search.concordance.charoffsets.DocTokenOffsetsVisitor;
 import org.tallison.lucene.search.concordance.charoffsets.OffsetLengthStartComparator;
@@ -42,6 +50,8 @@ import org.tallison.lucene.search.concordance.classic.DocIdBuilder;
 import org.tallison.lucene.search.concordance.util.ConcordanceSearcherUtil;
 import org.tallison.lucene.search.spans.SimpleSpanQueryConverter;
 import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanWeight;
+import org.apache.lucene.util.ThreadInterruptedException;
 
 /**
  * Calculates term statistics for the tokens before and after a given query
@@ -54,6 +64,10 @@ public class ConcordanceArrayWindowSearcher {
 
   private boolean allowTargetOverlaps = false;
 
+  private ArrayWindowFilter windowFilter = null;
+
+  private SimpleSpanQueryConverter spanQueryConverter = new SimpleSpanQueryConverter();
+
   /**
    * @param searcher     indexSearcher to search
    * @param fieldName    field to search
@@ -77,20 +91,126 @@ public class ConcordanceArrayWindowSearcher {
           visitor, docIdBuilder);
     } else {
       // convert regular mainQuery to a SpanQuery.
-      SimpleSpanQueryConverter converter = new SimpleSpanQueryConverter();
-      SpanQuery spanQuery = converter.convert(fieldName, mainQuery);
+      SpanQuery spanQuery = spanQueryConverter.convert(fieldName, mainQuery);
+      searchSpan(searcher, spanQuery, buildFilter(mainQuery, filterQuery), analyzer,
+          visitor, docIdBuilder);
+    }
+
+  }
+
+  /**
+   * Searches each leaf of the index as a separate task with its own visitor from
+   * <code>visitorFactory</code>, and then merges the visitors with
+   * {@link ArrayWindowVisitor#merge(ArrayWindowVisitor)}.  The visitors share
+   * a window counter, so {@link ArrayWindowVisitor#getMaxWindows()} applies to
+   * the search as a whole.  They also share any other state that has to span the
+   * search, e.g. a {@link CooccurVisitor}'s record of the windows it has seen, so that
+   * duplicate windows are suppressed across leaves.
+   *
+   * @param searcher       indexSearcher to search
+   * @param fieldName      field to search
+   * @param mainQuery      mainQuery to use
+   * @param filterQuery    filterQuery to apply, can be null
+   * @param analyzer       analyzer re-analysis text
+   * @param visitorFactory factory for a visitor per leaf
+   * @param docIdBuilder   builder for constructing unique document ids; must be thread safe
+   * @param executor       executor to search the leaves; if <code>null</code>, the leaves
+   *                       are searched on the calling thread
+   * @param <T>            type of the visitors' results
+   * @return merged visitor from which to get the results
+   * @throws IllegalArgumentException if field not found in query, e.g.
+   * @throws TargetTokenNotFoundException if target token is not found
+   * @throws java.io.IOException if there's an underlying IOException with the reader
+   */
+  public <T> ArrayWindowVisitor<T> search(IndexSearcher searcher, String fieldName,
+                                          Query mainQuery, Query filterQuery, Analyzer analyzer,
+                                          ArrayWindowVisitorFactory<T> visitorFactory,
+                                          DocIdBuilder docIdBuilder, ExecutorService executor)
+      throws IllegalArgumentException, TargetTokenNotFoundException, IOException {
+    if (mainQuery instanceof SpanQuery) {
+      return searchSpan(searcher, (SpanQuery) mainQuery, filterQuery, analyzer,
+          visitorFactory, docIdBuilder, executor);
+    }
+    SpanQuery spanQuery = spanQueryConverter.convert(fieldName, mainQuery);
+    return searchSpan(searcher, spanQuery, buildFilter(mainQuery, filterQuery), analyzer,
+        visitorFactory, docIdBuilder, executor);
+  }
+
+  private static Query buildFilter(Query mainQuery, Query filterQuery) {
+    if (filterQuery == null) {
+      return mainQuery;
+    }
+    return new BooleanQuery.Builder()
+        .add(mainQuery, BooleanClause.Occur.MUST)
+        .add(filterQuery, BooleanClause.Occur.FILTER).build();
+  }
 
-      Query updatedFilter = mainQuery;
+  /**
+   * See {@link #search(IndexSearcher, String, Query, Query, Analyzer, ArrayWindowVisitorFactory,
+   * DocIdBuilder, ExecutorService)}
+   */
+  public <T> ArrayWindowVisitor<T> searchSpan(IndexSearcher searcher, SpanQuery query,
+                                              Query filterQuery, Analyzer analyzer,
+                                              ArrayWindowVisitorFactory<T> visitorFactory,
+                                              DocIdBuilder docIdBuilder, ExecutorService executor)
+      throws IllegalArgumentException, TargetTokenNotFoundException, IOException {
+    //cache the field in case it is destroyed in the rewrite
+    String field = query.getField();
+    SpanWeight spanWeight = SpansCrawler.createSpanWeight(query, searcher);
+    Weight filterWeight = SpansCrawler.createFilterWeight(filterQuery, searcher);
+    AtomicLong windowCount = new AtomicLong(0);
 
-      if (filterQuery != null) {
-        updatedFilter = new BooleanQuery.Builder()
-            .add(mainQuery, BooleanClause.Occur.MUST)
-            .add(filterQuery, BooleanClause.Occur.FILTER).build();
+    List<ArrayWindowVisitor<T>> visitors = new ArrayList<>();
+    List<LeafTask> tasks = new ArrayList<>();
+    for (LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
+      ArrayWindowVisitor<T> visitor = visitorFactory.newVisitor();
+      visitor.setSharedWindowCount(windowCount);
+      if (visitors.size() > 0) {
+        visitor.shareSearchState(visitors.get(0));
       }
-      searchSpan(searcher, spanQuery, updatedFilter, analyzer,
-          visitor, docIdBuilder);
+      visitors.add(visitor);
+      tasks.add(new LeafTask(spanWeight, filterWeight, ctx,
+          new CAWDocTokenOffsetsVisitor(field, analyzer, docIdBuilder, visitor)));
     }
 
+    if (executor == null) {
+      for (LeafTask task : tasks) {
+        task.call();
+      }
+    } else {
+      List<Future<Void>> futures = new ArrayList<>();
+      for (LeafTask task : tasks) {
+        futures.add(executor.submit(task));
+      }
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (InterruptedException e) {
+          throw new ThreadInterruptedException(e);
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+          if (cause instanceof IOException) {
+            throw (IOException) cause;
+          } else if (cause instanceof TargetTokenNotFoundException) {
+            throw (TargetTokenNotFoundException) cause;
+          } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          } else if (cause instanceof Error) {
+            throw (Error) cause;
+          }
+          throw new RuntimeException(cause);
+        }
+      }
+    }
+
+    if (visitors.size() == 0) {
+      return visitorFactory.newVisitor();
+    }
+    ArrayWindowVisitor<T> merged = visitors.get(0);
+    for (int i = 1; i < visitors.size(); i++) {
+      merged.merge(visitors.get(i));
+    }
+    return merged;
   }
 
   public void searchSpan(IndexSearcher searcher,
@@ -111,6 +231,27 @@ public class ConcordanceArrayWindowSearcher {
 
   }
 
+  private static class LeafTask implements Callable<Void> {
+    private final SpanWeight spanWeight;
+    private final Weight filterWeight;
+    private final LeafReaderContext ctx;
+    private final DocTokenOffsetsVisitor docTokenOffsetsVisitor;
+
+    LeafTask(SpanWeight spanWeight, Weight filterWeight, LeafReaderContext ctx,
+             DocTokenOffsetsVisitor docTokenOffsetsVisitor) {
+      this.spanWeight = spanWeight;
+      this.filterWeight = filterWeight;
+      this.ctx = ctx;
+      this.docTokenOffsetsVisitor = docTokenOffsetsVisitor;
+    }
+
+    @Override
+    public Void call() throws IOException, TargetTokenNotFoundException {
+      SpansCrawler.crawlLeaf(spanWeight, filterWeight, ctx, docTokenOffsetsVisitor);
+      return null;
+    }
+  }
+
 
   /**
    * @param allowTargetOverlaps whether to allow targets to overlap or ignore overlapping
@@ -120,6 +261,25 @@ public class ConcordanceArrayWindowSearcher {
     this.allowTargetOverlaps = allowTargetOverlaps;
   }
 
+  /**
+   * @param windowFilter filter to apply to each window before it is visited, e.g.
+   *                     a {@link SimHashWindowFilter} to drop near-duplicates;
+   *                     <code>null</code> (the default) to visit every window.
+   *                     Windows that are dropped do not count against the visitor's maxWindows.
+   */
+  public void setWindowFilter(ArrayWindowFilter windowFilter) {
+    this.windowFilter = windowFilter;
+  }
+
+  /**
+   * Set the converter to use to convert a Query to a SpanQuery.
+   *
+   * @param converter converter to use to convert queries into SpanQueries
+   */
+  public void setSpanQueryConverter(SimpleSpanQueryConverter converter) {
+    this.spanQueryConverter = converter;
+  }
+
   private class CAWDocTokenOffsetsVisitor implements DocTokenOffsetsVisitor {
     final String fieldName;
     final TokenCharOffsetsReader tokenOffsetsReader;
@@ -218,6 +378,9 @@ public class ConcordanceArrayWindowSearcher {
             offsetResults, fieldValues, window, visitor.includeTarget(),
             visitor.analyzeTarget());
 
+        if (windowFilter != null && ! windowFilter.accept(window)) {
+          continue;
+        }
         visitor.visit(docId, window);
       }
       return true;
@@ -18,28 +18,57 @@ package org.tallison.lucene.search.concordance.windowvisitor;
  */
 
 import org.tallison.lucene.corpus.stats.IDFIndexCalc;
-import org.tallison.lucene.corpus.stats.TFIDFPriorityQueue;
+import org.tallison.lucene.corpus.stats.TFIDFOrdPriorityQueue;
 import org.tallison.lucene.corpus.stats.TermIDF;
-import org.apache.lucene.index.Term;
-import org.apache.lucene.util.mutable.MutableValueInt;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.FixedBitSet;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 
 /**
  * Class to count cooccurrences for targets
+ * <p>
+ * The window's int-encoded tokens are mapped once per window ordinal onto this visitor's
+ * own token ordinals (see {@link TokenOrdinalMap}), and
+ * the grams are counted as sequences of token ordinals in a {@link GramTable}
+ * via {@link Grammer#visitGrams(int[], int, Grammer.GramVisitor)}, using a rolling hash.
+ * Strings are only built for the grams that are returned by {@link #getResults()}.
+ * Duplicate windows are identified by a 128-bit fingerprint
+ * (see {@link ConcordanceArrayWindow#fingerprint(byte[])}) rather than
+ * by the window's String representation.
+ * <p>
+ * By default, every distinct gram is counted exactly, so memory grows with the
+ * number of distinct grams.  For very frequent targets, {@link #setMaxGrams(int)}
+ * bounds the gram table with the Space-Saving algorithm: the table never holds
+ * more than <code>maxGrams</code> grams, and each count is an overestimate by at most
+ * {@link TermIDF#getTermFreqError()}.  {@link #setCountMinSketch(int, int)} adds a
+ * fixed-size Count-Min sketch that tightens the overestimate for grams that
+ * replace evicted grams.  For exact counts of the surviving grams, call
+ * {@link #startExactRecount()} and search again with the same visitor.
+ * The token dictionary is not bounded; it grows with the number of distinct
+ * tokens rather than the number of distinct grams.
  */
 public class CooccurVisitor extends ArrayWindowVisitor<List<TermIDF>> {
 
+  private static final int FINGERPRINT_LENGTH = 16;
+  private static final String STOP_STRING = ConcordanceArrayWindow.tokenToString(ConcordanceArrayWindow.STOP_WORD);
+  private static final String FIELD_SEPARATOR_STRING =
+      ConcordanceArrayWindow.tokenToString(ConcordanceArrayWindow.FIELD_SEPARATOR);
 
-  private final Map<String, MutableValueInt> tfs = new HashMap<>();
+  private final TokenOrdinalMap tokens = new TokenOrdinalMap();
+  private GramTable grams = new GramTable();
+  private CountMinSketch sketch = null;
+  private int[] mergeGram = new int[16];
+  private final GramCounter gramCounter = new GramCounter();
   private final IDFIndexCalc idfCalc;
-  private final Set<String> alreadySeen = new HashSet<>();
+  //shared by the leaves' visitors in a parallel search
+  private BytesRefHash alreadySeen = new BytesRefHash();
+  private final BytesRef fingerprint = new BytesRef(new byte[FINGERPRINT_LENGTH]);
   private final boolean allowDuplicates;
   private Grammer grammer;
   /**
@@ -75,77 +104,354 @@ public class CooccurVisitor extends ArrayWindowVisitor<List<TermIDF>> {
   public void visit(String docId, ConcordanceArrayWindow window)
       throws IOException {
 
-    if (getNumWindowsVisited() >= getMaxWindows()) {
-      setHitMax(true);
-      return;
-    }
-
     if (allowDuplicates == false) {
-      String key = window.toString();
-      if (alreadySeen.contains(key)) {
+      window.fingerprint(fingerprint.bytes);
+      boolean seen;
+      synchronized (alreadySeen) {
+        seen = alreadySeen.add(fingerprint) < 0;
+      }
+      if (seen) {
         return;
       }
-      alreadySeen.add(key);
     }
 
-    List<String> tmpGrams = grammer.getGrams(window.getRawPreList(), SPACE);
+    if (! acquireWindow()) {
+      return;
+    }
+
+    countGrams(window, window.getPreTokens(), window.getNumPreTokens());
+    countGrams(window, window.getPostTokens(), window.getNumPostTokens());
+
+    finishedVisit(docId);
+  }
+
+  private void countGrams(ConcordanceArrayWindow window, int[] windowTokens, int length) {
+    gramCounter.encoded = ArrayUtil.grow(gramCounter.encoded, length);
+    tokens.encode(window, windowTokens, length, gramCounter.encoded);
+    gramCounter.reset();
+    grammer.visitGrams(gramCounter.encoded, length, gramCounter);
+  }
 
-    tmpGrams.addAll(grammer.getGrams(window.getRawPostList(), SPACE));
 
-    for (String nGram : tmpGrams) {
-      MutableValueInt cnt = tfs.get(nGram);
-      if (cnt == null) {
-        cnt = new MutableValueInt();
-        cnt.value = 0;
+  @Override
+  void shareSearchState(ArrayWindowVisitor<List<TermIDF>> first) {
+    if (first instanceof CooccurVisitor) {
+      alreadySeen = ((CooccurVisitor) first).alreadySeen;
+    }
+  }
+
+  /**
+   * Adds the gram counts and window fingerprints from the other visitor.
+   * The visitors of a parallel search share their fingerprints, so each window
+   * is counted by only one of them; otherwise, windows that were counted by
+   * both visitors are not un-counted.
+   * <p>
+   * If either visitor has evicted grams, the merged counts are still
+   * overestimates with error bounds: a gram that is missing from one visitor
+   * is charged the highest count that that visitor evicted.
+   *
+   * @param other visitor to merge into this one
+   */
+  @Override
+  public void merge(ArrayWindowVisitor<List<TermIDF>> other) {
+    if (! (other instanceof CooccurVisitor)) {
+      throw new IllegalArgumentException("Can only merge a CooccurVisitor");
+    }
+    CooccurVisitor o = (CooccurVisitor) other;
+    mergeVisitCounts(o);
+
+    int[] ordMap = tokens.addAll(o.tokens);
+
+    //charge the grams that the other visitor might have evicted
+    int otherMin = o.grams.maxEvictedCount();
+    if (otherMin > 0) {
+      FixedBitSet inOther = new FixedBitSet(grams.size());
+      for (int g = 0; g < o.grams.size(); g++) {
+        int ord = grams.find(translate(o.grams, g, ordMap), mergeGram, 0, o.grams.length(g) - 1);
+        if (ord > -1) {
+          inOther.set(ord);
+        }
+      }
+      for (int ord = 0; ord < inOther.length(); ord++) {
+        if (! inOther.get(ord)) {
+          grams.addToCount(ord, otherMin, otherMin);
+        }
+      }
+    }
+
+    if (sketch != null && o.sketch != null) {
+      sketch.merge(o.sketch);
+    }
+    for (int g = 0; g < o.grams.size(); g++) {
+      long hash = translate(o.grams, g, ordMap);
+      int upperBound = (sketch == null) ? Integer.MAX_VALUE : sketch.estimate(hash);
+      grams.add(hash, mergeGram, 0, o.grams.length(g) - 1, o.grams.count(g), o.grams.error(g), upperBound);
+    }
+    if (o.alreadySeen != alreadySeen) {
+      BytesRef bytes = new BytesRef();
+      for (int i = 0; i < o.alreadySeen.size(); i++) {
+        alreadySeen.add(o.alreadySeen.get(i, bytes));
       }
-      cnt.value++;
-      tfs.put(nGram, cnt);
     }
-    finishedVisit(docId);
   }
 
+  //copies gram g of otherGrams into mergeGram with this visitor's token ordinals
+  private long translate(GramTable otherGrams, int g, int[] ordMap) {
+    int length = otherGrams.length(g);
+    mergeGram = ArrayUtil.grow(mergeGram, length);
+    long hash = GramTable.hashStart();
+    for (int i = 0; i < length; i++) {
+      int t = otherGrams.token(g, i);
+      mergeGram[i] = (t < 0) ? t : ordMap[t];
+      hash = GramTable.hashStep(hash, mergeGram[i]);
+    }
+    return GramTable.finish(hash);
+  }
+
+  /**
+   * Keep only the grams that could still reach {@link #getMinTermFreq()},
+   * reset their counts to zero and reset the window and document counts,
+   * so that searching again with this visitor counts those grams exactly.
+   * Grams that were not kept are ignored during the second search.
+   */
+  public void startExactRecount() {
+    GramTable survivors = new GramTable();
+    int[] gram = new int[16];
+    for (int ord = 0; ord < grams.size(); ord++) {
+      if (grams.count(ord) < minTermFreq) {
+        continue;
+      }
+      int length = grams.length(ord);
+      gram = ArrayUtil.grow(gram, length);
+      for (int i = 0; i < length; i++) {
+        gram[i] = grams.token(ord, i);
+      }
+      survivors.add(grams.hash(ord), gram, 0, length - 1, 0);
+    }
+    survivors.setFrozen(true);
+    grams = survivors;
+    sketch = null;
+    alreadySeen.clear();
+    resetVisitCounts();
+  }
 
   /**
    * can throw RuntimeException if there is an IOException
    * while calculating the IDFs
    */
   public List<TermIDF> getResults() {
-    TFIDFPriorityQueue queue = new TFIDFPriorityQueue(numResults);
-
-    int tf = -1;
-    double idf = -1.0;
-    int minTf = minTermFreq;
-    String text = "";
-    Term reusableTerm = new Term(getFieldName(), "");
-    for (Map.Entry<String, MutableValueInt> entry : tfs.entrySet()) {
 
-      tf = entry.getValue().value;
-      if (tf < minTf)
+    final int minTf = minTermFreq;
+    int numCandidates = 0;
+    int[] candidates = new int[16];
+    //index into tokenStrings for each int-encoded token used by a candidate, or -1
+    final int[] tokenIndex = new int[tokens.size() + 2];
+    Arrays.fill(tokenIndex, -1);
+    int numTokens = 0;
+    for (int ord = 0; ord < grams.size(); ord++) {
+      if (grams.count(ord) < minTf) {
         continue;
+      }
+      candidates = ArrayUtil.grow(candidates, numCandidates + 1);
+      candidates[numCandidates++] = ord;
+      for (int i = 0; i < grams.length(ord); i++) {
+        int slot = tokenSlot(grams.token(ord, i));
+        if (tokenIndex[slot] < 0) {
+          tokenIndex[slot] = numTokens++;
+        }
+      }
+    }
+
+    // calculate idf for each unique token in the candidates
+    final String[] tokenStrings = new String[numTokens];
+    BytesRef spare = new BytesRef();
+    for (int slot = 0; slot < tokenIndex.length; slot++) {
+      if (tokenIndex[slot] > -1) {
+        tokenStrings[tokenIndex[slot]] = tokenToString(slot, spare);
+      }
+    }
+    //the stop word and field separator are displayed as "_" and " | ", which must not
+    //be looked up as terms; like the raw sentinels, they are never indexed
+    BytesRef[] tokenBytes = new BytesRef[numTokens];
+    int numLookups = 0;
+    for (int slot = 0; slot < tokens.size(); slot++) {
+      if (tokenIndex[slot] > -1) {
+        tokenBytes[numLookups++] = new BytesRef(tokenStrings[tokenIndex[slot]]);
+      }
+    }
+    double[][] lookedUp;
+    try {
+      lookedUp = idfCalc.multiTermIDFs(getFieldName(), Arrays.copyOf(tokenBytes, numLookups));
+    } catch (IOException e) {
+      throw new RuntimeException("Error trying to calculate IDF: " + e.getMessage());
+    }
+    double[][] stats = new double[numTokens][];
+    int lookup = 0;
+    for (int slot = 0; slot < tokenIndex.length; slot++) {
+      if (tokenIndex[slot] > -1) {
+        stats[tokenIndex[slot]] = (slot < tokens.size()) ? lookedUp[lookup++]
+            : new double[]{idfCalc.getIDF(0), 0};
+      }
+    }
 
-      text = entry.getKey();
-      // calculate idf for potential phrase
-      double[] stats;
-      try {
-        stats = idfCalc.multiTermIDF(text, reusableTerm);
-      } catch (IOException e) {
-        throw new RuntimeException("Error trying to calculate IDF: " + e.getMessage());
+    final int[] finalCandidates = candidates;
+    //compares the grams token by token, without building their strings
+    TFIDFOrdPriorityQueue queue = new TFIDFOrdPriorityQueue(numResults) {
+      @Override
+      protected int compareTerms(int a, int b) {
+        return compareGrams(finalCandidates[a], finalCandidates[b], tokenIndex, tokenStrings);
       }
-      idf = stats[0];
+    };
+    double[] idfs = new double[numCandidates];
+    for (int i = 0; i < numCandidates; i++) {
+      int ord = candidates[i];
+      double idf = 0.0;
+      for (int j = 0; j < grams.length(ord); j++) {
+        int index = tokenIndex[tokenSlot(grams.token(ord, j))];
+        //the joined string would not have included a blank token
+        if (! isBlank(tokenStrings[index])) {
+          idf += stats[index][0];
+        }
+      }
+      idfs[i] = idf;
+      queue.insertWithOverflow(i, grams.count(ord) * idf);
+    }
+
+    //only now build the Strings and TermIDFs for the winners
+    TermIDF[] results = new TermIDF[queue.size()];
+    StringBuilder sb = new StringBuilder();
+    for (int i = results.length - 1; i >= 0; i--) {
+      int candidate = queue.pop();
+      int ord = candidates[candidate];
+      sb.setLength(0);
+      for (int j = 0; j < grams.length(ord); j++) {
+        if (j > 0) {
+          sb.append(SPACE);
+        }
+        sb.append(tokenStrings[tokenIndex[tokenSlot(grams.token(ord, j))]]);
+      }
+      double idf = idfs[candidate];
       int estimatedDF = (int) Math.max(1, Math.round(idfCalc.unIDF(idf)));
+      results[i] = new TermIDF(sb.toString(), estimatedDF, grams.count(ord), idf, grams.error(ord));
+    }
+    return new ArrayList<>(Arrays.asList(results));
+  }
 
-      TermIDF r = new TermIDF(text, estimatedDF, tf, idf);
+  //compares grams token by token
+  private int compareGrams(int ordA, int ordB, int[] tokenIndex, String[] tokenStrings) {
+    int lenA = grams.length(ordA);
+    int lenB = grams.length(ordB);
+    for (int i = 0; i < lenA && i < lenB; i++) {
+      int cmp = tokenStrings[tokenIndex[tokenSlot(grams.token(ordA, i))]].compareTo(
+          tokenStrings[tokenIndex[tokenSlot(grams.token(ordB, i))]]);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return Integer.compare(lenA, lenB);
+  }
 
-      queue.insertWithOverflow(r);
+  //slot for an int-encoded token in an array of length tokens.size()+2
+  private int tokenSlot(int token) {
+    if (token == Grammer.STOP) {
+      return tokens.size();
+    } else if (token == Grammer.FIELD_SEPARATOR) {
+      return tokens.size() + 1;
     }
-    List<TermIDF> results = new LinkedList<TermIDF>();
+    return token;
+  }
 
-    while (queue.size() > 0) {
-      results.add(0, queue.pop());
+  private String tokenToString(int slot, BytesRef spare) {
+    if (slot == tokens.size()) {
+      return STOP_STRING;
+    } else if (slot == tokens.size() + 1) {
+      return FIELD_SEPARATOR_STRING;
     }
-    return results;
+    return tokens.get(slot, spare).utf8ToString();
   }
 
+  private static boolean isBlank(String s) {
+    for (int i = 0; i < s.length(); i++) {
+      if (s.charAt(i) != ' ') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Counts each gram with a rolling hash that is extended, rather than
+   * recomputed, while the grammer grows a gram from the same start index.
+   */
+  private class GramCounter implements Grammer.GramVisitor {
+    private int[] encoded = new int[16];
+    private int lastStart = -1;
+    private int lastEnd = -1;
+    private long hash;
+
+    void reset() {
+      lastStart = -1;
+      lastEnd = -1;
+    }
+
+    @Override
+    public void visit(int start, int end) {
+      int from = lastEnd + 1;
+      if (start != lastStart || end <= lastEnd) {
+        hash = GramTable.hashStart();
+        from = start;
+      }
+      for (int i = from; i <= end; i++) {
+        hash = GramTable.hashStep(hash, encoded[i]);
+      }
+      lastStart = start;
+      lastEnd = end;
+      long finished = GramTable.finish(hash);
+      if (sketch == null) {
+        grams.add(finished, encoded, start, end, 1);
+      } else {
+        grams.add(finished, encoded, start, end, 1, 0, sketch.add(finished, 1));
+      }
+    }
+  }
+
+
+  /**
+   * Bound the number of grams that are counted; see the class javadoc.
+   * This must be called before any windows are visited.
+   *
+   * @param maxGrams maximum number of grams to keep
+   */
+  public void setMaxGrams(int maxGrams) {
+    if (getNumWindowsVisited() > 0) {
+      throw new IllegalStateException("Can't change maxGrams after windows have been visited");
+    }
+    grams = new GramTable(maxGrams);
+  }
+
+  /**
+   * @return maximum number of grams that are kept
+   */
+  public int getMaxGrams() {
+    return grams.maxSize();
+  }
+
+  /**
+   * Use a Count-Min sketch to bound the counts of grams that replace
+   * evicted grams; this only matters if {@link #setMaxGrams(int)} has been called.
+   * This must be called before any windows are visited.
+   *
+   * @param width number of counters per row; the expected overestimate is
+   *              about e/width times the total number of grams
+   * @param depth number of rows; the probability of exceeding that overestimate
+   *              is about e^-depth
+   */
+  public void setCountMinSketch(int width, int depth) {
+    if (getNumWindowsVisited() > 0) {
+      throw new IllegalStateException("Can't add a sketch after windows have been visited");
+    }
+    sketch = new CountMinSketch(width, depth);
+  }
 
   public int getMinTermFreq() {
     return minTermFreq;
@@ -0,0 +1,118 @@
+package org.tallison.lucene.search.concordance.windowvisitor;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+/**
+ * Count-Min sketch (Cormode and Muthukrishnan) over 64-bit hashes.
+ * {@link #estimate(long)} never underestimates; with a width of <code>w</code>
+ * and a depth of <code>d</code>, it overestimates by more than
+ * <code>e/w * total</code> with probability at most <code>e^-d</code>.
+ * <p>
+ * The row indexes are derived from the two halves of the hash
+ * (Kirsch and Mitzenmacher), so the hash must already be well mixed,
+ * e.g. by {@link GramTable#finish(long)}.
+ */
+class CountMinSketch {
+
+  private final int width;
+  private final int depth;
+  private final int[] cells;
+  private long total = 0;
+
+  /**
+   * @param width number of counters per row
+   * @param depth number of rows
+   */
+  CountMinSketch(int width, int depth) {
+    if (width < 1 || depth < 1) {
+      throw new IllegalArgumentException("width and depth must be > 0: " + width + ", " + depth);
+    }
+    if ((long) width * depth > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("width * depth is too large: " + width + " * " + depth);
+    }
+    this.width = width;
+    this.depth = depth;
+    this.cells = new int[width * depth];
+  }
+
+  /**
+   * @param hash      well-mixed hash of the item
+   * @param increment amount to add
+   * @return estimated count of the item after the increment
+   */
+  int add(long hash, int increment) {
+    total += increment;
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    int min = Integer.MAX_VALUE;
+    for (int i = 0; i < depth; i++) {
+      int cell = i * width + index(h1 + i * h2);
+      cells[cell] += increment;
+      min = Math.min(min, cells[cell]);
+    }
+    return min;
+  }
+
+  /**
+   * @param hash well-mixed hash of the item
+   * @return estimated count of the item
+   */
+  int estimate(long hash) {
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    int min = Integer.MAX_VALUE;
+    for (int i = 0; i < depth; i++) {
+      min = Math.min(min, cells[i * width + index(h1 + i * h2)]);
+    }
+    return min;
+  }
+
+  private int index(int h) {
+    return (h & Integer.MAX_VALUE) % width;
+  }
+
+  /**
+   * Adds the counts of a sketch with the same dimensions
+   *
+   * @param other sketch to add to this one
+   */
+  void merge(CountMinSketch other) {
+    if (other.width != width || other.depth != depth) {
+      throw new IllegalArgumentException("Can't merge sketches with different dimensions");
+    }
+    for (int i = 0; i < cells.length; i++) {
+      cells[i] += other.cells[i];
+    }
+    total += other.total;
+  }
+
+  /**
+   * @return sum of all increments
+   */
+  long getTotal() {
+    return total;
+  }
+
+  int getWidth() {
+    return width;
+  }
+
+  int getDepth() {
+    return depth;
+  }
+}
@@ -0,0 +1,443 @@
+package org.tallison.lucene.search.concordance.windowvisitor;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * Counts grams, where a gram is a sequence of int-encoded tokens
+ * (see {@link Grammer#visitGrams(int[], int, Grammer.GramVisitor)}).
+ * <p>
+ * Grams are found by a 64-bit hash of their tokens in an open-addressed
+ * table and are assigned dense ordinals in the order in which they are first
+ * added.  The tokens of each gram are stored in a shared int pool, so
+ * a hash collision is always resolved by comparing the actual tokens, and
+ * a gram can be decoded later without having built any Strings while counting.
+ * <p>
+ * If the table is built with a <code>maxSize</code>, it keeps at most that
+ * many grams with the Space-Saving algorithm (Metwally et al.): when a new gram
+ * arrives and the table is full, the gram with the lowest count is evicted, and the
+ * new gram takes over its ordinal.  A gram that is not in the table cannot have
+ * been seen more often than the highest count that has been evicted, so the new
+ * gram starts with that count plus the increment (or less, given a tighter upper
+ * bound).  Each count is then an overestimate by at most {@link #error(int)}.
+ * <p>
+ * Rolling hashes should be built with {@link #hashStep(long, int)} and
+ * completed with {@link #finish(long)}.
+ */
+class GramTable {
+
+  private static final float LOAD_FACTOR = 0.5f;
+  private static final long SEED = 0x9E3779B97F4A7C15L;
+
+  private final int maxSize;
+  private final boolean bounded;
+
+  private long[] hashes;
+  //gram ord + 1; 0 is an empty slot
+  private int[] slots;
+  private int mask;
+
+  private int size = 0;
+  private int[] counts = new int[16];
+  private int[] errors = new int[16];
+  private long[] gramHashes = new long[16];
+  private int[] gramStarts = new int[16];
+  private int[] gramLengths = new int[16];
+  private int[] gramCapacities = new int[16];
+  private int[] pool = new int[64];
+  private int poolSize = 0;
+
+  //1-based min-heap of ords by count; only used if bounded
+  private int[] heap;
+  private int[] heapIndex;
+  private long evictions = 0;
+  private int maxEvictedCount = 0;
+  private boolean frozen = false;
+
+  GramTable() {
+    this(16, Integer.MAX_VALUE);
+  }
+
+  /**
+   * @param maxSize maximum number of grams to keep
+   */
+  GramTable(int maxSize) {
+    this(2 * maxSize, maxSize);
+  }
+
+  private GramTable(int initialCapacity, int maxSize) {
+    if (maxSize < 1) {
+      throw new IllegalArgumentException("maxSize must be > 0: " + maxSize);
+    }
+    this.maxSize = maxSize;
+    this.bounded = maxSize < Integer.MAX_VALUE;
+    int cap = Integer.highestOneBit(Math.max(4, initialCapacity) - 1) << 1;
+    hashes = new long[cap];
+    slots = new int[cap];
+    mask = cap - 1;
+    if (bounded) {
+      heap = new int[maxSize + 1];
+      heapIndex = new int[maxSize];
+    }
+  }
+
+  /**
+   * @return initial value for a rolling hash
+   */
+  static long hashStart() {
+    return SEED;
+  }
+
+  /**
+   * Extend a rolling hash by one token
+   *
+   * @param hash current hash
+   * @param token int-encoded token
+   * @return hash extended by token
+   */
+  static long hashStep(long hash, int token) {
+    return Long.rotateLeft(hash ^ ((token + 3L) * 0x87c37b91114253d5L), 31) * 0x4cf5ad432745937fL;
+  }
+
+  /**
+   * @param hash rolling hash
+   * @return final hash to pass to {@link #add(long, int[], int, int, int)}
+   */
+  static long finish(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  /**
+   * @param hash      finished hash of tokens[start..end]
+   * @param tokens    int-encoded tokens
+   * @param start     first token in the gram (inclusive)
+   * @param end       last token in the gram (inclusive)
+   * @param increment amount to add to the gram's count
+   * @return the ordinal of the gram, or -1 if the table is frozen and
+   * does not contain the gram
+   */
+  int add(long hash, int[] tokens, int start, int end, int increment) {
+    return add(hash, tokens, start, end, increment, 0, Integer.MAX_VALUE);
+  }
+
+  /**
+   * @param hash       finished hash of tokens[start..end]
+   * @param tokens     int-encoded tokens
+   * @param start      first token in the gram (inclusive)
+   * @param end        last token in the gram (inclusive)
+   * @param increment  amount to add to the gram's count
+   * @param error      amount by which <code>increment</code> may overestimate
+   * @param upperBound if the gram replaces an evicted gram, an upper bound on its
+   *                   count, e.g. from a {@link CountMinSketch}
+   * @return the ordinal of the gram, or -1 if the table is frozen and
+   * does not contain the gram
+   */
+  int add(long hash, int[] tokens, int start, int end, int increment, int error, int upperBound) {
+    int slot = (int) hash & mask;
+    while (slots[slot] != 0) {
+      int ord = slots[slot] - 1;
+      if (hashes[slot] == hash && sameTokens(ord, tokens, start, end)) {
+        addToCount(ord, increment, error);
+        return ord;
+      }
+      slot = (slot + 1) & mask;
+    }
+    if (frozen) {
+      return -1;
+    }
+    if (size == maxSize) {
+      return replaceMin(hash, tokens, start, end, increment, error, upperBound);
+    }
+    int ord = size++;
+    counts = ArrayUtil.grow(counts, size);
+    errors = ArrayUtil.grow(errors, size);
+    gramHashes = ArrayUtil.grow(gramHashes, size);
+    gramStarts = ArrayUtil.grow(gramStarts, size);
+    gramLengths = ArrayUtil.grow(gramLengths, size);
+    gramCapacities = ArrayUtil.grow(gramCapacities, size);
+    storeTokens(ord, tokens, start, end);
+    counts[ord] = increment;
+    errors[ord] = error;
+    gramHashes[ord] = hash;
+    hashes[slot] = hash;
+    slots[slot] = ord + 1;
+    if (bounded) {
+      heap[size] = ord;
+      heapIndex[ord] = size;
+      upHeap(size);
+    } else if (size > LOAD_FACTOR * slots.length) {
+      rehash();
+    }
+    return ord;
+  }
+
+  /**
+   * @param hash   finished hash of tokens[start..end]
+   * @param tokens int-encoded tokens
+   * @param start  first token in the gram (inclusive)
+   * @param end    last token in the gram (inclusive)
+   * @return the ordinal of the gram or -1 if it isn't in the table
+   */
+  int find(long hash, int[] tokens, int start, int end) {
+    int slot = (int) hash & mask;
+    while (slots[slot] != 0) {
+      int ord = slots[slot] - 1;
+      if (hashes[slot] == hash && sameTokens(ord, tokens, start, end)) {
+        return ord;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * @param ord       gram ordinal
+   * @param increment amount to add to the count
+   * @param error     amount to add to the error
+   */
+  void addToCount(int ord, int increment, int error) {
+    counts[ord] += increment;
+    errors[ord] += error;
+    if (bounded) {
+      downHeap(heapIndex[ord]);
+    }
+  }
+
+  //Space-Saving: the new gram takes over the ordinal with the lowest count
+  private int replaceMin(long hash, int[] tokens, int start, int end,
+                         int increment, int error, int upperBound) {
+    int ord = heap[1];
+    maxEvictedCount = Math.max(maxEvictedCount, counts[ord]);
+    removeSlot(slotOf(ord));
+    storeTokens(ord, tokens, start, end);
+    int count = (int) Math.min((long) maxEvictedCount + increment, Math.max(upperBound, increment));
+    counts[ord] = count;
+    errors[ord] = (count - increment) + error;
+    gramHashes[ord] = hash;
+    int slot = (int) hash & mask;
+    while (slots[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    hashes[slot] = hash;
+    slots[slot] = ord + 1;
+    evictions++;
+    downHeap(1);
+    return ord;
+  }
+
+  private void storeTokens(int ord, int[] tokens, int start, int end) {
+    int length = end - start + 1;
+    if (length > gramCapacities[ord]) {
+      pool = ArrayUtil.grow(pool, poolSize + length);
+      gramStarts[ord] = poolSize;
+      gramCapacities[ord] = length;
+      poolSize += length;
+    }
+    System.arraycopy(tokens, start, pool, gramStarts[ord], length);
+    gramLengths[ord] = length;
+  }
+
+  private int slotOf(int ord) {
+    int slot = (int) gramHashes[ord] & mask;
+    while (slots[slot] != ord + 1) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  //backward shift deletion for linear probing
+  private void removeSlot(int i) {
+    slots[i] = 0;
+    int j = i;
+    while (true) {
+      j = (j + 1) & mask;
+      if (slots[j] == 0) {
+        return;
+      }
+      int k = (int) hashes[j] & mask;
+      boolean stays = (i <= j) ? (i < k && k <= j) : (i < k || k <= j);
+      if (!stays) {
+        slots[i] = slots[j];
+        hashes[i] = hashes[j];
+        slots[j] = 0;
+        i = j;
+      }
+    }
+  }
+
+  private boolean sameTokens(int ord, int[] tokens, int start, int end) {
+    int length = end - start + 1;
+    if (gramLengths[ord] != length) {
+      return false;
+    }
+    int offset = gramStarts[ord];
+    for (int i = 0; i < length; i++) {
+      if (pool[offset + i] != tokens[start + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void rehash() {
+    long[] oldHashes = hashes;
+    int[] oldSlots = slots;
+    hashes = new long[oldHashes.length * 2];
+    slots = new int[oldSlots.length * 2];
+    mask = slots.length - 1;
+    for (int i = 0; i < oldSlots.length; i++) {
+      if (oldSlots[i] != 0) {
+        int slot = (int) oldHashes[i] & mask;
+        while (slots[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+        hashes[slot] = oldHashes[i];
+        slots[slot] = oldSlots[i];
+      }
+    }
+  }
+
+  private void upHeap(int i) {
+    int ord = heap[i];
+    int j = i >>> 1;
+    while (j > 0 && counts[ord] < counts[heap[j]]) {
+      heap[i] = heap[j];
+      heapIndex[heap[i]] = i;
+      i = j;
+      j = j >>> 1;
+    }
+    heap[i] = ord;
+    heapIndex[ord] = i;
+  }
+
+  private void downHeap(int i) {
+    int ord = heap[i];
+    int j = i << 1;
+    while (j <= size) {
+      int k = j + 1;
+      if (k <= size && counts[heap[k]] < counts[heap[j]]) {
+        j = k;
+      }
+      if (counts[heap[j]] >= counts[ord]) {
+        break;
+      }
+      heap[i] = heap[j];
+      heapIndex[heap[i]] = i;
+      i = j;
+      j = i << 1;
+    }
+    heap[i] = ord;
+    heapIndex[ord] = i;
+  }
+
+  /**
+   * @return number of unique grams
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * @return maximum number of grams this table keeps
+   */
+  int maxSize() {
+    return maxSize;
+  }
+
+  /**
+   * @return whether any gram has been evicted
+   */
+  boolean hasEvicted() {
+    return evictions > 0;
+  }
+
+  /**
+   * @return highest count of any evicted gram, or 0 if none has been evicted.
+   * No gram that is not in the table can have been seen more often than this.
+   */
+  int maxEvictedCount() {
+    return maxEvictedCount;
+  }
+
+  /**
+   * A frozen table only counts the grams that it already has.
+   *
+   * @param frozen whether or not to freeze the table
+   */
+  void setFrozen(boolean frozen) {
+    this.frozen = frozen;
+  }
+
+  /**
+   * @param ord gram ordinal
+   * @return count of the gram
+   */
+  int count(int ord) {
+    return counts[ord];
+  }
+
+  /**
+   * @param ord gram ordinal
+   * @return maximum amount by which {@link #count(int)} overestimates the gram's count
+   */
+  int error(int ord) {
+    return errors[ord];
+  }
+
+  /**
+   * @param ord gram ordinal
+   * @return finished hash of the gram
+   */
+  long hash(int ord) {
+    return gramHashes[ord];
+  }
+
+  /**
+   * @param ord gram ordinal
+   * @return number of tokens in the gram
+   */
+  int length(int ord) {
+    return gramLengths[ord];
+  }
+
+  /**
+   * @param ord gram ordinal
+   * @param i   index of the token within the gram
+   * @return int-encoded token
+   */
+  int token(int ord, int i) {
+    return pool[gramStarts[ord] + i];
+  }
+
+  /**
+   * @return approximate number of bytes used
+   */
+  long ramBytesUsed() {
+    long bytes = 12L * slots.length + 32L * counts.length + 4L * pool.length;
+    if (bounded) {
+      bytes += 4L * heap.length + 4L * heapIndex.length;
+    }
+    return bytes;
+  }
+}
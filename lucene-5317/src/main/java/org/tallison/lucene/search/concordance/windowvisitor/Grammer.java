@@ -17,15 +17,43 @@ package org.tallison.lucene.search.concordance.windowvisitor;
  * limitations under the License.
  */
 
+import java.util.ArrayList;
 import java.util.List;
 
 
 /**
  * Simple abstract class that takes a list of tokens and creates
  * ngrams.
+ * <p>
+ * Grams can either be built as Strings with {@link #getGrams(List, String)}
+ * or visited as index ranges over an int-encoded token array with
+ * {@link #visitGrams(int[], int, GramVisitor)}, which allocates nothing
+ * per gram.  In the int encoding, each token is a non-negative ordinal
+ * unless it is a stop word ({@link #STOP}) or a field separator
+ * ({@link #FIELD_SEPARATOR}).
  */
 public abstract class Grammer {
 
+  /**
+   * int-encoded stop word
+   */
+  public static final int STOP = -1;
+  /**
+   * int-encoded field separator
+   */
+  public static final int FIELD_SEPARATOR = -2;
+
+  /**
+   * Callback for each gram found by {@link #visitGrams(int[], int, GramVisitor)}
+   */
+  public interface GramVisitor {
+    /**
+     * @param start index of the first token in the gram (inclusive)
+     * @param end   index of the last token in the gram (inclusive)
+     */
+    void visit(int start, int end);
+  }
+
   private final int minGram;
   private final int maxGram;
 
@@ -74,13 +102,49 @@ public abstract class Grammer {
   }
 
   /**
-   * Override to get a list of grams
+   * Get a list of grams
    *
    * @param strings   list of unigrams to be combined into larger grams
    * @param delimiter string to use to join unigrams
    * @return list of xgrams
    */
-  public abstract List<String> getGrams(List<String> strings, String delimiter);
+  public List<String> getGrams(final List<String> strings, final String delimiter) {
+    final List<String> ret = new ArrayList<String>();
+    visitGrams(encode(strings), strings.size(), new GramVisitor() {
+      @Override
+      public void visit(int start, int end) {
+        ret.add(join(delimiter, strings, start, end));
+      }
+    });
+    return ret;
+  }
+
+  /**
+   * Override to visit each gram as a range of indices over int-encoded tokens.
+   * Grams must be visited in order of start index and then end index.
+   *
+   * @param tokens  int-encoded unigrams
+   * @param length  number of tokens to use in <code>tokens</code>
+   * @param visitor visitor to call on each gram
+   */
+  public abstract void visitGrams(int[] tokens, int length, GramVisitor visitor);
+
+  /**
+   * Encodes stop word and field separator sentinels as
+   * {@link #STOP} and {@link #FIELD_SEPARATOR}; all other tokens are encoded as 0.
+   */
+  private static int[] encode(List<String> strings) {
+    int[] tokens = new int[strings.size()];
+    for (int i = 0; i < tokens.length; i++) {
+      String s = strings.get(i);
+      if (ConcordanceArrayWindow.isStop(s)) {
+        tokens[i] = STOP;
+      } else if (ConcordanceArrayWindow.isFieldSeparator(s)) {
+        tokens[i] = FIELD_SEPARATOR;
+      }
+    }
+    return tokens;
+  }
 
   /**
    * @return minimum gram
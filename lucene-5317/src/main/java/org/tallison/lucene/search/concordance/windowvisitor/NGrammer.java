@@ -17,10 +17,7 @@ package org.tallison.lucene.search.concordance.windowvisitor;
  * limitations under the License.
  */
 
-import java.util.ArrayList;
 import java.util.List;
-import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
-import org.apache.lucene.analysis.tokenattributes.OffsetAttributeImpl;
 
 
 public class NGrammer extends Grammer {
@@ -32,29 +29,24 @@ public class NGrammer extends Grammer {
   /**
    * current implementation ignores stopIndices
    */
+  @Override
   public List<String> getGrams(List<String> strings,
                                String delimiter) {
     if (getMinGram() == 1 && getMaxGram() == 1) {
       return strings;
     }
-    List<String> ret = new ArrayList<String>();
-    List<OffsetAttribute> offsets = getGramOffsets(strings);
-    for (OffsetAttribute offset : offsets) {
-      ret.add(join(delimiter, strings, offset.startOffset(), offset.endOffset()));
-    }
-    return ret;
-
+    return super.getGrams(strings, delimiter);
   }
 
-  private List<OffsetAttribute> getGramOffsets(List<String> strings) {
-    List<OffsetAttribute> ret = new ArrayList<OffsetAttribute>();
-    for (int i = 0; i < strings.size(); i++) {
-      for (int j = i + getMinGram() - 1; j < i + getMaxGram() && j < strings.size(); j++) {
-        OffsetAttribute off = new OffsetAttributeImpl();
-        off.setOffset(i, j);
-        ret.add(off);
+  /**
+   * current implementation ignores stopIndices
+   */
+  @Override
+  public void visitGrams(int[] tokens, int length, GramVisitor visitor) {
+    for (int i = 0; i < length; i++) {
+      for (int j = i + getMinGram() - 1; j < i + getMaxGram() && j < length; j++) {
+        visitor.visit(i, j);
       }
     }
-    return ret;
   }
 }
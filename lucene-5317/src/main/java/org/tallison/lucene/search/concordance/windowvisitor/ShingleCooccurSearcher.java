@@ -0,0 +1,426 @@
+package org.tallison.lucene.search.concordance.windowvisitor;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanWeight;
+import org.apache.lucene.search.spans.Spans;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefArray;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.Counter;
+import org.apache.lucene.util.InPlaceMergeSorter;
+import org.tallison.lucene.corpus.stats.IDFIndexCalc;
+import org.tallison.lucene.corpus.stats.TFIDFOrdPriorityQueue;
+import org.tallison.lucene.corpus.stats.TermIDF;
+import org.tallison.lucene.search.concordance.charoffsets.SpansCrawler;
+import org.tallison.lucene.search.spans.SimpleSpanQueryConverter;
+
+/**
+ * Counts cooccurring grams from a shingle field (e.g. the output of a
+ * <code>ShingleFilter</code>) instead of re-analyzing the stored text as
+ * {@link CooccurVisitor} does.
+ * <p>
+ * For each document with a hit, the shingle field's term vector is read once
+ * and its gram occurrences are sorted by position.  For each hit, only the
+ * occurrences in the window's position range are visited, so no stored fields are
+ * loaded, no analyzer is run, and the per-hit cost is proportional to the
+ * number of grams in the window.  A gram is counted if it starts no more than
+ * <code>tokensBefore</code> positions before the target and ends before it,
+ * or if it starts after the target and ends no more than <code>tokensAfter</code>
+ * positions after it.  The number of tokens in a gram is the number of token
+ * separators in the shingle plus one.
+ * <p>
+ * The shingle field must be indexed with term vectors with positions, and
+ * its positions must line up with those of the field that the query targets,
+ * i.e. both fields should be analyzed with the same tokenizer and filters
+ * before the shingles are built.  Unlike {@link CooccurVisitor}, the window
+ * is measured in positions, so removed stop words and the position increment
+ * gap between field values count against <code>tokensBefore</code>
+ * and <code>tokensAfter</code>.  The document frequency of each gram is read
+ * directly from the shingle field.
+ */
+public class ShingleCooccurSearcher {
+
+  private final String shingleField;
+  private final BytesRef tokenSeparator;
+  private final int tokensBefore;
+  private final int tokensAfter;
+  private final int minGram;
+  private final int maxGram;
+  private final IDFIndexCalc idfCalc;
+  private final int maxWindows;
+
+  private SimpleSpanQueryConverter spanQueryConverter = new SimpleSpanQueryConverter();
+
+  /**
+   * minimum term frequency to include in calculations.
+   * If the term doesn't show up this often in the context of the target,
+   * ignore it.
+   */
+  private int minTermFreq = 5;
+  /**
+   * number of results to return
+   */
+  private int numResults = 20;
+
+  private final BytesRefHash grams = new BytesRefHash();
+  private int[] counts = new int[16];
+  private long numWindowsVisited = 0;
+  private long numDocsVisited = 0;
+  private boolean hitMax = false;
+
+  //the current document's grams in [minGram, maxGram], by local index
+  private final BytesRefArray docGrams = new BytesRefArray(Counter.newCounter());
+  private int[] docGramLengths = new int[16];
+  //local index -> ordinal in grams + 1; 0 if not yet counted
+  private int[] docGramOrds = new int[16];
+  //the current document's gram occurrences, sorted by position
+  private int[] occPositions = new int[16];
+  private int[] occGrams = new int[16];
+  private int numOccs = 0;
+  private final BytesRefBuilder spare = new BytesRefBuilder();
+  private final OccurrenceSorter sorter = new OccurrenceSorter();
+
+  /**
+   * @param shingleField   field with the shingles
+   * @param tokenSeparator separator between tokens in a shingle, as configured in the ShingleFilter
+   * @param tokensBefore   number of positions before the target
+   * @param tokensAfter    number of positions after the target
+   * @param minGram        minimum number of tokens in a gram
+   * @param maxGram        maximum number of tokens in a gram
+   * @param idfCalc        calculator of inverse document frequency
+   * @param maxWindows     maximum number of windows to collect
+   */
+  public ShingleCooccurSearcher(String shingleField, String tokenSeparator,
+                                int tokensBefore, int tokensAfter, int minGram, int maxGram,
+                                IDFIndexCalc idfCalc, int maxWindows) {
+    if (tokenSeparator == null || tokenSeparator.length() == 0) {
+      throw new IllegalArgumentException("tokenSeparator must not be empty");
+    }
+    if (minGram < 1 || maxGram < minGram) {
+      throw new IllegalArgumentException("must have 0 < minGram <= maxGram: " + minGram + ", " + maxGram);
+    }
+    this.shingleField = shingleField;
+    this.tokenSeparator = new BytesRef(tokenSeparator);
+    this.tokensBefore = tokensBefore;
+    this.tokensAfter = tokensAfter;
+    this.minGram = minGram;
+    this.maxGram = maxGram;
+    this.idfCalc = idfCalc;
+    this.maxWindows = maxWindows;
+  }
+
+  /**
+   * Counts the grams around the hits of <code>mainQuery</code>.  This may be called
+   * more than once; the counts accumulate across calls.
+   *
+   * @param searcher    indexSearcher to search
+   * @param fieldName   field to search
+   * @param mainQuery   mainQuery to use
+   * @param filterQuery filterQuery to apply, can be null
+   * @throws IllegalArgumentException if the shingle field doesn't have term vectors with positions
+   * @throws java.io.IOException if there's an underlying IOException with the reader
+   */
+  public void search(IndexSearcher searcher, String fieldName,
+                     Query mainQuery, Query filterQuery) throws IllegalArgumentException, IOException {
+    if (mainQuery instanceof SpanQuery) {
+      searchSpan(searcher, (SpanQuery) mainQuery, filterQuery);
+      return;
+    }
+    SpanQuery spanQuery = spanQueryConverter.convert(fieldName, mainQuery);
+    Query filter = mainQuery;
+    if (filterQuery != null) {
+      filter = new BooleanQuery.Builder()
+          .add(mainQuery, BooleanClause.Occur.MUST)
+          .add(filterQuery, BooleanClause.Occur.FILTER).build();
+    }
+    searchSpan(searcher, spanQuery, filter);
+  }
+
+  /**
+   * See {@link #search(IndexSearcher, String, Query, Query)}
+   */
+  public void searchSpan(IndexSearcher searcher, SpanQuery query, Query filterQuery)
+      throws IllegalArgumentException, IOException {
+    SpanWeight spanWeight = SpansCrawler.createSpanWeight(query, searcher);
+    Weight filterWeight = SpansCrawler.createFilterWeight(filterQuery, searcher);
+    for (LeafReaderContext ctx : searcher.getIndexReader().leaves()) {
+      if (hitMax) {
+        return;
+      }
+      Spans spans = spanWeight.getSpans(ctx, SpanWeight.Postings.POSITIONS);
+      if (spans == null) {
+        continue;
+      }
+      DocIdSetIterator filterItr = null;
+      if (filterWeight != null) {
+        Scorer scorer = filterWeight.scorer(ctx);
+        if (scorer == null) {
+          continue;
+        }
+        filterItr = scorer.iterator();
+      }
+      while (! hitMax && spans.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+        int doc = spans.docID();
+        if (filterItr != null) {
+          if (filterItr.docID() < doc) {
+            filterItr.advance(doc);
+          }
+          if (filterItr.docID() == DocIdSetIterator.NO_MORE_DOCS) {
+            break;
+          } else if (filterItr.docID() != doc) {
+            continue;
+          }
+        }
+        visitDoc(ctx.reader(), doc, spans);
+      }
+    }
+  }
+
+  private void visitDoc(LeafReader reader, int doc, Spans spans) throws IOException {
+    loadDocGrams(reader, doc);
+    boolean visited = false;
+    while (spans.nextStartPosition() != Spans.NO_MORE_POSITIONS) {
+      if (numWindowsVisited >= maxWindows) {
+        hitMax = true;
+        break;
+      }
+      int start = spans.startPosition();
+      int end = spans.endPosition();
+      countRange(start - tokensBefore, start, start);
+      countRange(end, end + tokensAfter, end + tokensAfter);
+      numWindowsVisited++;
+      visited = true;
+    }
+    if (visited) {
+      numDocsVisited++;
+    }
+  }
+
+  //reads the document's term vector into the occurrence arrays
+  private void loadDocGrams(LeafReader reader, int doc) throws IOException {
+    docGrams.clear();
+    numOccs = 0;
+    Terms terms = reader.getTermVector(doc, shingleField);
+    if (terms == null) {
+      return;
+    }
+    if (! terms.hasPositions()) {
+      throw new IllegalArgumentException("The term vectors for " + shingleField + " must have positions");
+    }
+    TermsEnum termsEnum = terms.iterator();
+    PostingsEnum postings = null;
+    BytesRef term;
+    while ((term = termsEnum.next()) != null) {
+      int length = numTokens(term);
+      if (length < minGram || length > maxGram) {
+        continue;
+      }
+      int localIndex = docGrams.append(term);
+      docGramLengths = ArrayUtil.grow(docGramLengths, localIndex + 1);
+      docGramLengths[localIndex] = length;
+      postings = termsEnum.postings(postings, PostingsEnum.POSITIONS);
+      postings.nextDoc();
+      int freq = postings.freq();
+      occPositions = ArrayUtil.grow(occPositions, numOccs + freq);
+      occGrams = ArrayUtil.grow(occGrams, numOccs + freq);
+      for (int i = 0; i < freq; i++) {
+        occPositions[numOccs] = postings.nextPosition();
+        occGrams[numOccs++] = localIndex;
+      }
+    }
+    docGramOrds = ArrayUtil.grow(docGramOrds, docGrams.size());
+    Arrays.fill(docGramOrds, 0, docGrams.size(), 0);
+    sorter.sort(0, numOccs);
+  }
+
+  //counts the grams that start in [from, to) and end before endLimit
+  private void countRange(int from, int to, int endLimit) {
+    for (int i = firstOccurrence(from); i < numOccs && occPositions[i] < to; i++) {
+      int local = occGrams[i];
+      if (occPositions[i] + docGramLengths[local] > endLimit) {
+        continue;
+      }
+      int ord = docGramOrds[local] - 1;
+      if (ord < 0) {
+        ord = grams.add(docGrams.get(spare, local));
+        ord = (ord < 0) ? -ord - 1 : ord;
+        docGramOrds[local] = ord + 1;
+      }
+      counts = ArrayUtil.grow(counts, ord + 1);
+      counts[ord]++;
+    }
+  }
+
+  //index of the first occurrence at or after the position
+  private int firstOccurrence(int position) {
+    int lo = 0;
+    int hi = numOccs;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (occPositions[mid] < position) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  private int numTokens(BytesRef term) {
+    int n = 1;
+    int last = term.offset + term.length - tokenSeparator.length;
+    for (int i = term.offset; i <= last; i++) {
+      if (matchesSeparator(term.bytes, i)) {
+        n++;
+        i += tokenSeparator.length - 1;
+      }
+    }
+    return n;
+  }
+
+  private boolean matchesSeparator(byte[] bytes, int offset) {
+    for (int j = 0; j < tokenSeparator.length; j++) {
+      if (bytes[offset + j] != tokenSeparator.bytes[tokenSeparator.offset + j]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * can throw RuntimeException if there is an IOException
+   * while calculating the document frequencies
+   *
+   * @return the top <code>numResults</code> grams by tf*idf
+   */
+  public List<TermIDF> getResults() {
+    int numCandidates = 0;
+    int[] candidates = new int[16];
+    for (int ord = 0; ord < grams.size(); ord++) {
+      if (counts[ord] < minTermFreq) {
+        continue;
+      }
+      candidates = ArrayUtil.grow(candidates, numCandidates + 1);
+      candidates[numCandidates++] = ord;
+    }
+    BytesRef[] candidateBytes = new BytesRef[numCandidates];
+    for (int i = 0; i < numCandidates; i++) {
+      candidateBytes[i] = grams.get(candidates[i], new BytesRef());
+    }
+    int[] dfs;
+    try {
+      dfs = idfCalc.docFreqs(shingleField, candidateBytes);
+    } catch (IOException e) {
+      throw new RuntimeException("Error trying to calculate IDF: " + e.getMessage());
+    }
+
+    TFIDFOrdPriorityQueue queue = new TFIDFOrdPriorityQueue(numResults, candidateBytes);
+    double[] idfs = new double[numCandidates];
+    for (int i = 0; i < numCandidates; i++) {
+      idfs[i] = idfCalc.getIDF(dfs[i]);
+      queue.insertWithOverflow(i, counts[candidates[i]] * idfs[i]);
+    }
+    TermIDF[] results = new TermIDF[queue.size()];
+    for (int i = results.length - 1; i >= 0; i--) {
+      int candidate = queue.pop();
+      results[i] = new TermIDF(candidateBytes[candidate].utf8ToString(), dfs[candidate],
+          counts[candidates[candidate]], idfs[candidate]);
+    }
+    return new ArrayList<>(Arrays.asList(results));
+  }
+
+  /**
+   * @return number of documents with at least one counted window
+   */
+  public long getNumDocsVisited() {
+    return numDocsVisited;
+  }
+
+  /**
+   * @return number of windows counted
+   */
+  public long getNumWindowsVisited() {
+    return numWindowsVisited;
+  }
+
+  /**
+   * @return whether the search stopped because it reached maxWindows
+   */
+  public boolean getHitMax() {
+    return hitMax;
+  }
+
+  public int getMinTermFreq() {
+    return minTermFreq;
+  }
+
+  public void setMinTermFreq(int minTermFreq) {
+    this.minTermFreq = minTermFreq;
+  }
+
+  public int getNumResults() {
+    return numResults;
+  }
+
+  public void setNumResults(int numResults) {
+    this.numResults = numResults;
+  }
+
+  public void setSpanQueryConverter(SimpleSpanQueryConverter converter) {
+    this.spanQueryConverter = converter;
+  }
+
+  //sorts the occurrences by position
+  private class OccurrenceSorter extends InPlaceMergeSorter {
+    @Override
+    protected int compare(int i, int j) {
+      return Integer.compare(occPositions[i], occPositions[j]);
+    }
+
+    @Override
+    protected void swap(int i, int j) {
+      int tmp = occPositions[i];
+      occPositions[i] = occPositions[j];
+      occPositions[j] = tmp;
+      tmp = occGrams[i];
+      occGrams[i] = occGrams[j];
+      occGrams[j] = tmp;
+    }
+  }
+}
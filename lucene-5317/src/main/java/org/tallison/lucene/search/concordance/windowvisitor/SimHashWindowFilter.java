@@ -0,0 +1,170 @@
+package org.tallison.lucene.search.concordance.windowvisitor;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+/**
+ * Drops windows whose {@link ConcordanceArrayWindow#simHash()} is within
+ * <code>maxHammingDistance</code> bits of a window that was already accepted.
+ * <p>
+ * Candidates are found with locality-sensitive hashing: the 64 bits are split into
+ * <code>maxHammingDistance + 1</code> bands, and two signatures within the distance must
+ * agree on at least one band.  Each band has a fixed-size, 4-way set-associative table
+ * of the signatures in each bucket, which evicts the oldest signature when a set is full,
+ * and only the last
+ * <code>maxSignatures</code> accepted signatures are kept, so memory is bounded
+ * at roughly <code>8 * maxSignatures * (2 * (maxHammingDistance + 1) + 1)</code> bytes.
+ * The price of the bound is that an older near-duplicate may be forgotten, in
+ * which case the window is accepted; a window is never dropped unless it is
+ * within the distance of an accepted window.
+ * <p>
+ * Small distances work best: each extra bit of distance narrows the bands
+ * and makes more windows share buckets.
+ */
+public class SimHashWindowFilter implements ArrayWindowFilter {
+
+  private final int maxHammingDistance;
+  private final int maxSignatures;
+  private final int[] bandShifts;
+  private final long[] bandMasks;
+  private static final int WAYS = 4;
+
+  //per band: sequence number + 1 of the signatures in each set of WAYS slots, or 0
+  private final long[][] buckets;
+  private final int setMask;
+  //ring buffer of accepted signatures, indexed by sequence number % maxSignatures
+  private final long[] signatures;
+  private long numAccepted = 0;
+  private long numSeen = 0;
+  private long numDropped = 0;
+
+  /**
+   * @param maxHammingDistance maximum number of differing bits for a window to
+   *                           count as a near-duplicate; 0 drops only windows with identical signatures
+   * @param maxSignatures      maximum number of accepted signatures to remember
+   */
+  public SimHashWindowFilter(int maxHammingDistance, int maxSignatures) {
+    if (maxHammingDistance < 0 || maxHammingDistance > 63) {
+      throw new IllegalArgumentException("maxHammingDistance must be >= 0 and < 64: " + maxHammingDistance);
+    }
+    if (maxSignatures < 1 || maxSignatures > (1 << 29)) {
+      throw new IllegalArgumentException("maxSignatures must be > 0 and <= 2^29: " + maxSignatures);
+    }
+    this.maxHammingDistance = maxHammingDistance;
+    this.maxSignatures = maxSignatures;
+    int numBands = maxHammingDistance + 1;
+    bandShifts = new int[numBands];
+    bandMasks = new long[numBands];
+    int shift = 0;
+    for (int i = 0; i < numBands; i++) {
+      //spread the remainder over the first bands
+      int width = 64 / numBands + ((i < 64 % numBands) ? 1 : 0);
+      bandShifts[i] = shift;
+      bandMasks[i] = (width == 64) ? -1L : (1L << width) - 1;
+      shift += width;
+    }
+    int tableSize = Math.max(WAYS, Integer.highestOneBit(maxSignatures) << 1);
+    setMask = tableSize / WAYS - 1;
+    buckets = new long[numBands][tableSize];
+    signatures = new long[maxSignatures];
+  }
+
+  @Override
+  public boolean accept(ConcordanceArrayWindow window) {
+    //the leaves of a parallel search share the filter, so hash outside of the lock
+    return accept(window.simHash());
+  }
+
+  private synchronized boolean accept(long signature) {
+    numSeen++;
+    long oldest = numAccepted - maxSignatures;
+    for (int band = 0; band < bandShifts.length; band++) {
+      long[] table = buckets[band];
+      int set = bucket(signature, band) * WAYS;
+      for (int way = 0; way < WAYS; way++) {
+        long seq = table[set + way] - 1;
+        if (seq < oldest || seq < 0) {
+          //empty or overwritten in the ring buffer
+          continue;
+        }
+        long other = signatures[(int) (seq % maxSignatures)];
+        if (Long.bitCount(other ^ signature) <= maxHammingDistance) {
+          numDropped++;
+          return false;
+        }
+      }
+    }
+    long seq = numAccepted++;
+    signatures[(int) (seq % maxSignatures)] = signature;
+    for (int band = 0; band < bandShifts.length; band++) {
+      long[] table = buckets[band];
+      int set = bucket(signature, band) * WAYS;
+      //replace the oldest (or an empty) slot in the set
+      int victim = set;
+      for (int way = 1; way < WAYS; way++) {
+        if (table[set + way] < table[victim]) {
+          victim = set + way;
+        }
+      }
+      table[victim] = seq + 1;
+    }
+    return true;
+  }
+
+  private int bucket(long signature, int band) {
+    long h = ((signature >>> bandShifts[band]) & bandMasks[band]) * 0x9E3779B97F4A7C15L + band;
+    h ^= h >>> 32;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 29;
+    return (int) h & setMask;
+  }
+
+  /**
+   * @return number of windows that have been checked
+   */
+  public synchronized long getNumWindowsSeen() {
+    return numSeen;
+  }
+
+  /**
+   * @return number of windows that were dropped as near-duplicates
+   */
+  public synchronized long getNumWindowsDropped() {
+    return numDropped;
+  }
+
+  /**
+   * @return fraction of the windows seen that were dropped, or 0 if none have been seen
+   */
+  public synchronized double getDropRate() {
+    return (numSeen == 0) ? 0.0d : (double) numDropped / (double) numSeen;
+  }
+
+  /**
+   * Forgets all signatures and resets the counts
+   */
+  public synchronized void reset() {
+    for (long[] table : buckets) {
+      Arrays.fill(table, 0L);
+    }
+    numAccepted = 0;
+    numSeen = 0;
+    numDropped = 0;
+  }
+}
@@ -19,17 +19,26 @@ package org.tallison.lucene.search.concordance.windowvisitor;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.tallison.lucene.corpus.stats.OrdScorePriorityQueue;
 import org.tallison.lucene.corpus.stats.TermDFTF;
-import org.apache.lucene.util.mutable.MutableValueInt;
 
 
 /**
+ * Counts the term frequency and document frequency of each distinct target.
+ * <p>
+ * Each target is counted as a sequence of token ordinals in a {@link GramTable},
+ * with the document frequency in a parallel int array.  Instead of a set of the
+ * targets that have been seen in the current document, each target records the
+ * generation of the last document in which it was seen, and the generation is
+ * incremented with each new document.  {@link #getResults()} selects the top
+ * <code>numResults</code> targets with a bounded heap, and only builds Strings
+ * for those targets (and for any ties that need to be broken).
+ * <p>
  * The ArrayWindowSearcher must visit all windows in a document before
  * moving on to a new document.  If (for some unforeseen reason...multithreading?),
  * the Searcher visits two windows in doc1, a window in doc2 and then another window in doc1,
@@ -39,14 +48,15 @@ public class TargetVisitor extends ArrayWindowVisitor<List<TermDFTF>> {
 
   private final static String JOINER = " ";
   private final int numResults;
-  private Map<String, MutableValueInt> tf = new HashMap<>();
-  private Map<String, MutableValueInt> df = new HashMap<>();
+  private final TokenOrdinalMap tokens = new TokenOrdinalMap();
+  private final GramTable targets = new GramTable();
+  private int[] docFreqs = new int[16];
+  //generation of the last document in which each target was seen
+  private int[] lastSeen = new int[16];
+  private int generation = 0;
+  private int[] encoded = new int[16];
   private String lastDocId = null;
 
-  //cache of terms seen in current doc
-  //this is reset with each new doc
-  private Set<String> seenInThisDoc = new HashSet<>();
-
   public TargetVisitor(String fieldName, int numResults,
                        boolean analyzeTarget, int maxWindows) {
     super(fieldName, 0, 0, true, analyzeTarget, maxWindows);
@@ -57,49 +67,30 @@ public class TargetVisitor extends ArrayWindowVisitor<List<TermDFTF>> {
   public void visit(String docId, ConcordanceArrayWindow window)
       throws IOException {
 
-    if (getNumWindowsVisited() >= getMaxWindows()) {
-      setHitMax(true);
+    if (! acquireWindow()) {
       return;
     }
 
     //will throw NPE if docId is null
-    if (lastDocId != null && !lastDocId.equals(docId)) {
-      seenInThisDoc.clear();
+    if (lastDocId == null || !lastDocId.equals(docId)) {
+      generation++;
     }
-    String targ = "";
-    StringBuilder sb = new StringBuilder();
-    List<String> parts = window.getRawTargList();
-    if (parts.size() == 0) {
-      targ = "";
-    } else {
-      sb.append(ConcordanceArrayWindow.tokenToString(parts.get(0)));
-      for (int i = 1; i < parts.size(); i++) {
-        sb.append(JOINER).append(ConcordanceArrayWindow.tokenToString(parts.get(i)));
-      }
-      targ = sb.toString();
+    int length = window.getNumTargetTokens();
+    encoded = ArrayUtil.grow(encoded, length);
+    tokens.encode(window, window.getTargetTokens(), length, encoded);
+    long hash = GramTable.hashStart();
+    for (int i = 0; i < length; i++) {
+      hash = GramTable.hashStep(hash, encoded[i]);
     }
-
-    MutableValueInt cnt = tf.get(targ);
-    if (cnt == null) {
-      cnt = new MutableValueInt();
-      cnt.value = 1;
-    } else {
-      cnt.value++;
+    int ord = targets.add(GramTable.finish(hash), encoded, 0, length - 1, 1);
+    if (ord >= docFreqs.length) {
+      docFreqs = ArrayUtil.grow(docFreqs, ord + 1);
+      lastSeen = ArrayUtil.grow(lastSeen, ord + 1);
     }
-
-    tf.put(targ, cnt);
-
-    if (!seenInThisDoc.contains(targ)) {
-      cnt = df.get(targ);
-      if (cnt == null) {
-        cnt = new MutableValueInt();
-        cnt.value = 1;
-      } else {
-        cnt.value++;
-      }
-      df.put(targ, cnt);
+    if (lastSeen[ord] != generation) {
+      docFreqs[ord]++;
+      lastSeen[ord] = generation;
     }
-    seenInThisDoc.add(targ);
     lastDocId = docId;
     finishedVisit(docId, true);
 
@@ -107,36 +98,87 @@ public class TargetVisitor extends ArrayWindowVisitor<List<TermDFTF>> {
 
   @Override
   public List<TermDFTF> getResults() {
-    List<TermDFTF> list = new ArrayList<>();
-
-    for (Map.Entry<String, MutableValueInt> entry : df.entrySet()) {
-
-      String key = entry.getKey();
-      int docFreq = entry.getValue().value;
-      MutableValueInt mutTF = tf.get(key);
-      int termFreq = (mutTF == null) ? 0 : mutTF.value;
-      list.add(new TermDFTF(key, docFreq, termFreq));
+    final String[] strings = new String[targets.size()];
+    //same order as TermDFTF: descending df, descending tf, ascending term
+    OrdScorePriorityQueue queue = new OrdScorePriorityQueue(Math.min(numResults, targets.size())) {
+      @Override
+      protected boolean tieBreakLessThan(int a, int b) {
+        int tfA = targets.count(a);
+        int tfB = targets.count(b);
+        if (tfA != tfB) {
+          return tfA < tfB;
+        }
+        return getString(a, strings).compareTo(getString(b, strings)) > 0;
+      }
+    };
+    for (int ord = 0; ord < targets.size(); ord++) {
+      queue.insertWithOverflow(ord, docFreqs[ord]);
     }
-    Collections.sort(list);
-    //if list is short enough, return now
-    if (list.size() <= numResults) {
-      return list;
+    TermDFTF[] results = new TermDFTF[queue.size()];
+    for (int i = results.length - 1; i >= 0; i--) {
+      int ord = queue.pop();
+      results[i] = new TermDFTF(getString(ord, strings), docFreqs[ord], targets.count(ord));
     }
+    return new ArrayList<>(Arrays.asList(results));
+  }
 
-    //copy over only the required results
-    List<TermDFTF> ret = new ArrayList<>();
-    int i = 0;
-    for (TermDFTF t : list) {
-      if (i++ >= numResults) {
-        break;
+  //lazily builds and caches the target string for ord
+  private String getString(int ord, String[] strings) {
+    if (strings[ord] == null) {
+      StringBuilder sb = new StringBuilder();
+      BytesRef spare = new BytesRef();
+      for (int i = 0; i < targets.length(ord); i++) {
+        if (i > 0) {
+          sb.append(JOINER);
+        }
+        int t = targets.token(ord, i);
+        if (t == Grammer.STOP) {
+          sb.append(ConcordanceArrayWindow.tokenToString(ConcordanceArrayWindow.STOP_WORD));
+        } else if (t == Grammer.FIELD_SEPARATOR) {
+          sb.append(ConcordanceArrayWindow.tokenToString(ConcordanceArrayWindow.FIELD_SEPARATOR));
+        } else {
+          sb.append(tokens.get(t, spare).utf8ToString());
+        }
+      }
+      strings[ord] = sb.toString();
+    }
+    return strings[ord];
+  }
+
+  /**
+   * Adds the tf and df counts from the other visitor, which must
+   * have visited a disjoint set of documents.
+   *
+   * @param other visitor to merge into this one
+   */
+  @Override
+  public void merge(ArrayWindowVisitor<List<TermDFTF>> other) {
+    if (! (other instanceof TargetVisitor)) {
+      throw new IllegalArgumentException("Can only merge a TargetVisitor");
+    }
+    TargetVisitor o = (TargetVisitor) other;
+    mergeVisitCounts(o);
+    int[] ordMap = tokens.addAll(o.tokens);
+    for (int g = 0; g < o.targets.size(); g++) {
+      int length = o.targets.length(g);
+      encoded = ArrayUtil.grow(encoded, length);
+      long hash = GramTable.hashStart();
+      for (int i = 0; i < length; i++) {
+        int t = o.targets.token(g, i);
+        encoded[i] = (t < 0) ? t : ordMap[t];
+        hash = GramTable.hashStep(hash, encoded[i]);
+      }
+      int ord = targets.add(GramTable.finish(hash), encoded, 0, length - 1, o.targets.count(g));
+      if (ord >= docFreqs.length) {
+        docFreqs = ArrayUtil.grow(docFreqs, ord + 1);
+        lastSeen = ArrayUtil.grow(lastSeen, ord + 1);
       }
-      ret.add(t);
+      docFreqs[ord] += o.docFreqs[g];
     }
-    return ret;
   }
 
   public int getUniqTermCounts() {
-    return tf.keySet().size();
+    return targets.size();
   }
 
 }
@@ -0,0 +1,106 @@
+package org.tallison.lucene.search.concordance.windowvisitor;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+
+/**
+ * A visitor's own token dictionary.  Window ordinals are only meaningful
+ * within one {@link ConcordanceArrayWindow}'s dictionary, so this maps each
+ * window ordinal onto a visitor ordinal the first time that it is seen, and
+ * afterwards with a single array lookup.
+ */
+class TokenOrdinalMap {
+
+  private final BytesRefHash tokens = new BytesRefHash();
+  private final BytesRef spare = new BytesRef();
+  //window token ordinal -> ordinal in tokens + 1; 0 if not yet mapped
+  private int[] windowOrdToOrd = new int[16];
+  private ConcordanceArrayWindow lastWindow = null;
+
+  /**
+   * @param window       window that the tokens came from
+   * @param windowTokens int-encoded tokens from the window
+   * @param length       number of tokens to encode
+   * @param dest         array of length &gt;= <code>length</code> to receive the visitor's
+   *                     int-encoded tokens; stop words and field separators are copied as is
+   */
+  void encode(ConcordanceArrayWindow window, int[] windowTokens, int length, int[] dest) {
+    if (window != lastWindow) {
+      Arrays.fill(windowOrdToOrd, 0);
+      lastWindow = window;
+    }
+    windowOrdToOrd = ArrayUtil.grow(windowOrdToOrd, window.getNumTokenOrdinals());
+    for (int i = 0; i < length; i++) {
+      int t = windowTokens[i];
+      if (t < 0) {
+        //stop or field separator
+        dest[i] = t;
+        continue;
+      }
+      int mapped = windowOrdToOrd[t];
+      if (mapped == 0) {
+        mapped = add(window.getTokenBytes(t, spare)) + 1;
+        windowOrdToOrd[t] = mapped;
+      }
+      dest[i] = mapped - 1;
+    }
+  }
+
+  /**
+   * @param bytes token
+   * @return ordinal of the token
+   */
+  int add(BytesRef bytes) {
+    int ord = tokens.add(bytes);
+    return (ord < 0) ? -ord - 1 : ord;
+  }
+
+  /**
+   * @param ord   token ordinal
+   * @param bytes spare to fill
+   * @return <code>bytes</code> pointing to the token
+   */
+  BytesRef get(int ord, BytesRef bytes) {
+    return tokens.get(ord, bytes);
+  }
+
+  /**
+   * @return number of distinct tokens
+   */
+  int size() {
+    return tokens.size();
+  }
+
+  /**
+   * @param other map from another visitor
+   * @return array that maps the other visitor's ordinals onto this one's
+   */
+  int[] addAll(TokenOrdinalMap other) {
+    BytesRef bytes = new BytesRef();
+    int[] ordMap = new int[other.size()];
+    for (int i = 0; i < ordMap.length; i++) {
+      ordMap[i] = add(other.get(i, bytes));
+    }
+    return ordMap;
+  }
+}
@@ -17,11 +17,6 @@ package org.tallison.lucene.search.concordance.windowvisitor;
  * limitations under the License.
  */
 
-import java.util.ArrayList;
-import java.util.List;
-import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
-import org.apache.lucene.analysis.tokenattributes.OffsetAttributeImpl;
-
 /**
  * A wgram is similar to a token ngram except...
  * A wgram cannot start or end with a stopword.
@@ -64,42 +59,28 @@ public class WGrammer extends Grammer {
   }
 
   @Override
-  public List<String> getGrams(List<String> strings, String delimiter) {
-    List<String> ret = new ArrayList<String>();
-    List<OffsetAttribute> offsets = getGramOffsets(strings, getMinGram(),
-        getMaxGram());
-    for (OffsetAttribute offset : offsets) {
-      ret.add(join(delimiter, strings, offset.startOffset(), offset.endOffset()));
-    }
-    return ret;
-
-  }
-
-  private List<OffsetAttribute> getGramOffsets(List<String> strings, int min, int max) {
-
-    List<OffsetAttribute> ret = new ArrayList<OffsetAttribute>();
-    for (int i = 0; i < strings.size(); i++) {
-      if (ConcordanceArrayWindow.isStopOrFieldSeparator(strings.get(i))) {
+  public void visitGrams(int[] tokens, int length, GramVisitor visitor) {
+    final int min = getMinGram();
+    final int max = getMaxGram();
+    for (int i = 0; i < length; i++) {
+      if (tokens[i] == STOP || tokens[i] == FIELD_SEPARATOR) {
         continue;
       }
       int nonStops = 0;
-      for (int j = i; nonStops < max && j < strings.size(); j++) {
-        String tmp = strings.get(j);
-        if (ConcordanceArrayWindow.isStop(tmp) ||
-            (allowFieldSeparators == true && ConcordanceArrayWindow.isFieldSeparator(tmp))) {
+      for (int j = i; nonStops < max && j < length; j++) {
+        int tmp = tokens[j];
+        if (tmp == STOP ||
+            (allowFieldSeparators == true && tmp == FIELD_SEPARATOR)) {
           continue;
-        } else if (allowFieldSeparators == false && ConcordanceArrayWindow.isFieldSeparator(tmp)) {
+        } else if (allowFieldSeparators == false && tmp == FIELD_SEPARATOR) {
           break;
         }
         nonStops++;
         if (nonStops >= min) {
-          OffsetAttribute offset = new OffsetAttributeImpl();
-          offset.setOffset(i, j);
-          ret.add(offset);
+          visitor.visit(i, j);
         }
       }
     }
-    return ret;
   }
 
 
@@ -31,6 +31,9 @@ import org.apache.lucene.search.spans.SpanQuery;
 import org.apache.lucene.search.spans.SpanTermQuery;
 
 public class SimpleSpanQueryConverter {
+
+  private SpanMultiTermQueryWrapper.SpanRewriteMethod multiTermRewriteMethod = null;
+
   /**
    * Converts a regular query to a {@link org.apache.lucene.search.spans.SpanQuery} for use in a highlighter.
    * Because of subtle differences in {@link org.apache.lucene.search.spans.SpanQuery} and {@link org.apache.lucene.search.Query}, this
@@ -227,8 +230,12 @@ public class SimpleSpanQueryConverter {
       if (! tq.getField().equals(field)) {
         return getEmptySpanQuery();
       }
-      return addBoost(
-          new SpanMultiTermQueryWrapper<>((MultiTermQuery) query), boost);
+      SpanMultiTermQueryWrapper<MultiTermQuery> wrapper =
+          new SpanMultiTermQueryWrapper<>((MultiTermQuery) query);
+      if (multiTermRewriteMethod != null) {
+        wrapper.setRewriteMethod(multiTermRewriteMethod);
+      }
+      return addBoost(wrapper, boost);
     } else if (query instanceof SynonymQuery) {
       SynonymQuery sq = (SynonymQuery)query;
       List<SpanQuery> spanQs = new ArrayList<>();
@@ -240,6 +247,27 @@ public class SimpleSpanQueryConverter {
     return convertUnknownQuery(field, queryToConvert);
   }
 
+  /**
+   * Set the rewrite method to apply to every {@link MultiTermQuery} that is
+   * wrapped in a {@link SpanMultiTermQueryWrapper}.  If this is null (the default),
+   * the wrapper's default rewrite is used, which can expand into an enormous
+   * {@link SpanOrQuery} for, e.g., short prefixes.
+   * See <code>org.tallison.lucene.queryparser.spans.CostAwareSpanRewriteMethod</code>
+   * in lucene-5205 for a rewrite that bounds the expansion.
+   *
+   * @param multiTermRewriteMethod rewrite method to use or null for the default
+   */
+  public void setMultiTermRewriteMethod(SpanMultiTermQueryWrapper.SpanRewriteMethod multiTermRewriteMethod) {
+    this.multiTermRewriteMethod = multiTermRewriteMethod;
+  }
+
+  /**
+   * @return rewrite method applied to wrapped MultiTermQueries; can be null
+   */
+  public SpanMultiTermQueryWrapper.SpanRewriteMethod getMultiTermRewriteMethod() {
+    return multiTermRewriteMethod;
+  }
+
   private SpanQuery buildSpanOr(List<SpanQuery> spanQs) {
     if (spanQs.size() == 0) {
       return getEmptySpanQuery();
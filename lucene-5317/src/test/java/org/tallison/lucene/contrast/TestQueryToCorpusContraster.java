@@ -0,0 +1,372 @@
+package org.tallison.lucene.contrast;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.analysis.MockTokenFilter;
+import org.apache.lucene.analysis.MockTokenizer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.RandomIndexWriter;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.NamedThreadFactory;
+import org.apache.lucene.util.TestUtil;
+import org.apache.lucene.util.Version;
+import org.junit.Test;
+import org.tallison.lucene.corpus.stats.TermIDF;
+import org.tallison.lucene.search.concordance.ConcordanceTestBase;
+
+public class TestQueryToCorpusContraster extends ConcordanceTestBase {
+
+  @Test
+  public void testTermVectorsDocValuesAndReanalysis() throws Exception {
+    String[] vocab = new String[]{"a", "b", "c", "d", "e", "f", "g", "x"};
+    Analyzer analyzer = getAnalyzer(MockTokenFilter.EMPTY_STOPSET, 50, 100);
+    FieldType tvType = new FieldType(TextField.TYPE_STORED);
+    tvType.setStoreTermVectors(true);
+    tvType.freeze();
+
+    Directory directory = newDirectory();
+    RandomIndexWriter writer = new RandomIndexWriter(random(), directory, newIndexWriterConfig(analyzer));
+    int numDocs = atLeast(100);
+    for (int i = 0; i < numDocs; i++) {
+      StringBuilder sb = new StringBuilder();
+      Set<String> uniq = new HashSet<>();
+      int len = TestUtil.nextInt(random(), 1, 8);
+      for (int j = 0; j < len; j++) {
+        String token = vocab[random().nextInt(vocab.length)];
+        sb.append(token).append(" ");
+        uniq.add(token);
+      }
+      Document d = new Document();
+      d.add(new Field("tv", sb.toString(), tvType));
+      d.add(newTextField("stored", sb.toString(), Field.Store.YES));
+      d.add(newTextField("dv", sb.toString(), Field.Store.NO));
+      for (String token : uniq) {
+        d.add(new SortedSetDocValuesField("dv", new BytesRef(token)));
+      }
+      writer.addDocument(d);
+    }
+    writer.close();
+    IndexReader reader = DirectoryReader.open(directory);
+    IndexSearcher searcher = newSearcher(reader);
+    int maxDocs = random().nextBoolean() ? numDocs : TestUtil.nextInt(random(), 1, numDocs);
+    int minTermFreq = TestUtil.nextInt(random(), 0, 5);
+
+    List<TermIDF> tvResults = contrast(searcher, maxDocs, minTermFreq, null,
+        new TermQuery(new Term("tv", "x")), "tv");
+    List<TermIDF> reanalyzedResults = contrast(searcher, maxDocs, minTermFreq, analyzer,
+        new TermQuery(new Term("stored", "x")), "stored");
+    List<TermIDF> dvResults = contrast(searcher, maxDocs, minTermFreq, null,
+        new TermQuery(new Term("dv", "x")), "dv");
+    if (maxDocs == numDocs) {
+      assertTrue(tvResults.size() > 0);
+      assertEquals(tvResults, reanalyzedResults);
+      assertEquals(tvResults, dvResults);
+    }
+    for (TermIDF r : tvResults) {
+      assertTrue(r.getTermFreq() >= minTermFreq);
+    }
+
+    //no analyzer and no term vectors or doc values
+    QueryToCorpusContraster contraster = new QueryToCorpusContraster(Version.LATEST, searcher, numDocs);
+    contraster.setMinTermFreq(0);
+    try {
+      contraster.contrast(new TermQuery(new Term("stored", "x")), "stored", 10);
+      fail("should have thrown an IllegalArgumentException");
+    } catch (IllegalArgumentException e) {
+      //expected
+    }
+    reader.close();
+    directory.close();
+  }
+
+  @Test
+  public void testTopDocsAndParallelCollection() throws Exception {
+    String[] vocab = new String[]{"a", "b", "c", "d", "e", "x"};
+    Analyzer analyzer = getAnalyzer(MockTokenFilter.EMPTY_STOPSET, 50, 100);
+    FieldType tvType = new FieldType(TextField.TYPE_STORED);
+    tvType.setStoreTermVectors(true);
+    tvType.freeze();
+
+    Directory directory = newDirectory();
+    RandomIndexWriter writer = new RandomIndexWriter(random(), directory, newIndexWriterConfig(analyzer));
+    int numDocs = atLeast(200);
+    for (int i = 0; i < numDocs; i++) {
+      StringBuilder sb = new StringBuilder();
+      int len = TestUtil.nextInt(random(), 1, 6);
+      for (int j = 0; j < len; j++) {
+        sb.append(vocab[random().nextInt(vocab.length)]).append(" ");
+      }
+      Document d = new Document();
+      d.add(new Field(FIELD, sb.toString(), tvType));
+      writer.addDocument(d);
+      if (random().nextInt(50) == 0) {
+        writer.commit();
+      }
+    }
+    writer.close();
+    IndexReader reader = DirectoryReader.open(directory);
+    ExecutorService executor = Executors.newFixedThreadPool(2, new NamedThreadFactory("contraster"));
+    try {
+      IndexSearcher serial = new IndexSearcher(reader);
+      IndexSearcher parallel = new IndexSearcher(reader, executor);
+      Query query = new TermQuery(new Term(FIELD, "x"));
+      int maxDocs = TestUtil.nextInt(random(), 1, numDocs);
+
+      //what the top maxDocs hits from a TopScoreDocCollector contain
+      TopScoreDocCollector results = TopScoreDocCollector.create(maxDocs);
+      serial.search(query, results);
+      ScoreDoc[] scoreDocs = results.topDocs().scoreDocs;
+      ForegroundTermCounter expected = new ForegroundTermCounter(FIELD, null, -1, true);
+      for (ScoreDoc scoreDoc : scoreDocs) {
+        LeafReaderContext leaf = reader.leaves().get(ReaderUtil.subIndex(scoreDoc.doc, reader.leaves()));
+        expected.setLeaf(leaf);
+        expected.count(scoreDoc.doc - leaf.docBase);
+      }
+      expected.finish();
+
+      for (IndexSearcher searcher : new IndexSearcher[]{serial, parallel}) {
+        ScoreThresholdCollectorManager.Threshold threshold =
+            searcher.search(query, new ScoreThresholdCollectorManager(maxDocs));
+        ForegroundTermCounter counter = searcher.search(query,
+            new ForegroundTermCollectorManager(reader, FIELD, null, -1, true, threshold));
+        assertEquals(scoreDocs.length, counter.getNumDocs());
+        assertEquals(toMap(expected), toMap(counter));
+      }
+
+      //counting all hits needs no scores and matches counting the top numDocs
+      QueryToCorpusContraster all = new QueryToCorpusContraster(Version.LATEST, parallel,
+          QueryToCorpusContraster.ALL_DOCS);
+      all.setMinTermFreq(1);
+      QueryToCorpusContraster top = new QueryToCorpusContraster(Version.LATEST, serial, numDocs);
+      top.setMinTermFreq(1);
+      assertEquals(top.contrast(query, FIELD, 10), all.contrast(query, FIELD, 10));
+    } finally {
+      executor.shutdown();
+      executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+    reader.close();
+    directory.close();
+  }
+
+  @Test
+  public void testIgnoreCase() throws Exception {
+    //not lower cased by the analyzer
+    Analyzer analyzer = new MockAnalyzer(random(), MockTokenizer.WHITESPACE, false);
+    FieldType tvType = new FieldType(TextField.TYPE_STORED);
+    tvType.setStoreTermVectors(true);
+    tvType.freeze();
+
+    Directory directory = newDirectory();
+    RandomIndexWriter writer = new RandomIndexWriter(random(), directory, newIndexWriterConfig(analyzer));
+    for (String text : new String[]{"Foo foo", "FOO bar", "baz"}) {
+      Document d = new Document();
+      d.add(new Field("tv", text, tvType));
+      d.add(newTextField("stored", text, Field.Store.YES));
+      for (String token : text.split(" ")) {
+        d.add(new SortedSetDocValuesField("dv", new BytesRef(token)));
+      }
+      writer.addDocument(d);
+      if (random().nextBoolean()) {
+        writer.commit();
+      }
+    }
+    writer.close();
+    IndexReader reader = DirectoryReader.open(directory);
+
+    Map<String, Integer> ignoreCase = new HashMap<>();
+    ignoreCase.put("foo", 2);
+    ignoreCase.put("bar", 1);
+    ignoreCase.put("baz", 1);
+    Map<String, Integer> withCase = new HashMap<>();
+    withCase.put("Foo", 1);
+    withCase.put("foo", 1);
+    withCase.put("FOO", 1);
+    withCase.put("bar", 1);
+    withCase.put("baz", 1);
+    for (String field : new String[]{"tv", "dv", "stored"}) {
+      assertEquals(field, ignoreCase, toMap(countAll(reader, field, analyzer, true)));
+      assertEquals(field, withCase, toMap(countAll(reader, field, analyzer, false)));
+    }
+    reader.close();
+    directory.close();
+  }
+
+  @Test
+  public void testAllTied() throws Exception {
+    Analyzer analyzer = getAnalyzer(MockTokenFilter.EMPTY_STOPSET, 50, 100);
+    FieldType tvType = new FieldType(TextField.TYPE_STORED);
+    tvType.setStoreTermVectors(true);
+    tvType.freeze();
+
+    Directory directory = newDirectory();
+    RandomIndexWriter writer = new RandomIndexWriter(random(), directory, newIndexWriterConfig(analyzer));
+    int numDocs = atLeast(100);
+    for (int i = 0; i < numDocs; i++) {
+      Document d = new Document();
+      d.add(new Field(FIELD, "x t" + i, tvType));
+      writer.addDocument(d);
+      if (random().nextInt(20) == 0) {
+        writer.commit();
+      }
+    }
+    writer.close();
+    IndexReader reader = DirectoryReader.open(directory);
+    ExecutorService executor = Executors.newFixedThreadPool(2, new NamedThreadFactory("contraster"));
+    try {
+      //every hit has the same score, so the top maxDocs are the lowest doc ids
+      Query query = new ConstantScoreQuery(new TermQuery(new Term(FIELD, "x")));
+      int maxDocs = TestUtil.nextInt(random(), 1, numDocs - 1);
+      ForegroundTermCounter expected = new ForegroundTermCounter(FIELD, null, -1, true);
+      for (int doc = 0; doc < maxDocs; doc++) {
+        LeafReaderContext leaf = reader.leaves().get(ReaderUtil.subIndex(doc, reader.leaves()));
+        expected.setLeaf(leaf);
+        expected.count(doc - leaf.docBase);
+      }
+      expected.finish();
+      for (IndexSearcher searcher : new IndexSearcher[]{new IndexSearcher(reader),
+          new IndexSearcher(reader, executor)}) {
+        ScoreThresholdCollectorManager.Threshold threshold =
+            searcher.search(query, new ScoreThresholdCollectorManager(maxDocs));
+        assertEquals(maxDocs, threshold.numTies);
+        ForegroundTermCounter counter = searcher.search(query,
+            new ForegroundTermCollectorManager(reader, FIELD, null, -1, true, threshold));
+        assertEquals(maxDocs, counter.getNumDocs());
+        assertEquals(toMap(expected), toMap(counter));
+      }
+    } finally {
+      executor.shutdown();
+      executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+    reader.close();
+    directory.close();
+  }
+
+  @Test
+  public void testHitsWithoutTheField() throws Exception {
+    Analyzer analyzer = getAnalyzer(MockTokenFilter.EMPTY_STOPSET, 50, 100);
+    FieldType tvType = new FieldType(TextField.TYPE_STORED);
+    tvType.setStoreTermVectors(true);
+    tvType.freeze();
+
+    Directory directory = newDirectory();
+    RandomIndexWriter writer = new RandomIndexWriter(random(), directory, newIndexWriterConfig(analyzer));
+    int numDocs = atLeast(20);
+    int numWithField = 0;
+    for (int i = 0; i < numDocs; i++) {
+      Document d = new Document();
+      //every document is a hit, but only some have the contrasted fields
+      d.add(newTextField("id", "x", Field.Store.NO));
+      if (random().nextBoolean()) {
+        numWithField++;
+        d.add(new Field("tv", "a b", tvType));
+        d.add(new SortedSetDocValuesField("dv", new BytesRef("a")));
+      }
+      writer.addDocument(d);
+      if (random().nextInt(5) == 0) {
+        writer.commit();
+      }
+    }
+    writer.close();
+    IndexReader reader = DirectoryReader.open(directory);
+    IndexSearcher searcher = newSearcher(reader);
+    for (String field : new String[]{"tv", "dv"}) {
+      List<TermIDF> results = contrast(searcher, numDocs, 1, null, new TermQuery(new Term("id", "x")), field);
+      if (numWithField == 0) {
+        assertEquals(field, 0, results.size());
+      } else {
+        Map<String, Long> termFreqs = new HashMap<>();
+        for (TermIDF r : results) {
+          termFreqs.put(r.getTerm(), r.getTermFreq());
+        }
+        assertEquals(field, Long.valueOf(numWithField), termFreqs.get("a"));
+      }
+    }
+    reader.close();
+    directory.close();
+  }
+
+  @Test
+  public void testMerge() throws Exception {
+    Analyzer analyzer = new MockAnalyzer(random(), MockTokenizer.WHITESPACE, false);
+    Directory directory = newDirectory();
+    RandomIndexWriter writer = new RandomIndexWriter(random(), directory, newIndexWriterConfig(analyzer));
+    //more distinct terms than the counter's initial capacity
+    int numDocs = atLeast(50);
+    for (int i = 0; i < numDocs; i++) {
+      Document d = new Document();
+      d.add(newTextField("stored", "x t" + i, Field.Store.YES));
+      writer.addDocument(d);
+    }
+    writer.close();
+    IndexReader reader = DirectoryReader.open(directory);
+    ForegroundTermCounter counter = countAll(reader, "stored", analyzer, true);
+    ForegroundTermCounter merged = new ForegroundTermCounter("stored", analyzer, -1, true);
+    merged.merge(counter);
+    merged.merge(counter);
+    Map<String, Integer> expected = new HashMap<>();
+    for (Map.Entry<String, Integer> e : toMap(counter).entrySet()) {
+      expected.put(e.getKey(), 2 * e.getValue());
+    }
+    assertEquals(expected, toMap(merged));
+    assertEquals(2 * numDocs, merged.getNumDocs());
+    reader.close();
+    directory.close();
+  }
+
+  private static ForegroundTermCounter countAll(IndexReader reader, String field, Analyzer analyzer,
+                                                boolean ignoreCase) throws Exception {
+    ForegroundTermCounter counter = new ForegroundTermCounter(field, analyzer, -1, ignoreCase);
+    for (LeafReaderContext leaf : reader.leaves()) {
+      counter.setLeaf(leaf);
+      for (int doc = 0; doc < leaf.reader().maxDoc(); doc++) {
+        counter.count(doc);
+      }
+    }
+    counter.finish();
+    return counter;
+  }
+
+  private static Map<String, Integer> toMap(ForegroundTermCounter counter) {
+    Map<String, Integer> map = new HashMap<>();
+    BytesRef bytes = new BytesRef();
+    for (int ord = 0; ord < counter.size(); ord++) {
+      map.put(counter.getTerm(ord, bytes).utf8ToString(), counter.getDocFreq(ord));
+    }
+    return map;
+  }
+
+  private static List<TermIDF> contrast(IndexSearcher searcher, int maxDocs, int minTermFreq,
+                                        Analyzer analyzer, Query query, String field) throws Exception {
+    QueryToCorpusContraster contraster = new QueryToCorpusContraster(Version.LATEST, searcher, maxDocs);
+    contraster.setMinTermFreq(minTermFreq);
+    if (analyzer != null) {
+      contraster.setAnalyzer(analyzer, -1);
+    }
+    return contraster.contrast(query, field, 100);
+  }
+}
@@ -0,0 +1,122 @@
+package org.tallison.lucene.corpus.stats;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.MockTokenFilter;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.TestUtil;
+import org.junit.Test;
+import org.tallison.lucene.search.concordance.ConcordanceTestBase;
+
+public class TestIDFIndexCalc extends ConcordanceTestBase {
+
+  @Test
+  public void testBulkMatchesSingle() throws Exception {
+    String[] vocab = new String[]{"a", "b", "c", "d", "e", "f", "g", "h"};
+    int numDocs = atLeast(100);
+    String[] docs = new String[numDocs];
+    for (int i = 0; i < numDocs; i++) {
+      StringBuilder sb = new StringBuilder();
+      int len = TestUtil.nextInt(random(), 1, 5);
+      for (int j = 0; j < len; j++) {
+        sb.append(vocab[random().nextInt(vocab.length)]).append(" ");
+      }
+      docs[i] = sb.toString();
+    }
+    Analyzer analyzer = getAnalyzer(MockTokenFilter.EMPTY_STOPSET, 50, 100);
+    Directory directory = getDirectory(analyzer, docs);
+    IndexReader reader = DirectoryReader.open(directory);
+    IDFIndexCalc calc = new IDFIndexCalc(reader);
+
+    List<String> grams = new ArrayList<>();
+    for (String v : vocab) {
+      grams.add(v);
+      grams.add(v + " zz " + vocab[random().nextInt(vocab.length)]);
+    }
+    grams.add("missing");
+    grams.add("a");
+
+    BytesRef[] gramBytes = new BytesRef[grams.size()];
+    for (int i = 0; i < grams.size(); i++) {
+      gramBytes[i] = new BytesRef(grams.get(i));
+    }
+    //run twice to hit the cache the second time
+    for (int round = 0; round < 2; round++) {
+      double[][] bulk = calc.multiTermIDFs(FIELD, gramBytes);
+      int[] dfs = calc.docFreqs(FIELD, gramBytes);
+      for (int i = 0; i < grams.size(); i++) {
+        double[] single = calc.multiTermIDF(grams.get(i), new Term(FIELD, ""));
+        assertEquals(grams.get(i), single[0], bulk[i][0], 0.00001);
+        assertEquals(grams.get(i), single[1], bulk[i][1], 0.00001);
+        assertEquals(grams.get(i), reader.docFreq(new Term(FIELD, gramBytes[i])), dfs[i]);
+      }
+    }
+    reader.close();
+    directory.close();
+  }
+
+  @Test
+  public void testSharedReaderCache() throws Exception {
+    Analyzer analyzer = getAnalyzer(MockTokenFilter.EMPTY_STOPSET, 50, 100);
+    Directory directory = getDirectory(analyzer, new String[]{"a b", "a c", "d"});
+    IndexReader reader = DirectoryReader.open(directory);
+    IDFIndexCalc first = new IDFIndexCalc(reader);
+    IDFIndexCalc second = new IDFIndexCalc(reader);
+    assertSame(first.getDocFreqCache(), second.getDocFreqCache());
+    DocFreqCache cache = first.getDocFreqCache();
+    assertEquals(2, first.docFreq(new Term(FIELD, "a")));
+    long hits = cache.getHitCount();
+    assertEquals(2, second.docFreq(new Term(FIELD, "a")));
+    assertEquals(hits + 1, cache.getHitCount());
+    //same term bytes in another field
+    assertEquals(0, second.docFreq(new Term("other", "a")));
+    reader.close();
+
+    IndexReader reopened = DirectoryReader.open(directory);
+    assertNotSame(cache, DocFreqCache.forReader(reopened));
+    reopened.close();
+    directory.close();
+  }
+
+  @Test
+  public void testBoundedCache() throws Exception {
+    long maxRamBytes = 64 * 1024;
+    DocFreqCache cache = new DocFreqCache(maxRamBytes);
+    Map<String, Integer> truth = new HashMap<>();
+    String[] fields = new String[]{"f1", "f2", "f3"};
+    int numTerms = atLeast(20000);
+    for (int i = 0; i < numTerms; i++) {
+      String field = fields[random().nextInt(fields.length)];
+      String term = TestUtil.randomUnicodeString(random(), 10);
+      int df = random().nextInt(1000);
+      cache.put(field, new BytesRef(term), df);
+      truth.put(field + "\u0000" + term, df);
+      assertTrue(cache.ramBytesUsed() <= maxRamBytes);
+    }
+    int found = 0;
+    for (Map.Entry<String, Integer> e : truth.entrySet()) {
+      int sep = e.getKey().indexOf('\u0000');
+      int df = cache.get(e.getKey().substring(0, sep), new BytesRef(e.getKey().substring(sep + 1)));
+      if (df > -1) {
+        assertEquals(e.getValue().intValue(), df);
+        found++;
+      }
+    }
+    assertTrue(found > 0);
+    assertTrue(found < truth.size());
+    assertEquals(-1, cache.get("missing", new BytesRef("a")));
+
+    //too long to fit in a generation at all
+    cache.put("f1", new BytesRef(new byte[(int) maxRamBytes]), 1);
+    assertEquals(-1, cache.get("f1", new BytesRef(new byte[(int) maxRamBytes])));
+    assertTrue(cache.ramBytesUsed() <= maxRamBytes);
+  }
+}
@@ -0,0 +1,92 @@
+package org.tallison.lucene.corpus.stats;
+
+import java.util.Arrays;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.MockTokenFilter;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.TestUtil;
+import org.junit.Test;
+import org.tallison.lucene.search.concordance.ConcordanceTestBase;
+
+public class TestTermStatsSnapshot extends ConcordanceTestBase {
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    String[] vocab = new String[]{"a", "b", "c", "d", "e", "f", "g", "h"};
+    String[] docs = new String[atLeast(50)];
+    for (int i = 0; i < docs.length; i++) {
+      StringBuilder sb = new StringBuilder();
+      int len = TestUtil.nextInt(random(), 1, 6);
+      for (int j = 0; j < len; j++) {
+        sb.append(vocab[random().nextInt(vocab.length)]).append(" ");
+      }
+      docs[i] = sb.toString();
+    }
+    Analyzer analyzer = getAnalyzer(MockTokenFilter.EMPTY_STOPSET, 50, 100);
+    Directory directory = getDirectory(analyzer, docs);
+    Directory snapshotDir = newDirectory();
+    DirectoryReader reader = DirectoryReader.open(directory);
+    int minDocFreq = TestUtil.nextInt(random(), 0, 10);
+    String fileName = TermStatsSnapshot.write(reader, Arrays.asList(FIELD, "missing"), minDocFreq, snapshotDir);
+    assertEquals(TermStatsSnapshot.getFileName(reader.getIndexCommit().getGeneration()), fileName);
+
+    TermStatsSnapshot snapshot = TermStatsSnapshot.load(snapshotDir, reader);
+    assertEquals(reader.getIndexCommit().getGeneration(), snapshot.getGeneration());
+    assertEquals(reader.numDocs(), snapshot.getNumDocs());
+    assertTrue(snapshot.hasField("missing"));
+    assertEquals(-1, snapshot.docFreq("missing", new BytesRef("a")));
+    assertEquals(-1, snapshot.docFreq(FIELD, new BytesRef("zz")));
+
+    Terms terms = MultiFields.getTerms(reader, FIELD);
+    TermsEnum termsEnum = terms.iterator();
+    BytesRef term;
+    while ((term = termsEnum.next()) != null) {
+      if (termsEnum.docFreq() < minDocFreq) {
+        assertEquals(term.utf8ToString(), -1, snapshot.docFreq(FIELD, term));
+      } else {
+        assertEquals(term.utf8ToString(), termsEnum.docFreq(), snapshot.docFreq(FIELD, term));
+        assertEquals(term.utf8ToString(), termsEnum.totalTermFreq(), snapshot.totalTermFreq(FIELD, term));
+      }
+    }
+
+    //idfs are the same with and without the snapshot
+    IDFIndexCalc plain = new IDFIndexCalc(reader, new DocFreqCache(DocFreqCache.DEFAULT_MAX_RAM_BYTES));
+    IDFIndexCalc withSnapshot = new IDFIndexCalc(reader,
+        new DocFreqCache(DocFreqCache.DEFAULT_MAX_RAM_BYTES), snapshot);
+    BytesRef[] lookups = new BytesRef[vocab.length + 1];
+    for (int i = 0; i < vocab.length; i++) {
+      lookups[i] = new BytesRef(vocab[i]);
+      assertEquals(vocab[i], plain.docFreq(new Term(FIELD, vocab[i])),
+          withSnapshot.docFreq(new Term(FIELD, vocab[i])));
+    }
+    lookups[vocab.length] = new BytesRef("zz");
+    assertTrue(Arrays.equals(plain.docFreqs(FIELD, lookups), withSnapshot.docFreqs(FIELD, lookups)));
+
+    //a snapshot from another index is refused, even if the generations match
+    Directory otherDirectory = getDirectory(analyzer, docs);
+    DirectoryReader otherReader = DirectoryReader.open(otherDirectory);
+    long otherGeneration = otherReader.getIndexCommit().getGeneration();
+    if (otherGeneration != reader.getIndexCommit().getGeneration()) {
+      snapshotDir.rename(fileName, TermStatsSnapshot.getFileName(otherGeneration));
+    }
+    try {
+      TermStatsSnapshot.load(snapshotDir, otherReader);
+      fail("should have refused a snapshot for another commit");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("segments id"));
+    }
+    otherReader.close();
+    otherDirectory.close();
+
+    reader.close();
+    snapshotDir.close();
+    directory.close();
+  }
+}
@@ -1,19 +1,25 @@
 package org.tallison.lucene.search.concordance;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertTrue;
-
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.MockTokenFilter;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.spans.SpanOrQuery;
 import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.store.Directory;
 import org.junit.Test;
+import org.tallison.lucene.queryparser.spans.CostAwareSpanRewriteMethod;
 import org.tallison.lucene.search.spans.SimpleSpanQueryConverter;
 
-public class TestSpanQueryConverter {
+public class TestSpanQueryConverter extends ConcordanceTestBase {
 
   @Test
   public void testMultiTerm() throws IOException {
@@ -26,4 +32,51 @@ public class TestSpanQueryConverter {
     assertTrue(sq instanceof SpanOrQuery);
     assertEquals(0, ((SpanOrQuery)sq).getClauses().length);
   }
+
+  @Test
+  public void testCostBoundedMultiTerm() throws Exception {
+    String[] docs = new String[]{"aa ab ac", "aa ab", "aa", "ad b"};
+    Analyzer analyzer = getAnalyzer(MockTokenFilter.EMPTY_STOPSET, 50, 100);
+    Directory directory = getDirectory(analyzer, docs);
+    IndexReader reader = DirectoryReader.open(directory);
+
+    final List<CostAwareSpanRewriteMethod.Report> reports = new ArrayList<>();
+    CostAwareSpanRewriteMethod.Listener listener = new CostAwareSpanRewriteMethod.Listener() {
+      @Override
+      public void onRewrite(CostAwareSpanRewriteMethod.Report report) {
+        reports.add(report);
+      }
+    };
+    SimpleSpanQueryConverter c = new SimpleSpanQueryConverter();
+    c.setMultiTermRewriteMethod(new CostAwareSpanRewriteMethod(10, Long.MAX_VALUE, 10,
+        CostAwareSpanRewriteMethod.OverBudgetAction.TOP_TERMS_BY_DOC_FREQ, listener));
+    SpanQuery sq = c.convert(FIELD, new PrefixQuery(new Term(FIELD, "a")));
+    SpanOrQuery rewritten = (SpanOrQuery) sq.rewrite(reader);
+    assertEquals(4, rewritten.getClauses().length);
+    assertEquals(CostAwareSpanRewriteMethod.Choice.ALL_TERMS, reports.get(0).getChoice());
+
+    //keep the two terms with the highest docFreq
+    reports.clear();
+    c.setMultiTermRewriteMethod(new CostAwareSpanRewriteMethod(2, Long.MAX_VALUE, 2,
+        CostAwareSpanRewriteMethod.OverBudgetAction.TOP_TERMS_BY_DOC_FREQ, listener));
+    rewritten = (SpanOrQuery) c.convert(FIELD, new PrefixQuery(new Term(FIELD, "a"))).rewrite(reader);
+    assertEquals(2, rewritten.getClauses().length);
+    assertEquals(new Term(FIELD, "aa"), ((SpanTermQuery) rewritten.getClauses()[0]).getTerm());
+    assertEquals(new Term(FIELD, "ab"), ((SpanTermQuery) rewritten.getClauses()[1]).getTerm());
+    assertEquals(1, reports.size());
+    assertEquals(CostAwareSpanRewriteMethod.Choice.TOP_TERMS_BY_DOC_FREQ, reports.get(0).getChoice());
+    assertEquals(4, reports.get(0).getNumTerms());
+    assertEquals(2, reports.get(0).getNumTermsKept());
+
+    //docFreq budget: all four cost 7
+    reports.clear();
+    c.setMultiTermRewriteMethod(new CostAwareSpanRewriteMethod(10, 4, 1,
+        CostAwareSpanRewriteMethod.OverBudgetAction.TOP_TERMS_BY_DOC_FREQ, listener));
+    rewritten = (SpanOrQuery) c.convert(FIELD, new PrefixQuery(new Term(FIELD, "a"))).rewrite(reader);
+    assertEquals(1, rewritten.getClauses().length);
+    assertEquals(7, reports.get(0).getPostingsCost());
+
+    reader.close();
+    directory.close();
+  }
 }
@@ -18,13 +18,27 @@
 package org.tallison.lucene.search.concordance.windowvisitor;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.MockTokenFilter;
+import org.apache.lucene.analysis.MockTokenizer;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.shingle.ShingleFilter;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.RandomIndexWriter;
+import org.apache.lucene.util.TestUtil;
 import org.tallison.lucene.corpus.stats.IDFIndexCalc;
+import org.tallison.lucene.corpus.stats.TermDFTF;
 import org.tallison.lucene.corpus.stats.TermIDF;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
@@ -310,5 +324,504 @@ public class TestConcordanceArrayWindowSearcher extends ConcordanceTestBase {
 
   }
 
-  //TODO: add tests for ignore duplicates, TargetVisitor
+  @Test
+  public void testIgnoreDuplicates() throws Exception {
+    String[] docs = new String[]{"a b c", "a b c", "x b y"};
+    Analyzer analyzer = getAnalyzer(
+        MockTokenFilter.EMPTY_STOPSET, 50, 100);
+    Directory directory = getDirectory(analyzer, docs);
+    IndexReader reader = DirectoryReader.open(directory);
+    IndexSearcher indexSearcher = new IndexSearcher(reader);
+    IDFIndexCalc idfCalc = new IDFIndexCalc(reader);
+    SpanQuery q = new SpanTermQuery(new Term(FIELD, "b"));
+
+    Map<String, Integer> truth = new HashMap<String, Integer>();
+    truth.put("a", 2);
+    truth.put("c", 2);
+    truth.put("x", 1);
+    truth.put("y", 1);
+    for (boolean allowDuplicates : new boolean[]{true, false}) {
+      CooccurVisitor visitor = new CooccurVisitor(
+          FIELD, 1, 1, new WGrammer(1, 1, false), idfCalc, 100, allowDuplicates);
+      visitor.setMinTermFreq(0);
+      ConcordanceArrayWindowSearcher searcher = new ConcordanceArrayWindowSearcher();
+      searcher.search(indexSearcher, FIELD, q, null, analyzer, visitor,
+          new IndexIdDocIdBuilder());
+
+      List<TermIDF> results = visitor.getResults();
+      assertEquals(truth.size(), results.size());
+      for (TermIDF r : results) {
+        int expected = truth.get(r.getTerm());
+        if (!allowDuplicates) {
+          expected = 1;
+        }
+        assertEquals(r.getTerm(), expected, r.getTermFreq());
+      }
+      assertEquals(allowDuplicates ? 3 : 2, visitor.getNumWindowsVisited());
+    }
+    reader.close();
+    directory.close();
+  }
+
+  @Test
+  public void testWGrams() throws Exception {
+    String[] docs = new String[]{"department of state x of the b c", "department of state x b c"};
+    Analyzer analyzer = getAnalyzer(
+        MockTokenFilter.ENGLISH_STOPSET, 50, 100);
+    Directory directory = getDirectory(analyzer, docs);
+    IndexReader reader = DirectoryReader.open(directory);
+    IndexSearcher indexSearcher = new IndexSearcher(reader);
+    IDFIndexCalc idfCalc = new IDFIndexCalc(reader);
+
+    CooccurVisitor visitor = new CooccurVisitor(
+        FIELD, 10, 10, new WGrammer(2, 2, false), idfCalc, 100, true);
+    visitor.setMinTermFreq(0);
+    ConcordanceArrayWindowSearcher searcher = new ConcordanceArrayWindowSearcher();
+    SpanQuery q = new SpanTermQuery(new Term(FIELD, "x"));
+    searcher.search(indexSearcher, FIELD, q, null, analyzer, visitor,
+        new IndexIdDocIdBuilder());
+
+    Map<String, Integer> truth = new HashMap<String, Integer>();
+    truth.put("department _ state", 2);
+    truth.put("b c", 2);
+    Map<String, Integer> found = new HashMap<String, Integer>();
+    for (TermIDF r : visitor.getResults()) {
+      found.put(r.getTerm(), (int) r.getTermFreq());
+    }
+    assertEquals(truth, found);
+    reader.close();
+    directory.close();
+  }
+
+  @Test
+  public void testStopAndSeparatorIDF() throws Exception {
+    //"_" and "|" are indexed, but the displayed stop word is not a term
+    String[] docs = new String[]{"department of state x", "_ | _"};
+    Analyzer analyzer = getAnalyzer(
+        MockTokenFilter.ENGLISH_STOPSET, 50, 100);
+    Directory directory = getDirectory(analyzer, docs);
+    IndexReader reader = DirectoryReader.open(directory);
+    IndexSearcher indexSearcher = new IndexSearcher(reader);
+    IDFIndexCalc idfCalc = new IDFIndexCalc(reader);
+
+    CooccurVisitor visitor = new CooccurVisitor(
+        FIELD, 10, 10, new WGrammer(2, 2, false), idfCalc, 100, true);
+    visitor.setMinTermFreq(0);
+    ConcordanceArrayWindowSearcher searcher = new ConcordanceArrayWindowSearcher();
+    SpanQuery q = new SpanTermQuery(new Term(FIELD, "x"));
+    searcher.search(indexSearcher, FIELD, q, null, analyzer, visitor,
+        new IndexIdDocIdBuilder());
+
+    List<TermIDF> results = visitor.getResults();
+    assertEquals(1, results.size());
+    assertEquals("department _ state", results.get(0).getTerm());
+    assertEquals(2 * idfCalc.getIDF(1) + idfCalc.getIDF(0), results.get(0).getIDF(), 0.00001);
+    reader.close();
+    directory.close();
+  }
+
+  @Test
+  public void testWindowTokens() throws Exception {
+    ConcordanceArrayWindow window = new ConcordanceArrayWindow(10);
+    List<String> expected = new ArrayList<String>();
+    //insert enough to wrap and grow the ring buffer
+    for (int i = 0; i < 40; i++) {
+      if (i % 7 == 0) {
+        window.insertPreStop();
+        expected.add(0, ConcordanceArrayWindow.STOP_WORD);
+      } else if (i % 2 == 0) {
+        window.insertPre("t" + (i % 5));
+        expected.add(0, "t" + (i % 5));
+      } else {
+        window.addPre("t" + (i % 5));
+        expected.add("t" + (i % 5));
+      }
+    }
+    window.insertPreFieldSeparator();
+    expected.add(0, ConcordanceArrayWindow.FIELD_SEPARATOR);
+    //a real token that looks like a sentinel is escaped in the raw list
+    window.addPost(ConcordanceArrayWindow.STOP_WORD);
+    window.addPostStop();
+
+    assertEquals(expected, window.getRawPreList());
+    assertEquals(41, window.getNumPreTokens());
+    assertEquals(40 + 10, window.getPreSize());
+    assertEquals(2, window.getRawPostList().size());
+    assertFalse(ConcordanceArrayWindow.isStop(window.getRawPostList().get(0)));
+    assertTrue(ConcordanceArrayWindow.isStop(window.getRawPostList().get(1)));
+    assertEquals(ConcordanceArrayWindow.STOP_WORD,
+        ConcordanceArrayWindow.tokenToString(window.getRawPostList().get(0)));
+    int[] pres = window.getPreTokens();
+    assertEquals(Grammer.FIELD_SEPARATOR, pres[0]);
+    for (int i = 1; i < window.getNumPreTokens(); i++) {
+      if (pres[i] == Grammer.STOP) {
+        assertTrue(ConcordanceArrayWindow.isStop(expected.get(i)));
+      } else {
+        assertEquals(expected.get(i), window.getTokenString(pres[i]));
+      }
+    }
+
+    //same tokens in a window with a different dictionary have the same fingerprint
+    ConcordanceArrayWindow other = new ConcordanceArrayWindow(10);
+    other.addPre("unrelated");
+    other.reset();
+    for (String s : expected) {
+      if (ConcordanceArrayWindow.isStop(s)) {
+        other.addPreStop();
+      } else if (ConcordanceArrayWindow.isFieldSeparator(s)) {
+        other.addPreFieldSeparator();
+      } else {
+        other.addPre(s);
+      }
+    }
+    other.addPost(ConcordanceArrayWindow.STOP_WORD);
+    other.addPostStop();
+    assertEquals(window.toString(), other.toString());
+    byte[] a = new byte[16];
+    byte[] b = new byte[16];
+    window.fingerprint(a);
+    other.fingerprint(b);
+    assertArrayEquals(a, b);
+
+    other.addPost("more");
+    other.fingerprint(b);
+    assertFalse(Arrays.equals(a, b));
+
+    window.reset();
+    assertEquals(0, window.getRawPreList().size());
+    assertEquals(0, window.getNumPreTokens());
+    assertEquals(0, window.getPreSize());
+  }
+
+  @Test
+  public void testParallel() throws Exception {
+    String[] vocab = new String[]{"a", "b", "c", "d", "e", "f", "g", "h", "x"};
+    Analyzer analyzer = getAnalyzer(MockTokenFilter.EMPTY_STOPSET, 50, 100);
+    Directory directory = newDirectory();
+    RandomIndexWriter writer = new RandomIndexWriter(random(), directory,
+        newIndexWriterConfig(analyzer).setMergePolicy(NoMergePolicy.INSTANCE));
+    int numDocs = atLeast(100);
+    for (int i = 0; i < numDocs; i++) {
+      StringBuilder sb = new StringBuilder();
+      int len = TestUtil.nextInt(random(), 1, 12);
+      for (int j = 0; j < len; j++) {
+        sb.append(vocab[random().nextInt(vocab.length)]).append(" ");
+      }
+      Document d = new Document();
+      d.add(newTextField(FIELD, sb.toString(), Field.Store.YES));
+      writer.addDocument(d);
+      if (i % 20 == 0) {
+        writer.commit();
+      }
+    }
+    writer.close();
+    IndexReader reader = DirectoryReader.open(directory);
+    IndexSearcher indexSearcher = new IndexSearcher(reader);
+    final IDFIndexCalc idfCalc = new IDFIndexCalc(reader);
+    final boolean allowDuplicates = random().nextBoolean();
+    SpanQuery q = new SpanTermQuery(new Term(FIELD, "x"));
+    ConcordanceArrayWindowSearcher searcher = new ConcordanceArrayWindowSearcher();
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      ArrayWindowVisitorFactory<List<TermIDF>> cooccurFactory = new ArrayWindowVisitorFactory<List<TermIDF>>() {
+        @Override
+        public ArrayWindowVisitor<List<TermIDF>> newVisitor() {
+          CooccurVisitor v = new CooccurVisitor(FIELD, 2, 2, new WGrammer(1, 2, false),
+              idfCalc, 100000, allowDuplicates);
+          v.setMinTermFreq(0);
+          v.setNumResults(1000);
+          return v;
+        }
+      };
+      ArrayWindowVisitor<List<TermIDF>> serial = cooccurFactory.newVisitor();
+      searcher.search(indexSearcher, FIELD, q, null, analyzer, serial, new IndexIdDocIdBuilder());
+      ArrayWindowVisitor<List<TermIDF>> parallel = searcher.search(indexSearcher, FIELD, q, null, analyzer,
+          cooccurFactory, new IndexIdDocIdBuilder(), executor);
+      assertEquals(serial.getNumWindowsVisited(), parallel.getNumWindowsVisited());
+      assertEquals(toMap(serial.getResults()), toMap(parallel.getResults()));
+      if (allowDuplicates) {
+        //without duplicates, which of the documents gets a repeated window depends on the threads
+        assertEquals(serial.getNumDocsVisited(), parallel.getNumDocsVisited());
+      }
+
+      ArrayWindowVisitorFactory<List<TermDFTF>> targetFactory = new ArrayWindowVisitorFactory<List<TermDFTF>>() {
+        @Override
+        public ArrayWindowVisitor<List<TermDFTF>> newVisitor() {
+          return new TargetVisitor(FIELD, 10, true, 100000);
+        }
+      };
+      ArrayWindowVisitor<List<TermDFTF>> serialTargets = targetFactory.newVisitor();
+      searcher.search(indexSearcher, FIELD, q, null, analyzer, serialTargets, new IndexIdDocIdBuilder());
+      ArrayWindowVisitor<List<TermDFTF>> parallelTargets = searcher.search(indexSearcher, FIELD, q, null,
+          analyzer, targetFactory, new IndexIdDocIdBuilder(), random().nextBoolean() ? executor : null);
+      assertEquals(serialTargets.getResults(), parallelTargets.getResults());
+
+      //maxWindows is a global budget
+      final int maxWindows = TestUtil.nextInt(random(), 1, 10);
+      ArrayWindowVisitor<List<TermDFTF>> limited = searcher.search(indexSearcher, FIELD, q, null,
+          analyzer, new ArrayWindowVisitorFactory<List<TermDFTF>>() {
+            @Override
+            public ArrayWindowVisitor<List<TermDFTF>> newVisitor() {
+              return new TargetVisitor(FIELD, 10, true, maxWindows);
+            }
+          }, new IndexIdDocIdBuilder(), executor);
+      assertEquals(Math.min(maxWindows, serialTargets.getNumWindowsVisited()), limited.getNumWindowsVisited());
+      assertEquals(serialTargets.getNumWindowsVisited() > maxWindows, limited.getHitMax());
+    } finally {
+      executor.shutdown();
+    }
+    reader.close();
+    directory.close();
+  }
+
+  @Test
+  public void testHeavyHitters() throws Exception {
+    String[] vocab = new String[]{"a", "b", "c", "d", "e", "f", "g", "h", "i", "j", "k", "l"};
+    int numDocs = atLeast(100);
+    String[] docs = new String[numDocs];
+    for (int i = 0; i < numDocs; i++) {
+      StringBuilder sb = new StringBuilder();
+      int len = TestUtil.nextInt(random(), 1, 10);
+      for (int j = 0; j < len; j++) {
+        //skew towards the start of the vocab
+        int v = Math.min(random().nextInt(vocab.length), random().nextInt(vocab.length));
+        sb.append(vocab[v]).append(" ");
+      }
+      sb.append("x ");
+      docs[i] = sb.toString();
+    }
+    Analyzer analyzer = getAnalyzer(MockTokenFilter.EMPTY_STOPSET, 50, 100);
+    Directory directory = getDirectory(analyzer, docs);
+    IndexReader reader = DirectoryReader.open(directory);
+    IndexSearcher indexSearcher = new IndexSearcher(reader);
+    IDFIndexCalc idfCalc = new IDFIndexCalc(reader);
+    SpanQuery q = new SpanTermQuery(new Term(FIELD, "x"));
+    ConcordanceArrayWindowSearcher searcher = new ConcordanceArrayWindowSearcher();
+
+    CooccurVisitor exact = new CooccurVisitor(FIELD, 10, 10, new WGrammer(1, 2, false), idfCalc, 100000, true);
+    exact.setMinTermFreq(0);
+    exact.setNumResults(10000);
+    searcher.search(indexSearcher, FIELD, q, null, analyzer, exact, new IndexIdDocIdBuilder());
+    Map<String, Long> truth = toMap(exact.getResults());
+
+    CooccurVisitor approx = new CooccurVisitor(FIELD, 10, 10, new WGrammer(1, 2, false), idfCalc, 100000, true);
+    approx.setMaxGrams(TestUtil.nextInt(random(), 5, 30));
+    if (random().nextBoolean()) {
+      approx.setCountMinSketch(TestUtil.nextInt(random(), 10, 100), 3);
+    }
+    approx.setMinTermFreq(0);
+    approx.setNumResults(10);
+    searcher.search(indexSearcher, FIELD, q, null, analyzer, approx, new IndexIdDocIdBuilder());
+    List<TermIDF> approxResults = approx.getResults();
+    assertTrue(approxResults.size() > 0);
+    for (TermIDF r : approxResults) {
+      long trueCount = truth.get(r.getTerm());
+      assertTrue(r.getTerm(), r.getTermFreq() >= trueCount);
+      assertTrue(r.getTerm(), r.getTermFreq() - r.getTermFreqError() <= trueCount);
+    }
+
+    approx.startExactRecount();
+    searcher.search(indexSearcher, FIELD, q, null, analyzer, approx, new IndexIdDocIdBuilder());
+    for (TermIDF r : approx.getResults()) {
+      assertEquals(r.getTerm(), truth.get(r.getTerm()).longValue(), r.getTermFreq());
+      assertEquals(0, r.getTermFreqError());
+    }
+    assertEquals(exact.getNumWindowsVisited(), approx.getNumWindowsVisited());
+    reader.close();
+    directory.close();
+  }
+
+  @Test
+  public void testTargetVisitor() throws Exception {
+    String[] docs = new String[]{"aa ab aa z", "ab ac z ab", "aa z", "ad"};
+    Analyzer analyzer = getAnalyzer(MockTokenFilter.EMPTY_STOPSET, 50, 100);
+    Directory directory = getDirectory(analyzer, docs);
+    IndexReader reader = DirectoryReader.open(directory);
+    IndexSearcher indexSearcher = new IndexSearcher(reader);
+    ConcordanceArrayWindowSearcher searcher = new ConcordanceArrayWindowSearcher();
+    SpanQuery q = new SpanMultiTermQueryWrapper<>(new PrefixQuery(new Term(FIELD, "a")));
+
+    TargetVisitor visitor = new TargetVisitor(FIELD, 3, true, 100);
+    searcher.search(indexSearcher, FIELD, q, null, analyzer, visitor, new IndexIdDocIdBuilder());
+    List<TermDFTF> expected = new ArrayList<>();
+    //descending df, then descending tf, then ascending term
+    expected.add(new TermDFTF("aa", 2, 3));
+    expected.add(new TermDFTF("ab", 2, 3));
+    expected.add(new TermDFTF("ac", 1, 1));
+    assertEquals(expected, visitor.getResults());
+    assertEquals(4, visitor.getUniqTermCounts());
+
+    //target spanning tokens and a stop word
+    reader.close();
+    directory.close();
+    analyzer = getAnalyzer(MockTokenFilter.ENGLISH_STOPSET, 50, 100);
+    directory = getDirectory(analyzer, new String[]{"x the y", "x the y x the y", "x y"});
+    reader = DirectoryReader.open(directory);
+    indexSearcher = new IndexSearcher(reader);
+    q = new SpanNearQuery(new SpanQuery[]{
+        new SpanTermQuery(new Term(FIELD, "x")), new SpanTermQuery(new Term(FIELD, "y"))}, 1, true);
+    visitor = new TargetVisitor(FIELD, 10, true, 100);
+    searcher.search(indexSearcher, FIELD, q, null, analyzer, visitor, new IndexIdDocIdBuilder());
+    expected.clear();
+    expected.add(new TermDFTF("x _ y", 2, 3));
+    expected.add(new TermDFTF("x y", 1, 1));
+    assertEquals(expected, visitor.getResults());
+    reader.close();
+    directory.close();
+  }
+
+  @Test
+  public void testShingleCooccur() throws Exception {
+    final String shingleField = "f1_shingles";
+    String[] vocab = new String[]{"a", "b", "c", "d", "e", "x"};
+    Analyzer analyzer = new Analyzer(Analyzer.PER_FIELD_REUSE_STRATEGY) {
+      @Override
+      protected TokenStreamComponents createComponents(String fieldName) {
+        Tokenizer tokenizer = new MockTokenizer(MockTokenizer.WHITESPACE, true);
+        if (shingleField.equals(fieldName)) {
+          return new TokenStreamComponents(tokenizer, new ShingleFilter(tokenizer, 2, 3));
+        }
+        return new TokenStreamComponents(tokenizer);
+      }
+    };
+    FieldType shingleType = new FieldType(TextField.TYPE_NOT_STORED);
+    shingleType.setStoreTermVectors(true);
+    shingleType.setStoreTermVectorPositions(true);
+    shingleType.freeze();
+
+    Directory directory = newDirectory();
+    RandomIndexWriter writer = new RandomIndexWriter(random(), directory, newIndexWriterConfig(analyzer));
+    int numDocs = atLeast(50);
+    for (int i = 0; i < numDocs; i++) {
+      StringBuilder sb = new StringBuilder();
+      int len = TestUtil.nextInt(random(), 1, 15);
+      for (int j = 0; j < len; j++) {
+        sb.append(vocab[random().nextInt(vocab.length)]).append(" ");
+      }
+      Document d = new Document();
+      d.add(newTextField(FIELD, sb.toString(), Field.Store.YES));
+      d.add(new Field(shingleField, sb.toString(), shingleType));
+      writer.addDocument(d);
+    }
+    writer.close();
+    IndexReader reader = DirectoryReader.open(directory);
+    IndexSearcher indexSearcher = new IndexSearcher(reader);
+    IDFIndexCalc idfCalc = new IDFIndexCalc(reader);
+    SpanQuery q = new SpanTermQuery(new Term(FIELD, "x"));
+
+    int before = TestUtil.nextInt(random(), 0, 4);
+    int after = TestUtil.nextInt(random(), 0, 4);
+    int minGram = TestUtil.nextInt(random(), 1, 3);
+    int maxGram = TestUtil.nextInt(random(), minGram, 3);
+    CooccurVisitor visitor = new CooccurVisitor(FIELD, before, after, new WGrammer(minGram, maxGram, false),
+        idfCalc, 100000, true);
+    visitor.setMinTermFreq(0);
+    visitor.setNumResults(100000);
+    new ConcordanceArrayWindowSearcher().search(indexSearcher, FIELD, q, null, analyzer, visitor,
+        new IndexIdDocIdBuilder());
+
+    ShingleCooccurSearcher shingleSearcher = new ShingleCooccurSearcher(shingleField, " ",
+        before, after, minGram, maxGram, idfCalc, 100000);
+    shingleSearcher.setMinTermFreq(0);
+    shingleSearcher.setNumResults(100000);
+    shingleSearcher.search(indexSearcher, FIELD, q, null);
+    List<TermIDF> results = shingleSearcher.getResults();
+    assertEquals(toMap(visitor.getResults()), toMap(results));
+    assertEquals(visitor.getNumWindowsVisited(), shingleSearcher.getNumWindowsVisited());
+    assertEquals(visitor.getNumDocsVisited(), shingleSearcher.getNumDocsVisited());
+    for (TermIDF r : results) {
+      assertEquals(r.getTerm(), reader.docFreq(new Term(shingleField, r.getTerm())), r.getDocFreq());
+    }
+
+    //maxWindows
+    int maxWindows = TestUtil.nextInt(random(), 1, 5);
+    shingleSearcher = new ShingleCooccurSearcher(shingleField, " ",
+        before, after, minGram, maxGram, idfCalc, maxWindows);
+    shingleSearcher.search(indexSearcher, FIELD, q, null);
+    assertEquals(Math.min(maxWindows, visitor.getNumWindowsVisited()), shingleSearcher.getNumWindowsVisited());
+    assertEquals(visitor.getNumWindowsVisited() > maxWindows, shingleSearcher.getHitMax());
+    reader.close();
+    directory.close();
+  }
+
+  @Test
+  public void testNearDuplicateWindows() throws Exception {
+    //identical signatures only: the same as the exact duplicate check
+    String[] vocab = new String[]{"a", "b", "c", "x"};
+    String[] docs = new String[atLeast(50)];
+    for (int i = 0; i < docs.length; i++) {
+      StringBuilder sb = new StringBuilder();
+      int len = TestUtil.nextInt(random(), 1, 6);
+      for (int j = 0; j < len; j++) {
+        sb.append(vocab[random().nextInt(vocab.length)]).append(" ");
+      }
+      docs[i] = sb.toString();
+    }
+    Analyzer analyzer = getAnalyzer(MockTokenFilter.EMPTY_STOPSET, 50, 100);
+    Directory directory = getDirectory(analyzer, docs);
+    IndexReader reader = DirectoryReader.open(directory);
+    IndexSearcher indexSearcher = new IndexSearcher(reader);
+    IDFIndexCalc idfCalc = new IDFIndexCalc(reader);
+    SpanQuery q = new SpanTermQuery(new Term(FIELD, "x"));
+
+    CooccurVisitor exact = new CooccurVisitor(FIELD, 2, 2, new WGrammer(1, 2, false), idfCalc, 100000, false);
+    exact.setMinTermFreq(0);
+    exact.setNumResults(1000);
+    ConcordanceArrayWindowSearcher searcher = new ConcordanceArrayWindowSearcher();
+    searcher.search(indexSearcher, FIELD, q, null, analyzer, exact, new IndexIdDocIdBuilder());
+
+    CooccurVisitor all = new CooccurVisitor(FIELD, 2, 2, new WGrammer(1, 2, false), idfCalc, 100000, true);
+    all.setMinTermFreq(0);
+    all.setNumResults(1000);
+    searcher.search(indexSearcher, FIELD, q, null, analyzer, all, new IndexIdDocIdBuilder());
+
+    CooccurVisitor filtered = new CooccurVisitor(FIELD, 2, 2, new WGrammer(1, 2, false), idfCalc, 100000, true);
+    filtered.setMinTermFreq(0);
+    filtered.setNumResults(1000);
+    SimHashWindowFilter filter = new SimHashWindowFilter(0, 10000);
+    searcher.setWindowFilter(filter);
+    searcher.search(indexSearcher, FIELD, q, null, analyzer, filtered, new IndexIdDocIdBuilder());
+    assertEquals(toMap(exact.getResults()), toMap(filtered.getResults()));
+    assertEquals(all.getNumWindowsVisited(), filter.getNumWindowsSeen());
+    assertEquals(all.getNumWindowsVisited() - exact.getNumWindowsVisited(), filter.getNumWindowsDropped());
+    assertEquals((double) filter.getNumWindowsDropped() / filter.getNumWindowsSeen(), filter.getDropRate(), 0.0001);
+    reader.close();
+    directory.close();
+
+    //a window that differs by one token is dropped; a different window is not
+    StringBuilder base = new StringBuilder();
+    StringBuilder variant = new StringBuilder();
+    StringBuilder other = new StringBuilder();
+    for (int i = 0; i < 40; i++) {
+      if (i == 20) {
+        base.append("x ");
+        variant.append("x ");
+        other.append("x ");
+      }
+      base.append("t").append(i).append(" ");
+      variant.append((i == 5) ? "z" : "t" + i).append(" ");
+      other.append("u").append(i).append(" ");
+    }
+    directory = getDirectory(analyzer, new String[]{base.toString(), variant.toString(), other.toString()});
+    reader = DirectoryReader.open(directory);
+    indexSearcher = new IndexSearcher(reader);
+    filter = new SimHashWindowFilter(8, 100);
+    searcher.setWindowFilter(filter);
+    CooccurVisitor visitor = new CooccurVisitor(FIELD, 20, 20, new WGrammer(1, 1, false),
+        new IDFIndexCalc(reader), 100, true);
+    searcher.search(indexSearcher, FIELD, q, null, analyzer, visitor, new IndexIdDocIdBuilder());
+    assertEquals(3, filter.getNumWindowsSeen());
+    assertEquals(1, filter.getNumWindowsDropped());
+    assertEquals(2, visitor.getNumWindowsVisited());
+    reader.close();
+    directory.close();
+  }
+
+  private static Map<String, Long> toMap(List<TermIDF> results) {
+    Map<String, Long> map = new HashMap<>();
+    for (TermIDF r : results) {
+      map.put(r.getTerm(), (long) r.getTermFreq());
+    }
+    return map;
+  }
 }
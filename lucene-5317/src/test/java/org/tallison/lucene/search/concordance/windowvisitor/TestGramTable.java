@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.tallison.lucene.search.concordance.windowvisitor;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.TestUtil;
+import org.junit.Test;
+
+public class TestGramTable extends LuceneTestCase {
+
+  @Test
+  public void testSpaceSavingBounds() throws Exception {
+    int maxSize = TestUtil.nextInt(random(), 1, 50);
+    boolean useSketch = random().nextBoolean();
+    GramTable table = new GramTable(maxSize);
+    CountMinSketch sketch = useSketch ? new CountMinSketch(TestUtil.nextInt(random(), 1, 200), 3) : null;
+    Map<List<Integer>, Integer> truth = new HashMap<>();
+    int[] tokens = new int[3];
+    int numItems = atLeast(5000);
+    for (int i = 0; i < numItems; i++) {
+      int length = TestUtil.nextInt(random(), 1, 3);
+      long hash = GramTable.hashStart();
+      Integer[] key = new Integer[length];
+      for (int j = 0; j < length; j++) {
+        //skewed so that there are heavy hitters
+        int r = random().nextInt(1000);
+        tokens[j] = (r < 700) ? r % 5 : r;
+        key[j] = tokens[j];
+        hash = GramTable.hashStep(hash, tokens[j]);
+      }
+      hash = GramTable.finish(hash);
+      if (sketch == null) {
+        table.add(hash, tokens, 0, length - 1, 1);
+      } else {
+        table.add(hash, tokens, 0, length - 1, 1, 0, sketch.add(hash, 1));
+      }
+      List<Integer> k = Arrays.asList(key);
+      Integer c = truth.get(k);
+      truth.put(k, c == null ? 1 : c + 1);
+      assertTrue(table.size() <= maxSize);
+    }
+
+    for (int ord = 0; ord < table.size(); ord++) {
+      Integer[] key = new Integer[table.length(ord)];
+      for (int j = 0; j < key.length; j++) {
+        key[j] = table.token(ord, j);
+      }
+      Integer trueCount = truth.get(Arrays.asList(key));
+      assertNotNull(trueCount);
+      assertTrue(table.count(ord) >= trueCount);
+      assertTrue(table.count(ord) - table.error(ord) <= trueCount);
+      //the table can still find everything that it holds
+      int[] gram = new int[key.length];
+      long hash = GramTable.hashStart();
+      for (int j = 0; j < key.length; j++) {
+        gram[j] = key[j];
+        hash = GramTable.hashStep(hash, gram[j]);
+      }
+      assertEquals(ord, table.find(GramTable.finish(hash), gram, 0, gram.length - 1));
+    }
+    //no gram that was evicted can have a higher true count than the max evicted count
+    if (table.hasEvicted()) {
+      int maxEvicted = table.maxEvictedCount();
+      for (Map.Entry<List<Integer>, Integer> e : truth.entrySet()) {
+        int[] gram = new int[e.getKey().size()];
+        long hash = GramTable.hashStart();
+        for (int j = 0; j < gram.length; j++) {
+          gram[j] = e.getKey().get(j);
+          hash = GramTable.hashStep(hash, gram[j]);
+        }
+        if (table.find(GramTable.finish(hash), gram, 0, gram.length - 1) < 0) {
+          assertTrue(e.getValue() <= maxEvicted);
+        }
+      }
+    } else {
+      assertEquals(truth.size(), table.size());
+    }
+  }
+
+  @Test
+  public void testCountMinNeverUnderestimates() throws Exception {
+    CountMinSketch sketch = new CountMinSketch(TestUtil.nextInt(random(), 1, 100), TestUtil.nextInt(random(), 1, 5));
+    Map<Long, Integer> truth = new HashMap<>();
+    int numItems = atLeast(2000);
+    for (int i = 0; i < numItems; i++) {
+      long hash = GramTable.finish(random().nextInt(300));
+      int increment = TestUtil.nextInt(random(), 1, 3);
+      sketch.add(hash, increment);
+      Integer c = truth.get(hash);
+      truth.put(hash, c == null ? increment : c + increment);
+    }
+    for (Map.Entry<Long, Integer> e : truth.entrySet()) {
+      assertTrue(sketch.estimate(e.getKey()) >= e.getValue());
+    }
+  }
+}
@@ -18,12 +18,16 @@ package org.tallison.solr.search;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.util.TokenFilterFactory;
 import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
 import org.apache.lucene.index.Term;
+import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.search.MultiTermQuery.RewriteMethod;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.util.BytesRef;
+import org.apache.solr.analysis.ReversedWildcardFilterFactory;
+import org.apache.solr.analysis.TokenizerChain;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.schema.FieldType;
 import org.apache.solr.schema.IndexSchema;
@@ -31,8 +35,12 @@ import org.apache.solr.schema.SchemaField;
 import org.apache.solr.schema.TextField;
 import org.apache.solr.search.QParser;
 import org.tallison.lucene.queryparser.spans.SpanQueryParser;
+import org.tallison.lucene.queryparser.spans.SpanQueryParserConfig;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Overrides features of Lucene's SpanQueryParser to enable
@@ -45,18 +53,76 @@ import java.io.IOException;
  * The process could be simpler, but this returns a null analyzer
  * if the field is not text and/or has a null analyzer.  The SpanQueryParser
  * then calls the "handleNullAnalyzer..." functions when it gets a null analyzer.
+ * <p>
+ * The request's {@link QParser}, which non-text field types need to build their
+ * queries, is passed to {@link #parse(String, QParser)} rather than to the
+ * constructor, so one parser can be shared by every request against a schema.
  */
 public class SolrSpanQueryParser extends SpanQueryParser {
 
   private final IndexSchema schema;
-  //parser to use for fields that have a null analyzer
-  private final QParser nonTextParser;
+  //parser to use for fields that have a null analyzer, if parse(String, QParser) isn't used
+  private final QParser defaultNonTextParser;
+  //parser to use for fields that have a null analyzer, for the current parse on each thread
+  private final ThreadLocal<QParser> nonTextParsers = new ThreadLocal<>();
+  //field -> its ReversedWildcardFilterFactory or null, looked up once per parser
+  private final Map<String, ReversedWildcardFilterFactory> reversedWildcardFactories =
+      Collections.synchronizedMap(new HashMap<String, ReversedWildcardFilterFactory>());
   //  private static Logger log = LoggerFactory.getLogger(SolrCore.class);
 
   public SolrSpanQueryParser(String f, Analyzer a, IndexSchema schema, QParser nonTextParser) {
-    super(f, a, null);
+    this(f, a, schema, nonTextParser, SpanQueryParserConfig.DEFAULT);
+  }
+
+  public SolrSpanQueryParser(String f, Analyzer a, IndexSchema schema, QParser nonTextParser,
+                             SpanQueryParserConfig config) {
+    super(f, a, null, config);
     this.schema = schema;
-    this.nonTextParser = nonTextParser;
+    this.defaultNonTextParser = nonTextParser;
+  }
+
+  /**
+   * A parser built with this constructor is safe to share across threads, as long
+   * as queries are parsed with {@link #parse(String, QParser)}.
+   *
+   * @param f      default field
+   * @param a      analyzer for the default field
+   * @param schema schema
+   * @param config parser options
+   */
+  public SolrSpanQueryParser(String f, Analyzer a, IndexSchema schema, SpanQueryParserConfig config) {
+    this(f, a, schema, null, config);
+  }
+
+  /**
+   * @param s             query string
+   * @param nonTextParser the request's parser, for fields that have a null analyzer
+   * @return query
+   * @throws ParseException if the query can't be parsed
+   */
+  public Query parse(String s, QParser nonTextParser) throws ParseException {
+    QParser previous = nonTextParsers.get();
+    nonTextParsers.set(nonTextParser);
+    try {
+      return parse(s);
+    } finally {
+      if (previous == null) {
+        nonTextParsers.remove();
+      } else {
+        nonTextParsers.set(previous);
+      }
+    }
+  }
+
+  private QParser getNonTextParser() {
+    QParser nonTextParser = nonTextParsers.get();
+    if (nonTextParser == null) {
+      nonTextParser = defaultNonTextParser;
+    }
+    if (nonTextParser == null) {
+      throw new IllegalStateException("Non-text fields need a QParser; use parse(String, QParser)");
+    }
+    return nonTextParser;
   }
 
   @Override
@@ -67,7 +133,7 @@ public class SolrSpanQueryParser extends SpanQueryParser {
       if (sf.getType() instanceof TextField) {
         return super.newFieldQuery(fieldName, termText, quoted, phraseSlop);
       } else {
-        return sf.getType().getFieldQuery(nonTextParser, sf, termText);
+        return sf.getType().getFieldQuery(getNonTextParser(), sf, termText);
       }
     }
     return new TermQuery(new Term(fieldName, termText));
@@ -83,7 +149,7 @@ public class SolrSpanQueryParser extends SpanQueryParser {
       if (ft instanceof  TextField) {
         return super.newRangeQuery(fieldName, start, end, startInclusive, endInclusive);
       }
-      return ft.getRangeQuery(nonTextParser, sf, start, end, startInclusive, endInclusive);
+      return ft.getRangeQuery(getNonTextParser(), sf, start, end, startInclusive, endInclusive);
     }
     throw new IllegalArgumentException("Can't create range query on null field: "+fieldName);
   }
@@ -101,10 +167,67 @@ public class SolrSpanQueryParser extends SpanQueryParser {
       return super.newPrefixQuery(fieldName, prefix);
     }
 
-    return sf.getType().getPrefixQuery(nonTextParser, sf, prefix);
+    return sf.getType().getPrefixQuery(getNonTextParser(), sf, prefix);
 
   }
 
+  /**
+   * A field whose index analyzer has a {@link ReversedWildcardFilterFactory} holds
+   * its own reversed tokens, marked with the factory's marker char.
+   *
+   * @param fieldName field name
+   * @return fieldName if it holds reversed tokens, otherwise the configured companion field
+   */
+  @Override
+  protected String getReversedWildcardField(String fieldName) {
+    if (getReversedWildcardFilterFactory(fieldName) != null) {
+      return fieldName;
+    }
+    return super.getReversedWildcardField(fieldName);
+  }
+
+  @Override
+  protected boolean shouldReverseWildcard(String fieldName, String pattern) {
+    ReversedWildcardFilterFactory factory = getReversedWildcardFilterFactory(fieldName);
+    if (factory != null) {
+      return factory.shouldReverse(pattern);
+    }
+    return super.shouldReverseWildcard(fieldName, pattern);
+  }
+
+  @Override
+  protected String reverseWildcardPattern(String fieldName, String pattern) {
+    ReversedWildcardFilterFactory factory = getReversedWildcardFilterFactory(fieldName);
+    if (factory != null) {
+      return factory.getMarkerChar() + super.reverseWildcardPattern(fieldName, pattern);
+    }
+    return super.reverseWildcardPattern(fieldName, pattern);
+  }
+
+  //lifted from SolrQueryParserBase
+  private ReversedWildcardFilterFactory getReversedWildcardFilterFactory(String fieldName) {
+    synchronized (reversedWildcardFactories) {
+      if (reversedWildcardFactories.containsKey(fieldName)) {
+        return reversedWildcardFactories.get(fieldName);
+      }
+    }
+    ReversedWildcardFilterFactory factory = null;
+    SchemaField field = schema.getFieldOrNull(fieldName);
+    if (field != null && field.getType() instanceof TextField) {
+      Analyzer a = field.getType().getIndexAnalyzer();
+      if (a instanceof TokenizerChain) {
+        for (TokenFilterFactory tokenFilterFactory : ((TokenizerChain) a).getTokenFilterFactories()) {
+          if (tokenFilterFactory instanceof ReversedWildcardFilterFactory) {
+            factory = (ReversedWildcardFilterFactory) tokenFilterFactory;
+            break;
+          }
+        }
+      }
+    }
+    reversedWildcardFactories.put(fieldName, factory);
+    return factory;
+  }
+
   /**
    * Returns analyzer to be used on full terms within a field.
    *
@@ -158,7 +281,7 @@ public class SolrSpanQueryParser extends SpanQueryParser {
       return getMultiTermRewriteMethod();
     }
     FieldType type = field.getType();
-    return type.getRewriteMethod(nonTextParser, field);
+    return type.getRewriteMethod(getNonTextParser(), field);
   }
 
   /**
@@ -18,6 +18,8 @@ package org.tallison.solr.search;
  * limitations under the License.
  */
 
+import java.util.Objects;
+
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.search.Query;
@@ -29,6 +31,7 @@ import org.apache.solr.schema.SchemaField;
 import org.apache.solr.search.QParser;
 import org.apache.solr.search.QueryParsing;
 import org.apache.solr.search.SyntaxError;
+import org.tallison.lucene.queryparser.spans.SpanQueryParserConfig;
 import org.tallison.solr.search.SolrSpanQueryParser;
 
 /**
@@ -51,49 +54,99 @@ public class SpanQParser extends QParser {
 
 
   public SpanQParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
-    super(qstr, localParams, params, req);
-    IndexSchema schema = req.getSchema();
-
-    //now set the params
-    SolrParams comboParams = SolrParams.wrapDefaults(localParams, params);
-
-    //preamble to initializing the parser
-    Analyzer analyzer = schema.getQueryAnalyzer();    //default analyzer?
-
+    this(qstr, localParams, params, req, null);
+  }
 
+  /**
+   * @param plugin plugin whose shared parsers to use, or <code>null</code> to build a new parser
+   */
+  SpanQParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req,
+              SpanQParserPlugin plugin) {
+    super(qstr, localParams, params, req);
     defaultFieldName = getParam(CommonParams.DF);
+    //only the options are read per request; the config and the parser are built
+    //once per schema and options
+    ParserKey key = new ParserKey(req.getSchema(), defaultFieldName,
+        SolrParams.wrapDefaults(localParams, params));
+    parser = (plugin == null) ? key.buildParser() : plugin.getParser(key);
+  }
 
-    if (defaultFieldName != null) {
-      SchemaField sf = schema.getField(defaultFieldName);
-      if (sf != null && sf.getType() != null) {
-        analyzer = sf.getType().getQueryAnalyzer();
-      }
+  /**
+   * Everything that a {@link SolrSpanQueryParser} is built from.
+   */
+  static final class ParserKey {
+    //by identity: a reloaded schema is a new instance
+    final IndexSchema schema;
+    private final String defaultFieldName;
+    private final boolean andOperator;
+    private final boolean allowLeadingWildcard;
+    private final boolean autoGeneratePhrase;
+    private final int fuzzyMaxEdits;
+    private final int prefixLength;
+    private final int phraseSlop;
+    private final int nearMax;
+    private final int notNearMax;
+
+    ParserKey(IndexSchema schema, String defaultFieldName, SolrParams comboParams) {
+      this.schema = schema;
+      this.defaultFieldName = defaultFieldName;
+      String defaultOpString = comboParams.get(QueryParsing.OP);
+      this.andOperator = defaultOpString != null && defaultOpString.equalsIgnoreCase("and");
+      this.allowLeadingWildcard = comboParams.getBool(ALLOW_LEADING_WILDCARD, true);
+      this.autoGeneratePhrase = comboParams.getBool(AUTO_GENERATE_PHRASE, false);
+      this.fuzzyMaxEdits = comboParams.getInt(MAX_FUZZY_EDITS, 2);
+      this.prefixLength = comboParams.getInt(PREFIX_LENGTH, 0);
+      this.phraseSlop = comboParams.getInt(PHRASE_SLOP, 0);
+      this.nearMax = comboParams.getInt(NEAR_MAX, -1);
+      this.notNearMax = comboParams.getInt(NOT_NEAR_MAX, -1);
     }
 
-    //initialize the parser
-    parser = new SolrSpanQueryParser(defaultFieldName, analyzer, schema, this);
-
-
-    parser.setAllowLeadingWildcard(comboParams.getBool(ALLOW_LEADING_WILDCARD, true));
+    SolrSpanQueryParser buildParser() {
+      Analyzer analyzer = schema.getQueryAnalyzer();    //default analyzer?
+      if (defaultFieldName != null) {
+        SchemaField sf = schema.getField(defaultFieldName);
+        if (sf != null && sf.getType() != null) {
+          analyzer = sf.getType().getQueryAnalyzer();
+        }
+      }
 
-    parser.setAutoGeneratePhraseQueries(comboParams.getBool(AUTO_GENERATE_PHRASE, false));
+      //build the options once, rather than through the parser's setters
+      SpanQueryParserConfig config = new SpanQueryParserConfig.Builder()
+          .setAllowLeadingWildcard(allowLeadingWildcard)
+          .setAutoGeneratePhraseQueries(autoGeneratePhrase)
+          .setDefaultOperator(andOperator ?
+              org.apache.lucene.queryparser.classic.QueryParser.Operator.AND : DEFAULT_OPERATOR)
+          .setFuzzyMaxEdits(fuzzyMaxEdits)
+          .setFuzzyPrefixLength(prefixLength)
+          .setPhraseSlop(phraseSlop)
+          .setSpanNearMaxDistance(nearMax)
+          .setSpanNotNearMaxDistance(notNearMax)
+          .build();
+      return new SolrSpanQueryParser(defaultFieldName, analyzer, schema, config);
+    }
 
-    org.apache.lucene.queryparser.classic.QueryParser.Operator defaultOp = DEFAULT_OPERATOR;
-    String defaultOpString = comboParams.get(QueryParsing.OP);
-    if (defaultOpString != null) {
-      if (defaultOpString.equalsIgnoreCase("and")) {
-        defaultOp = org.apache.lucene.queryparser.classic.QueryParser.Operator.AND;
+    @Override
+    public boolean equals(Object o) {
+      if (! (o instanceof ParserKey)) {
+        return false;
       }
+      ParserKey other = (ParserKey) o;
+      return schema == other.schema && Objects.equals(defaultFieldName, other.defaultFieldName) &&
+          andOperator == other.andOperator &&
+          allowLeadingWildcard == other.allowLeadingWildcard &&
+          autoGeneratePhrase == other.autoGeneratePhrase &&
+          fuzzyMaxEdits == other.fuzzyMaxEdits &&
+          prefixLength == other.prefixLength &&
+          phraseSlop == other.phraseSlop &&
+          nearMax == other.nearMax &&
+          notNearMax == other.notNearMax;
     }
 
-    parser.setDefaultOperator(defaultOp);
-
-    parser.setFuzzyMaxEdits(comboParams.getInt(MAX_FUZZY_EDITS, 2));
-    parser.setFuzzyPrefixLength(comboParams.getInt(PREFIX_LENGTH, 0));
-    parser.setPhraseSlop(comboParams.getInt(PHRASE_SLOP, 0));
-    parser.setSpanNearMaxDistance(comboParams.getInt(NEAR_MAX, -1));
-    parser.setSpanNotNearMaxDistance(comboParams.getInt(NOT_NEAR_MAX, -1));
-
+    @Override
+    public int hashCode() {
+      return Objects.hash(System.identityHashCode(schema), defaultFieldName, andOperator, allowLeadingWildcard,
+          autoGeneratePhrase, fuzzyMaxEdits, prefixLength, phraseSlop, nearMax, notNearMax);
+    }
   }
 
   @Override
@@ -103,7 +156,7 @@ public class SpanQParser extends QParser {
     {
       String qstr = getString();
 
-      query = parser.parse(qstr);
+      query = parser.parse(qstr, this);
 
     } catch (ParseException e){
       throw new SyntaxError(e.toString());
@@ -16,10 +16,14 @@ package org.tallison.solr.search;
  * limitations under the License.
  */
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.search.QParser;
+import org.apache.solr.schema.IndexSchema;
 import org.apache.solr.search.QParserPlugin;
 
 /**
@@ -41,11 +45,27 @@ import org.apache.solr.search.QParserPlugin;
  * <li>ps - default phrase slop</li>
  * <li>pl - default prefix length</li>
  * </ul>
+ * The plugin is created once per core, and it keeps the most recently used
+ * parsers, one per schema, default field and set of options, so that a
+ * request doesn't have to build its own.
  */
 public class SpanQParserPlugin extends QParserPlugin {
 
   public static final String NAME = "span";
 
+  //the options come from the requests, so the number of distinct parsers is bounded
+  private static final int MAX_PARSERS = 64;
+
+  private final Map<SpanQParser.ParserKey, SolrSpanQueryParser> parsers =
+      new LinkedHashMap<SpanQParser.ParserKey, SolrSpanQueryParser>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<SpanQParser.ParserKey, SolrSpanQueryParser> eldest) {
+          return size() > MAX_PARSERS;
+        }
+      };
+  //guarded by parsers
+  private IndexSchema lastSchema;
+
 
   @Override
   public void init(@SuppressWarnings("rawtypes") NamedList args) {
@@ -53,7 +73,26 @@ public class SpanQParserPlugin extends QParserPlugin {
 
   @Override
   public QParser createParser(String qstr, SolrParams localParams, SolrParams params, SolrQueryRequest req) {
-    return new SpanQParser(qstr, localParams, params, req);
+    return new SpanQParser(qstr, localParams, params, req, this);
   }
 
+  /**
+   * @param key schema and options of the request
+   * @return shared parser
+   */
+  SolrSpanQueryParser getParser(SpanQParser.ParserKey key) {
+    synchronized (parsers) {
+      if (key.schema != lastSchema) {
+        //the schema was reloaded; don't keep the old one reachable
+        parsers.clear();
+        lastSchema = key.schema;
+      }
+      SolrSpanQueryParser parser = parsers.get(key);
+      if (parser == null) {
+        parser = key.buildParser();
+        parsers.put(key, parser);
+      }
+      return parser;
+    }
+  }
 }